@@ -186,6 +186,48 @@ trait ItcService {
 
   def calculate(p: ItcParameters): Result
 
+  /** Performs the calculations for many variants of an observation at once, for example for a range of exposure
+    * times, numbers of exposures or conditions, returning one row per variant in the given order.  Variants
+    * that only differ in their calculation method values share the source, atmosphere and telescope
+    * calculations. */
+  def calculateSweep(ps: List[ItcParameters]): ItcSweepResult
+
+  /** Gets statistics for the service's result cache. */
+  def cacheStats: ItcCacheStats
+
+}
+
+/** Statistics for the ITC service's result cache.  Latencies are the mean time taken by `calculate` to answer
+  * from the cache (hits) and to compute and cache new results (misses). */
+final case class ItcCacheStats(
+    size:       Int,
+    hits:       Long,
+    misses:     Long,
+    evictions:  Long,
+    meanHitMs:  Double,
+    meanMissMs: Double
+) {
+  def hitRate: Double = if (hits + misses == 0) 0.0 else hits.toDouble / (hits + misses)
+}
+
+/** A row of a parameter sweep: the inputs that usually vary between the variants and the result. */
+final case class ItcSweepRow(
+    calculationMethod: CalculationMethod,
+    conditions:        ObservingConditions,
+    result:            ItcService.Result
+)
+
+/** The results of a parameter sweep, one row per variant. */
+final case class ItcSweepResult(rows: List[ItcSweepRow]) {
+  def results: List[ItcService.Result] = rows.map(_.result)
+}
+
+object ItcSweepResult {
+
+  /** Variants of the given parameters for each of the calculation methods. */
+  def variants(p: ItcParameters, methods: List[CalculationMethod]): List[ItcParameters] =
+    methods.map(m => p.copy(observation = p.observation.copy(calculationMethod = m)))
+
 }
 
 sealed trait ItcMessage
@@ -209,4 +251,16 @@ object ItcService {
       r[ItcService].calculate(inputs)
     }
 
+  /** Performs an ITC parameter sweep on the given host. */
+  def calculateSweep(peer: Peer, inputs: List[ItcParameters]): Future[ItcSweepResult] =
+    TrpcClient(peer).withoutKeys future { r =>
+      r[ItcService].calculateSweep(inputs)
+    }
+
+  /** Gets the result cache statistics of the ITC service on the given host. */
+  def cacheStats(peer: Peer): Future[ItcCacheStats] =
+    TrpcClient(peer).withoutKeys future { r =>
+      r[ItcService].cacheStats
+    }
+
 }
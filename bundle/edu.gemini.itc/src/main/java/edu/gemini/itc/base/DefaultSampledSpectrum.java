@@ -51,16 +51,15 @@ public class DefaultSampledSpectrum implements VisitableSampledSpectrum {
         for (int i = 0; i <= numIntervals; ++i) {
             data[i] = sp.getY(i * xInterval + xStart);
         }
-        reset(data, xStart, xInterval);
+        set(data, xStart, xInterval);
     }
 
     /**
      * Implements the Cloneable interface.
      */
     @Override public Object clone() {
-        double[] data = new double[getLength()];
-        System.arraycopy(getValues(), 0, data, 0, getLength());
-        return new DefaultSampledSpectrum(data, getStart(), getSampling());
+        // the constructor makes its own copy of the data
+        return new DefaultSampledSpectrum(_y, getStart(), getSampling());
     }
 
     @Override public void trim(double newStart, double newEnd) {
@@ -73,12 +72,10 @@ public class DefaultSampledSpectrum implements VisitableSampledSpectrum {
         if (newEnd < getStart() || newStart > getEnd()) {
             return;
         }
-        double[] data = new double[new Double((newEnd - newStart) / _xInterval).intValue() + 4];
-        //System.out.println("os: " + getStart() + "ns: " + newStart + " oe: " + getEnd() + " ne: " + newEnd);
-        //System.out.println("startpos: " + new Double((newStart-getStart())/_xInterval).intValue() + "length: " + getLength() + " copylength: " + new Double((newEnd-newStart)/_xInterval).intValue());
-
-        System.arraycopy(getValues(), new Double((newStart - getStart()) / _xInterval).intValue(), data, 0, new Double((newEnd - newStart) / _xInterval).intValue());
-        reset(data, newStart, _xInterval);
+        final int length = (int) ((newEnd - newStart) / _xInterval);
+        double[] data = new double[length + 4];
+        System.arraycopy(getValues(), (int) ((newStart - getStart()) / _xInterval), data, 0, length);
+        set(data, newStart, _xInterval);
     }
 
 
@@ -97,6 +94,14 @@ public class DefaultSampledSpectrum implements VisitableSampledSpectrum {
         _xEnd = _xStart + (_y.length - 1) * _xInterval;
     }
 
+    // Like reset() but takes ownership of the given array, for arrays created internally.
+    private void set(double[] y, double xStart, double xInterval) {
+        _y = y;
+        _xStart = xStart;
+        _xInterval = xInterval;
+        _xEnd = _xStart + (_y.length - 1) * _xInterval;
+    }
+
 
     /**
      * The accept(SampledSpectrumVisitor) method is used by Visitors to
@@ -230,7 +235,7 @@ public class DefaultSampledSpectrum implements VisitableSampledSpectrum {
             x = (double) i * getSampling() + xStart;
             data[i] = getY(x / factor);
         }
-        reset(data, xStart, getSampling());
+        set(data, xStart, getSampling());
     }
 
     /**
@@ -244,11 +249,9 @@ public class DefaultSampledSpectrum implements VisitableSampledSpectrum {
     }
 
     @Override public void smoothY(int smoothing_element) {
-        double[] _y_temp;
-        _y_temp = new double[_y.length];
-
-        //System.out.println("Smoothing: " + smoothing_element);
         if (smoothing_element == 1.0) return;
+        final double[] _y_temp = new double[_y.length];
+
         //System.out.print("Start:");
         for (int i = 0; i < getLength() - 1; ++i) {
             try {
@@ -287,9 +290,10 @@ public class DefaultSampledSpectrum implements VisitableSampledSpectrum {
         assert startIndex >= 0 && startIndex < getLength();
         assert endIndex   >= 0 && endIndex   < getLength();
 
+        final double[] y = _y;
         double sum = 0.0;
         for (int i = startIndex; i <= endIndex; ++i) {
-            sum += getY(i);
+            sum += y[i];
         }
         return sum;
     }
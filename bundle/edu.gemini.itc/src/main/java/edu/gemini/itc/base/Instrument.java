@@ -84,13 +84,11 @@ public abstract class Instrument {
     }
 
     /**
-     * Method to iterate through the Components list and apply the
-     * accept method of each component to a sed.
+     * Method to apply the transmission of all components in the
+     * Components list to a sed, in a single pass.
      */
     public void convolveComponents(VisitableSampledSpectrum sed) {
-        for (final TransmissionElement te : components) {
-            sed.accept(te);
-        }
+        sed.accept(new TransmissionPipeline(components));
     }
 
     /**
@@ -156,6 +154,14 @@ public abstract class Instrument {
         return params.name();
     }
 
+    /**
+     * Tells apart the instruments a recipe creates from the same parameters, e.g. the individual CCDs of GMOS.
+     * Source results are shared within a {@link SEDFactory.SourceCache} by this key.
+     */
+    public Object getSourceKey() {
+        return getClass();
+    }
+
     public double getStart() {
         return params.start();
     }
@@ -21,6 +21,15 @@ import edu.gemini.spModel.core.UserDefinedSpectrum;
 import edu.gemini.spModel.core.Wavelength;
 import scala.Option;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This class encapsulates the process of creating a Spectral Energy
  * Distribution (SED).  (e.g. from a data file)
@@ -45,6 +54,76 @@ public final class SEDFactory {
             this.sky                = sky;
             this.halo               = halo;
         }
+
+        /** Deep copy, the visitors applied by the recipes modify the spectra in place. */
+        public SourceResult copy() {
+            final Option<VisitableSampledSpectrum> h = halo.isDefined() ?
+                    Option.apply((VisitableSampledSpectrum) halo.get().clone()) :
+                    Option.<VisitableSampledSpectrum>empty();
+            return new SourceResult((VisitableSampledSpectrum) sed.clone(), (VisitableSampledSpectrum) sky.clone(), h);
+        }
+    }
+
+    /**
+     * Source results shared between calculations that only differ in their exposure parameters, as for example
+     * the variants of a parameter sweep.  The SED, redshift, normalisation, atmosphere and telescope stages don't
+     * depend on the exposure time or the number of exposures, so while a cache is installed for the current
+     * thread with {@link #withSourceCache} each distinct source is calculated once and every caller is handed
+     * its own copy of the result.  A cache must only be shared by calculations for the same source, conditions,
+     * telescope and instrument parameters; instruments are told apart by {@link Instrument#getSourceKey()} only.
+     */
+    public static final class SourceCache {
+        private final ConcurrentMap<List<Object>, FutureTask<SourceResult>> results = new ConcurrentHashMap<>();
+        private final AtomicInteger calculated = new AtomicInteger();
+        private final AtomicInteger shared     = new AtomicInteger();
+
+        private SourceResult get(final List<Object> key, final Callable<SourceResult> calculation) {
+            final FutureTask<SourceResult> task = new FutureTask<>(calculation);
+            final FutureTask<SourceResult> prev = results.putIfAbsent(key, task);
+            if (prev == null) {
+                calculated.incrementAndGet();
+                task.run();
+            } else {
+                shared.incrementAndGet();
+            }
+            try {
+                return (prev == null ? task : prev).get().copy();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error)            throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+
+        /** Number of source results that were calculated. */
+        public int getCalculated() {
+            return calculated.get();
+        }
+
+        /** Number of times a source result was shared instead of being calculated again. */
+        public int getShared() {
+            return shared.get();
+        }
+    }
+
+    private static final ThreadLocal<SourceCache> SOURCE_CACHE = new ThreadLocal<>();
+
+    /**
+     * Runs the given calculation with the cache installed for the current thread, so that all calls to
+     * {@link #calculate} made by it share their results through the cache.
+     */
+    public static <T> T withSourceCache(final SourceCache cache, final Callable<T> calculation) throws Exception {
+        final SourceCache prev = SOURCE_CACHE.get();
+        SOURCE_CACHE.set(cache);
+        try {
+            return calculation.call();
+        } finally {
+            if (prev == null) SOURCE_CACHE.remove(); else SOURCE_CACHE.set(prev);
+        }
     }
 
     /**
@@ -170,6 +249,15 @@ public final class SEDFactory {
     }
 
     public static SourceResult calculate(final Instrument instrument, final SourceDefinition sdp, final ObservingConditions odp, final TelescopeDetails tp, final Option<AOSystem> ao) {
+        final SourceCache cache = SOURCE_CACHE.get();
+        if (cache == null) {
+            return calculateSource(instrument, sdp, odp, tp, ao);
+        }
+        final List<Object> key = Arrays.asList(instrument.getSourceKey(), sdp, odp, tp, ao.isDefined());
+        return cache.get(key, () -> calculateSource(instrument, sdp, odp, tp, ao));
+    }
+
+    private static SourceResult calculateSource(final Instrument instrument, final SourceDefinition sdp, final ObservingConditions odp, final TelescopeDetails tp, final Option<AOSystem> ao) {
         // Module 1b
         // Define the source energy (as function of wavelength).
         //
@@ -232,23 +320,21 @@ public final class SEDFactory {
         // inputs: SED, AIRMASS, sky emmision file, mirror configuration,
         // output: SED and sky background as they arrive at instruments
 
-        final SampledSpectrumVisitor clouds = CloudTransmissionVisitor.create(odp.cc());
-        sed.accept(clouds);
+        final TransmissionElement clouds = CloudTransmissionVisitor.create(odp.cc());
 
-        final SampledSpectrumVisitor water = WaterTransmissionVisitor.create(
+        final TransmissionElement water = WaterTransmissionVisitor.create(
                 instrument,
                 odp.wv(),
                 odp.airmass(),
                 getWater(instrument));
-        sed.accept(water);
 
         // Background spectrum is introduced here.
         final VisitableSampledSpectrum sky = SEDFactory.getSED(getSky(instrument, odp), instrument.getSampling());
         Option<VisitableSampledSpectrum> halo = Option.empty();
 
-        // Apply telescope transmission to both sed and sky
-        final SampledSpectrumVisitor t = TelescopeTransmissionVisitor.create(tp);
-        sed.accept(t);
+        // Apply clouds, water and telescope transmission to the sed in one pass, and telescope transmission to the sky
+        final TransmissionElement t = TelescopeTransmissionVisitor.create(tp);
+        sed.accept(new TransmissionPipeline(clouds, water, t));
         sky.accept(t);
 
         // Create and Add background for the telescope.
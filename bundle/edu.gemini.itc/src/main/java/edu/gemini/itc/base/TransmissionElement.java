@@ -29,8 +29,14 @@ public class TransmissionElement implements SampledSpectrumVisitor {
 
     /**
      * Apply the transmission convolution for this component.
+     * Several elements can be applied in one pass with a {@link TransmissionPipeline}.
      */
     public void visit(final SampledSpectrum sed) {
+        new TransmissionPipeline(this).visit(sed);
+    }
+
+    // Element by element, for spectra that don't expose their data.
+    void visitSampled(final SampledSpectrum sed) {
         for (int i = 0; i < sed.getLength(); i++) {
             final double startval = sed.getX(i);
             final double multiplier = _trans.getY(startval);
@@ -38,6 +44,50 @@ public class TransmissionElement implements SampledSpectrumVisitor {
         }
     }
 
+    /**
+     * Writes the transmission at the sample points <code>start + (from + i) * sampling</code> for
+     * <code>i = 0 .. len - 1</code> into <code>t</code>.  Uses the same linear interpolation as
+     * {@link ArraySpectrum#getY(double)}, but as long as the sample points increase from one call to the
+     * next the transmission curve is walked with the given cursor instead of being searched.
+     *
+     * @param cursor index into the transmission curve returned by the previous call, 0 initially
+     * @return the cursor for the next call
+     */
+    int transmission(final double start, final double sampling, final int from, final int len, final double[] t, int cursor) {
+        if (!(_trans instanceof DefaultArraySpectrum) || _trans.getLength() < 2) {
+            for (int i = 0; i < len; ++i) {
+                t[i] = _trans.getY(start + (from + i) * sampling);
+            }
+            return cursor;
+        }
+
+        final double[][] data = _trans.getData();
+        final double[] xs     = data[0];
+        final double[] ys     = data[1];
+        final int last        = xs.length - 1;
+        final double xStart   = xs[0];
+        final double xEnd     = xs[last];
+
+        for (int i = 0; i < len; ++i) {
+            final double x = start + (from + i) * sampling;
+            if (x < xStart || x > xEnd) {
+                t[i] = 0;
+                continue;
+            }
+            // largest index with xs[index] < x, as found by the binary search in getLowerIndex()
+            while (cursor < last - 1 && xs[cursor + 1] < x) {
+                ++cursor;
+            }
+            final double x1 = xs[cursor];
+            final double x2 = xs[cursor + 1];
+            final double y1 = ys[cursor];
+            final double y2 = ys[cursor + 1];
+            final double slope = (y2 - y1) / (x2 - x1);
+            t[i] = slope * (x - x1) + y1;
+        }
+        return cursor;
+    }
+
     public ArraySpectrum get_trans() {
         return _trans;
     }
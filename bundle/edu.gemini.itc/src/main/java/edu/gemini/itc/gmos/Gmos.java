@@ -9,6 +9,7 @@ import edu.gemini.spModel.gemini.gmos.GmosSouthType;
 import scala.Option;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -189,6 +190,10 @@ public abstract class Gmos extends Instrument implements BinningProvider, Spectr
         return _detector.getName();
     }
 
+    @Override public Object getSourceKey() {
+        return Arrays.asList(getClass(), _detectorCcdIndex);
+    }
+
     /**
      * Returns the effective observing wavelength.
      * This is properly calculated as a flux-weighted averate of
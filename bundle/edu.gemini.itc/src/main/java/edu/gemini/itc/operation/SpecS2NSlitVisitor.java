@@ -250,16 +250,11 @@ public class SpecS2NSlitVisitor implements SampledSpectrumVisitor, SpecS2N {
     /** Calculates the signal to noise ratio for a single exposure. */
     private VisitableSampledSpectrum singleS2N(final VisitableSampledSpectrum signal, final VisitableSampledSpectrum background, final double darkNoise, final double readNoise) {
 
-        // total noise in the aperture
-        final VisitableSampledSpectrum noise = (VisitableSampledSpectrum) sourceFlux.clone();
-        for (int i = firstCcdPixel; i <= lastCcdPixel(noise.getLength()); ++i) {
-            noise.setY(i, Math.sqrt(signal.getY(i) + background.getY(i) + darkNoise + readNoise));
-        }
-
-        // calculate signal to noise
+        // calculate signal to noise from the total noise in the aperture
         final VisitableSampledSpectrum singleS2N = (VisitableSampledSpectrum) sourceFlux.clone();
         for (int i = firstCcdPixel; i <= lastCcdPixel(singleS2N.getLength()); ++i) {
-            singleS2N.setY(i, signal.getY(i) / noise.getY(i));
+            final double noise = Math.sqrt(signal.getY(i) + background.getY(i) + darkNoise + readNoise);
+            singleS2N.setY(i, signal.getY(i) / noise);
         }
 
         return singleS2N;
@@ -285,20 +280,16 @@ public class SpecS2NSlitVisitor implements SampledSpectrumVisitor, SpecS2N {
         // the number of exposures measuring the source flux is
         final double spec_number_source_exposures = numberExposures * sourceFraction;
 
-        // noise in aperture
-        final VisitableSampledSpectrum spec_sourceless_noise = (VisitableSampledSpectrum) sourceFlux.clone();
-        int spec_sourceless_noise_last = lastCcdPixel(spec_sourceless_noise.getLength());
-        for (int i = firstCcdPixel; i <= spec_sourceless_noise_last; ++i) {
-            spec_sourceless_noise.setY(i, Math.sqrt(background.getY(i) + darkNoise + readNoise));
-        }
-
         final VisitableSampledSpectrum finalS2N = (VisitableSampledSpectrum) sourceFlux.clone();
-        for (int i = firstCcdPixel; i <= lastCcdPixel(finalS2N.getLength()); ++i)
+        for (int i = firstCcdPixel; i <= lastCcdPixel(finalS2N.getLength()); ++i) {
+            // noise in aperture
+            final double sourcelessNoise = Math.sqrt(background.getY(i) + darkNoise + readNoise);
             finalS2N.setY(i, Math.sqrt(spec_number_source_exposures) *
                     signal.getY(i) /
                     Math.sqrt(signal.getY(i) + noiseFactor *
-                            spec_sourceless_noise.getY(i) *
-                            spec_sourceless_noise.getY(i)));
+                            sourcelessNoise *
+                            sourcelessNoise));
+        }
 
         return finalS2N;
     }
@@ -1,11 +1,12 @@
 package edu.gemini.itc.base
 
+import java.io.{BufferedInputStream, DataInputStream, IOException}
+import java.nio.ByteBuffer
 import java.util.Scanner
 import java.util.logging.Logger
 import java.util.regex.Pattern
 
 import scala.collection._
-import scalaz._
 
 /**
  * Set of tools to ingest dat files stored as resource files.
@@ -15,6 +16,11 @@ import scalaz._
  * know all the numbers are doubles. Using scan.next().toDouble is much more efficient than scan.nextDouble().
  * The contract regarding missing files and parsing errors is that this results in unchecked exceptions which
  * bubble all the way up to the servlet. This isn't better or worse than what we had originally.
+ *
+ * Even so, scanning the large sky background and SED files dominates the time of the first requests after a
+ * restart. The build therefore converts all purely numeric files into binary resources (see
+ * `project/ItcDatFiles.scala`), which are read instead of the text files when present. Loaded files are kept in
+ * a cache which is bounded by the approximate size of the data, see [[CacheSizeProp]].
  */
 object DatFile {
   lazy val Log = Logger.getLogger(getClass.getName)
@@ -84,17 +90,117 @@ object DatFile {
     scanArray(scan)
   }
 
+  // ===== Binary data files
+
+  /** Suffix of the binary version of a data file. */
+  val BinarySuffix  = ".bin"
+
+  private val BinaryMagic   = 0x49544344 // "ITCD"
+  private val BinaryVersion = 1
+
+  /** Reads all values from the binary version of the given data file, if there is one. */
+  def readBinary(f: String): Option[Array[Double]] =
+    Option(getClass.getResourceAsStream(f + BinarySuffix)).map { is =>
+      val in = new DataInputStream(new BufferedInputStream(is, 64 * 1024))
+      try {
+        if (in.readInt() != BinaryMagic || in.readInt() != BinaryVersion)
+          throw new IOException(s"Unsupported binary data file $f$BinarySuffix")
+        val values = new Array[Double](in.readInt())
+        val buf    = new Array[Byte](64 * 1024)
+        var i      = 0
+        while (i < values.length) {
+          val n = math.min(buf.length / 8, values.length - i)
+          in.readFully(buf, 0, n * 8)
+          ByteBuffer.wrap(buf, 0, n * 8).asDoubleBuffer().get(values, i, n)
+          i += n
+        }
+        values
+      } finally {
+        in.close()
+      }
+    }
+
+  // Splits (x, y) pairs starting at the given offset into columns.
+  private def columns(values: Array[Double], offset: Int): Data = {
+    val n    = (values.length - offset) / 2
+    val data = Array(new Array[Double](n), new Array[Double](n))
+    for (i <- 0 until n) {
+      data(0)(i) = values(offset + 2 * i)
+      data(1)(i) = values(offset + 2 * i + 1)
+    }
+    data
+  }
+
+  // ===== Cache
+
+  /** System property that sets the maximum size in megabytes of the data held in the cache. */
+  val CacheSizeProp = "edu.gemini.itc.datFile.cacheMegabytes"
+
+  val DefaultCacheMegabytes = 128
+
+  private def dataSize(d: Data): Long = d.map(_.length * 8L).sum
+  private val SmallSize: Any => Long = _ => 1024L
+
+  private lazy val maxCacheSize: Long = {
+    val mb = Option(System.getProperty(CacheSizeProp)).fold(DefaultCacheMegabytes) { s =>
+      try s.trim.toInt catch {
+        case _: NumberFormatException =>
+          Log.warning(s"Could not parse value of property '$CacheSizeProp': $s")
+          DefaultCacheMegabytes
+      }
+    }
+    mb * 1024L * 1024L
+  }
+
+  private case class Entry(value: Any, size: Long)
+
+  // Access ordered and shared by all loaders, so that the least recently used files of any kind are evicted first.
+  private val entries   = new java.util.LinkedHashMap[(String, String), Entry](64, 0.75f, true)
+  private var cacheSize = 0L
+
+  /** Number of files and approximate size in bytes of the data currently held in the cache. */
+  def cacheStats: (Int, Long) = entries.synchronized { (entries.size, cacheSize) }
+
+  /** Loads a file unless it is already available in the cache. */
+  private def cache[T](kind: String, size: T => Long)(load: String => T): String => T =
+    f => {
+      val key = (kind, f)
+      entries.synchronized(Option(entries.get(key))).fold {
+        Log.info(s"Caching file $f")
+        val t = load(f)
+        entries.synchronized {
+          val e = Entry(t, size(t))
+          Option(entries.put(key, e)).foreach(old => cacheSize -= old.size)
+          cacheSize += e.size
+          val it = entries.values.iterator
+          while (cacheSize > maxCacheSize && entries.size > 1 && it.hasNext) {
+            cacheSize -= it.next().size
+            it.remove()
+          }
+        }
+        t
+      } { e =>
+        e.value.asInstanceOf[T]
+      }
+    }
+
   // ===== Cached data file loaders
 
-  val arrays = cache { s =>
-    scanArray(s)
+  val arrays: String => Data = cache("arrays", dataSize) { f =>
+    readBinary(f).filter(_.length % 2 == 0).fold(scanArray(scanFile(f)))(columns(_, 0))
   }
 
-  val filters = cache { s =>
-    Filter(s.nextDouble(), scanArray(s))
+  val filters: String => Filter = cache[Filter]("filters", f => dataSize(f.data)) { f =>
+    readBinary(f).filter(_.length % 2 == 1).fold {
+      val s = scanFile(f)
+      Filter(s.nextDouble(), scanArray(s))
+    } { vs =>
+      Filter(vs(0), columns(vs, 1))
+    }
   }
 
-  val gratings = cache { s =>
+  val gratings: String => immutable.Map[String, Grating] = cache[immutable.Map[String, Grating]]("gratings", SmallSize) { f =>
+    val s = scanFile(f)
     val l = mutable.MutableList[Grating]()
     while (s.hasNext) {
       val name           = s.next()
@@ -107,11 +213,12 @@ object DatFile {
     l.map(l => l.name -> l).toMap
   }
 
-  val instruments = cache { s =>
+  val instruments: String => Instrument = cache[Instrument]("instruments", SmallSize) { f =>
+    val s = scanFile(f)
     Instrument(s.next, s.nextInt, s.nextInt, s.nextDouble, s.next, s.nextDouble, s.nextDouble, s.nextDouble)
   }
 
-  private def scanArray(s: Scanner): Array[Array[Double]] = {
+  private[base] def scanArray(s: Scanner): Array[Array[Double]] = {
     val l = mutable.MutableList[(Double, Double)]()
     while (s.hasNext) {
       val pair = (s.next().toDouble, s.next().toDouble)
@@ -123,12 +230,4 @@ object DatFile {
     data
   }
 
-  /** Loads a file and parses it using the given scanner unless it is already available in the cache. */
-  // Note: this could be changed to use a weak hash map in case we run into memory issues
-  private def cache[T](load: Scanner => T): String => T = Memo.immutableHashMapMemo[String, T] { f =>
-    Log.info(s"Caching file $f")
-    load(scanFile(f))
-  }
-
 }
-
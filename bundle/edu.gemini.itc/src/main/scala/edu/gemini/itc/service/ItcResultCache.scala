@@ -0,0 +1,145 @@
+package edu.gemini.itc.service
+
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Logger
+
+import edu.gemini.itc.service.ItcResultCache._
+import edu.gemini.itc.shared.ItcService.Result
+import edu.gemini.itc.shared.{ItcCacheStats, ItcParameters}
+import edu.gemini.spModel.core.UserDefinedSpectrum
+
+/**
+ * A bounded, thread-safe cache of ITC results keyed on the calculation
+ * parameters.  ITC calculations are deterministic, so identical parameters,
+ * which the OT sends repeatedly as users browse observations, can be
+ * answered without running the recipe again.
+ *
+ * Keys are the parameters themselves, compared structurally, except that the
+ * text of a user defined SED is replaced by a digest of its content (see
+ * [[ItcResultCache.key]]).  Only successful results are cached.  Entries are
+ * evicted least recently used first once there are more than `maxEntries`,
+ * and expire `ttlMs` milliseconds after they were computed.  Cached results
+ * are shared and must not be modified.
+ */
+final class ItcResultCache(maxEntries: Int, ttlMs: Long, clock: () => Long = () => System.currentTimeMillis) {
+  require(maxEntries >= 0, "maxEntries must be >= 0")
+  require(ttlMs > 0, "ttlMs must be > 0")
+
+  private case class Entry(result: Result, created: Long)
+
+  // Access ordered, so iteration starts with the least recently used entry.
+  private val entries = new java.util.LinkedHashMap[ItcParameters, Entry](16, 0.75f, true)
+
+  private val hits      = new AtomicLong()
+  private val misses    = new AtomicLong()
+  private val evictions = new AtomicLong()
+  private val hitNanos  = new AtomicLong()
+  private val missNanos = new AtomicLong()
+
+  /**
+   * Gets the cached result for the given parameters or else calculates it,
+   * caching the result if successful.
+   */
+  def getOrElseUpdate(p: ItcParameters)(calculate: => Result): Result = {
+    val start = System.nanoTime()
+    val k     = key(p)
+
+    lookup(k) match {
+      case Some(r) =>
+        hits.incrementAndGet()
+        hitNanos.addAndGet(System.nanoTime() - start)
+        r
+
+      case None    =>
+        val r = calculate
+        if (r.isRight && maxEntries > 0) store(k, r)
+        misses.incrementAndGet()
+        missNanos.addAndGet(System.nanoTime() - start)
+        r
+    }
+  }
+
+  private def lookup(k: ItcParameters): Option[Result] = entries.synchronized {
+    Option(entries.get(k)).flatMap { e =>
+      if (clock() - e.created < ttlMs) Some(e.result)
+      else {
+        entries.remove(k)
+        evictions.incrementAndGet()
+        None
+      }
+    }
+  }
+
+  private def store(k: ItcParameters, r: Result): Unit = entries.synchronized {
+    entries.put(k, Entry(r, clock()))
+    val it = entries.values.iterator
+    while (entries.size > maxEntries && it.hasNext) {
+      it.next()
+      it.remove()
+      evictions.incrementAndGet()
+    }
+  }
+
+  def size: Int = entries.synchronized { entries.size }
+
+  def clear(): Unit = entries.synchronized { entries.clear() }
+
+  def stats: ItcCacheStats = {
+    def meanMs(nanos: AtomicLong, count: Long): Double =
+      if (count == 0) 0.0 else nanos.get / 1e6 / count
+
+    val h = hits.get
+    val m = misses.get
+    ItcCacheStats(size, h, m, evictions.get, meanMs(hitNanos, h), meanMs(missNanos, m))
+  }
+
+}
+
+object ItcResultCache {
+  private val Log = Logger.getLogger(classOf[ItcResultCache].getName)
+
+  /** System property that sets the maximum number of cached results; 0 turns the cache off. */
+  val MaxEntriesProp = "edu.gemini.itc.cache.maxEntries"
+
+  /** System property that sets the time in minutes after which cached results expire. */
+  val TtlMinutesProp = "edu.gemini.itc.cache.ttlMinutes"
+
+  val DefaultMaxEntries = 1000
+  val DefaultTtlMinutes = 60
+
+  /** Creates a cache configured by the [[MaxEntriesProp]] and [[TtlMinutesProp]] system properties. */
+  def fromSystemProperties(): ItcResultCache = {
+    def prop(name: String, default: Int, min: Int): Int =
+      Option(System.getProperty(name)).fold(default) { s =>
+        try {
+          val n = s.trim.toInt
+          if (n >= min) n else { Log.warning(s"Value of property '$name' must be >= $min, using $default"); default }
+        } catch {
+          case _: NumberFormatException =>
+            Log.warning(s"Could not parse value of property '$name': $s")
+            default
+        }
+      }
+
+    new ItcResultCache(prop(MaxEntriesProp, DefaultMaxEntries, 0), prop(TtlMinutesProp, DefaultTtlMinutes, 1) * 60 * 1000L)
+  }
+
+  /**
+   * The cache key for the given parameters.  User defined SEDs can be large,
+   * so the spectrum text is replaced with its SHA-256 digest rather than
+   * being held in the cache.  Two SEDs with the same name but different
+   * content therefore still have different keys.
+   */
+  def key(p: ItcParameters): ItcParameters =
+    p.source.distribution match {
+      case UserDefinedSpectrum(name, spectrum) =>
+        p.copy(source = p.source.copy(distribution = UserDefinedSpectrum(name, digest(spectrum))))
+      case _                                   =>
+        p
+    }
+
+  private def digest(s: String): String =
+    MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8")).map("%02x".format(_)).mkString
+
+}
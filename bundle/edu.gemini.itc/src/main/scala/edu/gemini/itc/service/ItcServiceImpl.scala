@@ -12,6 +12,12 @@ import edu.gemini.itc.niri.NiriRecipe
 import edu.gemini.itc.shared._
 import edu.gemini.spModel.core.{AuxFileSpectrum, UserDefinedSpectrum, SpectralDistribution, SPProgramID}
 
+import edu.gemini.shared.util.exec.WorkerPool
+
+import java.util.concurrent.Callable
+
+import scala.collection.JavaConverters._
+
 import scalaz._
 import Scalaz._
 
@@ -19,45 +25,93 @@ import Scalaz._
  * The ITC service implementation.
  *
  * Note that all results are repacked in simplified Scala case classes in order not to leak out any of the
- * implementation details of the underlying ITC functionality.
+ * implementation details of the underlying ITC functionality.  Successful results are kept in an
+ * [[ItcResultCache]], so repeated calls with identical parameters don't run the recipe again.
+ *
+ * Parameter sweeps are calculated in parallel.  Variants that differ only in their exposure parameters
+ * (calculation method values) share a [[SEDFactory.SourceCache]], so the SED, redshift, atmosphere and
+ * telescope stages are done once for them and only the S/N integration is repeated for each variant.
  */
-class ItcServiceImpl extends ItcService {
+class ItcServiceImpl(cache: ItcResultCache) extends ItcService {
 
   import ItcService._
+  import ItcServiceImpl._
 
-  def calculate(p: ItcParameters): Result = try {
+  def this() = this(ItcResultCache.fromSystemProperties())
 
-    // update parameters sent from client with stuff that needs to be done on the server
-    val updatedParams: ItcParameters = {
+  def cacheStats: ItcCacheStats = cache.stats
 
-      // Get the SED data from an aux file. For now we can assume that the ITC service is running on the same
-      // machine as the database (localhost). In case this setup changes, we need to change this here, too.
-      def readAuxFile(id: String, name: String): SpectralDistribution = {
-        val programId     = SPProgramID.toProgramID(id)
-        val spectrumBytes = new AuxFileClient("localhost", 8443).fetchToMemory(programId, name)
-        val spectrum      = new String(spectrumBytes)
-        UserDefinedSpectrum(name, spectrum)
-      }
+  def calculate(p: ItcParameters): Result = try {
 
-      // if a user defined source distribution is involved we need to read the aux file and update the parameters accordingly
-      def updatedSrc(s: SourceDefinition) = s.distribution match {
-        case AuxFileSpectrum.Undefined    => throw new RuntimeException("The user SED is undefined.")   // "User Defined", but no SED file was available
-        case AuxFileSpectrum(anId, aName) => s.copy(distribution = readAuxFile(anId, aName))            // "User Defined", we need to replace placeholder with aux file
-        case _                            => s                                                          // for all other cases we can use what's there
-      }
+    // update parameters sent from client with stuff that needs to be done on the server and
+    // execute ITC service call with updated parameters, unless the result is already known; note that the
+    // key includes the content of a user defined SED, which is only available after the update
+    calculateUpdated(p.copy(source = updatedSource(p.source)))
+
+  } catch {
+    case e: Throwable => ItcResult.forException(e)
+  }
 
-      // do any updates necessary
-      p.copy(source = updatedSrc(p.source))
+  def calculateSweep(ps: List[ItcParameters]): ItcSweepResult = {
+
+    // read user defined SEDs only once for all variants
+    val sources: Map[SourceDefinition, Throwable \/ SourceDefinition] =
+      ps.map(_.source).distinct.map(s => s -> \/.fromTryCatchNonFatal(updatedSource(s))).toMap
+
+    val updated: List[Throwable \/ ItcParameters] =
+      ps.map(p => sources(p.source).map(s => p.copy(source = s)))
+
+    // variants that only differ in their exposure parameters share the source calculations
+    val caches: Map[SweepKey, SEDFactory.SourceCache] =
+      updated.collect { case \/-(p) => sweepKey(p) }.distinct.map(_ -> new SEDFactory.SourceCache).toMap
+
+    val results = SweepPool.runAll(updated.map {
+      case -\/(e) =>
+        new Callable[Result] {
+          override def call(): Result = ItcResult.forException(e)
+        }
+      case \/-(p) =>
+        new Callable[Result] {
+          override def call(): Result =
+            SEDFactory.withSourceCache(caches(sweepKey(p)), new Callable[Result] {
+              override def call(): Result = try {
+                calculateUpdated(p)
+              } catch {
+                case e: Throwable => ItcResult.forException(e)
+              }
+            })
+        }
+    }.asJava).asScala.toList.map(_.get)
+
+    val rows = ps.zip(results).map {
+      case (p, r) => ItcSweepRow(p.observation.calculationMethod, p.conditions, r)
     }
+    ItcSweepResult(rows)
+  }
 
-    // execute ITC service call with updated parameters
-    updatedParams.observation.calculationMethod match {
-      case _: Imaging       => calculateImaging(updatedParams)
-      case _: Spectroscopy  => calculateSpectroscopy(updatedParams)
+  // execute ITC service call with updated parameters, unless the result is already known
+  private def calculateUpdated(p: ItcParameters): Result =
+    cache.getOrElseUpdate(p) {
+      p.observation.calculationMethod match {
+        case _: Imaging       => calculateImaging(p)
+        case _: Spectroscopy  => calculateSpectroscopy(p)
+      }
     }
 
-  } catch {
-    case e: Throwable => ItcResult.forException(e)
+  // Get the SED data from an aux file. For now we can assume that the ITC service is running on the same
+  // machine as the database (localhost). In case this setup changes, we need to change this here, too.
+  private def readAuxFile(id: String, name: String): SpectralDistribution = {
+    val programId     = SPProgramID.toProgramID(id)
+    val spectrumBytes = new AuxFileClient("localhost", 8443).fetchToMemory(programId, name)
+    val spectrum      = new String(spectrumBytes)
+    UserDefinedSpectrum(name, spectrum)
+  }
+
+  // if a user defined source distribution is involved we need to read the aux file and update the parameters accordingly
+  private def updatedSource(s: SourceDefinition): SourceDefinition = s.distribution match {
+    case AuxFileSpectrum.Undefined    => throw new RuntimeException("The user SED is undefined.")   // "User Defined", but no SED file was available
+    case AuxFileSpectrum(anId, aName) => s.copy(distribution = readAuxFile(anId, aName))            // "User Defined", we need to replace placeholder with aux file
+    case _                            => s                                                          // for all other cases we can use what's there
   }
 
   // === Imaging
@@ -115,6 +169,20 @@ class ItcServiceImpl extends ItcService {
     ItcResult.forResult(s)
   }
 
+}
+
+object ItcServiceImpl {
+
+  // Variants with the same key have the same source results.
+  private type SweepKey = (SourceDefinition, ObservingConditions, TelescopeDetails, InstrumentDetails, AnalysisMethod, Class[_])
+
+  private def sweepKey(p: ItcParameters): SweepKey =
+    (p.source, p.conditions, p.telescope, p.instrument, p.observation.analysisMethod, p.observation.calculationMethod.getClass)
+
+  // Sweeps are CPU bound, use one thread per core.  Sweeps are rare, so the threads are
+  // removed when idle.
+  private val SweepThreadCount = Runtime.getRuntime.availableProcessors
 
+  private val SweepPool = new WorkerPool("ITC Sweep Worker", SweepThreadCount)
 
 }
@@ -1,7 +1,12 @@
 package edu.gemini.itc.base
 
+import java.io.File
+
+import org.junit.Assert._
 import org.junit.Test
 
+import scala.collection.mutable
+
 /**
  * Tests for the spectrum file parser.
  */
@@ -202,4 +207,60 @@ class DatFileTest {
     assert(data(1).size == 25)
   }
 
+  private def textValues(f: String): Array[Double] = {
+    val s = DatFile.scanFile(f)
+    val b = mutable.ArrayBuilder.make[Double]
+    try { while (s.hasNext) b += s.next().toDouble } finally { s.close() }
+    b.result()
+  }
+
+  private def assertSameData(expected: DatFile.Data, actual: DatFile.Data): Unit = {
+    assertEquals(expected.length, actual.length)
+    expected.zip(actual).foreach { case (e, a) => assertTrue(java.util.Arrays.equals(e, a)) }
+  }
+
+  /**
+   * Checks that the binary versions produced by the build hold exactly the same numbers as the text files.
+   */
+  @Test
+  def binaryFilesMatchTextFiles(): Unit = {
+    val marker = getClass.getResource("/acqcam/colfilt_B_G0152.dat" + DatFile.BinarySuffix)
+    assertNotNull("binary data files are missing", marker)
+    val root   = new File(marker.toURI).getParentFile.getParentFile
+
+    def binaries(d: File): List[File] =
+      Option(d.listFiles).toList.flatten.flatMap { f =>
+        if (f.isDirectory) binaries(f)
+        else if (f.getName.endsWith(DatFile.BinarySuffix)) List(f)
+        else Nil
+      }
+
+    val names = binaries(root).map { f =>
+      val path = root.toURI.relativize(f.toURI).getPath
+      "/" + path.substring(0, path.length - DatFile.BinarySuffix.length)
+    }
+    assertTrue(names.size > 400)
+
+    names.foreach { f =>
+      val b = DatFile.readBinary(f).get
+      assertTrue(f, java.util.Arrays.equals(textValues(f), b))
+    }
+  }
+
+  @Test
+  def binaryArraysMatchTextArrays(): Unit = {
+    List("/flamingos2/HK.dat", "/HI-Res/cp1-5/tele_emiss/telEmiss_2ag.dat", "/sed/non_stellar/ngc1068.nm").foreach { f =>
+      assertSameData(DatFile.scanArray(DatFile.scanFile(f)), DatFile.arrays(f))
+    }
+  }
+
+  @Test
+  def binaryFiltersMatchTextFilters(): Unit = {
+    val f = "/michelle/michelle_SI_1.dat"
+    val s = DatFile.scanFile(f)
+    val w = s.nextDouble()
+    assertEquals(w, DatFile.filters(f).wavelength, 0.0)
+    assertSameData(DatFile.scanArray(s), DatFile.filters(f).data)
+  }
+
 }
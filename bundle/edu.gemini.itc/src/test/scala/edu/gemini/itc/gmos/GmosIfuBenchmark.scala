@@ -0,0 +1,92 @@
+package edu.gemini.itc.gmos
+
+import edu.gemini.itc.base.{SEDFactory, TransmissionElement, TransmissionPipeline, VisitableSampledSpectrum}
+import edu.gemini.itc.baseline.BaselineGmos
+import edu.gemini.itc.shared.{GmosParameters, ItcParameters}
+import edu.gemini.spModel.core.Site
+
+import scala.collection.JavaConverters._
+
+/**
+ * Measures the time taken for the GMOS IFU spectroscopy calculations of the baseline fixtures, and the time
+ * taken to apply the instrument's transmission elements to a source spectrum, once element by element in the
+ * way TransmissionElement used to and once with a single TransmissionPipeline.  The results of the two are
+ * checked to be identical.  Only the transmission stages are compared; resampling, trimming and smoothing are
+ * the same in both.  This is not a test case.  Run with:
+ *
+ * <pre>
+ *     GmosIfuBenchmark [rounds]
+ * </pre>
+ */
+object GmosIfuBenchmark {
+
+  private def time(name: String, rounds: Int)(f: => Double): Unit = {
+    // warm up
+    var check = f
+    val t0 = System.nanoTime()
+    (1 to rounds).foreach { _ => check += f }
+    val t1 = System.nanoTime()
+    println(f"$name%-12s ${(t1 - t0).toDouble / rounds / 1e6}%10.2f ms/round    ($check%g)")
+  }
+
+  // the previous implementation of TransmissionElement.visit
+  private def legacyConvolve(sed: VisitableSampledSpectrum, components: List[TransmissionElement]): Unit =
+    components.foreach { te =>
+      for (i <- 0 until sed.getLength) {
+        sed.setY(i, sed.getY(i) * te.get_trans().getY(sed.getX(i)))
+      }
+    }
+
+  private def sum(sed: VisitableSampledSpectrum): Double =
+    sed.getValues.sum
+
+  def main(args: Array[String]): Unit = {
+    val rounds = if (args.length > 0) args(0).toInt else 10
+
+    val ifu = BaselineGmos.Fixtures.filter(_.ins match {
+      case g: GmosParameters => g.fpMask.isIFU
+      case _                 => false
+    })
+    val ps  = ifu.map(f => ItcParameters(f.src, f.odp, f.ocp, f.tep, f.ins))
+    println(s"${ps.size} IFU spectroscopy calculations")
+
+    time("recipes", rounds) {
+      ps.map { p =>
+        val r = new GmosRecipe(p, p.instrument.asInstanceOf[GmosParameters]).calculateSpectroscopy()
+        r.map(s => sum(s.specS2N(0).getFinalS2NSpectrum)).sum
+      }.sum
+    }
+
+    // source spectra and components of all fixtures, the spectra are copied for every round
+    val inputs = ifu.map { f =>
+      val g          = f.ins.asInstanceOf[GmosParameters]
+      val instrument = if (g.site == Site.GN) new GmosNorth(g, f.odp, 0) else new GmosSouth(g, f.odp, 0)
+      val sed        = SEDFactory.calculate(instrument, f.src, f.ocp, f.tep).sed
+      (sed, instrument.getComponents.asScala.toList)
+    }
+
+    inputs.foreach { case (sed, components) =>
+      val a = sed.clone().asInstanceOf[VisitableSampledSpectrum]
+      val b = sed.clone().asInstanceOf[VisitableSampledSpectrum]
+      legacyConvolve(a, components)
+      b.accept(new TransmissionPipeline(components.asJava))
+      require(a.getValues.sameElements(b.getValues), "pipeline result differs from element by element result")
+    }
+
+    time("per element", rounds) {
+      inputs.map { case (sed, components) =>
+        val s = sed.clone().asInstanceOf[VisitableSampledSpectrum]
+        legacyConvolve(s, components)
+        sum(s)
+      }.sum
+    }
+
+    time("pipeline", rounds) {
+      inputs.map { case (sed, components) =>
+        val s = sed.clone().asInstanceOf[VisitableSampledSpectrum]
+        s.accept(new TransmissionPipeline(components.asJava))
+        sum(s)
+      }.sum
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package edu.gemini.itc.service
+
+import edu.gemini.itc.baseline.BaselineGmos
+import edu.gemini.itc.shared._
+import edu.gemini.spModel.core.UserDefinedSpectrum
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * Tests for the ITC result cache.
+ */
+class ItcResultCacheTest {
+
+  private val params: List[ItcParameters] =
+    BaselineGmos.Fixtures.take(3).map(f => ItcParameters(f.src, f.odp, f.ocp, f.tep, f.ins))
+
+  private def result(sn: Double): ItcService.Result =
+    ItcResult.forResult(ItcImagingResult(List(ItcCcd(sn, sn, 1000.0, 100000.0, 2.0, Nil))))
+
+  private class Clock {
+    var now = 0L
+    val f: () => Long = () => now
+  }
+
+  @Test
+  def cachesSuccessfulResults(): Unit = {
+    val cache = new ItcResultCache(10, 1000)
+    var calls = 0
+    def calc = { calls += 1; result(calls.toDouble) }
+
+    val r0 = cache.getOrElseUpdate(params.head)(calc)
+    val r1 = cache.getOrElseUpdate(params.head)(calc)
+    assertEquals(1, calls)
+    assertSame(r0, r1)
+
+    cache.getOrElseUpdate(params(1))(calc)
+    assertEquals(2, calls)
+
+    val s = cache.stats
+    assertEquals(2, s.size)
+    assertEquals(1, s.hits)
+    assertEquals(2, s.misses)
+    assertEquals(1.0 / 3.0, s.hitRate, 0.00001)
+  }
+
+  @Test
+  def doesNotCacheErrors(): Unit = {
+    val cache = new ItcResultCache(10, 1000)
+    var calls = 0
+    def calc = { calls += 1; ItcResult.forMessage("Not implemented.") }
+
+    cache.getOrElseUpdate(params.head)(calc)
+    cache.getOrElseUpdate(params.head)(calc)
+    assertEquals(2, calls)
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  def evictsLeastRecentlyUsed(): Unit = {
+    val cache = new ItcResultCache(2, 1000)
+    cache.getOrElseUpdate(params(0))(result(0))
+    cache.getOrElseUpdate(params(1))(result(1))
+    cache.getOrElseUpdate(params(0))(result(-1))  // touch 0, so 1 is evicted next
+    cache.getOrElseUpdate(params(2))(result(2))
+
+    assertEquals(2, cache.size)
+    assertEquals(1, cache.stats.evictions)
+    assertEquals(result(0),  cache.getOrElseUpdate(params(0))(result(-1)))
+    assertEquals(result(-1), cache.getOrElseUpdate(params(1))(result(-1)))
+  }
+
+  @Test
+  def expiresOldResults(): Unit = {
+    val clock = new Clock
+    val cache = new ItcResultCache(10, 1000, clock.f)
+    cache.getOrElseUpdate(params.head)(result(0))
+
+    clock.now = 999
+    assertEquals(result(0), cache.getOrElseUpdate(params.head)(result(1)))
+
+    clock.now = 1000
+    assertEquals(result(1), cache.getOrElseUpdate(params.head)(result(1)))
+  }
+
+  @Test
+  def keyComparesTelescopeByValue(): Unit = {
+    val p = params.head
+    val t = p.telescope
+    val q = p.copy(telescope = new TelescopeDetails(t.getMirrorCoating, t.getInstrumentPort, t.getWFS))
+
+    val cache = new ItcResultCache(10, 1000)
+    cache.getOrElseUpdate(p)(result(0))
+    assertEquals(result(0), cache.getOrElseUpdate(q)(result(1)))
+  }
+
+  @Test
+  def keyIncludesUserSed(): Unit = {
+    def withSed(s: String) = {
+      val p = params.head
+      p.copy(source = p.source.copy(distribution = UserDefinedSpectrum("my.sed", s)))
+    }
+    val a = withSed("500 1.0\n600 2.0\n")
+    val b = withSed("500 1.0\n600 3.0\n")
+
+    assertEquals(ItcResultCache.key(a), ItcResultCache.key(withSed("500 1.0\n600 2.0\n")))
+    assertNotEquals(ItcResultCache.key(a), ItcResultCache.key(b))
+
+    val cache = new ItcResultCache(10, 1000)
+    cache.getOrElseUpdate(a)(result(0))
+    assertEquals(result(1), cache.getOrElseUpdate(b)(result(1)))
+    assertEquals(result(0), cache.getOrElseUpdate(a)(result(2)))
+  }
+
+}
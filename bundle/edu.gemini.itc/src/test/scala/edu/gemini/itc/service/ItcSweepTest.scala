@@ -0,0 +1,101 @@
+package edu.gemini.itc.service
+
+import java.util.concurrent.Callable
+
+import edu.gemini.itc.base.SEDFactory
+import edu.gemini.itc.baseline.BaselineGmos
+import edu.gemini.itc.gmos.GmosRecipe
+import edu.gemini.itc.shared._
+import edu.gemini.spModel.core.AuxFileSpectrum
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * Tests for ITC parameter sweeps.
+ */
+class ItcSweepTest {
+
+  private val imaging: ItcParameters =
+    BaselineGmos.Fixtures.find(_.odp.calculationMethod.isInstanceOf[ImagingS2N]).map(f => ItcParameters(f.src, f.odp, f.ocp, f.tep, f.ins)).get
+
+  private val spectroscopy: ItcParameters =
+    BaselineGmos.Fixtures.find(_.odp.calculationMethod.isInstanceOf[SpectroscopyS2N]).map(f => ItcParameters(f.src, f.odp, f.ocp, f.tep, f.ins)).get
+
+  private val imagingMethods: List[CalculationMethod] =
+    for {
+      n <- List(1, 4, 10)
+      t <- List(30.0, 120.0, 600.0)
+    } yield ImagingS2N(n, t, 0.5)
+
+  private val spectroscopyMethods: List[CalculationMethod] =
+    List(60.0, 300.0, 1200.0).map(t => SpectroscopyS2N(4, t, 1.0))
+
+  // Without a result cache, so that every variant is calculated.
+  private def service = new ItcServiceImpl(new ItcResultCache(0, 1))
+
+  private def ccds(r: ItcService.Result): List[ItcCcd] =
+    r.fold(e => { fail(e.msg); Nil }, _.ccds)
+
+  private def assertSameAsSingleCalculations(ps: List[ItcParameters]): Unit = {
+    val s     = service
+    val sweep = s.calculateSweep(ps)
+
+    assertEquals(ps.size, sweep.rows.size)
+    ps.zip(sweep.rows).foreach { case (p, row) =>
+      assertEquals(p.observation.calculationMethod, row.calculationMethod)
+      assertEquals(p.conditions, row.conditions)
+      assertEquals(ccds(s.calculate(p)), ccds(row.result))
+    }
+  }
+
+  @Test
+  def imagingSweepMatchesSingleCalculations(): Unit =
+    assertSameAsSingleCalculations(ItcSweepResult.variants(imaging, imagingMethods))
+
+  @Test
+  def spectroscopySweepMatchesSingleCalculations(): Unit =
+    assertSameAsSingleCalculations(ItcSweepResult.variants(spectroscopy, spectroscopyMethods))
+
+  @Test
+  def sweepMixesVariants(): Unit = {
+    val ps = ItcSweepResult.variants(imaging, imagingMethods.take(2)) ++
+             ItcSweepResult.variants(spectroscopy, spectroscopyMethods.take(2)) ++
+             BaselineGmos.Fixtures.take(2).map(f => ItcParameters(f.src, f.odp, f.ocp, f.tep, f.ins))
+    assertSameAsSingleCalculations(ps)
+  }
+
+  @Test
+  def sweepReportsErrorsPerVariant(): Unit = {
+    val bad   = spectroscopy.copy(source = spectroscopy.source.copy(distribution = AuxFileSpectrum.Undefined))
+    val sweep = service.calculateSweep(List(spectroscopy, bad, spectroscopy))
+    assertEquals(List(true, false, true), sweep.results.map(_.isRight))
+    assertEquals(ItcResult.forMessage("The user SED is undefined."), sweep.results(1))
+  }
+
+  @Test
+  def sourcesAreSharedBetweenExposures(): Unit = {
+    val cache = new SEDFactory.SourceCache
+    val ps    = ItcSweepResult.variants(spectroscopy, spectroscopyMethods)
+
+    val results = ps.map { p =>
+      SEDFactory.withSourceCache(cache, new Callable[ItcSpectroscopyResult] {
+        override def call(): ItcSpectroscopyResult = {
+          val recipe = new GmosRecipe(p, p.instrument.asInstanceOf[GmosParameters])
+          recipe.serviceResult(recipe.calculateSpectroscopy())
+        }
+      })
+    }
+
+    assertTrue(cache.getCalculated > 0)
+    assertEquals((ps.size - 1) * cache.getCalculated, cache.getShared)
+
+    // the shared sources are not modified by the recipes
+    val again = service.calculate(ps.head)
+    assertEquals(ccds(again), results.head.ccds)
+  }
+
+  @Test
+  def emptySweep(): Unit =
+    assertTrue(service.calculateSweep(Nil).rows.isEmpty)
+
+}
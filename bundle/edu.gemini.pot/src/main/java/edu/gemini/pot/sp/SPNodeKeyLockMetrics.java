@@ -0,0 +1,132 @@
+package edu.gemini.pot.sp;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable summary of lock usage recorded by {@link SPNodeKeyLocks} while
+ * metrics collection is enabled.  Times are in nanoseconds.
+ */
+public final class SPNodeKeyLockMetrics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Lock usage statistics for a single key.
+     */
+    public static final class KeyStats implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long readCount;
+        private final long writeCount;
+        private final long contendedCount;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+        private final long totalHoldNanos;
+        private final long maxHoldNanos;
+
+        public KeyStats(long readCount, long writeCount, long contendedCount,
+                        long totalWaitNanos, long maxWaitNanos,
+                        long totalHoldNanos, long maxHoldNanos) {
+            this.readCount      = readCount;
+            this.writeCount     = writeCount;
+            this.contendedCount = contendedCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos   = maxWaitNanos;
+            this.totalHoldNanos = totalHoldNanos;
+            this.maxHoldNanos   = maxHoldNanos;
+        }
+
+        /** Number of read lock acquisitions. */
+        public long getReadCount() { return readCount; }
+
+        /** Number of write lock acquisitions. */
+        public long getWriteCount() { return writeCount; }
+
+        /** Number of acquisitions that had to wait for another thread. */
+        public long getContendedCount() { return contendedCount; }
+
+        /** Total time spent waiting to acquire the lock. */
+        public long getTotalWaitNanos() { return totalWaitNanos; }
+
+        /** Longest time spent waiting to acquire the lock. */
+        public long getMaxWaitNanos() { return maxWaitNanos; }
+
+        /** Total time the lock was held, counting each holder separately. */
+        public long getTotalHoldNanos() { return totalHoldNanos; }
+
+        /** Longest time the lock was held by one holder. */
+        public long getMaxHoldNanos() { return maxHoldNanos; }
+
+        KeyStats plus(KeyStats that) {
+            return new KeyStats(readCount + that.readCount, writeCount + that.writeCount,
+                    contendedCount + that.contendedCount,
+                    totalWaitNanos + that.totalWaitNanos, Math.max(maxWaitNanos, that.maxWaitNanos),
+                    totalHoldNanos + that.totalHoldNanos, Math.max(maxHoldNanos, that.maxHoldNanos));
+        }
+
+        @Override public String toString() {
+            return String.format("reads=%d, writes=%d, contended=%d, wait=%.1f ms (max %.1f ms), hold=%.1f ms (max %.1f ms)",
+                    readCount, writeCount, contendedCount,
+                    totalWaitNanos / 1e6, maxWaitNanos / 1e6, totalHoldNanos / 1e6, maxHoldNanos / 1e6);
+        }
+    }
+
+    public static final KeyStats EMPTY_STATS = new KeyStats(0, 0, 0, 0, 0, 0, 0);
+
+    public static final SPNodeKeyLockMetrics EMPTY =
+        new SPNodeKeyLockMetrics(0, Collections.<SPNodeKey, KeyStats>emptyMap(), EMPTY_STATS);
+
+    private final int liveLocks;
+    private final Map<SPNodeKey, KeyStats> keys;
+    private final KeyStats discarded;
+
+    public SPNodeKeyLockMetrics(int liveLocks, Map<SPNodeKey, KeyStats> keys, KeyStats discarded) {
+        this.liveLocks = liveLocks;
+        this.keys      = Collections.unmodifiableMap(new HashMap<>(keys));
+        this.discarded = discarded;
+    }
+
+    /** Number of keys that currently have a lock allocated. */
+    public int getLiveLocks() { return liveLocks; }
+
+    /** Statistics per key, for the keys that currently have a lock allocated. */
+    public Map<SPNodeKey, KeyStats> getKeys() { return keys; }
+
+    /** Statistics summed over the keys whose locks have been discarded. */
+    public KeyStats getDiscarded() {
+        // null if sent by an older version
+        return (discarded == null) ? EMPTY_STATS : discarded;
+    }
+
+    /** Statistics summed over all keys, including discarded ones. */
+    public KeyStats getTotal() {
+        KeyStats res = getDiscarded();
+        for (KeyStats ks : keys.values()) res = res.plus(ks);
+        return res;
+    }
+
+    /**
+     * Gets the keys with the most time spent waiting for their locks, most
+     * contended first.
+     */
+    public List<SPNodeKey> getMostContended(int n) {
+        final List<Map.Entry<SPNodeKey, KeyStats>> es = new ArrayList<>(keys.entrySet());
+        Collections.sort(es, new Comparator<Map.Entry<SPNodeKey, KeyStats>>() {
+            @Override public int compare(Map.Entry<SPNodeKey, KeyStats> e1, Map.Entry<SPNodeKey, KeyStats> e2) {
+                return Long.compare(e2.getValue().totalWaitNanos, e1.getValue().totalWaitNanos);
+            }
+        });
+        final List<SPNodeKey> res = new ArrayList<>();
+        for (Map.Entry<SPNodeKey, KeyStats> e : es.subList(0, Math.min(n, es.size()))) res.add(e.getKey());
+        return res;
+    }
+
+    @Override public String toString() {
+        return "live=" + liveLocks + ", keys=" + keys.size() + ", " + getTotal();
+    }
+}
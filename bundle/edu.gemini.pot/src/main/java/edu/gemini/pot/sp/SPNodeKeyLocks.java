@@ -1,42 +1,342 @@
 package edu.gemini.pot.sp;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Provides a low-level API for getting read/write locks associated with
- * SPNodeKeys.  Locks are created on demand but never removed.
+ * SPNodeKeys.  Locks are created on demand.  Whenever the number of locks
+ * doubles, those that no thread holds or is waiting for are discarded, so the
+ * registry grows with the number of keys actually in use rather than with
+ * every key ever locked.  Looking up a lock does not synchronize on the
+ * registry as a whole, so threads working with different keys do not contend
+ * with one another.
+ *
+ * <p>Lock usage statistics (time spent waiting for and holding each lock) can
+ * be collected by setting the system property named by
+ * {@link #METRICS_PROP} to <code>true</code>, or by calling
+ * {@link #setMetricsEnabled}.  Collection is off by default since it adds
+ * timing calls to every lock and unlock.  The statistics of a key are kept
+ * with its lock, and added to a single total for all discarded locks when the
+ * lock is discarded.
  */
 public enum SPNodeKeyLocks {
     instance;
 
-    private Map<SPNodeKey, ReentrantReadWriteLock> locks = new HashMap<SPNodeKey, ReentrantReadWriteLock>();
+    /**
+     * System property that turns on collection of lock metrics at startup.
+     */
+    public static final String METRICS_PROP = SPNodeKeyLocks.class.getName() + ".metrics";
+
+    // Number of locks below which idle locks are never discarded.
+    private static final int MIN_SWEEP_SIZE = 1024;
+
+    // A lock along with the number of outstanding lock calls (held or
+    // waiting) on it.  The count becomes -1 when the entry is discarded, after
+    // which it can no longer be retained and a new entry must be created.
+    // Statistics are only recorded while the entry is retained, so they no
+    // longer change once it has been discarded.
+    private static final class Entry {
+        final SPNodeKey key;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final AtomicInteger refs = new AtomicInteger();
+        long writeStart; // guarded by the write lock
+        private Stats stats;
+
+        Entry(SPNodeKey key) {
+            this.key = key;
+        }
+
+        synchronized Stats stats() {
+            if (stats == null) stats = new Stats();
+            return stats;
+        }
+
+        /** Gets the statistics if any have been recorded. */
+        synchronized Stats statsOrNull() {
+            return stats;
+        }
+
+        synchronized void resetStats() {
+            stats = null;
+        }
+
+        boolean retain() {
+            while (true) {
+                final int r = refs.get();
+                if (r < 0) return false;
+                if (refs.compareAndSet(r, r + 1)) return true;
+            }
+        }
+
+        void release() {
+            refs.decrementAndGet();
+        }
+
+        /** Marks the entry discarded if it is not in use. */
+        boolean discard() {
+            return refs.compareAndSet(0, -1);
+        }
+    }
+
+    // Accumulates statistics for one key.
+    private static final class Stats {
+        private long readCount;
+        private long writeCount;
+        private long contendedCount;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private long totalHoldNanos;
+        private long maxHoldNanos;
+
+        synchronized void acquired(boolean write, long waitNanos) {
+            if (write) ++writeCount; else ++readCount;
+            if (waitNanos > 0) {
+                ++contendedCount;
+                totalWaitNanos += waitNanos;
+                maxWaitNanos    = Math.max(maxWaitNanos, waitNanos);
+            }
+        }
+
+        synchronized void released(long holdNanos) {
+            totalHoldNanos += holdNanos;
+            maxHoldNanos    = Math.max(maxHoldNanos, holdNanos);
+        }
+
+        synchronized SPNodeKeyLockMetrics.KeyStats snapshot() {
+            return new SPNodeKeyLockMetrics.KeyStats(readCount, writeCount, contendedCount,
+                    totalWaitNanos, maxWaitNanos, totalHoldNanos, maxHoldNanos);
+        }
+    }
+
+    private final ConcurrentMap<SPNodeKey, Entry> locks = new ConcurrentHashMap<>();
+    private final AtomicInteger sweepSize = new AtomicInteger(MIN_SWEEP_SIZE);
+    private final AtomicBoolean sweeping  = new AtomicBoolean();
+
+    // Enum constants are initialized before static fields, so METRICS_PROP
+    // can't be used here.
+    private volatile boolean metricsEnabled = Boolean.getBoolean(SPNodeKeyLocks.class.getName() + ".metrics");
+
+    // Statistics of the locks that have been discarded, summed.
+    private final Object discardedLock = new Object();
+    private SPNodeKeyLockMetrics.KeyStats discarded = SPNodeKeyLockMetrics.EMPTY_STATS; // guarded by discardedLock
+
+    // When each read lock held by the current thread was first acquired.
+    private final ThreadLocal<Map<Entry, Long>> readStarts = new ThreadLocal<Map<Entry, Long>>() {
+        @Override protected Map<Entry, Long> initialValue() {
+            return new IdentityHashMap<>();
+        }
+    };
+
+    /**
+     * Gets the entry for the key, creating it if necessary, and retains it.
+     */
+    private Entry retain(SPNodeKey key) {
+        while (true) {
+            Entry e = locks.get(key);
+            if (e == null) {
+                final Entry ne   = new Entry(key);
+                final Entry prev = locks.putIfAbsent(key, ne);
+                if (prev == null) {
+                    e = ne;
+                    if (locks.size() > sweepSize.get()) sweep();
+                } else {
+                    e = prev;
+                }
+            }
+            if (e.retain()) return e;
+
+            // Lost a race with a sweep that discarded this entry.  Make sure it
+            // is gone and try again.
+            locks.remove(key, e);
+        }
+    }
+
+    private void release(Entry e) {
+        e.release();
+    }
+
+    /**
+     * Discards the locks that are not in use and sets the size at which the
+     * next sweep will happen to twice the number that remain.
+     */
+    private void sweep() {
+        if (!sweeping.compareAndSet(false, true)) return;
+        try {
+            for (Entry e : locks.values()) {
+                if (e.discard()) {
+                    locks.remove(e.key, e);
+                    final Stats s = e.statsOrNull();
+                    if (s != null) {
+                        final SPNodeKeyLockMetrics.KeyStats ks = s.snapshot();
+                        synchronized (discardedLock) {
+                            discarded = discarded.plus(ks);
+                        }
+                    }
+                }
+            }
+            sweepSize.set(Math.max(MIN_SWEEP_SIZE, 2 * locks.size()));
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * Gets the entry for a lock that the caller claims to hold.
+     */
+    private Entry held(SPNodeKey key) {
+        final Entry e = locks.get(key);
+        if (e == null) throw new IllegalMonitorStateException("Lock not held: " + key);
+        return e;
+    }
+
+    // Acquires the lock, measuring the wait if metrics are enabled.  Returns
+    // the time spent waiting, which is zero if the lock was free.
+    private long acquire(Lock l) {
+        if (!metricsEnabled) {
+            l.lock();
+            return 0;
+        } else if (l.tryLock()) {
+            return 0;
+        } else {
+            final long start = System.nanoTime();
+            l.lock();
+            return Math.max(1, System.nanoTime() - start);
+        }
+    }
+
+    public void readLock(SPNodeKey key) {
+        final Entry e = retain(key);
+        final long wait;
+        try {
+            wait = acquire(e.lock.readLock());
+        } catch (RuntimeException | Error ex) {
+            release(e);
+            throw ex;
+        }
+        if (metricsEnabled) {
+            e.stats().acquired(false, wait);
+            if (e.lock.getReadHoldCount() == 1) readStarts.get().put(e, System.nanoTime());
+        }
+    }
 
-    private synchronized ReentrantReadWriteLock getLock(SPNodeKey key) {
-        ReentrantReadWriteLock l = locks.get(key);
-        if (l == null) {
-            l = new ReentrantReadWriteLock();
-            locks.put(key, l);
+    /**
+     * Acquires the read lock only if it can be had without waiting, returning
+     * <code>true</code> if it was.  A successful call must be matched by a
+     * call to {@link #readUnlock}.
+     */
+    public boolean tryReadLock(SPNodeKey key) {
+        final Entry e = retain(key);
+        final boolean acquired;
+        try {
+            acquired = e.lock.readLock().tryLock();
+        } catch (RuntimeException | Error ex) {
+            release(e);
+            throw ex;
+        }
+        if (!acquired) {
+            release(e);
+        } else if (metricsEnabled) {
+            e.stats().acquired(false, 0);
+            if (e.lock.getReadHoldCount() == 1) readStarts.get().put(e, System.nanoTime());
         }
-        return l;
+        return acquired;
     }
 
-    private Lock getReadLock(SPNodeKey key)  { return getLock(key).readLock();  }
-    private Lock getWriteLock(SPNodeKey key) { return getLock(key).writeLock(); }
+    public void readUnlock(SPNodeKey key) {
+        final Entry e = held(key);
+        e.lock.readLock().unlock();
+        if (metricsEnabled && (e.lock.getReadHoldCount() == 0)) {
+            final Long start = readStarts.get().remove(e);
+            if (start != null) e.stats().released(System.nanoTime() - start);
+        }
+        release(e);
+    }
 
-    public void readLock(SPNodeKey key)     { getReadLock(key).lock();   }
-    public void readUnlock(SPNodeKey key)   { getReadLock(key).unlock(); }
+    public void writeLock(SPNodeKey key) {
+        final Entry e = retain(key);
+        final long wait;
+        try {
+            wait = acquire(e.lock.writeLock());
+        } catch (RuntimeException | Error ex) {
+            release(e);
+            throw ex;
+        }
+        if (metricsEnabled) {
+            e.stats().acquired(true, wait);
+            if (e.lock.getWriteHoldCount() == 1) e.writeStart = System.nanoTime();
+        }
+    }
 
-    public void writeLock(SPNodeKey key)    { getWriteLock(key).lock();   }
-    public void writeUnlock(SPNodeKey key)  { getWriteLock(key).unlock(); }
+    public void writeUnlock(SPNodeKey key) {
+        final Entry e = held(key);
+        final long start = e.writeStart;
+        final boolean last = e.lock.getWriteHoldCount() == 1;
+        if (last) e.writeStart = 0;
+        e.lock.writeLock().unlock();
+        if (last && (start != 0) && metricsEnabled) e.stats().released(System.nanoTime() - start);
+        release(e);
+    }
 
     /**
      * Returns <code>true</code> if the current thread has a write lock for the
      * indicated program key.
      */
     public boolean isWriteLockHeld(SPNodeKey key) {
-        return getLock(key).isWriteLockedByCurrentThread();
+        final Entry e = locks.get(key);
+        return (e != null) && e.lock.isWriteLockedByCurrentThread();
+    }
+
+    /**
+     * Returns the number of keys that currently have a lock allocated.  This
+     * includes idle locks that have not yet been discarded.
+     */
+    public int getLiveLockCount() {
+        return locks.size();
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Turns collection of lock metrics on or off.  Statistics already
+     * collected are kept until {@link #resetMetrics} is called.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        metricsEnabled = enabled;
+    }
+
+    /**
+     * Discards all collected lock statistics.
+     */
+    public void resetMetrics() {
+        for (Entry e : locks.values()) e.resetStats();
+        synchronized (discardedLock) {
+            discarded = SPNodeKeyLockMetrics.EMPTY_STATS;
+        }
+    }
+
+    /**
+     * Gets a snapshot of the lock statistics collected so far.
+     */
+    public SPNodeKeyLockMetrics getMetrics() {
+        final Map<SPNodeKey, SPNodeKeyLockMetrics.KeyStats> m = new HashMap<>();
+        for (Entry e : locks.values()) {
+            final Stats s = e.statsOrNull();
+            if (s != null) m.put(e.key, s.snapshot());
+        }
+        final SPNodeKeyLockMetrics.KeyStats d;
+        synchronized (discardedLock) {
+            d = discarded;
+        }
+        return new SPNodeKeyLockMetrics(locks.size(), m, d);
     }
 }
@@ -36,6 +36,10 @@ public class DocumentData implements Serializable {
     // The last modification timestamp.
     private long _lastModified;
 
+    // Set for a private copy that no other thread can reach, which needs no
+    // locking.
+    private transient boolean _detached;
+
     DocumentData(SPNodeKey docKey, SPProgramID docId, UUID uuid, LifespanId lifespanId) {
         if (docKey == null) throw new IllegalArgumentException("docKey == null");
         if (uuid == null) throw new IllegalArgumentException("uuid == null");
@@ -46,6 +50,32 @@ public class DocumentData implements Serializable {
         this._programClientData = Collections.synchronizedMap(new HashMap<Object, Object>());
     }
 
+    /**
+     * Marks this as the data of a private copy of a document, used by a
+     * single thread.  Its program lock methods do nothing from then on, so
+     * the copy can be read without blocking writers of the original.
+     */
+    void detach() {
+        _detached = true;
+    }
+
+    /**
+     * Copies the document-wide state that node copies don't carry over: the
+     * version map, the modification time and the program client data.  The
+     * caller must hold the read lock of <code>that</code>.
+     */
+    void copyStateFrom(DocumentData that) {
+        getProgramWriteLock();
+        try {
+            versions      = that.versions;
+            _lastModified = that._lastModified;
+            _programClientData.clear();
+            _programClientData.putAll(that._programClientData);
+        } finally {
+            returnProgramWriteLock();
+        }
+    }
+
     SPNodeKey getDocumentKey() {
         return _docKey;
     }
@@ -186,24 +216,28 @@ public class DocumentData implements Serializable {
     }
 
     public void getProgramReadLock() {
+        if (_detached) return;
         warnIfImplicitLocking();
         SPNodeKeyLocks.instance.readLock(_docKey);
     }
 
     public void returnProgramReadLock() {
+        if (_detached) return;
         SPNodeKeyLocks.instance.readUnlock(_docKey);
     }
 
     public void getProgramWriteLock() {
+        if (_detached) return;
         warnIfImplicitLocking();
         SPNodeKeyLocks.instance.writeLock(_docKey);
     }
 
     public void returnProgramWriteLock() {
+        if (_detached) return;
         SPNodeKeyLocks.instance.writeUnlock(_docKey);
     }
 
     public boolean haveProgramWriteLock() {
-        return SPNodeKeyLocks.instance.isWriteLockHeld(_docKey);
+        return _detached || SPNodeKeyLocks.instance.isWriteLockHeld(_docKey);
     }
 }
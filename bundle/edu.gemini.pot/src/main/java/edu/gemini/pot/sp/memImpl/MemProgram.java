@@ -40,6 +40,28 @@ public final class MemProgram extends MemAbstractContainer implements ISPProgram
         return duplicate(that, databaseId, factory, that.getLifespanId());
     }
 
+    /**
+     * Creates an exact, detached copy of the given program for storage.  The
+     * original's read lock is held only while the copy is made.  The copy
+     * shares no mutable state with the original and takes no locks, so it
+     * can be serialized without blocking writers of the original.  It must
+     * not be used by more than one thread or added to a database.
+     */
+    public static MemProgram detachedCopy(MemProgram that) {
+        final DocumentData src = that.getDocumentData();
+        final ProgramData pd = new ProgramData(that.getNodeKey(), that.getProgramID(), src.getDatabaseUuid(), that.getLifespanId());
+        pd.detach();
+
+        that.getProgramReadLock();
+        try {
+            final MemProgram copy = new MemProgram(pd, new MemFactory(src.getDatabaseUuid()), that, true);
+            pd.copyStateFrom(src);
+            return copy;
+        } finally {
+            that.returnProgramReadLock();
+        }
+    }
+
     public static MemProgram copyWithNewLifespanId(ISPProgram that, UUID databaseId, ISPFactory factory) {
         return duplicate(that, databaseId, factory, LifespanId.random());
     }
@@ -9,9 +9,43 @@ import java.util.logging.Logger;
 public final class MemSerializer {
     private static final Logger LOG = Logger.getLogger(MemSerializer.class.getName());
 
+    /**
+     * System property used to select the format in which programs are stored.
+     * One of the {@link Format} names, case insensitive.  Loading always
+     * accepts either format.
+     */
+    public static final String FORMAT_PROP = MemSerializer.class.getName() + ".format";
+
+    /** Formats in which a program may be stored. */
+    public enum Format {
+        /** Plain Java serialization of the node tree. */
+        JAVA,
+
+        /**
+         * Java serialization framed by {@link SnapshotCodec}, with keys and
+         * strings interned, without compression.
+         */
+        SNAPSHOT,
+
+        /** As {@link #SNAPSHOT}, with deflated blocks. */
+        SNAPSHOT_DEFLATE,
+        ;
+
+        public static Format fromSystemProperty() {
+            final String propStr = System.getProperty(FORMAT_PROP);
+            if (propStr == null) return JAVA;
+            try {
+                return valueOf(propStr.trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                LOG.warning("Unknown value for property '" + FORMAT_PROP + "': " + propStr);
+                return JAVA;
+            }
+        }
+    }
+
     // An ObjectInputStream that uses the bundle's class loader if possible to
     // resolve classes.
-    private final class ClassLoaderObjectInputStream extends ObjectInputStream {
+    static class ClassLoaderObjectInputStream extends ObjectInputStream {
         private final ClassLoader loader;
 
         ClassLoaderObjectInputStream(ClassLoader loader, InputStream is) throws IOException {
@@ -28,17 +62,54 @@ public final class MemSerializer {
         }
     }
 
+    private final Format format;
+
+    public MemSerializer() {
+        this(Format.fromSystemProperty());
+    }
+
+    public MemSerializer(Format format) {
+        if (format == null) throw new NullPointerException("format");
+        this.format = format;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
     private ClassLoader getLoader() {
         return MemSerializer.class.getClassLoader();
     }
 
     public MemAbstractBase load(File file) throws IOException {
         final FileInputStream fis = new FileInputStream(file);
-        return loadAndClose(new ClassLoaderObjectInputStream(getLoader(), new BufferedInputStream(fis)));
+        return load(new BufferedInputStream(fis));
+    }
+
+    /**
+     * Loads a node tree from the given stream, closing it when done.  Allows
+     * the caller to interpose its own stream (for example to checksum the
+     * bytes as they are read).  Either storage format is accepted.
+     */
+    public MemAbstractBase load(InputStream is) throws IOException {
+        final InputStream in = is.markSupported() ? is : new BufferedInputStream(is);
+        final boolean snapshot;
+        try {
+            snapshot = SnapshotCodec.isSnapshot(in);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+
+        if (snapshot) {
+            try { return SnapshotCodec.load(in, getLoader()); } finally { in.close(); }
+        } else {
+            return loadAndClose(new ClassLoaderObjectInputStream(getLoader(), in));
+        }
     }
 
     public MemAbstractBase load(byte[] blob) throws IOException {
-        return loadAndClose(new ClassLoaderObjectInputStream(getLoader(), new ByteArrayInputStream(blob)));
+        return load(new ByteArrayInputStream(blob));
     }
 
     private MemAbstractBase loadAndClose(ObjectInputStream ois) throws IOException {
@@ -54,14 +125,71 @@ public final class MemSerializer {
         }
     }
 
+    /**
+     * The serialized form of a program captured in memory, which can be
+     * written out in this serializer's format without holding the program
+     * lock.  Any compression is applied when it is written.
+     */
+    public static final class Snapshot {
+        private final Format format;
+        private final byte[] content;
+
+        private Snapshot(Format format, byte[] content) {
+            this.format  = format;
+            this.content = content;
+        }
+
+        /** Size of the captured (uncompressed) content in bytes. */
+        public int size() {
+            return content.length;
+        }
+
+        /** Writes the snapshot to the stream, which is left open. */
+        public void writeTo(OutputStream os) throws IOException {
+            switch (format) {
+                case SNAPSHOT:
+                    new SnapshotCodec(SnapshotCodec.Compression.NONE).write(content, os);
+                    break;
+                case SNAPSHOT_DEFLATE:
+                    new SnapshotCodec(SnapshotCodec.Compression.DEFLATE).write(content, os);
+                    break;
+                default:
+                    os.write(content);
+            }
+            os.flush();
+        }
+    }
+
+    /**
+     * Serializes the program into memory.  Programs are first copied with
+     * {@link MemProgram#detachedCopy}, which is the only step that holds the
+     * read lock, and the copy is serialized without it.  Other root nodes are
+     * serialized under their read lock.  The (relatively expensive)
+     * compression and I/O needed to store the result can then be done with
+     * {@link Snapshot#writeTo}.
+     */
+    public Snapshot snapshot(ISPRootNode root) throws IOException {
+        final ISPRootNode mab = (root instanceof MemProgram) ? MemProgram.detachedCopy((MemProgram) root) : root;
+        switch (format) {
+            case SNAPSHOT:
+            case SNAPSHOT_DEFLATE:
+                return new Snapshot(format, SnapshotCodec.capture(mab));
+            default:
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                storeAndClose(mab, new ObjectOutputStream(baos));
+                return new Snapshot(format, baos.toByteArray());
+        }
+    }
+
     public void store(ISPRootNode mab, File file) throws IOException {
-        final FileOutputStream fos = new FileOutputStream(file);
-        storeAndClose(mab, new ObjectOutputStream(new BufferedOutputStream(fos)));
+        final Snapshot snap = snapshot(mab);
+        final OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try { snap.writeTo(os); } finally { os.close(); }
     }
 
     public byte[] store(ISPRootNode mab) throws IOException {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        storeAndClose(mab, new ObjectOutputStream(baos));
+        snapshot(mab).writeTo(baos);
         return baos.toByteArray();
     }
 
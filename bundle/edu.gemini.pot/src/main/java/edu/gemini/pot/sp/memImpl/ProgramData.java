@@ -26,6 +26,19 @@ final class ProgramData extends DocumentData {
         super(progKey, progId, uuid, lifespanId);
     }
 
+    @Override void copyStateFrom(DocumentData that) {
+        super.copyStateFrom(that);
+        if (that instanceof ProgramData) {
+            final ProgramData pd = (ProgramData) that;
+            getProgramWriteLock();
+            try {
+                _maxObsNumber = pd._maxObsNumber;
+            } finally {
+                returnProgramWriteLock();
+            }
+        }
+    }
+
     /**
      * Increments the maximum observation number in the program and returns it.
      * This method is intended to be used for setting the observation number
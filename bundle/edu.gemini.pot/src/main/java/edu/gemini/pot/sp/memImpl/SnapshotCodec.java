@@ -0,0 +1,364 @@
+package edu.gemini.pot.sp.memImpl;
+
+import edu.gemini.pot.sp.ISPRootNode;
+import edu.gemini.pot.sp.SPNodeKey;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A framed container for the Java serialization of program and nightly record
+ * trees, used as an alternative to writing the bare
+ * <code>ObjectOutputStream</code> bytes.  This is not a schema-driven
+ * encoding: the format version covers only the framing, and the content is
+ * exactly as sensitive to class changes as plain serialization.
+ *
+ * <p>A snapshot consists of a fixed header (magic number, format version and
+ * compression flag) followed by the node tree framed as a sequence of
+ * length-prefixed blocks and terminated by a CRC32 of the uncompressed
+ * content.  Blocks are individually deflated when compression is enabled and
+ * it actually makes the block smaller.
+ *
+ * <p>Within the blocks the tree is still written with Java serialization,
+ * since the nodes rely upon their serialization hooks to restore their
+ * internal state, but node keys and strings are interned as they are written
+ * so that each distinct key appears in the stream only once no matter how
+ * many times it is referenced (node fields, parent links, version map).
+ * Keys and strings are interned again on the way back in, which also reduces
+ * the memory footprint of the loaded program.
+ */
+public final class SnapshotCodec {
+
+    /** Magic number that starts every snapshot ("SPSN"). */
+    public static final int MAGIC = 0x5350534E;
+
+    /**
+     * The current version of the snapshot framing.  It says nothing about the
+     * classes serialized inside.
+     */
+    public static final short FORMAT_VERSION = 1;
+
+    /** Block compression applied to snapshots. */
+    public enum Compression {
+        NONE((byte) 0),
+        DEFLATE((byte) 1),
+        ;
+
+        final byte code;
+
+        Compression(byte code) {
+            this.code = code;
+        }
+
+        static Compression fromCode(byte code) throws IOException {
+            for (Compression c : values()) if (c.code == code) return c;
+            throw new IOException("Unknown snapshot compression: " + code);
+        }
+    }
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final byte BLOCK_END     = 0;
+    private static final byte BLOCK_RAW     = 1;
+    private static final byte BLOCK_DEFLATE = 2;
+
+    private final Compression _compression;
+
+    public SnapshotCodec(Compression compression) {
+        if (compression == null) throw new NullPointerException("compression");
+        _compression = compression;
+    }
+
+    public Compression getCompression() {
+        return _compression;
+    }
+
+    /**
+     * Determines whether the next bytes in the given stream start a snapshot.
+     * The stream must support mark/reset and is left positioned where it was.
+     */
+    public static boolean isSnapshot(InputStream is) throws IOException {
+        is.mark(4);
+        try {
+            final byte[] buf = new byte[4];
+            int off = 0;
+            while (off < 4) {
+                final int n = is.read(buf, off, 4 - off);
+                if (n < 0) return false;
+                off += n;
+            }
+            final int magic = ((buf[0] & 0xff) << 24) | ((buf[1] & 0xff) << 16) |
+                              ((buf[2] & 0xff) <<  8) |  (buf[3] & 0xff);
+            return magic == MAGIC;
+        } finally {
+            is.reset();
+        }
+    }
+
+    /**
+     * Writes the given root node to the stream.  The caller is responsible for
+     * closing the stream.
+     */
+    public void store(ISPRootNode root, OutputStream os) throws IOException {
+        write(capture(root), os);
+    }
+
+    /**
+     * Serializes the node tree into memory, holding the program read lock
+     * only for the duration (a no-op for a {@link MemProgram#detachedCopy}).
+     * The result is passed to {@link #write} to produce the snapshot, which
+     * may be done without the lock.
+     */
+    public static byte[] capture(ISPRootNode root) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final InterningObjectOutputStream oos = new InterningObjectOutputStream(baos);
+        root.getProgramReadLock();
+        try {
+            oos.writeObject(root);
+        } finally {
+            root.returnProgramReadLock();
+        }
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Writes content obtained from {@link #capture} to the stream as a
+     * snapshot, compressing as configured.  The caller is responsible for
+     * closing the stream.
+     */
+    public void write(byte[] content, OutputStream os) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(MAGIC);
+        dos.writeShort(FORMAT_VERSION);
+        dos.writeByte(_compression.code);
+
+        final BlockOutputStream bos = new BlockOutputStream(dos, _compression);
+        bos.write(content, 0, content.length);
+        bos.finish();
+        dos.flush();
+    }
+
+    /**
+     * Reads a root node from the stream, using the given class loader to
+     * resolve classes.  The caller is responsible for closing the stream.
+     */
+    public static MemAbstractBase load(InputStream is, ClassLoader loader) throws IOException {
+        final DataInputStream dis = new DataInputStream(is);
+        if (dis.readInt() != MAGIC) throw new IOException("Not a program snapshot");
+
+        final short version = dis.readShort();
+        if (version > FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot format version " + version);
+        }
+        Compression.fromCode(dis.readByte()); // blocks are self-describing
+
+        final BlockInputStream bis = new BlockInputStream(dis);
+        final ObjectInputStream ois = new InterningObjectInputStream(loader, bis);
+        final MemAbstractBase res;
+        try {
+            res = (MemAbstractBase) ois.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Couldn't load program snapshot", ex);
+        }
+        bis.verify();
+        return res;
+    }
+
+    /**
+     * Object output stream that replaces equal keys and strings with a single
+     * instance so that subsequent occurrences are written as back references.
+     */
+    private static final class InterningObjectOutputStream extends ObjectOutputStream {
+        private final Map<Object, Object> _interned = new HashMap<>();
+
+        InterningObjectOutputStream(OutputStream os) throws IOException {
+            super(os);
+            enableReplaceObject(true);
+        }
+
+        @Override protected Object replaceObject(Object obj) {
+            if ((obj instanceof SPNodeKey) || (obj instanceof String)) {
+                final Object prev = _interned.get(obj);
+                if (prev != null) return prev;
+                _interned.put(obj, obj);
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Object input stream that replaces equal keys and strings with a single
+     * instance, whether or not they were written as back references.
+     */
+    private static final class InterningObjectInputStream extends MemSerializer.ClassLoaderObjectInputStream {
+        private final Map<Object, Object> _interned = new HashMap<>();
+
+        InterningObjectInputStream(ClassLoader loader, InputStream is) throws IOException {
+            super(loader, is);
+            enableResolveObject(true);
+        }
+
+        @Override protected Object resolveObject(Object obj) {
+            if ((obj instanceof SPNodeKey) || (obj instanceof String)) {
+                final Object prev = _interned.get(obj);
+                if (prev != null) return prev;
+                _interned.put(obj, obj);
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Buffers output into blocks, each written as a kind byte, the raw length
+     * and the stored length followed by the stored bytes.
+     */
+    private static final class BlockOutputStream extends OutputStream {
+        private final DataOutputStream _out;
+        private final Deflater _deflater;
+        private final CRC32 _crc = new CRC32();
+        private final byte[] _buf = new byte[BLOCK_SIZE];
+        private final byte[] _zbuf;
+        private int _len;
+
+        BlockOutputStream(DataOutputStream out, Compression compression) {
+            _out      = out;
+            _deflater = (compression == Compression.DEFLATE) ? new Deflater(Deflater.BEST_SPEED) : null;
+            _zbuf     = (_deflater == null) ? null : new byte[BLOCK_SIZE];
+        }
+
+        @Override public void write(int b) throws IOException {
+            if (_len == _buf.length) writeBlock();
+            _buf[_len++] = (byte) b;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (_len == _buf.length) writeBlock();
+                final int n = Math.min(len, _buf.length - _len);
+                System.arraycopy(b, off, _buf, _len, n);
+                _len += n;
+                off  += n;
+                len  -= n;
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (_len == 0) return;
+            _crc.update(_buf, 0, _len);
+
+            int zlen = -1;
+            if (_deflater != null) {
+                _deflater.reset();
+                _deflater.setInput(_buf, 0, _len);
+                _deflater.finish();
+                zlen = _deflater.deflate(_zbuf);
+                if (!_deflater.finished()) zlen = -1; // didn't fit, so no gain
+            }
+
+            if ((zlen >= 0) && (zlen < _len)) {
+                _out.writeByte(BLOCK_DEFLATE);
+                _out.writeInt(_len);
+                _out.writeInt(zlen);
+                _out.write(_zbuf, 0, zlen);
+            } else {
+                _out.writeByte(BLOCK_RAW);
+                _out.writeInt(_len);
+                _out.writeInt(_len);
+                _out.write(_buf, 0, _len);
+            }
+            _len = 0;
+        }
+
+        void finish() throws IOException {
+            writeBlock();
+            _out.writeByte(BLOCK_END);
+            _out.writeLong(_crc.getValue());
+            if (_deflater != null) _deflater.end();
+        }
+    }
+
+    private static final class BlockInputStream extends InputStream {
+        private final DataInputStream _in;
+        private final Inflater _inflater = new Inflater();
+        private final CRC32 _crc = new CRC32();
+        private byte[] _buf  = new byte[BLOCK_SIZE];
+        private byte[] _zbuf = new byte[BLOCK_SIZE];
+        private int _pos;
+        private int _len;
+        private boolean _eof;
+
+        BlockInputStream(DataInputStream in) {
+            _in = in;
+        }
+
+        private boolean fill() throws IOException {
+            while (!_eof && (_pos == _len)) {
+                final byte kind = _in.readByte();
+                if (kind == BLOCK_END) {
+                    _eof = true;
+                    _inflater.end();
+                    return false;
+                }
+
+                final int rawLen    = _in.readInt();
+                final int storedLen = _in.readInt();
+                if ((rawLen < 0) || (storedLen < 0)) throw new IOException("Corrupt snapshot block");
+                if (_buf.length < rawLen) _buf = new byte[rawLen];
+
+                switch (kind) {
+                    case BLOCK_RAW:
+                        _in.readFully(_buf, 0, rawLen);
+                        break;
+                    case BLOCK_DEFLATE:
+                        if (_zbuf.length < storedLen) _zbuf = new byte[storedLen];
+                        _in.readFully(_zbuf, 0, storedLen);
+                        _inflater.reset();
+                        _inflater.setInput(_zbuf, 0, storedLen);
+                        try {
+                            if (_inflater.inflate(_buf, 0, rawLen) != rawLen) {
+                                throw new IOException("Corrupt snapshot block");
+                            }
+                        } catch (DataFormatException ex) {
+                            throw new IOException("Corrupt snapshot block", ex);
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown snapshot block type: " + kind);
+                }
+                _crc.update(_buf, 0, rawLen);
+                _pos = 0;
+                _len = rawLen;
+            }
+            return _pos < _len;
+        }
+
+        @Override public int read() throws IOException {
+            return fill() ? (_buf[_pos++] & 0xff) : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            final int n = Math.min(len, _len - _pos);
+            System.arraycopy(_buf, _pos, b, off, n);
+            _pos += n;
+            return n;
+        }
+
+        /**
+         * Consumes any remaining blocks and checks the content checksum.
+         */
+        void verify() throws IOException {
+            while (fill()) _pos = _len;
+            if (_in.readLong() != _crc.getValue()) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+        }
+    }
+}
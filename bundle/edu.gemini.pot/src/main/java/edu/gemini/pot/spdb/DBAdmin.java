@@ -104,4 +104,11 @@ public class DBAdmin implements IDBAdmin {
         return _dataMan.getTotalStorage();
     }
 
+    /**
+     * Returns metrics describing the work done storing modified programs.
+     */
+    public StorageMetrics getStorageMetrics() {
+        return _dataMan.getStorageMetrics();
+    }
+
 }
@@ -10,12 +10,15 @@ package edu.gemini.pot.spdb;
 import edu.gemini.pot.sp.*;
 import edu.gemini.spModel.core.OcsVersionUtil;
 import edu.gemini.spModel.core.SPProgramID;
+import edu.gemini.spModel.core.Semester;
 import edu.gemini.spModel.core.Version;
+import edu.gemini.spModel.obs.ObservationStatus;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.security.Principal;
 import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.UUID;
@@ -161,15 +164,28 @@ public final class DBLocalDatabase implements IDBDatabaseService {
             LOG.fine("DBDatabase.lookupObservationByID(" + obsID + ")");
         }
 
-        ISPProgram prog = lookupProgramByID(obsID.getProgramID());
-        if (prog == null) return null;
+        return _dataMan.getProgramIndex().lookupObservation(obsID);
+    }
 
-        for (ISPObservation obs : prog.getAllObservations()) {
-            if (obs.getObservationNumber() == obsID.getObservationNumber()) {
-                return obs;
-            }
+    public List<SPProgramID> lookupProgramIDsByPI(String piLastName) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("DBDatabase.lookupProgramIDsByPI(" + piLastName + ")");
+        }
+        return _dataMan.getProgramIndex().lookupProgramIDsByPI(piLastName);
+    }
+
+    public List<SPProgramID> lookupProgramIDsBySemester(Semester semester) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("DBDatabase.lookupProgramIDsBySemester(" + semester + ")");
+        }
+        return _dataMan.getProgramIndex().lookupProgramIDsBySemester(semester);
+    }
+
+    public List<SPObservationID> lookupObservationIDsByStatus(ObservationStatus status) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("DBDatabase.lookupObservationIDsByStatus(" + status + ")");
         }
-        return null;
+        return _dataMan.getProgramIndex().lookupObservationIDsByStatus(status);
     }
 
     /**
@@ -24,7 +24,7 @@ import java.util.logging.Logger;
  * be used by clients to obtain a listing of all the available program
  * IDs.
  */
-public class DBProgramListFunctor extends DBAbstractQueryFunctor implements IDBParallelFunctor {
+public class DBProgramListFunctor extends DBAbstractQueryFunctor implements IDBParallelFunctor, IDBParallelQueryFunctor {
 
     private List<SPNodeKey> _keyList;
 
@@ -50,6 +50,14 @@ public class DBProgramListFunctor extends DBAbstractQueryFunctor implements IDBP
         }
     }
 
+    public IDBParallelQueryFunctor split() {
+        return new DBProgramListFunctor();
+    }
+
+    public void merge(IDBParallelQueryFunctor partition) {
+        getKeyList().addAll(((DBProgramListFunctor) partition).getKeyList());
+    }
+
     public void mergeResults(Collection<IDBFunctor> functorCollection) {
         List<SPNodeKey> res = new ArrayList<SPNodeKey>();
         for (IDBFunctor f : functorCollection) {
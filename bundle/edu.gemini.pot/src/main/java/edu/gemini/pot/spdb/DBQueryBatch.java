@@ -0,0 +1,64 @@
+package edu.gemini.pot.spdb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One batch of results from a query cursor opened with
+ * <code>{@link IDBQueryRunner#openObservationCursor}</code> or
+ * <code>{@link IDBQueryRunner#openProgramCursor}</code>.  The last batch of a
+ * query is marked as such and carries the functor in the state it was left
+ * in when the query finished, including any exception it recorded.  After
+ * the last batch has been returned the cursor is closed.
+ *
+ * @param <R> type of the individual result items
+ */
+public final class DBQueryBatch<R extends Serializable> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long _cursorId;
+    private final List<R> _results;
+    private final boolean _last;
+    private final IDBStreamingQueryFunctor<R> _functor;
+
+    DBQueryBatch(long cursorId, List<R> results, boolean last, IDBStreamingQueryFunctor<R> functor) {
+        _cursorId = cursorId;
+        _results  = Collections.unmodifiableList(new ArrayList<>(results));
+        _last     = last;
+        _functor  = functor;
+    }
+
+    /**
+     * Identifies the cursor from which the batch was obtained, for use in
+     * subsequent calls to <code>{@link IDBQueryRunner#nextBatch}</code>.
+     */
+    public long getCursorId() {
+        return _cursorId;
+    }
+
+    /**
+     * Gets the results in this batch.  May be empty if the query has not
+     * produced anything new in the time the server was willing to wait, even
+     * if this is not the last batch.
+     */
+    public List<R> getResults() {
+        return _results;
+    }
+
+    /**
+     * Returns <code>true</code> if there are no more results to fetch.
+     */
+    public boolean isLast() {
+        return _last;
+    }
+
+    /**
+     * Gets the functor as it was when the query finished, if this is the
+     * last batch; <code>null</code> otherwise.
+     */
+    public IDBStreamingQueryFunctor<R> getFunctor() {
+        return _functor;
+    }
+}
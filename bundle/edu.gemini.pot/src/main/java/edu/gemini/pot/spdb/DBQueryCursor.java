@@ -0,0 +1,85 @@
+package edu.gemini.pot.spdb;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Client side view of a query cursor, fetching batches of results from the
+ * query runner as they are asked for.  For example:
+ *
+ * <pre>
+ *     try (DBQueryCursor&lt;Row&gt; c = DBQueryCursor.observations(qr, new RowFunctor(), 200)) {
+ *         while (c.hasNext()) table.addRows(c.next());
+ *     }
+ * </pre>
+ *
+ * Only one batch is held at a time, and the server does not get more than a
+ * few batches ahead of the client.  Closing the cursor before the results
+ * have all been read stops the query.
+ *
+ * @param <R> type of the individual result items
+ */
+public final class DBQueryCursor<R extends Serializable> implements Iterator<List<R>>, Closeable {
+    private final IDBQueryRunner _runner;
+    private DBQueryBatch<R> _batch;
+    private boolean _consumed;
+
+    private DBQueryCursor(IDBQueryRunner runner, DBQueryBatch<R> first) {
+        _runner = runner;
+        _batch  = first;
+    }
+
+    /**
+     * Opens a cursor over the results of applying the functor to each
+     * observation.
+     */
+    public static <R extends Serializable> DBQueryCursor<R> observations(IDBQueryRunner runner, IDBStreamingQueryFunctor<R> functor, int batchSize) {
+        return new DBQueryCursor<>(runner, runner.openObservationCursor(functor, batchSize));
+    }
+
+    /**
+     * Opens a cursor over the results of applying the functor to each
+     * program.
+     */
+    public static <R extends Serializable> DBQueryCursor<R> programs(IDBQueryRunner runner, IDBStreamingQueryFunctor<R> functor, int batchSize) {
+        return new DBQueryCursor<>(runner, runner.openProgramCursor(functor, batchSize));
+    }
+
+    /**
+     * Returns <code>true</code> if there may be more results.  The last batch
+     * returned may be empty.
+     */
+    @Override public boolean hasNext() {
+        return !(_consumed && _batch.isLast());
+    }
+
+    /**
+     * Gets the next batch of results, fetching it from the query runner if
+     * necessary.  Batches may be empty while the query is still searching.
+     */
+    @Override public List<R> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        if (_consumed) _batch = _runner.nextBatch(_batch.getCursorId());
+        _consumed = true;
+        return _batch.getResults();
+    }
+
+    /**
+     * Gets the functor as it was when the query finished, once the last batch
+     * has been read; <code>null</code> before then.
+     */
+    public IDBStreamingQueryFunctor<R> getFunctor() {
+        return _batch.getFunctor();
+    }
+
+    @Override public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override public void close() {
+        if (!_batch.isLast()) _runner.closeCursor(_batch.getCursorId());
+    }
+}
@@ -1,5 +1,9 @@
 package edu.gemini.pot.spdb;
 
+import edu.gemini.pot.sp.SPNodeKeyLockMetrics;
+import edu.gemini.pot.sp.SPNodeKeyLocks;
+import edu.gemini.spModel.config.ConfigSequenceCache;
+
 import java.io.Serializable;
 import java.util.*;
 
@@ -23,6 +27,10 @@ public class DBStatus implements Serializable {
 
     protected long totalMemory = 0;
     protected long storageInterval = 0;
+    protected StorageMetrics storageMetrics = StorageMetrics.EMPTY;
+    protected SPNodeKeyLockMetrics lockMetrics = SPNodeKeyLockMetrics.EMPTY;
+    protected long sequenceCacheHits = 0;
+    protected long sequenceCacheMisses = 0;
 
     public static DBStatus getStatus(IDBAdmin admin) {
         dbStatus.updateStatus(admin);
@@ -71,9 +79,14 @@ public class DBStatus implements Serializable {
     protected void updateDatabaseMetrics(IDBAdmin admin) {
         if (admin != null) {
             storageInterval = admin.getStorageInterval();
+            storageMetrics  = admin.getStorageMetrics();
         } else {
             storageInterval = 0;
+            storageMetrics  = StorageMetrics.EMPTY;
         }
+        lockMetrics = SPNodeKeyLocks.instance.getMetrics();
+        sequenceCacheHits   = ConfigSequenceCache.getHitCount();
+        sequenceCacheMisses = ConfigSequenceCache.getMissCount();
     }
 
 
@@ -93,6 +106,22 @@ public class DBStatus implements Serializable {
         return storageInterval;
     }
 
+    public StorageMetrics getStorageMetrics() {
+        return storageMetrics;
+    }
+
+    public SPNodeKeyLockMetrics getLockMetrics() {
+        return lockMetrics;
+    }
+
+    public long getSequenceCacheHits() {
+        return sequenceCacheHits;
+    }
+
+    public long getSequenceCacheMisses() {
+        return sequenceCacheMisses;
+    }
+
     public Map<String, List<String>> getThreadMap() {
         return threadMap;
     }
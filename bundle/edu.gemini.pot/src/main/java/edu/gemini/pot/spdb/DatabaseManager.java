@@ -25,6 +25,9 @@ final class DatabaseManager {
     private final ProgramManager<ISPNightlyRecord> _planMan;
     private final StorageManager<ISPProgram> _progStoreMan;
     private final StorageManager<ISPNightlyRecord> _planStoreMan;
+    private final ProgramIndex _progIndex;
+    private final ParallelQuery _parallelQuery;
+    private final QueryCursors _queryCursors;
 
     //private DBAdmin _admin;
     private final ISPFactory _fact;
@@ -50,8 +53,17 @@ final class DatabaseManager {
 
         // Create the storage manager to keep the program files up-to-date
         // as they change and to store/remove programs as necessary.
-        _progStoreMan = new StorageManager<ISPProgram>(_progMan, _persister);
-        _planStoreMan = new StorageManager<ISPNightlyRecord>(_planMan, _persister);
+        _progStoreMan = new StorageManager<ISPProgram>(_progMan, _persister, "ODB Program Storage");
+        _planStoreMan = new StorageManager<ISPNightlyRecord>(_planMan, _persister, "ODB Plan Storage");
+
+        // Keep lookup indexes over the programs up-to-date as they change.
+        _progIndex = new ProgramIndex(_progMan);
+
+        // Thread pool for running parallel query functors.
+        _parallelQuery = new ParallelQuery();
+
+        // Open cursors for queries whose results are fetched in batches.
+        _queryCursors = new QueryCursors();
 
         _fact = POTUtil.createFactory(uuid);
     }
@@ -99,17 +111,48 @@ final class DatabaseManager {
         return _planStoreMan;
     }
 
+    /**
+     * Obtains a reference to the <code>ProgramIndex</code>.
+     */
+    ProgramIndex getProgramIndex() {
+        return _progIndex;
+    }
+
+    /**
+     * Obtains a reference to the <code>ParallelQuery</code> executor.
+     */
+    ParallelQuery getParallelQuery() {
+        return _parallelQuery;
+    }
+
+    /**
+     * Obtains a reference to the open <code>QueryCursors</code>.
+     */
+    QueryCursors getQueryCursors() {
+        return _queryCursors;
+    }
+
     /**
      * Shuts down the database, storing any outstanding modifications.
      */
     void shutdown() {
+        _progIndex.shutdown(_progMan);
         _progStoreMan.shutdown();
         _planStoreMan.shutdown();
         _progMan.shutdown();
         _planMan.shutdown();
+        _parallelQuery.shutdown();
+        _queryCursors.shutdown();
         functorLogger.cancel();
     }
 
+    /**
+     * Gets the combined program and nightly plan storage metrics.
+     */
+    StorageMetrics getStorageMetrics() {
+        return _progStoreMan.getMetrics().plus(_planStoreMan.getMetrics());
+    }
+
     /**
      * Returns the total storage size, on disk, or zero for transient databases.
      */
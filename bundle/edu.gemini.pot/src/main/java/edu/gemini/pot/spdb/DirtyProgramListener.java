@@ -9,6 +9,7 @@ package edu.gemini.pot.spdb;
 
 import edu.gemini.pot.sp.ISPNode;
 import edu.gemini.pot.sp.ISPRootNode;
+import edu.gemini.pot.sp.SPCompositeChange;
 import edu.gemini.pot.sp.SPUtil;
 
 import java.beans.PropertyChangeEvent;
@@ -23,18 +24,23 @@ import java.util.*;
  * This class is used in the implementation of the
  * <code>{@link StorageManager}</code>.  It contains a thread that
  * periodically checks for "dirty" programs (via the
- * <code>getDirtyPrograms()</code> method of this class) and saves.
+ * <code>getDirtyEdits()</code> method of this class) and saves.
  */
 @SuppressWarnings("unchecked")
 final class DirtyProgramListener<N extends ISPRootNode> implements PropertyChangeListener {
-    private final Set<N> _progSet;
+    private static final String DATA_OBJECT_PROP = SPUtil.getDataObjectPropertyName();
+
+    // Maps each dirty program to the nodes whose data objects were edited, or
+    // to null if some other kind of change was made and the whole program
+    // must be stored.
+    private final Map<N, Set<ISPNode>> _progMap;
 
     /**
      * Default constructor declared because superclass default constructor
      * throws <code>RemoteException</code>.
      */
     DirtyProgramListener()  {
-        _progSet = new HashSet<N>();
+        _progMap = new HashMap<N, Set<ISPNode>>();
     }
 
     @Override public void propertyChange(PropertyChangeEvent pce) {
@@ -45,21 +51,44 @@ final class DirtyProgramListener<N extends ISPRootNode> implements PropertyChang
 
         ISPRootNode root = ((ISPNode) src).getRootAncestor();
         if (root != null) {
-            synchronized (this) { _progSet.add((N)root); }
+            final ISPNode modified = _dataObjectEdit(pce);
+            synchronized (this) {
+                final N prog = (N) root;
+                if (modified == null) {
+                    _progMap.put(prog, null);
+                } else if (!_progMap.containsKey(prog)) {
+                    final Set<ISPNode> nodes = new HashSet<ISPNode>();
+                    nodes.add(modified);
+                    _progMap.put(prog, nodes);
+                } else {
+                    final Set<ISPNode> nodes = _progMap.get(prog);
+                    if (nodes != null) nodes.add(modified);
+                }
+            }
         }
     }
 
     /**
-     * Gets the modified, "dirty", programs and clears the record of their
-     * being dirty.  In other words, immediately after this method is called
-     * no programs are marked dirty.
-     *
-     * @return the modified programs, or <code>null</code> if there are none
+     * Returns the node whose data object was replaced if that is all that the
+     * event represents, <code>null</code> otherwise.
+     */
+    private static ISPNode _dataObjectEdit(PropertyChangeEvent pce) {
+        if (!(pce instanceof SPCompositeChange)) return null;
+        final SPCompositeChange cc = (SPCompositeChange) pce;
+        if (!DATA_OBJECT_PROP.equals(cc.getPropertyName()) || (cc.getNewValue() == null)) return null;
+        return cc.getModifiedNode();
+    }
+
+    /**
+     * Gets the modified programs along with the nodes whose data objects were
+     * edited, and clears the record of their being dirty.  A program maps to
+     * <code>null</code> if it had changes other than data object edits (for
+     * example to its structure) and must be stored in full.
      */
-    synchronized List<N> getDirtyPrograms() {
-        final List<N> lst = _progSet.isEmpty() ? Collections.<N>emptyList() : new ArrayList<N>(_progSet);
-        _progSet.clear();
-        return lst;
+    synchronized Map<N, Set<ISPNode>> getDirtyEdits() {
+        final Map<N, Set<ISPNode>> res = _progMap.isEmpty() ? Collections.<N, Set<ISPNode>>emptyMap() : new HashMap<N, Set<ISPNode>>(_progMap);
+        _progMap.clear();
+        return res;
     }
 
     /**
@@ -67,7 +96,7 @@ final class DirtyProgramListener<N extends ISPRootNode> implements PropertyChang
      * programs.  If the program isn't in the collection, then nothing is done.
      */
     synchronized void removeProgram(N prog) {
-        if (_progSet.size() == 0) return;
-        _progSet.remove(prog);
+        if (_progMap.size() == 0) return;
+        _progMap.remove(prog);
     }
 }
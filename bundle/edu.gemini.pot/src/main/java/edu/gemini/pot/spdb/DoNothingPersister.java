@@ -1,9 +1,11 @@
 package edu.gemini.pot.spdb;
 
 import edu.gemini.pot.sp.ISPNightlyRecord;
+import edu.gemini.pot.sp.ISPNode;
 import edu.gemini.pot.sp.ISPProgram;
 import edu.gemini.pot.sp.ISPRootNode;
 import edu.gemini.pot.sp.SPNodeKey;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -27,8 +29,12 @@ public final class DoNothingPersister implements IDBPersister {
         return Collections.emptyList();
     }
 
-    @Override public void store(ISPRootNode node) {
-        // Do nothing.
+    @Override public long store(ISPRootNode node) {
+        return 0L;
+    }
+
+    @Override public long storeEdits(ISPRootNode node, Collection<ISPNode> edited) {
+        return 0L;
     }
 
     @Override public void remove(SPNodeKey key) {
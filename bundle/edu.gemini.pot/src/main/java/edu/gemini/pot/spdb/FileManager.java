@@ -10,11 +10,12 @@ import java.util.*;
 
 
 /**
- * Handles file I/O for the database.  Currently, the locking is not very
- * sophisticated.  Only one thread at a time is permitted to execute any
- * of the public methods.  That is sufficient for now because after startup
+ * Handles file I/O for the database.  The map from program key to file is
+ * guarded by this object's lock, but file I/O is done outside of it, so
+ * different programs may be stored and removed concurrently.  After startup
  * only the <code>{@link StorageManager}</code> uses the
- * <code>FileManager</code>.
+ * <code>FileManager</code>, and its {@link StoragePipeline} ensures that at
+ * most one store or removal of any given program is in progress at a time.
  */
 final class FileManager implements IDBPersister {
 
@@ -45,6 +46,12 @@ final class FileManager implements IDBPersister {
 
     }
 
+    /**
+     * Journals smaller than this are never compacted, regardless of the size
+     * of the program file.
+     */
+    private static final long MIN_JOURNAL_COMPACTION_SIZE = 64 * 1024;
+
     private static final ISPFileFilter _progFilter = new ISPFileFilter(PROGRAM_SUFFIX);
     private static final ISPFileFilter _planFilter = new ISPFileFilter(PLAN_SUFFIX);
 
@@ -137,97 +144,217 @@ final class FileManager implements IDBPersister {
         return reload("plan", _planFilter);
     }
 
-    private <T extends ISPRootNode> List<T> reload(final String name, final FileFilter filter) throws IOException {
+    private <T extends ISPRootNode> List<T> reload(final String name, final ISPFileFilter filter) throws IOException {
         System.out.println(String.format("Loading the %s database ...", name));
 
-        final long time1      = System.currentTimeMillis();
-        final File[] fileA    = _dbDir.listFiles(filter);
-        final List<T> retList = new ArrayList<T>(fileA.length);
-
-        // Try to load each file.
-        for (final File progFile : fileA) {
-
-            // Load the program file.
-            final T prog;
-            try {
-                prog = (T) _ser.load(progFile);
-                if (prog == null) continue;
-            } catch (Exception ex) {
-                String path = _getPath(progFile);
-                if (ex.getCause() instanceof InvalidClassException) {
+        final long time1   = System.currentTimeMillis();
+        final File[] fileA = _dbDir.listFiles(filter);
+        final List<ParallelFileLoader.Result> results = new ParallelFileLoader(_ser).load(fileA);
+
+        // Pick one file for each key.  The results are in file name order so
+        // the choice doesn't depend upon the order in which the files were
+        // listed or loaded.
+        final Map<SPNodeKey, ParallelFileLoader.Result> chosen = new LinkedHashMap<SPNodeKey, ParallelFileLoader.Result>();
+        int failures = 0;
+        long slowest = 0;
+        String slowestName = null;
+        for (final ParallelFileLoader.Result res : results) {
+            if (res.millis > slowest) {
+                slowest     = res.millis;
+                slowestName = res.file.getName();
+            }
+
+            if (!res.isSuccess()) {
+                ++failures;
+                final String path = _getPath(res.file);
+                if (res.failure.getCause() instanceof InvalidClassException) {
                     System.err.println("Warning: incompatible file: '" + path + "'. Please delete and reimport from XML");
                 } else {
-                    System.err.println("Problem reading program file `" + path + "': " + ex);
+                    System.err.println("Problem reading program file `" + path + "': " + res.failure);
                 }
                 continue;
             }
-
-            // If there are two program files with the same program (i.e.,
-            // with the same key), just skip the next one read.
-            final SPNodeKey key = prog.getNodeKey();
-            if (_fileMap.get(key) != null) {
-                System.out.println("Already loaded: " + key);
-                continue; // already loaded
+            if (res.node == null) continue;
+
+            final SPNodeKey key = res.node.getNodeKey();
+            final ParallelFileLoader.Result prev = chosen.get(key);
+            if (prev == null) {
+                chosen.put(key, res);
+            } else {
+                final ParallelFileLoader.Result winner = _preferredDuplicate(prev, res, filter._suffix);
+                final ParallelFileLoader.Result loser  = (winner == prev) ? res : prev;
+                System.out.println(String.format("Already loaded: %s (using `%s', ignoring %s `%s')",
+                        key, winner.file.getName(),
+                        (winner.checksum == loser.checksum) ? "identical" : "different",
+                        loser.file.getName()));
+                chosen.put(key, winner);
             }
-            _fileMap.put(key, progFile);
+        }
 
+        final List<T> retList = new ArrayList<T>(chosen.size());
+        int replayed = 0;
+        for (final Map.Entry<SPNodeKey, ParallelFileLoader.Result> me : chosen.entrySet()) {
+            final File progFile = me.getValue().file;
+            _fileMap.put(me.getKey(), progFile);
+            @SuppressWarnings("unchecked") final T prog = (T) me.getValue().node;
+            if (_recover(prog, progFile)) ++replayed;
             retList.add(prog);
         }
+        if (replayed > 0) {
+            System.out.println(String.format("Recovered journaled edits for %d %ss", replayed, name));
+        }
 
         final long time2 = System.currentTimeMillis();
 
-        final String msg = String.format("Finished loading: %d ms, %d %ss", time2-time1, fileA.length, name);
+        final String msg = String.format("Finished loading: %d ms, %d %ss, %d failed", time2-time1, fileA.length, name, failures);
         System.out.println(msg);
+        if (slowestName != null) {
+            System.out.println(String.format("Slowest %s file: %s, %d ms", name, slowestName, slowest));
+        }
         return retList;
 
     }
 
-    public void store(ISPRootNode mab) throws IOException {
+    /**
+     * Picks which of two files holding the same root node should be used.
+     * Prefers the file with the name under which the node would be stored,
+     * then the most recently modified file, then the first by name.
+     */
+    private ParallelFileLoader.Result _preferredDuplicate(ParallelFileLoader.Result r1, ParallelFileLoader.Result r2, String suffix) {
+        final File expected = _getDocumentFile(r1.node, suffix);
+        if (r1.file.equals(expected)) return r1;
+        if (r2.file.equals(expected)) return r2;
+
+        final long mod1 = r1.file.lastModified();
+        final long mod2 = r2.file.lastModified();
+        if (mod1 != mod2) return (mod1 > mod2) ? r1 : r2;
+
+        return (r1.file.getName().compareTo(r2.file.getName()) <= 0) ? r1 : r2;
+    }
+
+    /**
+     * Replays any journal left next to the program file and, if there was one,
+     * stores the program in full so that the journal can be discarded.
+     *
+     * @return <code>true</code> if a journal was found
+     */
+    private boolean _recover(ISPRootNode prog, File progFile) {
+        final ProgramJournal journal = new ProgramJournal(progFile);
+        if (!journal.exists()) return false;
+
+        final String path = _getPath(journal.getFile());
+        try {
+            final int applied = journal.replay(prog);
+            System.out.println(String.format("Replayed %d edits from `%s'", applied, path));
+            store(prog);
+        } catch (Exception ex) {
+            System.err.println("Problem replaying journal `" + path + "': " + ex);
+        }
+        return true;
+    }
+
+    /**
+     * Appends the current data objects of the edited nodes to the program's
+     * journal.  Falls back to storing the whole program if it hasn't been
+     * stored yet, if it would now be stored under a different file name, or
+     * if the journal has grown large enough relative to the program file that
+     * it should be compacted.
+     *
+     * @return number of bytes written
+     */
+    public long storeEdits(ISPRootNode root, Collection<ISPNode> edited) throws IOException {
+        final String suffix = (root instanceof ISPNightlyRecord) ? PLAN_SUFFIX : PROGRAM_SUFFIX;
+        final File expected = _getDocumentFile(root, suffix);
+        final File progFile;
+        synchronized (this) {
+            progFile = _fileMap.get(root.getNodeKey());
+        }
+        if ((progFile == null) || !progFile.equals(expected)) return store(root);
+
+        final ProgramJournal journal = new ProgramJournal(progFile);
+        if (journal.size() > Math.max(MIN_JOURNAL_COMPACTION_SIZE, progFile.length() / 2)) {
+            return store(root);
+        }
+
+        // Capture the edited data objects under the lock, but do the I/O
+        // outside of it.
+        final List<ProgramJournal.Entry> entries = new ArrayList<ProgramJournal.Entry>(edited.size());
+        final SPNodeKey key = root.getProgramKey();
+        SPNodeKeyLocks.instance.readLock(key);
+        try {
+            for (ISPNode n : edited) {
+                if (n.getDataObject() != null) entries.add(ProgramJournal.Entry.capture(n));
+            }
+        } finally {
+            SPNodeKeyLocks.instance.readUnlock(key);
+        }
+        return entries.isEmpty() ? 0 : journal.append(entries);
+    }
+
+    /**
+     * Stores the entire program.
+     *
+     * @return number of bytes written
+     */
+    public long store(ISPRootNode mab) throws IOException {
         if (mab instanceof ISPNightlyRecord) {
-            _storeProgram(mab, PLAN_SUFFIX);
+            return _storeProgram(mab, PLAN_SUFFIX);
         } else {
-            _storeProgram(mab, PROGRAM_SUFFIX);
+            return _storeProgram(mab, PROGRAM_SUFFIX);
         }
     }
 
 
-    private File _storeProgram(ISPRootNode node, String suffix) throws IOException {
+    private long _storeProgram(ISPRootNode node, String suffix) throws IOException {
         final SPNodeKey key = node.getNodeKey();
         final File newFile = _getDocumentFile(node, suffix);
 
-        _storeProgram(node, newFile);
+        final long bytes = _storeProgram(node, newFile);
 
         synchronized (this) {
             final File oldFile = _fileMap.get(key);
             if ((oldFile != null) && !newFile.equals(oldFile) && oldFile.exists()) {
                 // Cleanup the old file
                 oldFile.delete();
+                new ProgramJournal(oldFile).delete();
             }
             _fileMap.put(key, newFile);
         }
 
-        return newFile;
+        return bytes;
     }
 
     /**
      * Stores the given <code>prog</code>ram in the given <code>progFile</code>.
+     * The program lock is only held while the program is serialized into
+     * memory.  Writing, syncing and renaming the file are done without it.
+     *
+     * @return number of bytes written
      */
-    private void _storeProgram(ISPRootNode node, File file) throws IOException {
+    private long _storeProgram(ISPRootNode node, File file) throws IOException {
+        final MemSerializer.Snapshot snap = _ser.snapshot(node);
+
         // Create a temp file to write the object.
         final File tmpFile = _createTempFile(file);
 
-        final SPNodeKey key = node.getProgramKey();
-        SPNodeKeyLocks.instance.readLock(key);
+        // Write the object to the temp file.
+        final FileOutputStream fos = new FileOutputStream(tmpFile);
         try {
-            // Write the object to the temp file.
-            _ser.store(node, tmpFile);
-
-            // Rename the temp file to the destination file.
-            file.delete(); // under win2k, rename fails if file exists
-            if (!tmpFile.renameTo(file)) throw new IOException("Couldn't store the program.");
+            final BufferedOutputStream bos = new BufferedOutputStream(fos);
+            snap.writeTo(bos);
+            fos.getFD().sync();
         } finally {
-            SPNodeKeyLocks.instance.readUnlock(key);
+            fos.close();
         }
+
+        // Rename the temp file to the destination file.
+        file.delete(); // under win2k, rename fails if file exists
+        if (!tmpFile.renameTo(file)) throw new IOException("Couldn't store the program.");
+
+        // The program file now contains all the journaled edits.
+        new ProgramJournal(file).delete();
+
+        return file.length();
     }
 
     @Override public synchronized long size(SPNodeKey key) {
@@ -238,9 +365,15 @@ final class FileManager implements IDBPersister {
     /**
      * Removes the given program, erasing the file associated with it.
      */
-    public synchronized void remove(SPNodeKey key) {
-        final File progFile = _fileMap.remove(key);
-        if (progFile != null) progFile.delete();
+    public void remove(SPNodeKey key) {
+        final File progFile;
+        synchronized (this) {
+            progFile = _fileMap.remove(key);
+        }
+        if (progFile != null) {
+            progFile.delete();
+            new ProgramJournal(progFile).delete();
+        }
     }
 
     /**
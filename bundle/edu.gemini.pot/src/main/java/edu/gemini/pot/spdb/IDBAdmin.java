@@ -62,4 +62,10 @@ public interface IDBAdmin {
      */
     long getTotalStorage();
 
+    /**
+     * Returns metrics describing the work done storing modified programs:
+     * the number waiting to be stored, bytes written, and store latencies.
+     */
+    StorageMetrics getStorageMetrics();
+
 }
@@ -157,6 +157,9 @@ public interface IDBDatabaseService {
     /**
      * Checkpoints the given program, storing any outstanding modifications
      * to it.
+     *
+     * @throws IllegalStateException if the calling thread holds the
+     * program's write lock
      */
     void checkpoint(ISPProgram prog);
 
@@ -206,6 +209,27 @@ public interface IDBDatabaseService {
      */
     ISPObservation lookupObservationByID(SPObservationID obsID);
 
+    /**
+     * Finds the programs whose PI has the given last name, ignoring case.
+     *
+     * @return ids of the matching programs, sorted; empty if none
+     */
+    List<SPProgramID> lookupProgramIDsByPI(String piLastName);
+
+    /**
+     * Finds the programs whose program id identifies the given semester.
+     *
+     * @return ids of the matching programs, sorted; empty if none
+     */
+    List<SPProgramID> lookupProgramIDsBySemester(Semester semester);
+
+    /**
+     * Finds the observations that currently have the given status.
+     *
+     * @return ids of the matching observations, sorted; empty if none
+     */
+    List<SPObservationID> lookupObservationIDsByStatus(ObservationStatus status);
+
     /**
      * Fetches the program with the given <code>programKey</code> from the
      * database.
@@ -0,0 +1,40 @@
+package edu.gemini.pot.spdb;
+
+/**
+ * A query functor that can be run in parallel by the
+ * <code>{@link IDBQueryRunner}</code>.  The runner divides the programs in
+ * the database into partitions and runs a separate copy of the functor,
+ * obtained from {@link #split}, over each partition on a pool of worker
+ * threads.  The partial results are then combined into the original functor
+ * with {@link #merge}.
+ *
+ * <p>The functor passed to the query runner has <code>init()</code> called
+ * before any partitions are started and <code>finished()</code> called after
+ * all partitions have been merged.  Each partition copy has
+ * <code>init()</code> called before it is executed on its first node, and
+ * <code>isDone()</code> checked before each node in its partition, so a
+ * partition stops independently of the others.  Partition copies are never
+ * sent <code>finished()</code>.
+ *
+ * <p>Partitions are merged in the order in which the nodes they cover would
+ * have been visited by a sequential query, so a functor that accumulates its
+ * results in a list sees the same ordering as it would have otherwise.
+ * Functors that do not implement this interface are run sequentially as
+ * before.
+ */
+public interface IDBParallelQueryFunctor extends IDBQueryFunctor {
+
+    /**
+     * Creates a new, empty functor of the same kind and with the same query
+     * parameters as this one, to be run over one partition of the database.
+     * Called on the worker thread that will execute the copy.
+     */
+    IDBParallelQueryFunctor split();
+
+    /**
+     * Combines the results collected by the given partition functor (obtained
+     * from {@link #split}) into this functor.  Merges are performed one at a
+     * time, never concurrently on the same functor.
+     */
+    void merge(IDBParallelQueryFunctor partition);
+}
@@ -3,6 +3,7 @@ package edu.gemini.pot.spdb;
 import edu.gemini.pot.sp.*;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 // A lame interface that closely matches the existing FileManager so as to
@@ -11,7 +12,20 @@ import java.util.List;
 interface IDBPersister {
     List<ISPProgram> reloadPrograms() throws IOException;
     List<ISPNightlyRecord> reloadPlans() throws IOException;
-    void store(ISPRootNode node) throws IOException;
+
+    /**
+     * Stores the entire program, returning the number of bytes written.
+     * Stores of any one program must not overlap.
+     */
+    long store(ISPRootNode node) throws IOException;
+
+    /**
+     * Stores edits to the data objects of the given nodes in the program,
+     * returning the number of bytes written.  Persisters that cannot store
+     * edits incrementally may simply store the entire program.
+     */
+    long storeEdits(ISPRootNode node, Collection<ISPNode> edited) throws IOException;
+
     void remove(SPNodeKey key);
 
     /** Gets the size of the program file on disk, or -1 if not known. */
@@ -11,6 +11,8 @@ package edu.gemini.pot.spdb;
 import edu.gemini.pot.sp.ISPNode;
 import edu.gemini.pot.sp.SPNodeNotLocalException;
 
+import java.io.Serializable;
+
 /**
  * The query interface provided to clients.  Each method scans all available
  * nodes of the matching type, applying the functor to each node.  It is
@@ -45,6 +47,45 @@ public interface IDBQueryRunner {
      */
     <T extends IDBQueryFunctor> T queryNightlyPlans(T functor) ;
 
+    /**
+     * Starts a query on the available observations whose results are
+     * fetched in batches as they are found, rather than all at once when the
+     * query completes.  The query runs on the server in the background, but
+     * stops to wait whenever a few batches are ready that the client has not
+     * yet fetched.
+     *
+     * @param functor   the functor to apply to each observation; each result
+     *                  it produces is returned in one of the batches
+     * @param batchSize maximum number of results per batch, or 0 for the
+     *                  default
+     *
+     * @return the first batch of results, which identifies the cursor from
+     * which the remaining batches are fetched with {@link #nextBatch}
+     */
+    <R extends Serializable> DBQueryBatch<R> openObservationCursor(IDBStreamingQueryFunctor<R> functor, int batchSize);
+
+    /**
+     * Starts a query on the available programs whose results are fetched in
+     * batches.  See {@link #openObservationCursor}.
+     */
+    <R extends Serializable> DBQueryBatch<R> openProgramCursor(IDBStreamingQueryFunctor<R> functor, int batchSize);
+
+    /**
+     * Fetches the next batch of results from a query cursor, waiting a short
+     * while for one if necessary.  Once a batch marked as the last has been
+     * returned the cursor is closed.  Cursors that go unused for several
+     * minutes are closed as well.
+     *
+     * @throws IllegalArgumentException if the cursor is not open
+     */
+    <R extends Serializable> DBQueryBatch<R> nextBatch(long cursorId);
+
+    /**
+     * Closes a query cursor before its results have all been fetched,
+     * stopping the query.  Does nothing if the cursor is already closed.
+     */
+    void closeCursor(long cursorId);
+
     /**
      * Executes the given functor on the given node.  The remote reference is
      * first converted to a local reference by the database before it is passed
@@ -0,0 +1,29 @@
+package edu.gemini.pot.spdb;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A query functor whose results can be delivered to the client in batches
+ * while the query is still running.  See
+ * <code>{@link IDBQueryRunner#openObservationCursor}</code>.
+ *
+ * <p>The query runner calls {@link #drainResults} after each call to
+ * <code>execute()</code>, and once more after <code>finished()</code>, and
+ * sends the items returned on to the client.  The functor should therefore
+ * hand over each result as soon as it is produced rather than keeping it,
+ * so that the memory used on the server does not grow with the size of the
+ * result.  Anything else the functor holds is returned to the client with the
+ * last batch.
+ *
+ * @param <R> type of the individual result items
+ */
+public interface IDBStreamingQueryFunctor<R extends Serializable> extends IDBQueryFunctor {
+
+    /**
+     * Removes and returns the results produced since the last call, in the
+     * order in which they should be delivered.  Returns an empty list if
+     * there are none.
+     */
+    List<R> drainResults();
+}
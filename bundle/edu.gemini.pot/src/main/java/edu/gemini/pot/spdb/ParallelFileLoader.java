@@ -0,0 +1,175 @@
+package edu.gemini.pot.spdb;
+
+import edu.gemini.pot.sp.memImpl.MemAbstractBase;
+import edu.gemini.pot.sp.memImpl.MemSerializer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Deserializes database files across a bounded pool of worker threads.  Used
+ * by the {@link FileManager} at startup, where reading several thousand
+ * program files one at a time dominates the time it takes to bring up the
+ * database.
+ *
+ * <p>Results are always returned in file name order regardless of the order
+ * in which the workers finish, so that callers can resolve conflicts between
+ * files deterministically.
+ */
+final class ParallelFileLoader {
+    private static final Logger LOG = Logger.getLogger(ParallelFileLoader.class.getName());
+
+    /**
+     * System property that can be used to set the number of loader threads.
+     * Defaults to the number of available processors.
+     */
+    public static final String THREADS_PROP = ParallelFileLoader.class.getName() + ".threads";
+
+    /**
+     * The outcome of loading a single file.  Exactly one of
+     * <code>node</code> and <code>failure</code> is set (unless the file
+     * simply contained a <code>null</code>, in which case neither is).
+     */
+    static final class Result {
+        final File file;
+        final MemAbstractBase node;
+        final Exception failure;
+        final long checksum;
+        final long bytes;
+        final long millis;
+
+        private Result(File file, MemAbstractBase node, Exception failure, long checksum, long bytes, long millis) {
+            this.file     = file;
+            this.node     = node;
+            this.failure  = failure;
+            this.checksum = checksum;
+            this.bytes    = bytes;
+            this.millis   = millis;
+        }
+
+        boolean isSuccess() {
+            return failure == null;
+        }
+    }
+
+    private static final Comparator<File> NAME_ORDER = new Comparator<File>() {
+        @Override public int compare(File f1, File f2) {
+            return f1.getName().compareTo(f2.getName());
+        }
+    };
+
+    private final MemSerializer _ser;
+    private final int _threads;
+
+    ParallelFileLoader(MemSerializer ser) {
+        this(ser, defaultThreadCount());
+    }
+
+    ParallelFileLoader(MemSerializer ser, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be > 0");
+        _ser     = ser;
+        _threads = threads;
+    }
+
+    static int defaultThreadCount() {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final String propStr = System.getProperty(THREADS_PROP);
+        if (propStr == null) return cpus;
+        try {
+            final int n = Integer.parseInt(propStr.trim());
+            if (n > 0) return n;
+            LOG.warning("Value of property '" + THREADS_PROP + "' must be > 0, using " + cpus);
+        } catch (NumberFormatException ex) {
+            LOG.warning("Could not parse value of property '" + THREADS_PROP + "': " + propStr);
+        }
+        return cpus;
+    }
+
+    int getThreadCount() {
+        return _threads;
+    }
+
+    /**
+     * Loads all the given files, returning one result per file sorted by
+     * file name.  Individual failures are captured in the corresponding
+     * {@link Result} rather than aborting the load.
+     */
+    List<Result> load(File[] files) {
+        final File[] sorted = files.clone();
+        Arrays.sort(sorted, NAME_ORDER);
+
+        final int poolSize = Math.max(1, Math.min(_threads, sorted.length));
+        final ExecutorService pool = Executors.newFixedThreadPool(poolSize, new LoaderThreadFactory());
+        try {
+            final List<Future<Result>> futures = new ArrayList<Future<Result>>(sorted.length);
+            for (final File f : sorted) {
+                futures.add(pool.submit(new Callable<Result>() {
+                    @Override public Result call() {
+                        return loadOne(f);
+                    }
+                }));
+            }
+
+            final List<Result> results = new ArrayList<Result>(sorted.length);
+            for (int i = 0; i < sorted.length; ++i) {
+                results.add(await(sorted[i], futures.get(i)));
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Result await(File f, Future<Result> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new Result(f, null, ex, 0, 0, 0);
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            final Exception failure = (cause instanceof Exception) ? (Exception) cause : ex;
+            return new Result(f, null, failure, 0, 0, 0);
+        }
+    }
+
+    private Result loadOne(File f) {
+        final long start = System.currentTimeMillis();
+        final CRC32 crc  = new CRC32();
+        try {
+            final CheckedInputStream cis = new CheckedInputStream(new FileInputStream(f), crc);
+            final MemAbstractBase node = _ser.load(new BufferedInputStream(cis));
+            final long millis = System.currentTimeMillis() - start;
+            LOG.log(Level.FINE, "Loaded " + f.getName() + " in " + millis + " ms");
+            return new Result(f, node, null, crc.getValue(), f.length(), millis);
+        } catch (Exception ex) {
+            return new Result(f, null, ex, crc.getValue(), f.length(), System.currentTimeMillis() - start);
+        }
+    }
+
+    private static final class LoaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger _count = new AtomicInteger();
+
+        @Override public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "ODB Loader " + _count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package edu.gemini.pot.spdb;
+
+import edu.gemini.pot.sp.ISPNode;
+import edu.gemini.pot.sp.ISPObservation;
+import edu.gemini.pot.sp.ISPProgram;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link IDBParallelQueryFunctor}s over the programs in the database on
+ * a fork-join pool.  The list of root nodes is recursively halved until each
+ * partition is small enough, then each partition is scanned by its own copy
+ * of the functor.  For observation queries the partitions are still made up
+ * of programs, with each worker walking the observations of its programs, so
+ * the observations never have to be gathered into one list up front.
+ */
+final class ParallelQuery {
+    private static final Logger LOG = Logger.getLogger(ParallelQuery.class.getName());
+
+    /**
+     * System property that can be used to set the number of query threads.
+     * Defaults to the number of available processors.
+     */
+    public static final String THREADS_PROP = ParallelQuery.class.getName() + ".threads";
+
+    // Aim for several partitions per thread so that a partition with a few
+    // very large programs doesn't leave the other threads idle.
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    private final ForkJoinPool _pool;
+
+    ParallelQuery() {
+        this(defaultThreadCount());
+    }
+
+    ParallelQuery(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be > 0");
+        _pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("ODB Query " + t.getPoolIndex());
+                return t;
+            }
+        }, null, false);
+    }
+
+    static int defaultThreadCount() {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final String propStr = System.getProperty(THREADS_PROP);
+        if (propStr == null) return cpus;
+        try {
+            final int n = Integer.parseInt(propStr.trim());
+            if (n > 0) return n;
+            LOG.warning("Value of property '" + THREADS_PROP + "' must be > 0, using " + cpus);
+        } catch (NumberFormatException ex) {
+            LOG.warning("Could not parse value of property '" + THREADS_PROP + "': " + propStr);
+        }
+        return cpus;
+    }
+
+    int getThreadCount() {
+        return _pool.getParallelism();
+    }
+
+    /**
+     * Runs the functor over the given roots (programs or nightly records),
+     * or over the observations they contain if <code>observations</code> is
+     * <code>true</code>.  The caller is responsible for calling
+     * <code>init()</code> beforehand and <code>finished()</code> afterwards.
+     *
+     * @throws Exception the first exception thrown by any partition, in which
+     * case none of the partition results are merged
+     */
+    void run(IDBParallelQueryFunctor functor, List<? extends ISPNode> roots, boolean observations,
+             IDBDatabaseService db, Set<Principal> principals) throws Exception {
+        if (roots.isEmpty()) return;
+
+        final int leafSize = Math.max(1, roots.size() / (getThreadCount() * PARTITIONS_PER_THREAD));
+        final Scan scan = new Scan(functor, observations, db, principals);
+        final List<IDBParallelQueryFunctor> parts = _pool.invoke(new Partition(scan, roots, 0, roots.size(), leafSize));
+
+        final Exception failure = scan.failure.get();
+        if (failure != null) throw failure;
+
+        for (IDBParallelQueryFunctor part : parts) functor.merge(part);
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    void shutdown() {
+        _pool.shutdown();
+    }
+
+    // State shared by all the partitions of one query.
+    private static final class Scan {
+        final IDBParallelQueryFunctor functor;
+        final boolean observations;
+        final IDBDatabaseService db;
+        final Set<Principal> principals;
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        Scan(IDBParallelQueryFunctor functor, boolean observations, IDBDatabaseService db, Set<Principal> principals) {
+            this.functor      = functor;
+            this.observations = observations;
+            this.db           = db;
+            this.principals   = principals;
+        }
+    }
+
+    private static final class Partition extends RecursiveTask<List<IDBParallelQueryFunctor>> {
+        private final Scan _scan;
+        private final List<? extends ISPNode> _roots;
+        private final int _from;
+        private final int _to;
+        private final int _leafSize;
+
+        Partition(Scan scan, List<? extends ISPNode> roots, int from, int to, int leafSize) {
+            _scan     = scan;
+            _roots    = roots;
+            _from     = from;
+            _to       = to;
+            _leafSize = leafSize;
+        }
+
+        @Override protected List<IDBParallelQueryFunctor> compute() {
+            if (_to - _from > _leafSize) {
+                final int mid = (_from + _to) >>> 1;
+                final Partition left  = new Partition(_scan, _roots, _from, mid, _leafSize);
+                final Partition right = new Partition(_scan, _roots, mid, _to, _leafSize);
+                left.fork();
+                final List<IDBParallelQueryFunctor> res = new ArrayList<>(right.compute());
+                res.addAll(0, left.join());
+                return res;
+            }
+
+            if (_scan.failure.get() != null) return Collections.emptyList();
+
+            final IDBParallelQueryFunctor part;
+            try {
+                part = _scan.functor.split();
+            } catch (Exception ex) {
+                _scan.failure.compareAndSet(null, ex);
+                return Collections.emptyList();
+            }
+
+            WithPriority.exec(_scan.functor.getPriority(), new Runnable() {
+                @Override public void run() {
+                    try {
+                        part.init();
+                        _scanRange(part);
+                    } catch (Exception ex) {
+                        _scan.failure.compareAndSet(null, ex);
+                    }
+                }
+            });
+            return Collections.singletonList(part);
+        }
+
+        private void _scanRange(IDBParallelQueryFunctor part) {
+            for (int i = _from; i < _to; ++i) {
+                final ISPNode root = _roots.get(i);
+                if (_scan.observations) {
+                    if (!(root instanceof ISPProgram)) continue;
+                    for (ISPObservation obs : ((ISPProgram) root).getAllObservations()) {
+                        if (part.isDone() || (_scan.failure.get() != null)) return;
+                        part.execute(_scan.db, obs, _scan.principals);
+                    }
+                } else {
+                    if (part.isDone() || (_scan.failure.get() != null)) return;
+                    part.execute(_scan.db, root, _scan.principals);
+                }
+            }
+        }
+    }
+}
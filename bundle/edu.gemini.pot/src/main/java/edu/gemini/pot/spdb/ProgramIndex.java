@@ -0,0 +1,399 @@
+package edu.gemini.pot.spdb;
+
+import edu.gemini.pot.sp.ISPNode;
+import edu.gemini.pot.sp.ISPObservation;
+import edu.gemini.pot.sp.ISPProgram;
+import edu.gemini.pot.sp.ISPRootNode;
+import edu.gemini.pot.sp.SPNodeKey;
+import edu.gemini.pot.sp.SPNodeKeyLocks;
+import edu.gemini.pot.sp.SPObservationID;
+import edu.gemini.pot.sp.SPUtil;
+import edu.gemini.spModel.core.ProgramId$;
+import edu.gemini.spModel.core.SPProgramID;
+import edu.gemini.spModel.core.Semester;
+import edu.gemini.spModel.data.ISPDataObject;
+import edu.gemini.spModel.gemini.obscomp.SPProgram;
+import edu.gemini.spModel.obs.ObservationStatus;
+import scala.Option;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory secondary indexes over the programs in the database, answering
+ * lookups by observation id, PI last name, semester and observation status
+ * without walking every program.
+ *
+ * <p>The index listens for programs being added to and removed from the
+ * {@link ProgramManager} and for changes to the programs themselves.  Change
+ * events only mark the affected program or observation as stale, since they
+ * are delivered while the editing thread holds the program lock.  Stale
+ * entries are brought up to date by the next lookup that needs them, outside
+ * of the index lock.  Each entry records the generation of the change that
+ * it reflects, so that concurrent lookups refreshing the same entry cannot
+ * replace newer information with older, and an entry is only considered
+ * fresh again if no further change arrived while it was being recomputed.
+ *
+ * <p>Lookups never wait for a program lock.  They may be called by a thread
+ * that already holds the lock of some other program, so waiting could
+ * deadlock against a writer of a stale program.  A stale program that is
+ * locked for writing by another thread is left stale and reported as last
+ * indexed, and picked up by a later lookup.  Apart from that, a lookup does
+ * not miss an edit that completed before it started.
+ */
+final class ProgramIndex implements ProgramEventListener<ISPProgram>, PropertyChangeListener {
+    private static final Logger LOG = Logger.getLogger(ProgramIndex.class.getName());
+
+    // What the index knows about one observation.  A null status means that
+    // it has not been computed yet.  The generation is that of the most
+    // recent change reflected in the status.
+    private static final class ObsInfo {
+        final ISPObservation obs;
+        final SPObservationID id;
+        final ObservationStatus status;
+        final long statusGen;
+
+        ObsInfo(ISPObservation obs, SPObservationID id, ObservationStatus status, long statusGen) {
+            this.obs       = obs;
+            this.id        = id;
+            this.status    = status;
+            this.statusGen = statusGen;
+        }
+
+        ObsInfo withStatus(ObservationStatus s, long gen) {
+            return new ObsInfo(obs, id, s, gen);
+        }
+    }
+
+    // What the index knows about one program, as of the change with the
+    // given generation.
+    private static final class ProgInfo {
+        final long gen;
+        final SPProgramID id;
+        final String pi;
+        final Semester semester;
+        final Map<SPNodeKey, ObsInfo> obs;
+
+        ProgInfo(long gen, SPProgramID id, String pi, Semester semester, Map<SPNodeKey, ObsInfo> obs) {
+            this.gen      = gen;
+            this.id       = id;
+            this.pi       = pi;
+            this.semester = semester;
+            this.obs      = obs;
+        }
+    }
+
+    // All guarded by "this".
+    private final Map<ISPProgram, ProgInfo> _progs = new IdentityHashMap<>();
+    private final Map<SPObservationID, ISPObservation> _obsById = new HashMap<>();
+    private final Map<String, Set<SPProgramID>> _byPi = new HashMap<>();
+    private final Map<Semester, Set<SPProgramID>> _bySemester = new HashMap<>();
+    private final Map<ObservationStatus, Set<SPObservationID>> _byStatus = new EnumMap<>(ObservationStatus.class);
+
+    // Programs that must be reindexed and observations whose status must be
+    // recomputed, each mapped to the generation at which it was last marked.
+    private final Map<ISPProgram, Long> _staleProgs = new IdentityHashMap<>();
+    private final Map<ISPObservation, Long> _staleObs = new IdentityHashMap<>();
+    private long _generation;
+
+    ProgramIndex(ProgramManager<ISPProgram> pm) {
+        pm.addListener(this);
+        for (ISPProgram prog : pm.getPrograms()) _add(prog);
+    }
+
+    private void _add(ISPProgram prog) {
+        prog.addCompositeChangeListener(this);
+        synchronized (this) {
+            _progs.put(prog, new ProgInfo(0, null, null, null, new HashMap<SPNodeKey, ObsInfo>()));
+            _staleProgs.put(prog, ++_generation);
+        }
+    }
+
+    private void _remove(ISPProgram prog) {
+        prog.removeCompositeChangeListener(this);
+        synchronized (this) {
+            final ProgInfo pi = _progs.remove(prog);
+            if (pi != null) _unindex(pi);
+            _staleProgs.remove(prog);
+            // Stale observations of this program are discarded at the next
+            // status refresh when their program is not found.
+        }
+    }
+
+    @Override public void programAdded(ProgramEvent<ISPProgram> pme) {
+        _add(pme.getNewProgram());
+    }
+
+    @Override public void programReplaced(ProgramEvent<ISPProgram> pme) {
+        _remove(pme.getOldProgram());
+        _add(pme.getNewProgram());
+    }
+
+    @Override public void programRemoved(ProgramEvent<ISPProgram> pme) {
+        _remove(pme.getOldProgram());
+    }
+
+    /**
+     * Marks the observation containing the modified node as needing its
+     * status recomputed or, for changes outside of any observation, the
+     * whole program as needing to be reindexed.
+     */
+    @Override public void propertyChange(PropertyChangeEvent pce) {
+        if (SPUtil.isTransientClientDataPropertyName(pce.getPropertyName())) return;
+
+        final Object src = pce.getSource();
+        if (!(src instanceof ISPNode)) return;
+
+        final ISPNode node = (ISPNode) src;
+        final ISPObservation obs = node.getContextObservation();
+        final ISPRootNode root = node.getRootAncestor();
+        synchronized (this) {
+            if (obs != null) {
+                _staleObs.put(obs, ++_generation);
+            } else if ((root instanceof ISPProgram) && _progs.containsKey(root)) {
+                _staleProgs.put((ISPProgram) root, ++_generation);
+            }
+        }
+    }
+
+    // Must be called holding the lock.
+    private void _index(ProgInfo pi) {
+        if (pi.id != null) {
+            if (pi.pi != null) _addTo(_byPi, pi.pi, pi.id);
+            if (pi.semester != null) _addTo(_bySemester, pi.semester, pi.id);
+        }
+        for (ObsInfo oi : pi.obs.values()) {
+            if (oi.id == null) continue;
+            _obsById.put(oi.id, oi.obs);
+            if (oi.status != null) _addTo(_byStatus, oi.status, oi.id);
+        }
+    }
+
+    // Must be called holding the lock.
+    private void _unindex(ProgInfo pi) {
+        if (pi.id != null) {
+            if (pi.pi != null) _removeFrom(_byPi, pi.pi, pi.id);
+            if (pi.semester != null) _removeFrom(_bySemester, pi.semester, pi.id);
+        }
+        for (ObsInfo oi : pi.obs.values()) {
+            if (oi.id == null) continue;
+            if (_obsById.get(oi.id) == oi.obs) _obsById.remove(oi.id);
+            if (oi.status != null) _removeFrom(_byStatus, oi.status, oi.id);
+        }
+    }
+
+    private static <K, V> void _addTo(Map<K, Set<V>> m, K k, V v) {
+        Set<V> s = m.get(k);
+        if (s == null) {
+            s = new HashSet<>();
+            m.put(k, s);
+        }
+        s.add(v);
+    }
+
+    private static <K, V> void _removeFrom(Map<K, Set<V>> m, K k, V v) {
+        final Set<V> s = m.get(k);
+        if (s == null) return;
+        s.remove(v);
+        if (s.isEmpty()) m.remove(k);
+    }
+
+    private static String _piKey(String lastName) {
+        if (lastName == null) return null;
+        final String s = lastName.trim();
+        return s.isEmpty() ? null : s.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static Semester _semester(SPProgramID id) {
+        if (id == null) return null;
+        final Option<Semester> s = ProgramId$.MODULE$.parse(id.stringValue()).semester();
+        return s.isDefined() ? s.get() : null;
+    }
+
+    /**
+     * Reindexes any programs whose structure or attributes have changed and
+     * whose lock is available.  Statuses of observations already known are
+     * kept; new observations are marked as needing their status computed.
+     */
+    private void _refreshPrograms() {
+        final Map<ISPProgram, Long> stale;
+        synchronized (this) {
+            if (_staleProgs.isEmpty()) return;
+            stale = new IdentityHashMap<>(_staleProgs);
+        }
+
+        final Map<ISPProgram, ProgInfo> updates = new IdentityHashMap<>();
+        for (Map.Entry<ISPProgram, Long> me : stale.entrySet()) {
+            final ISPProgram p = me.getKey();
+            final SPNodeKey key = p.getProgramKey();
+            if (!SPNodeKeyLocks.instance.tryReadLock(key)) continue;
+            try {
+                final SPProgramID id = p.getProgramID();
+                final ISPDataObject dobj = p.getDataObject();
+                final String pi = (dobj instanceof SPProgram) ? _piKey(((SPProgram) dobj).getPILastName()) : null;
+
+                final Map<SPNodeKey, ObsInfo> obs = new HashMap<>();
+                for (ISPObservation o : p.getAllObservations()) {
+                    obs.put(o.getNodeKey(), new ObsInfo(o, o.getObservationID(), null, 0));
+                }
+                updates.put(p, new ProgInfo(me.getValue(), id, pi, _semester(id), obs));
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "Could not index program " + p.getProgramKey(), ex);
+            } finally {
+                SPNodeKeyLocks.instance.readUnlock(key);
+            }
+        }
+
+        synchronized (this) {
+            for (Map.Entry<ISPProgram, ProgInfo> me : updates.entrySet()) {
+                final ISPProgram p  = me.getKey();
+                final ProgInfo   pi = me.getValue();
+                final ProgInfo  old = _progs.get(p);
+                if (old == null) continue;         // removed in the meantime
+                if (old.gen >= pi.gen) continue;   // a newer update was applied
+
+                // Carry over the statuses that were already computed.
+                for (Map.Entry<SPNodeKey, ObsInfo> oe : pi.obs.entrySet()) {
+                    final ObsInfo cur = old.obs.get(oe.getKey());
+                    if ((cur != null) && (cur.obs == oe.getValue().obs) && (cur.status != null)) {
+                        oe.setValue(oe.getValue().withStatus(cur.status, cur.statusGen));
+                    } else if (!_staleObs.containsKey(oe.getValue().obs)) {
+                        _staleObs.put(oe.getValue().obs, ++_generation);
+                    }
+                }
+
+                _unindex(old);
+                _progs.put(p, pi);
+                _index(pi);
+                if (Long.valueOf(pi.gen).equals(_staleProgs.get(p))) _staleProgs.remove(p);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the status of observations that have changed, skipping
+     * those whose program is locked by a writer.
+     */
+    private void _refreshStatuses() {
+        _refreshPrograms();
+
+        final Map<ISPObservation, Long> stale;
+        synchronized (this) {
+            if (_staleObs.isEmpty()) return;
+            stale = new IdentityHashMap<>(_staleObs);
+        }
+
+        final Map<ISPObservation, ObservationStatus> updates = new IdentityHashMap<>();
+        final Set<ISPObservation> skipped = Collections.newSetFromMap(new IdentityHashMap<ISPObservation, Boolean>());
+        for (ISPObservation o : stale.keySet()) {
+            final SPNodeKey key = o.getProgramKey();
+            if (!SPNodeKeyLocks.instance.tryReadLock(key)) {
+                skipped.add(o);
+                continue;
+            }
+            try {
+                updates.put(o, ObservationStatus.computeFor(o));
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "Could not compute status of observation " + o.getNodeKey(), ex);
+            } finally {
+                SPNodeKeyLocks.instance.readUnlock(key);
+            }
+        }
+
+        synchronized (this) {
+            for (Map.Entry<ISPObservation, Long> me : stale.entrySet()) {
+                final ISPObservation o = me.getKey();
+                final long gen = me.getValue();
+                if (skipped.contains(o)) continue;
+                final ObservationStatus status = updates.get(o);
+                if (status != null) _setStatus(o, status, gen);
+                if (me.getValue().equals(_staleObs.get(o))) _staleObs.remove(o);
+            }
+        }
+    }
+
+    // Must be called holding the lock.
+    private void _setStatus(ISPObservation o, ObservationStatus status, long gen) {
+        final ISPRootNode root = o.getRootAncestor();
+        final ProgInfo pi = (root instanceof ISPProgram) ? _progs.get(root) : null;
+        if (pi == null) return;
+
+        final ObsInfo oi = pi.obs.get(o.getNodeKey());
+        if ((oi == null) || (oi.obs != o) || (oi.id == null)) return;
+        if ((oi.status != null) && (oi.statusGen >= gen)) return;
+
+        if (oi.status != null) _removeFrom(_byStatus, oi.status, oi.id);
+        pi.obs.put(o.getNodeKey(), oi.withStatus(status, gen));
+        _addTo(_byStatus, status, oi.id);
+    }
+
+    /**
+     * Fetches the observation with the given id, if any.
+     */
+    ISPObservation lookupObservation(SPObservationID obsId) {
+        _refreshPrograms();
+        synchronized (this) {
+            return _obsById.get(obsId);
+        }
+    }
+
+    /**
+     * Gets the ids of the programs whose PI has the given last name, ignoring
+     * case, sorted by id.
+     */
+    List<SPProgramID> lookupProgramIDsByPI(String lastName) {
+        final String key = _piKey(lastName);
+        if (key == null) return Collections.emptyList();
+        _refreshPrograms();
+        synchronized (this) {
+            return _sorted(_byPi.get(key));
+        }
+    }
+
+    /**
+     * Gets the ids of the programs in the given semester, sorted by id.
+     */
+    List<SPProgramID> lookupProgramIDsBySemester(Semester semester) {
+        _refreshPrograms();
+        synchronized (this) {
+            return _sorted(_bySemester.get(semester));
+        }
+    }
+
+    /**
+     * Gets the ids of the observations with the given status, sorted by id.
+     */
+    List<SPObservationID> lookupObservationIDsByStatus(ObservationStatus status) {
+        _refreshStatuses();
+        synchronized (this) {
+            return _sorted(_byStatus.get(status));
+        }
+    }
+
+    private static <T extends Comparable<T>> List<T> _sorted(Set<T> s) {
+        if (s == null) return Collections.emptyList();
+        final List<T> res = new ArrayList<>(s);
+        Collections.sort(res);
+        return res;
+    }
+
+    /**
+     * Stops listening to the program manager and the programs.
+     */
+    void shutdown(ProgramManager<ISPProgram> pm) {
+        pm.removeListener(this);
+        for (ISPProgram prog : pm.getPrograms()) prog.removeCompositeChangeListener(this);
+        synchronized (this) {
+            _progs.clear();
+            _obsById.clear();
+            _byPi.clear();
+            _bySemester.clear();
+            _byStatus.clear();
+            _staleProgs.clear();
+            _staleObs.clear();
+        }
+    }
+}
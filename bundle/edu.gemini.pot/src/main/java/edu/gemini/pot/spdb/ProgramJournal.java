@@ -0,0 +1,217 @@
+package edu.gemini.pot.spdb;
+
+import edu.gemini.pot.sp.ISPContainerNode;
+import edu.gemini.pot.sp.ISPNode;
+import edu.gemini.pot.sp.ISPRootNode;
+import edu.gemini.pot.sp.SPNodeKey;
+import edu.gemini.pot.sp.version.LifespanId;
+import edu.gemini.shared.util.VersionComparison;
+import edu.gemini.shared.util.VersionVector;
+import edu.gemini.spModel.data.ISPDataObject;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of data object edits kept next to a program file.
+ * Storing an edit to a single node appends one small record rather than
+ * rewriting the whole program.  When the program is next stored in full, the
+ * journal is deleted.  On startup any journal found is replayed on top of the
+ * program loaded from the program file.
+ *
+ * <p>Each record is the length and CRC32 of its payload followed by the
+ * payload itself, the serialized {@link Entry}.  A record torn by a crash
+ * in the middle of an append fails its length or checksum test, and it and
+ * anything after it are ignored.
+ */
+final class ProgramJournal {
+    private static final Logger LOG = Logger.getLogger(ProgramJournal.class.getName());
+
+    /** Suffix appended to the program file name to form the journal name. */
+    public static final String JOURNAL_SUFFIX = ".jnl";
+
+    /**
+     * The new state of a single node: its key, version, and data object.
+     */
+    static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final SPNodeKey key;
+        final VersionVector<LifespanId, Integer> version;
+        final ISPDataObject dataObject;
+
+        Entry(SPNodeKey key, VersionVector<LifespanId, Integer> version, ISPDataObject dataObject) {
+            this.key        = key;
+            this.version    = version;
+            this.dataObject = dataObject;
+        }
+
+        /**
+         * Captures the current state of the given node.  Should be called with
+         * the program read lock held.
+         */
+        static Entry capture(ISPNode node) {
+            return new Entry(node.getNodeKey(), node.getVersion(), node.getDataObject());
+        }
+    }
+
+    private final File _file;
+
+    ProgramJournal(File programFile) {
+        _file = journalFile(programFile);
+    }
+
+    static File journalFile(File programFile) {
+        return new File(programFile.getParentFile(), programFile.getName() + JOURNAL_SUFFIX);
+    }
+
+    File getFile() {
+        return _file;
+    }
+
+    boolean exists() {
+        return _file.exists();
+    }
+
+    /** Size of the journal in bytes, or 0 if there is no journal. */
+    long size() {
+        return _file.length();
+    }
+
+    void delete() {
+        if (_file.exists() && !_file.delete()) {
+            LOG.warning("Could not delete journal " + _file.getPath());
+        }
+    }
+
+    /**
+     * Appends the entries to the journal, forcing them to disk before
+     * returning.
+     *
+     * @return number of bytes appended
+     */
+    long append(Collection<Entry> entries) throws IOException {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(records);
+        for (Entry e : entries) {
+            final byte[] payload = serialize(e);
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+            dos.writeInt(payload.length);
+            dos.writeLong(crc.getValue());
+            dos.write(payload);
+        }
+        dos.flush();
+
+        final FileOutputStream fos = new FileOutputStream(_file, true);
+        try {
+            records.writeTo(fos);
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        return records.size();
+    }
+
+    private static byte[] serialize(Entry e) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(baos);
+        try {
+            oos.writeObject(e);
+        } finally {
+            oos.close();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Reads the entries in the journal, stopping at the first incomplete or
+     * corrupt record.
+     */
+    List<Entry> read() throws IOException {
+        final List<Entry> res = new ArrayList<>();
+        if (!_file.exists()) return res;
+
+        final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+        try {
+            while (true) {
+                final int len;
+                final long sum;
+                final byte[] payload;
+                try {
+                    len = dis.readInt();
+                    sum = dis.readLong();
+                    if (len < 0) throw new EOFException();
+                    payload = new byte[len];
+                    dis.readFully(payload);
+                } catch (EOFException ex) {
+                    break;
+                }
+
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != sum) {
+                    LOG.warning("Ignoring corrupt tail of journal " + _file.getPath());
+                    break;
+                }
+
+                final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload));
+                try {
+                    res.add((Entry) ois.readObject());
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException("Couldn't read journal entry", ex);
+                } finally {
+                    ois.close();
+                }
+            }
+        } finally {
+            dis.close();
+        }
+        return res;
+    }
+
+    /**
+     * Replays the journal on top of the given root node.  An entry is only
+     * applied if it is newer than the node's current version, so replaying a
+     * journal that was left behind after the program was stored in full has
+     * no effect.
+     *
+     * @return the number of entries applied
+     */
+    int replay(ISPRootNode root) throws IOException {
+        final List<Entry> entries = read();
+        if (entries.isEmpty()) return 0;
+
+        final Map<SPNodeKey, ISPNode> nodes = new HashMap<>();
+        index(root, nodes);
+
+        int applied = 0;
+        for (Entry e : entries) {
+            final ISPNode node = nodes.get(e.key);
+            if (node == null) {
+                LOG.log(Level.WARNING, "Journal " + _file.getName() + " refers to missing node " + e.key);
+            } else if (e.version.compare(node.getVersion()) == VersionComparison.Newer$.MODULE$) {
+                node.setDataObjectAndVersion(e.dataObject, e.version);
+                ++applied;
+            }
+        }
+        return applied;
+    }
+
+    private static void index(ISPNode node, Map<SPNodeKey, ISPNode> nodes) {
+        nodes.put(node.getNodeKey(), node);
+        if (node instanceof ISPContainerNode) {
+            for (ISPNode child : ((ISPContainerNode) node).getChildren()) {
+                index(child, nodes);
+            }
+        }
+    }
+}
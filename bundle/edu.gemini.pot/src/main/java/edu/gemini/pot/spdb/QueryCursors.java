@@ -0,0 +1,290 @@
+package edu.gemini.pot.spdb;
+
+import edu.gemini.pot.sp.ISPNode;
+import edu.gemini.pot.sp.ISPObservation;
+import edu.gemini.pot.sp.ISPProgram;
+
+import java.io.Serializable;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the open query cursors.  Each cursor runs its
+ * {@link IDBStreamingQueryFunctor} on a thread of its own, collecting the
+ * results into batches and handing them to the client through a small
+ * bounded queue.  When the queue is full the query waits for the client to
+ * fetch a batch before it continues, so a slow client holds up only its own
+ * query and the results waiting on the server never exceed a few batches.
+ *
+ * <p>A cursor that the client stops fetching from without closing it is
+ * closed after {@link #IDLE_TIMEOUT_MS}.
+ */
+final class QueryCursors {
+    private static final Logger LOG = Logger.getLogger(QueryCursors.class.getName());
+
+    /** Number of results per batch if the client doesn't say. */
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** Largest batch size a client may ask for. */
+    static final int MAX_BATCH_SIZE = 10000;
+
+    /** Number of full batches a query may get ahead of its client. */
+    static final int BATCHES_AHEAD = 4;
+
+    /** Maximum number of cursors open at once. */
+    static final int MAX_CURSORS = 64;
+
+    /** How long a cursor may go without being fetched from before it is closed. */
+    static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+
+    // How long a fetch waits for a batch before returning an empty one, so
+    // that a single remote call never hangs on a slow query.
+    private static final long FETCH_WAIT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    // How often a blocked query checks whether its cursor has been closed,
+    // and a waiting fetch whether the query has finished.
+    private static final long OFFER_WAIT_MS = 500;
+
+    private final class Cursor<R extends Serializable> implements Runnable {
+        final long id;
+        final IDBStreamingQueryFunctor<R> functor;
+        final List<? extends ISPNode> roots;
+        final boolean observations;
+        final IDBDatabaseService database;
+        final Set<Principal> principals;
+        final int batchSize;
+
+        final BlockingQueue<List<R>> queue = new ArrayBlockingQueue<>(BATCHES_AHEAD);
+        List<R> pending = new ArrayList<>(); // only touched by the query thread
+
+        volatile boolean done;
+        volatile boolean closed;
+        volatile long lastAccess = System.currentTimeMillis();
+
+        Cursor(long id, IDBStreamingQueryFunctor<R> functor, List<? extends ISPNode> roots, boolean observations,
+               IDBDatabaseService database, Set<Principal> principals, int batchSize) {
+            this.id           = id;
+            this.functor      = functor;
+            this.roots        = roots;
+            this.observations = observations;
+            this.database     = database;
+            this.principals   = principals;
+            this.batchSize    = batchSize;
+        }
+
+        @Override public void run() {
+            WithPriority.exec(functor.getPriority(), () -> {
+                // Not timed by the functor logger since the time a query
+                // spends waiting on its client says nothing about the query.
+                LOG.fine("Starting query cursor " + id + " with functor " + functor.getClass().getName());
+                try {
+                    functor.init();
+                    scan: for (ISPNode root : roots) {
+                        if (observations) {
+                            for (ISPObservation obs : ((ISPProgram) root).getAllObservations()) {
+                                if (!step(obs)) break scan;
+                            }
+                        } else if (!step(root)) {
+                            break;
+                        }
+                    }
+                    if (!closed) {
+                        functor.finished();
+                        collect();
+                        if (!pending.isEmpty()) put(pending);
+                    }
+                } catch (InterruptedException ex) {
+                    closed = true;
+                } catch (Exception ex) {
+                    LOG.log(Level.WARNING, "Problem running functor: " + functor, ex);
+                    functor.setException(ex);
+                }
+                pending = null;
+                done    = true;
+                LOG.fine("Finished query cursor " + id);
+            });
+        }
+
+        // Executes the functor on one node, returning false if the query
+        // should stop.
+        private boolean step(ISPNode node) throws InterruptedException {
+            if (closed || functor.isDone()) return false;
+            functor.execute(database, node, principals);
+            collect();
+            while (pending.size() >= batchSize) {
+                final List<R> batch = new ArrayList<>(pending.subList(0, batchSize));
+                pending = new ArrayList<>(pending.subList(batchSize, pending.size()));
+                if (!put(batch)) return false;
+            }
+            return true;
+        }
+
+        private void collect() {
+            final List<R> rs = functor.drainResults();
+            if (rs != null) pending.addAll(rs);
+        }
+
+        // Waits for room in the queue, giving up if the cursor is closed.
+        private boolean put(List<R> batch) throws InterruptedException {
+            while (!closed) {
+                if (queue.offer(batch, OFFER_WAIT_MS, TimeUnit.MILLISECONDS)) return true;
+            }
+            return false;
+        }
+
+        synchronized DBQueryBatch<R> fetch() throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + FETCH_WAIT_MS;
+            lastAccess = deadline - FETCH_WAIT_MS;
+
+            // The query thread marks itself done only after queuing its last
+            // batch, so once done is seen the queue holds all that remains.
+            List<R> batch = null;
+            while ((batch == null) && !done && !closed) {
+                final long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) break;
+                batch = queue.poll(Math.min(wait, OFFER_WAIT_MS), TimeUnit.MILLISECONDS);
+            }
+            if (batch == null) batch = queue.poll();
+            if (batch == null) batch = Collections.emptyList();
+
+            final boolean last = done && queue.isEmpty();
+            lastAccess = System.currentTimeMillis();
+
+            if (last) {
+                remove(this);
+                return new DBQueryBatch<>(id, batch, true, functor);
+            }
+            return new DBQueryBatch<>(id, batch, false, null);
+        }
+
+        void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    private final ConcurrentMap<Long, Cursor<?>> _cursors = new ConcurrentHashMap<>();
+    private final AtomicLong _nextId = new AtomicLong(System.currentTimeMillis());
+    private final ExecutorService _exec;
+    private final ScheduledExecutorService _reaper;
+
+    QueryCursors() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        _exec = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "ODB Query Cursor " + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        _reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "ODB Query Cursor Reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        _reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                closeIdle();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Starts running the functor over the given roots (programs or nightly
+     * records), or over the observations they contain if
+     * <code>observations</code> is <code>true</code>, and returns the first
+     * batch of results.
+     */
+    <R extends Serializable> DBQueryBatch<R> open(IDBStreamingQueryFunctor<R> functor, List<? extends ISPNode> roots,
+                                                  boolean observations, int batchSize,
+                                                  IDBDatabaseService database, Set<Principal> principals)
+            throws InterruptedException {
+        if (functor == null) throw new IllegalArgumentException("functor is null");
+        if (batchSize <= 0) batchSize = DEFAULT_BATCH_SIZE;
+        batchSize = Math.min(batchSize, MAX_BATCH_SIZE);
+
+        if (_cursors.size() >= MAX_CURSORS) closeIdle();
+        if (_cursors.size() >= MAX_CURSORS) {
+            throw new IllegalStateException("Too many open query cursors (" + MAX_CURSORS + ")");
+        }
+
+        final long id = _nextId.incrementAndGet();
+        final Cursor<R> c = new Cursor<>(id, functor, roots, observations, database, principals, batchSize);
+        _cursors.put(id, c);
+        _exec.execute(c);
+        return c.fetch();
+    }
+
+    /**
+     * Gets the next batch of results from the cursor, waiting a while for one
+     * to become available.
+     *
+     * @throws IllegalArgumentException if there is no such cursor open for
+     * the given principals; it may have been closed for inactivity
+     */
+    @SuppressWarnings("unchecked")
+    <R extends Serializable> DBQueryBatch<R> next(long id, Set<Principal> principals) throws InterruptedException {
+        return ((Cursor<R>) lookup(id, principals)).fetch();
+    }
+
+    /**
+     * Closes the cursor, stopping its query.  Does nothing if there is no
+     * such cursor.
+     */
+    void close(long id, Set<Principal> principals) {
+        final Cursor<?> c = _cursors.get(id);
+        if ((c != null) && c.principals.equals(principals)) remove(c);
+    }
+
+    int getOpenCount() {
+        return _cursors.size();
+    }
+
+    private Cursor<?> lookup(long id, Set<Principal> principals) {
+        final Cursor<?> c = _cursors.get(id);
+        // Don't let one user read from another's cursor.
+        if ((c == null) || !c.principals.equals(principals)) {
+            throw new IllegalArgumentException("No open query cursor " + id);
+        }
+        return c;
+    }
+
+    private void remove(Cursor<?> c) {
+        _cursors.remove(c.id, c);
+        c.close();
+    }
+
+    private void closeIdle() {
+        final long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+        for (Cursor<?> c : _cursors.values()) {
+            if (c.lastAccess < cutoff) {
+                LOG.info("Closing idle query cursor " + c.id);
+                remove(c);
+            }
+        }
+    }
+
+    void shutdown() {
+        _reaper.shutdownNow();
+        for (Cursor<?> c : _cursors.values()) remove(c);
+        _exec.shutdownNow();
+    }
+}
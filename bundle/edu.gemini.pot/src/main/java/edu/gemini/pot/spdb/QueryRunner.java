@@ -2,9 +2,10 @@ package edu.gemini.pot.spdb;
 
 import edu.gemini.pot.sp.*;
 
+import java.io.Serializable;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
@@ -35,8 +36,13 @@ final class QueryRunner implements IDBQueryRunner {
      * Runs a query on the available observations.
      */
     public <T extends IDBQueryFunctor> T queryObservations(T queryFunctor) {
-        List<ISPObservation> lst = new LinkedList<>();
-        for (ISPProgram prog : _dataMan.getProgramManager().getPrograms()) {
+        List<ISPProgram> progs = _dataMan.getProgramManager().getPrograms();
+        if (queryFunctor instanceof IDBParallelQueryFunctor) {
+            return _doParallelQuery(progs, true, queryFunctor);
+        }
+
+        List<ISPObservation> lst = new ArrayList<>();
+        for (ISPProgram prog : progs) {
             lst.addAll(prog.getAllObservations());
         }
         return _doQuery(lst, queryFunctor);
@@ -47,6 +53,9 @@ final class QueryRunner implements IDBQueryRunner {
      */
     public <T extends IDBQueryFunctor> T queryPrograms(T queryFunctor) {
         List<ISPProgram> lst = _dataMan.getProgramManager().getPrograms();
+        if (queryFunctor instanceof IDBParallelQueryFunctor) {
+            return _doParallelQuery(lst, false, queryFunctor);
+        }
         return _doQuery(lst, queryFunctor);
     }
 
@@ -55,9 +64,43 @@ final class QueryRunner implements IDBQueryRunner {
      */
     public <T extends IDBQueryFunctor> T queryNightlyPlans(T queryFunctor) {
         List<ISPNightlyRecord> lst = _dataMan.getNightlyPlanManager().getPrograms();
+        if (queryFunctor instanceof IDBParallelQueryFunctor) {
+            return _doParallelQuery(lst, false, queryFunctor);
+        }
         return _doQuery(lst, queryFunctor);
     }
 
+    public <R extends Serializable> DBQueryBatch<R> openObservationCursor(IDBStreamingQueryFunctor<R> functor, int batchSize) {
+        return _openCursor(_dataMan.getProgramManager().getPrograms(), true, functor, batchSize);
+    }
+
+    public <R extends Serializable> DBQueryBatch<R> openProgramCursor(IDBStreamingQueryFunctor<R> functor, int batchSize) {
+        return _openCursor(_dataMan.getProgramManager().getPrograms(), false, functor, batchSize);
+    }
+
+    public <R extends Serializable> DBQueryBatch<R> nextBatch(long cursorId) {
+        try {
+            return _dataMan.getQueryCursors().next(cursorId, _principals);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public void closeCursor(long cursorId) {
+        _dataMan.getQueryCursors().close(cursorId, _principals);
+    }
+
+    private <R extends Serializable> DBQueryBatch<R> _openCursor(List<? extends ISPNode> rootList, boolean observations,
+                                                                 IDBStreamingQueryFunctor<R> functor, int batchSize) {
+        try {
+            return _dataMan.getQueryCursors().open(functor, rootList, observations, batchSize, _database, _principals);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
     public <T extends IDBFunctor> T execute(T functor, ISPNode node) throws SPNodeNotLocalException {
         return _database.execute(functor, node, _principals);
     }
@@ -85,4 +128,27 @@ final class QueryRunner implements IDBQueryRunner {
         return queryFunctor;
     }
 
+    /**
+     * Runs the query on the given programs (or their observations) across
+     * the database's query thread pool.  See
+     * <code>{@link IDBParallelQueryFunctor}</code>.
+     */
+    <T extends IDBQueryFunctor> T _doParallelQuery(final List<? extends ISPNode> rootList, final boolean observations, final T queryFunctor) {
+        final IDBParallelQueryFunctor parFunctor = (IDBParallelQueryFunctor) queryFunctor;
+        WithPriority.exec(queryFunctor.getPriority(), () -> {
+            FunctorLogger.Handback hb = _dataMan.functorLogger.logQueryStart(queryFunctor);
+            try {
+                parFunctor.init();
+                if (!parFunctor.isDone()) {
+                    _dataMan.getParallelQuery().run(parFunctor, rootList, observations, _database, _principals);
+                }
+                parFunctor.finished();
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "Problem running functor: " + queryFunctor, ex);
+                queryFunctor.setException(ex);
+            }
+            _dataMan.functorLogger.logQueryEnd(queryFunctor, hb);
+        });
+        return queryFunctor;
+    }
 }
@@ -7,9 +7,14 @@
 
 package edu.gemini.pot.spdb;
 
+import edu.gemini.pot.sp.ISPNode;
 import edu.gemini.pot.sp.ISPRootNode;
+import edu.gemini.pot.sp.SPNodeKeyLocks;
 import edu.gemini.spModel.core.SPProgramID;
 
+import java.util.Map;
+import java.util.Set;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -108,7 +113,7 @@ final class StorageManager<N extends ISPRootNode> implements ProgramEventListene
 
 
     private final ProgramManager<N> _progMan;
-    private final IDBPersister _persister;
+    private final StoragePipeline<N> _pipeline;
     private final DirtyProgramListener<N> _dirty;
     private final StorageWorker _storeWorker;
 
@@ -117,9 +122,9 @@ final class StorageManager<N extends ISPRootNode> implements ProgramEventListene
      * Creates the <code>StorageManager</code> with the <code>FileManager</code>
      * used to store modified/added programs.
      */
-    StorageManager(ProgramManager<N> pm, IDBPersister persister)  {
+    StorageManager(ProgramManager<N> pm, IDBPersister persister, String name)  {
         _progMan   = pm;
-        _persister = persister;
+        _pipeline  = new StoragePipeline<N>(persister, name);
         _dirty     = new DirtyProgramListener<N>();
 
         pm.addListener(this);
@@ -147,6 +152,8 @@ final class StorageManager<N extends ISPRootNode> implements ProgramEventListene
 
         // Write out any last modifications.
         _storeDirtyPrograms();
+        _awaitIdle();
+        _pipeline.shutdown();
     }
 
     /**
@@ -172,17 +179,26 @@ final class StorageManager<N extends ISPRootNode> implements ProgramEventListene
      */
     public void programAdded(ProgramEvent<N> pme) {
         final N prog = pme.getNewProgram();
-        try {
-            _persister.store(prog);
-            prog.addCompositeChangeListener(_dirty);
-        } catch (Exception ex) {
-            LOG.log(Level.WARNING, "Program adding program", ex);
-        }
+        _pipeline.replace(prog);
+        prog.addCompositeChangeListener(_dirty);
+        _awaitStored(prog);
     }
 
+    /**
+     * Moves monitoring for changes from the old program to the new one and
+     * stores the new program in full, superseding any outstanding work for
+     * the old one.  The stored file is simply overwritten, never removed, and
+     * nothing waits on storage since the caller may hold the program's write
+     * lock while an earlier store of the program waits for its read lock.
+     */
     public void programReplaced(ProgramEvent<N> pme) {
-        programRemoved(pme);
-        programAdded(pme);
+        final N oldProg = pme.getOldProgram();
+        final N newProg = pme.getNewProgram();
+        oldProg.removeCompositeChangeListener(_dirty);
+        _dirty.removeProgram(oldProg);
+        _pipeline.replace(newProg);
+        newProg.addCompositeChangeListener(_dirty);
+        _awaitStored(newProg);
     }
 
     /**
@@ -194,38 +210,66 @@ final class StorageManager<N extends ISPRootNode> implements ProgramEventListene
         N prog = pme.getOldProgram();
         prog.removeCompositeChangeListener(_dirty);
         _dirty.removeProgram(prog);
-        _persister.remove(prog.getNodeKey());
+        _pipeline.remove(prog);
     }
 
     /**
-     * Stores all the modified programs, if any.
+     * Queues all the modified programs, if any, to be stored.
      */
     private void _storeDirtyPrograms() {
-        for (N n : _dirty.getDirtyPrograms()) {
-            try {
-                _persister.store(n);
-            } catch (Exception ex) {
-                log(n, ex);
-            }
+        for (Map.Entry<N, Set<ISPNode>> me : _dirty.getDirtyEdits().entrySet()) {
+            _pipeline.submit(me.getKey(), me.getValue());
+        }
+    }
+
+    /**
+     * Waits for the program to be stored, unless this thread holds the
+     * program's write lock.  In that case the store can't proceed until the
+     * lock is released, so it is left queued.  This happens when a program
+     * is added or replaced under its lock; {@link #checkpoint(ISPRootNode)}
+     * refuses to be called that way instead.
+     */
+    private void _awaitStored(N prog) {
+        if (SPNodeKeyLocks.instance.isWriteLockHeld(prog.getProgramKey())) return;
+        try {
+            _pipeline.awaitStored(prog);
+        } catch (InterruptedException ex) {
+            LOG.log(Level.WARNING, "Interrupted while storing program " + getId(prog), ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void _awaitIdle() {
+        try {
+            _pipeline.awaitIdle();
+        } catch (InterruptedException ex) {
+            LOG.log(Level.WARNING, "Interrupted while storing programs", ex);
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
      * Checkpoints the given program.  Any outstanding modifications to the
      * program are stored.
+     *
+     * @throws IllegalStateException if the calling thread holds the
+     * program's write lock, since the store can't read the program until the
+     * lock is released
      */
     void checkpoint(N prog) {
-        _dirty.removeProgram(prog);
-
-        try {
-            _persister.store(prog);
-        } catch (Exception ex) {
-            log(prog, ex);
+        if (SPNodeKeyLocks.instance.isWriteLockHeld(prog.getProgramKey())) {
+            throw new IllegalStateException("Can't checkpoint program " + getId(prog) + " while holding its write lock");
         }
+        _dirty.removeProgram(prog);
+        _pipeline.submit(prog, null);
+        _awaitStored(prog);
     }
 
-    private static void log(ISPRootNode prog, Exception ex) {
-        LOG.log(Level.SEVERE, "Couldn't store program " + getId(prog), ex);
+    /**
+     * Gets metrics describing the work done storing programs.
+     */
+    StorageMetrics getMetrics() {
+        return _pipeline.getMetrics();
     }
 
     private static String getId(ISPRootNode mab) {
@@ -234,5 +278,8 @@ final class StorageManager<N extends ISPRootNode> implements ProgramEventListene
     }
 
     /** Checkpoints all the outstanding modifications. */
-    void checkpoint() { _storeDirtyPrograms(); }
+    void checkpoint() {
+        _storeDirtyPrograms();
+        _awaitIdle();
+    }
 }
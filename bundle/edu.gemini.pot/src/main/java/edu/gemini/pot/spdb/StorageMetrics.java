@@ -0,0 +1,108 @@
+package edu.gemini.pot.spdb;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable summary of the work done by the database storage pipeline,
+ * obtained from {@link IDBAdmin#getStorageMetrics()}.
+ */
+public final class StorageMetrics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Storage statistics for a single program or nightly record.
+     */
+    public static final class ProgramStats implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long storeCount;
+        private final long bytesWritten;
+        private final long lastLatencyMs;
+        private final long maxLatencyMs;
+
+        public ProgramStats(long storeCount, long bytesWritten, long lastLatencyMs, long maxLatencyMs) {
+            this.storeCount    = storeCount;
+            this.bytesWritten  = bytesWritten;
+            this.lastLatencyMs = lastLatencyMs;
+            this.maxLatencyMs  = maxLatencyMs;
+        }
+
+        /** Number of times the program has been stored. */
+        public long getStoreCount() { return storeCount; }
+
+        /** Total bytes written for the program. */
+        public long getBytesWritten() { return bytesWritten; }
+
+        /** Time taken by the most recent store, in milliseconds. */
+        public long getLastLatencyMs() { return lastLatencyMs; }
+
+        /** Longest time taken by any store, in milliseconds. */
+        public long getMaxLatencyMs() { return maxLatencyMs; }
+
+        ProgramStats plus(long bytes, long latencyMs) {
+            return new ProgramStats(storeCount + 1, bytesWritten + bytes, latencyMs, Math.max(maxLatencyMs, latencyMs));
+        }
+    }
+
+    public static final StorageMetrics EMPTY =
+        new StorageMetrics(0, 0, 0, 0, 0, 0, Collections.<String, ProgramStats>emptyMap());
+
+    private final int queueDepth;
+    private final long storeCount;
+    private final long failureCount;
+    private final long bytesWritten;
+    private final long totalLatencyMs;
+    private final long maxLatencyMs;
+    private final Map<String, ProgramStats> programs;
+
+    public StorageMetrics(int queueDepth, long storeCount, long failureCount, long bytesWritten,
+                          long totalLatencyMs, long maxLatencyMs, Map<String, ProgramStats> programs) {
+        this.queueDepth     = queueDepth;
+        this.storeCount     = storeCount;
+        this.failureCount   = failureCount;
+        this.bytesWritten   = bytesWritten;
+        this.totalLatencyMs = totalLatencyMs;
+        this.maxLatencyMs   = maxLatencyMs;
+        this.programs       = Collections.unmodifiableMap(new TreeMap<>(programs));
+    }
+
+    /** Number of programs waiting to be stored. */
+    public int getQueueDepth() { return queueDepth; }
+
+    /** Number of completed stores. */
+    public long getStoreCount() { return storeCount; }
+
+    /** Number of stores that failed. */
+    public long getFailureCount() { return failureCount; }
+
+    /** Total bytes written. */
+    public long getBytesWritten() { return bytesWritten; }
+
+    /** Mean time taken to store a program, in milliseconds. */
+    public double getMeanLatencyMs() {
+        return (storeCount == 0) ? 0.0 : ((double) totalLatencyMs) / storeCount;
+    }
+
+    /** Longest time taken to store a program, in milliseconds. */
+    public long getMaxLatencyMs() { return maxLatencyMs; }
+
+    /** Statistics per program, keyed by program id (or key if no id). */
+    public Map<String, ProgramStats> getPrograms() { return programs; }
+
+    /** Combines these metrics with those from another pipeline. */
+    public StorageMetrics plus(StorageMetrics that) {
+        final Map<String, ProgramStats> m = new TreeMap<>(programs);
+        m.putAll(that.programs);
+        return new StorageMetrics(queueDepth + that.queueDepth, storeCount + that.storeCount,
+                failureCount + that.failureCount, bytesWritten + that.bytesWritten,
+                totalLatencyMs + that.totalLatencyMs, Math.max(maxLatencyMs, that.maxLatencyMs), m);
+    }
+
+    @Override public String toString() {
+        return String.format("queue=%d, stores=%d, failures=%d, bytes=%d, mean=%.1f ms, max=%d ms",
+                queueDepth, storeCount, failureCount, bytesWritten, getMeanLatencyMs(), maxLatencyMs);
+    }
+}
@@ -0,0 +1,278 @@
+package edu.gemini.pot.spdb;
+
+import edu.gemini.pot.sp.ISPNode;
+import edu.gemini.pot.sp.ISPRootNode;
+import edu.gemini.pot.sp.SPNodeKey;
+import edu.gemini.spModel.core.SPProgramID;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores modified programs on a pool of worker threads so that one slow
+ * program store doesn't hold up all the others.  The persister only holds a
+ * program's lock while copying it in memory, so writers to a program are
+ * not blocked by its serialization or the disk I/O either.
+ *
+ * <p>At most one store of any given program is in progress at a time.  Work
+ * submitted for a program that is already waiting or being stored is merged
+ * with the outstanding work and done once.  Work is tracked by program key,
+ * so when a program is replaced the store of the replacement always follows
+ * any store of the old program that is still in progress, and none of the
+ * methods that may be called with a program lock held wait for a store.
+ * Removing a program's files counts as work in progress for its key, and is
+ * done outside of this object's lock.
+ */
+final class StoragePipeline<N extends ISPRootNode> {
+    private static final Logger LOG = Logger.getLogger(StoragePipeline.class.getName());
+
+    /**
+     * System property that can be used to set the number of storage threads.
+     */
+    public static final String THREADS_PROP = StoragePipeline.class.getName() + ".threads";
+
+    private static final int DEFAULT_THREADS = 2;
+
+    // Outstanding work for a program: the edited nodes, or null if the whole
+    // program must be stored.
+    private static final class Work<N> {
+        final N prog;
+        final Set<ISPNode> edited;
+
+        Work(N prog, Set<ISPNode> edited) {
+            this.prog   = prog;
+            this.edited = edited;
+        }
+    }
+
+    private final IDBPersister _persister;
+    private final ExecutorService _pool;
+
+    // Work waiting for each program.  A program with an entry here that is
+    // not in _inFlight has a task queued for it.
+    private final Map<SPNodeKey, Work<N>> _pending = new HashMap<SPNodeKey, Work<N>>();
+    private final Set<SPNodeKey> _inFlight = new HashSet<SPNodeKey>();
+
+    // The program instance stored for each key.  Work for any other instance
+    // (i.e., a program that has since been replaced) is ignored.
+    private final Map<SPNodeKey, N> _current = new HashMap<SPNodeKey, N>();
+
+    // Programs removed while being stored, whose files are removed once the
+    // store finishes.
+    private final Set<SPNodeKey> _removeAfterStore = new HashSet<SPNodeKey>();
+
+    // Metrics, guarded by "this".
+    private long _storeCount;
+    private long _failureCount;
+    private long _bytesWritten;
+    private long _totalLatencyMs;
+    private long _maxLatencyMs;
+    private final Map<String, StorageMetrics.ProgramStats> _programStats = new HashMap<String, StorageMetrics.ProgramStats>();
+
+    StoragePipeline(IDBPersister persister, String name) {
+        this(persister, name, threadCount());
+    }
+
+    StoragePipeline(IDBPersister persister, final String name, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be > 0");
+        _persister = persister;
+        _pool      = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, name + " " + count.incrementAndGet());
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private static int threadCount() {
+        final String propStr = System.getProperty(THREADS_PROP);
+        if (propStr == null) return DEFAULT_THREADS;
+        try {
+            final int n = Integer.parseInt(propStr.trim());
+            if (n > 0) return n;
+            LOG.warning("Value of property '" + THREADS_PROP + "' must be > 0, using " + DEFAULT_THREADS);
+        } catch (NumberFormatException ex) {
+            LOG.warning("Could not parse value of property '" + THREADS_PROP + "': " + propStr);
+        }
+        return DEFAULT_THREADS;
+    }
+
+    /**
+     * Queues the program to be stored.
+     *
+     * @param edited nodes whose data objects were edited, or <code>null</code>
+     * to store the entire program
+     */
+    synchronized void submit(N prog, Set<ISPNode> edited) {
+        final SPNodeKey key = prog.getNodeKey();
+        final N cur = _current.get(key);
+        if ((cur != null) && (cur != prog)) return; // replaced in the meantime
+
+        final Work<N> w = _pending.get(key);
+        if (w == null) {
+            _pending.put(key, new Work<N>(prog, (edited == null) ? null : new HashSet<ISPNode>(edited)));
+            if (!_inFlight.contains(key)) _schedule(key);
+        } else if ((w.edited != null) && (edited != null)) {
+            w.edited.addAll(edited);
+        } else {
+            _pending.put(key, new Work<N>(prog, null));
+        }
+    }
+
+    /**
+     * Makes the given program the one stored for its key and queues it to be
+     * stored in full.  Any outstanding work for a program it replaces is
+     * superseded.  If a store of the old program is in progress, it is
+     * allowed to finish and is followed by the store of the new one.  Never
+     * waits, so it may be called with the program's lock held.
+     */
+    synchronized void replace(N prog) {
+        final SPNodeKey key = prog.getNodeKey();
+        _current.put(key, prog);
+        _removeAfterStore.remove(key);
+
+        final boolean waiting = _pending.containsKey(key);
+        _pending.put(key, new Work<N>(prog, null));
+        if (!waiting && !_inFlight.contains(key)) _schedule(key);
+    }
+
+    // Must be called holding the lock.
+    private void _schedule(final SPNodeKey key) {
+        _pool.execute(new Runnable() {
+            @Override public void run() {
+                _store(key);
+            }
+        });
+    }
+
+    private void _store(SPNodeKey key) {
+        final Work<N> w;
+        synchronized (this) {
+            w = _pending.remove(key);
+            if (w == null) return;
+            _inFlight.add(key);
+        }
+
+        final long start = System.currentTimeMillis();
+        long bytes = 0;
+        boolean ok = false;
+        try {
+            bytes = (w.edited == null) ? _persister.store(w.prog) : _persister.storeEdits(w.prog, w.edited);
+            ok    = true;
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "Couldn't store program " + _getId(w.prog), ex);
+        } finally {
+            final long latency = System.currentTimeMillis() - start;
+            final boolean remove;
+            synchronized (this) {
+                remove = _removeAfterStore.remove(key);
+                if (!remove) {
+                    _record(w.prog, ok, bytes, latency);
+                    _done(key);
+                }
+            }
+            if (remove) _removeFiles(key);
+        }
+    }
+
+    /**
+     * Removes the program's files.  The key must be in flight, so that no
+     * store of a replacement program starts until the removal is done.
+     */
+    private void _removeFiles(SPNodeKey key) {
+        try {
+            _persister.remove(key);
+        } finally {
+            synchronized (this) {
+                _done(key);
+            }
+        }
+    }
+
+    // Must be called holding the lock.
+    private void _done(SPNodeKey key) {
+        _inFlight.remove(key);
+        if (_pending.containsKey(key)) _schedule(key);
+        notifyAll();
+    }
+
+    // Must be called holding the lock.
+    private void _record(N prog, boolean ok, long bytes, long latencyMs) {
+        if (!ok) {
+            ++_failureCount;
+            return;
+        }
+        ++_storeCount;
+        _bytesWritten   += bytes;
+        _totalLatencyMs += latencyMs;
+        _maxLatencyMs    = Math.max(_maxLatencyMs, latencyMs);
+
+        final String id = _getId(prog);
+        final StorageMetrics.ProgramStats ps = _programStats.get(id);
+        _programStats.put(id, (ps == null) ? new StorageMetrics.ProgramStats(1, bytes, latencyMs, latencyMs) : ps.plus(bytes, latencyMs));
+    }
+
+    private static String _getId(ISPRootNode prog) {
+        final SPProgramID progId = prog.getProgramID();
+        return (progId == null) ? prog.getProgramKey().toString() : progId.toString();
+    }
+
+    /**
+     * Waits until the given program has no outstanding work.
+     */
+    synchronized void awaitStored(N prog) throws InterruptedException {
+        final SPNodeKey key = prog.getNodeKey();
+        while (_pending.containsKey(key) || _inFlight.contains(key)) wait();
+    }
+
+    /**
+     * Waits until all outstanding work is done.
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (!_pending.isEmpty() || !_inFlight.isEmpty()) wait();
+    }
+
+    /**
+     * Drops any outstanding work for the program and removes it from storage.
+     * If a store of the program is in progress, it is removed from storage
+     * once the store finishes.  Never waits for a store.
+     */
+    void remove(N prog) {
+        final SPNodeKey key = prog.getNodeKey();
+        synchronized (this) {
+            _pending.remove(key);
+            _current.remove(key);
+            _programStats.remove(_getId(prog));
+            if (_inFlight.contains(key)) {
+                _removeAfterStore.add(key);
+                return;
+            }
+            _inFlight.add(key);
+        }
+        _removeFiles(key);
+    }
+
+    synchronized StorageMetrics getMetrics() {
+        return new StorageMetrics(_pending.size(), _storeCount, _failureCount, _bytesWritten,
+                _totalLatencyMs, _maxLatencyMs, _programStats);
+    }
+
+    /**
+     * Stops the worker threads.  Callers should first wait for outstanding
+     * work with {@link #awaitIdle}.
+     */
+    void shutdown() {
+        _pool.shutdown();
+    }
+}
@@ -44,7 +44,11 @@ public final class ConfigBridge {
     }
 
     public static ConfigSequence extractSequence(ISPObservation obs, Map<String, Object> options, ConfigValMap map, boolean filterMeta) {
-       return mapSequence(calculateSequence(obs, options, filterMeta), map);
+        // make sure that important default options are added (e.g. smartgcal)
+        // since they are part of what identifies the cached sequence
+        final Map<String, Object> opts = ObservationCB.getDefaultSequenceOptions(options);
+        final ConfigSequence seq = ConfigSequenceCache.get(obs, opts, filterMeta, () -> calculateSequence(obs, opts, filterMeta));
+        return mapSequence(seq, map);
     }
 
     private static ConfigSequence mapSequence(ConfigSequence sequence, ConfigValMap map) {
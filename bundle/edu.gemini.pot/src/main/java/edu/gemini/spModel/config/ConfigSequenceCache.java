@@ -0,0 +1,224 @@
+package edu.gemini.spModel.config;
+
+import edu.gemini.pot.sp.ISPContainerNode;
+import edu.gemini.pot.sp.ISPEventMonitor;
+import edu.gemini.pot.sp.ISPNode;
+import edu.gemini.pot.sp.ISPObservation;
+import edu.gemini.pot.sp.ISPProgram;
+import edu.gemini.pot.sp.SPCompositeChange;
+import edu.gemini.pot.sp.SPNodeKey;
+import edu.gemini.pot.sp.SPStructureChange;
+import edu.gemini.pot.sp.version.LifespanId;
+import edu.gemini.shared.util.VersionVector;
+import edu.gemini.spModel.config2.ColumnarConfigSequence;
+import edu.gemini.spModel.config2.ConfigSequence;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the {@link ConfigSequence} generated for an observation by
+ * {@link ConfigBridge}, so that the many callers that ask for the sequence of
+ * an unchanged observation (planned time, the sequence view, the phase 2
+ * checker, etc.) don't each have to run the config builders again.
+ *
+ * <p>The cache is kept as transient client data on the observation itself,
+ * so it goes away with the observation.  It is cleared whenever a change
+ * event is received from the observation or any of its descendants.  Since
+ * events are not sent for every update (for example while a program is being
+ * merged), each cached sequence is also stamped with the version of every
+ * node in the observation when it was generated and is only used if those
+ * versions are unchanged.  The sequence also depends on the program (queue
+ * band, GSA proprietary period) and the observation id, which don't send
+ * events to the observation, so the program node's version and the
+ * observation id are part of the stamp as well.  Sequences are stored in the
+ * compact
+ * {@link ColumnarConfigSequence} form and held with soft references so that
+ * they can be reclaimed if memory runs short.
+ *
+ * <p>The cache can be turned off by setting the system property named by
+ * {@link #ENABLED_PROP} to <code>false</code>.
+ */
+public final class ConfigSequenceCache implements ISPEventMonitor {
+
+    /**
+     * System property that can be used to disable the cache.
+     */
+    public static final String ENABLED_PROP = ConfigSequenceCache.class.getName() + ".enabled";
+
+    private static final String CLIENT_DATA_KEY = "ConfigSequenceCache";
+
+    private static volatile boolean enabled = Boolean.parseBoolean(System.getProperty(ENABLED_PROP, "true"));
+
+    private static final AtomicLong hits   = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    // Identifies a particular way of generating the sequence.  The options
+    // include the calibration provider, which is replaced rather than updated
+    // when new smart gcal tables arrive.
+    private static final class Variant {
+        final Map<String, Object> options;
+        final boolean filterMeta;
+
+        Variant(Map<String, Object> options, boolean filterMeta) {
+            this.options    = new HashMap<>(options);
+            this.filterMeta = filterMeta;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Variant)) return false;
+            final Variant that = (Variant) o;
+            return (filterMeta == that.filterMeta) && options.equals(that.options);
+        }
+
+        @Override public int hashCode() {
+            return 31 * options.hashCode() + (filterMeta ? 1 : 0);
+        }
+    }
+
+    private static final class Entry {
+        final List<Object> versions;
+        final SoftReference<ConfigSequence> sequence;
+
+        Entry(List<Object> versions, ConfigSequence sequence) {
+            this.versions = versions;
+            this.sequence = new SoftReference<>(sequence);
+        }
+    }
+
+    private final Map<Variant, Entry> _entries = new HashMap<>();
+
+    private ConfigSequenceCache() {
+    }
+
+    /**
+     * Returns <code>true</code> if sequences are being cached.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns sequence caching on or off.
+     */
+    public static void setEnabled(boolean e) {
+        enabled = e;
+    }
+
+    /**
+     * Number of times a sequence was found in the cache.
+     */
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of times a sequence had to be generated because it was not in
+     * the cache or was out of date.
+     */
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    public static void resetCounts() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Gets the sequence cached for the observation with the given options,
+     * or else generates it with the given function and caches the result.
+     * The sequence returned is the caller's to modify.
+     *
+     * @param options sequence options, including the calibration provider
+     * (see {@link ObservationCB#getDefaultSequenceOptions})
+     */
+    static ConfigSequence get(ISPObservation obs, Map<String, Object> options, boolean filterMeta, Generator gen) {
+        if (!enabled) return gen.generate();
+
+        final Variant v         = new Variant(options, filterMeta);
+        final List<Object> vers = versions(obs);
+        final ConfigSequenceCache cache = lookup(obs);
+
+        final ConfigSequence cached = cache.get(v, vers);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return new ColumnarConfigSequence(cached);
+        }
+
+        misses.incrementAndGet();
+        final ColumnarConfigSequence res = new ColumnarConfigSequence(gen.generate());
+
+        // If the observation changed while the sequence was being generated,
+        // the versions recorded here are out of date and the entry will
+        // simply never be used.
+        cache.put(v, vers, res);
+        return new ColumnarConfigSequence(res);
+    }
+
+    /**
+     * Generates a sequence on a cache miss.
+     */
+    interface Generator {
+        ConfigSequence generate();
+    }
+
+    // Two threads may race to create the cache, in which case one of them is
+    // simply dropped.
+    private static ConfigSequenceCache lookup(ISPObservation obs) {
+        ConfigSequenceCache cache = (ConfigSequenceCache) obs.getTransientClientData(CLIENT_DATA_KEY);
+        if (cache == null) {
+            cache = new ConfigSequenceCache();
+            obs.putTransientClientData(CLIENT_DATA_KEY, cache);
+        }
+        return cache;
+    }
+
+    // Lists the observation id, the version of the program node and the key
+    // and version of each node in the observation, in tree order, so that any
+    // edit, addition, removal or reordering shows up as a difference.
+    private static List<Object> versions(ISPObservation obs) {
+        final List<Object> res = new ArrayList<>();
+        res.add(obs.getObservationID());
+        final ISPProgram prog = obs.getProgram();
+        if (prog != null) res.add(prog.getVersion());
+        addVersions(obs, res);
+        return res;
+    }
+
+    private static void addVersions(ISPNode node, List<Object> res) {
+        final SPNodeKey key = node.getNodeKey();
+        final VersionVector<LifespanId, Integer> vv = node.getVersion();
+        res.add(key);
+        res.add(vv);
+        if (node instanceof ISPContainerNode) {
+            for (ISPNode child : ((ISPContainerNode) node).getChildren()) addVersions(child, res);
+        }
+    }
+
+    private synchronized ConfigSequence get(Variant v, List<Object> versions) {
+        final Entry e = _entries.get(v);
+        if ((e == null) || !e.versions.equals(versions)) return null;
+        return e.sequence.get();
+    }
+
+    private synchronized void put(Variant v, List<Object> versions, ConfigSequence seq) {
+        _entries.put(v, new Entry(versions, seq));
+    }
+
+    private synchronized void clear() {
+        _entries.clear();
+    }
+
+    public void structureChanged(SPStructureChange change) {
+        clear();
+    }
+
+    public void propertyChanged(SPCompositeChange change) {
+        clear();
+    }
+}
@@ -0,0 +1,440 @@
+package edu.gemini.spModel.config2;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A {@link ConfigSequence} that stores its items by column rather than by
+ * step.  Each distinct {@link ItemKey} appears once, along with the values it
+ * takes over the sequence, run-length encoded so that a value which doesn't
+ * change from one step to the next is stored only once.  A long sequence in
+ * which most items stay the same from step to step therefore takes a small
+ * fraction of the memory of the step-by-step representation, in which each
+ * step holds its own map of every item.
+ *
+ * <p>Like {@link ConfigSequence}, each step is kept as it was given until the
+ * sequence is compacted (by {@link #getCompactView}, {@link #compactIterator}
+ * or serialization).  An item given again with the value it already has is
+ * recorded in a bit set of its column, so that editing an earlier step later
+ * does not change it.
+ *
+ * <p>Appending steps, looking up values and producing the compact view
+ * work directly on the columns.  Inserting, replacing or removing a step in
+ * the middle of the sequence rebuilds the columns, so this class is best
+ * suited to sequences that are built once and then read.
+ *
+ * <p>Items with <code>null</code> values are ignored.
+ *
+ * <p><b>Note that this class is not mt-safe</b>, though it may be read by
+ * several threads at once as long as none of them modifies it.
+ */
+public final class ColumnarConfigSequence extends ConfigSequence {
+    private static final long serialVersionUID = 1L;
+
+    // The values of one item at each step of the sequence.  Run i covers the
+    // steps from starts[i] up to starts[i+1] (or the end of the sequence) and
+    // has value values[i], which is null for the steps before the item is
+    // introduced.  Repeats holds the steps at which the value in effect was
+    // given again, if any.
+    private static final class Column implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final ItemKey key;
+        int[] starts;
+        Object[] values;
+        int runs;
+        BitSet repeats;
+
+        Column(ItemKey key) {
+            this.key    = key;
+            this.starts = new int[2];
+            this.values = new Object[2];
+        }
+
+        Column(Column that) {
+            this.key    = that.key;
+            this.starts = Arrays.copyOf(that.starts, Math.max(2, that.runs));
+            this.values = Arrays.copyOf(that.values, Math.max(2, that.runs));
+            this.runs   = that.runs;
+            this.repeats = (that.repeats == null) ? null : (BitSet) that.repeats.clone();
+        }
+
+        // Sets the value from this step on.  Steps are set in order.
+        void set(int step, Object value) {
+            if ((runs > 0) && value.equals(values[runs - 1])) {
+                if (repeats == null) repeats = new BitSet();
+                repeats.set(step);
+                return;
+            }
+            if (runs == starts.length) {
+                starts = Arrays.copyOf(starts, runs * 2);
+                values = Arrays.copyOf(values, runs * 2);
+            }
+            starts[runs] = step;
+            values[runs] = value;
+            ++runs;
+        }
+
+        Object get(int step) {
+            int lo = 0, hi = runs - 1;
+            while (lo < hi) {
+                final int mid = (lo + hi + 1) >>> 1;
+                if (starts[mid] <= step) lo = mid; else hi = mid - 1;
+            }
+            return values[lo];
+        }
+
+        // Value introduced at exactly this step, if any.
+        Object changeAt(int step) {
+            final int i = Arrays.binarySearch(starts, 0, runs, step);
+            return (i < 0) ? null : values[i];
+        }
+
+        // Value given at exactly this step, if any, whether or not it changed.
+        Object storedAt(int step) {
+            final Object v = changeAt(step);
+            if (v != null) return v;
+            return ((repeats != null) && repeats.get(step)) ? get(step) : null;
+        }
+
+        int end(int run, int size) {
+            return (run + 1 < runs) ? starts[run + 1] : size;
+        }
+    }
+
+    private final List<Column> _columns = new ArrayList<>();
+    private transient Map<ItemKey, Column> _index = new HashMap<>();
+    private int _size;
+
+    /**
+     * Constructs an empty sequence.
+     */
+    public ColumnarConfigSequence() {
+    }
+
+    /**
+     * Constructs a sequence containing the given {@link Config}s in the given
+     * order, each of which contains the changes to apply at that step.
+     */
+    public ColumnarConfigSequence(Config[] configs) {
+        for (Config c : configs) addStep(c);
+    }
+
+    /**
+     * Creates a sequence containing the same steps as the given sequence.
+     */
+    public ColumnarConfigSequence(ConfigSequence copy) {
+        if (copy instanceof ColumnarConfigSequence) {
+            final ColumnarConfigSequence that = (ColumnarConfigSequence) copy;
+            for (Column c : that._columns) _addColumn(new Column(c));
+            _size = that._size;
+        } else {
+            for (Config c : copy.getStoredSteps()) addStep(c);
+        }
+    }
+
+    private void _addColumn(Column c) {
+        _columns.add(c);
+        _index.put(c.key, c);
+    }
+
+    private Column _column(ItemKey key, int step) {
+        Column c = _index.get(key);
+        if (c == null) {
+            c = new Column(key);
+            if (step > 0) {
+                // Not present in the earlier steps.
+                c.starts[0] = 0;
+                c.values[0] = null;
+                c.runs      = 1;
+            }
+            _addColumn(c);
+        }
+        return c;
+    }
+
+    // Fills in a Config with the values at the given step.
+    private Config _config(int step) {
+        final Config res = new DefaultConfig();
+        for (Column c : _columns) {
+            final Object v = c.get(step);
+            if (v != null) res.putItem(c.key, v);
+        }
+        return res;
+    }
+
+    private List<Config> _compactList() {
+        final List<Config> res = new ArrayList<>(_size);
+        for (int i = 0; i < _size; ++i) res.add(_compactConfig(i));
+        return res;
+    }
+
+    // The steps as they were given.
+    private List<Config> _storedList() {
+        final List<Config> res = new ArrayList<>(_size);
+        for (int i = 0; i < _size; ++i) {
+            final Config conf = new DefaultConfig();
+            for (Column c : _columns) {
+                final Object v = c.storedAt(i);
+                if (v != null) conf.putItem(c.key, v);
+            }
+            res.add(conf);
+        }
+        return res;
+    }
+
+    // Forgets the items that were given again with the value they already
+    // had, as ConfigSequence does when it compacts.
+    private void _compact() {
+        for (Column c : _columns) c.repeats = null;
+    }
+
+    @Override
+    List<Config> getStoredSteps() {
+        return _storedList();
+    }
+
+    @Override
+    boolean isStoredCompact() {
+        for (Column c : _columns) if (c.repeats != null) return false;
+        return true;
+    }
+
+    private Config _compactConfig(int step) {
+        final Config res = new DefaultConfig();
+        for (Column c : _columns) {
+            final Object v = c.changeAt(step);
+            if (v != null) res.putItem(c.key, v);
+        }
+        return res;
+    }
+
+    // Replaces the contents with the given steps of changes.
+    private void _rebuild(List<Config> steps) {
+        _clear();
+        for (Config c : steps) addStep(c);
+    }
+
+    private void _clear() {
+        _columns.clear();
+        _index.clear();
+        _size = 0;
+    }
+
+    @Override
+    public Config[] getAllSteps() {
+        final Config[] res = new Config[_size];
+        for (int i = 0; i < _size; ++i) res[i] = new DefaultConfig();
+        for (Column c : _columns) {
+            for (int r = 0; r < c.runs; ++r) {
+                final Object v = c.values[r];
+                if (v == null) continue;
+                for (int s = c.starts[r], e = c.end(r, _size); s < e; ++s) res[s].putItem(c.key, v);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public ConfigSequence filter(Predicate p) {
+        final ColumnarConfigSequence res = new ColumnarConfigSequence();
+        for (int i = 0; i < _size; ++i) {
+            final Config c = _config(i);
+            if (p.matches(c)) res.addStep(c);
+        }
+        return res;
+    }
+
+    @Override
+    public Config[] getCompactView() {
+        _compact();
+        return _compactList().toArray(DefaultConfig.EMPTY_ARRAY);
+    }
+
+    @Override
+    public Config getStep(int step) {
+        if ((step < 0) || (step >= _size)) throw new IndexOutOfBoundsException("step " + step + ", size " + _size);
+        return _config(step);
+    }
+
+    @Override
+    public Object getItemValue(int step, ItemKey key) {
+        if ((step < 0) || (step >= _size)) throw new IndexOutOfBoundsException("step " + step + ", size " + _size);
+        final Column c = _index.get(key);
+        return (c == null) ? null : c.get(step);
+    }
+
+    @Override
+    public Object[] getItemValueAtEachStep(ItemKey key) {
+        final Object[] res = new Object[_size];
+        final Column c = _index.get(key);
+        if (c == null) return res;
+        for (int r = 0; r < c.runs; ++r) {
+            Arrays.fill(res, c.starts[r], c.end(r, _size), c.values[r]);
+        }
+        return res;
+    }
+
+    @Override
+    public Object[] getDistinctItemValues(ItemKey key) {
+        if (_size == 0) return new Object[0];
+        final Column c = _index.get(key);
+        if (c == null) return new Object[] { null };
+        final Set<Object> s = new HashSet<>();
+        for (int r = 0; r < c.runs; ++r) s.add(c.values[r]);
+        return s.toArray(new Object[s.size()]);
+    }
+
+    @Override
+    public ItemKey[] getIteratedKeys() {
+        final List<ItemKey> res = new ArrayList<>();
+        for (Column c : _columns) if (c.runs > 1) res.add(c.key);
+        return res.toArray(ItemKey.EMPTY_ARRAY);
+    }
+
+    @Override
+    public ItemKey[] getStaticKeys() {
+        final List<ItemKey> res = new ArrayList<>();
+        for (Column c : _columns) if ((c.runs == 1) && (c.values[0] != null)) res.add(c.key);
+        return res.toArray(ItemKey.EMPTY_ARRAY);
+    }
+
+    @Override
+    public Config match(Config template) {
+        final ItemEntry[] entries = template.itemEntries();
+        final Column[] cols = new Column[entries.length];
+        for (int j = 0; j < entries.length; ++j) {
+            cols[j] = _index.get(entries[j].getKey());
+            if (cols[j] == null) return null;
+        }
+
+        steps: for (int i = 0; i < _size; ++i) {
+            for (int j = 0; j < entries.length; ++j) {
+                final Object v = cols[j].get(i);
+                if ((v == null) || !v.equals(entries[j].getItemValue())) continue steps;
+            }
+            return getStep(i);
+        }
+        return null;
+    }
+
+    @Override
+    public void addStep(Config conf) {
+        final int step = _size++;
+        for (ItemEntry ie : conf.itemEntries()) {
+            final Object v = ie.getItemValue();
+            if (v != null) _column(ie.getKey(), step).set(step, v);
+        }
+    }
+
+    @Override
+    public void addStep(int step, Config conf) {
+        if (step == _size) {
+            addStep(conf);
+        } else {
+            final List<Config> steps = _storedList();
+            steps.add(step, conf);
+            _rebuild(steps);
+        }
+    }
+
+    @Override
+    public void clear() {
+        _clear();
+    }
+
+    @Override
+    public Iterator<Config> iterator() {
+        return new StepIterator(false);
+    }
+
+    @Override
+    public Iterator<Config> compactIterator() {
+        _compact();
+        return new StepIterator(true);
+    }
+
+    private final class StepIterator implements Iterator<Config> {
+        private final boolean compact;
+        private int step;
+
+        StepIterator(boolean compact) {
+            this.compact = compact;
+        }
+
+        public boolean hasNext() {
+            return step < _size;
+        }
+
+        public Config next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return compact ? _compactConfig(step++) : _config(step++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    @Override
+    public void removeStep(int step) {
+        final List<Config> steps = _storedList();
+        steps.remove(step);
+        _rebuild(steps);
+    }
+
+    @Override
+    public void setStep(int step, Config conf) {
+        final List<Config> steps = _storedList();
+        steps.set(step, new DefaultConfig(conf));
+        _rebuild(steps);
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    @Override
+    public ConfigSequence subSequence(int from, int to) {
+        final ColumnarConfigSequence res = new ColumnarConfigSequence();
+        for (int i = from; i < to; ++i) res.addStep(_config(i));
+        return res;
+    }
+
+    /**
+     * Number of distinct items in the sequence.
+     */
+    public int getKeyCount() {
+        return _columns.size();
+    }
+
+    /**
+     * Number of item values actually stored, counting each run of an unchanged
+     * value once.
+     */
+    public int getStoredValueCount() {
+        int res = 0;
+        for (Column c : _columns) res += c.runs;
+        return res;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        _compact();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        _index = new HashMap<>();
+        for (Column c : _columns) _index.put(c.key, c);
+    }
+}
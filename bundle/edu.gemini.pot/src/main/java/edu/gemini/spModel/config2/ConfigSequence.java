@@ -91,12 +91,27 @@ public class ConfigSequence implements Serializable {
      * Creates a ConfigSequence that is a copy of the given sequence.
      */
     public ConfigSequence(ConfigSequence copy) {
-        _configs = new ArrayList<>(copy._configs);
+        _configs = new ArrayList<>(copy.getStoredSteps());
 
         for (ListIterator<Config> lit=_configs.listIterator(); lit.hasNext(); ) {
             lit.set(new DefaultConfig(lit.next()));
         }
-        _isCompact = copy._isCompact;
+        _isCompact = copy.isStoredCompact();
+    }
+
+    //
+    // The Configs as stored for each step: the changes made at that step and,
+    // unless the sequence is compact, possibly items that repeat the value
+    // already in effect.  Subclasses that store their steps differently
+    // override this and isStoredCompact() so that copies keep the steps as
+    // they were given.  The caller must not modify the result.
+    //
+    List<Config> getStoredSteps() {
+        return _configs;
+    }
+
+    boolean isStoredCompact() {
+        return _isCompact;
     }
 
     //
@@ -0,0 +1,112 @@
+package edu.gemini.pot.sp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Measures lock/unlock throughput of {@link SPNodeKeyLocks} with many threads
+ * taking read and write locks on a set of keys, compared with the original
+ * registry guarded by a single monitor.  Run with:
+ *
+ * <pre>
+ *     SPNodeKeyLocksBenchmark [threads [keys [writePercent [seconds]]]]
+ * </pre>
+ */
+public final class SPNodeKeyLocksBenchmark {
+
+    private interface Registry {
+        void readLock(SPNodeKey k);
+        void readUnlock(SPNodeKey k);
+        void writeLock(SPNodeKey k);
+        void writeUnlock(SPNodeKey k);
+    }
+
+    // The registry as it was: one synchronized map, locks never removed.
+    private static final class MonitorRegistry implements Registry {
+        private final Map<SPNodeKey, ReentrantReadWriteLock> locks = new HashMap<>();
+
+        private synchronized ReentrantReadWriteLock get(SPNodeKey k) {
+            ReentrantReadWriteLock l = locks.get(k);
+            if (l == null) {
+                l = new ReentrantReadWriteLock();
+                locks.put(k, l);
+            }
+            return l;
+        }
+
+        @Override public void readLock(SPNodeKey k)    { get(k).readLock().lock();    }
+        @Override public void readUnlock(SPNodeKey k)  { get(k).readLock().unlock();  }
+        @Override public void writeLock(SPNodeKey k)   { get(k).writeLock().lock();   }
+        @Override public void writeUnlock(SPNodeKey k) { get(k).writeLock().unlock(); }
+    }
+
+    private static final class CurrentRegistry implements Registry {
+        @Override public void readLock(SPNodeKey k)    { SPNodeKeyLocks.instance.readLock(k);    }
+        @Override public void readUnlock(SPNodeKey k)  { SPNodeKeyLocks.instance.readUnlock(k);  }
+        @Override public void writeLock(SPNodeKey k)   { SPNodeKeyLocks.instance.writeLock(k);   }
+        @Override public void writeUnlock(SPNodeKey k) { SPNodeKeyLocks.instance.writeUnlock(k); }
+    }
+
+    private static long run(final Registry reg, int threads, final SPNodeKey[] keys,
+                            final int writePercent, long millis) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; ++i) {
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    final ThreadLocalRandom r = ThreadLocalRandom.current();
+                    long n = 0;
+                    while (!stop.get()) {
+                        final SPNodeKey k = keys[r.nextInt(keys.length)];
+                        if (r.nextInt(100) < writePercent) {
+                            reg.writeLock(k);
+                            reg.writeUnlock(k);
+                        } else {
+                            reg.readLock(k);
+                            reg.readUnlock(k);
+                        }
+                        ++n;
+                    }
+                    ops.addAndGet(n);
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        Thread.sleep(millis);
+        stop.set(true);
+        done.await();
+        return ops.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int threads      = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        final int keyCount     = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        final int writePercent = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        final int seconds      = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+
+        final SPNodeKey[] keys = new SPNodeKey[keyCount];
+        for (int i = 0; i < keyCount; ++i) keys[i] = new SPNodeKey();
+
+        System.out.println(String.format("%d thread(s), %d key(s), %d%% writes, %d s", threads, keyCount, writePercent, seconds));
+
+        final Registry[] regs = { new MonitorRegistry(), new CurrentRegistry() };
+        for (Registry reg : regs) {
+            run(reg, threads, keys, writePercent, 1000); // warm up
+            final long ops = run(reg, threads, keys, writePercent, seconds * 1000L);
+            System.out.println(String.format("%-16s %14.0f ops/s", reg.getClass().getSimpleName(), ops / (double) seconds));
+        }
+
+        SPNodeKeyLocks.instance.setMetricsEnabled(true);
+        final long ops = run(new CurrentRegistry(), threads, keys, writePercent, seconds * 1000L);
+        System.out.println(String.format("%-16s %14.0f ops/s", "with metrics", ops / (double) seconds));
+        System.out.println(SPNodeKeyLocks.instance.getMetrics());
+    }
+}
@@ -0,0 +1,85 @@
+package edu.gemini.pot.sp.memImpl;
+
+import edu.gemini.pot.sp.ISPFactory;
+import edu.gemini.pot.sp.ISPObservation;
+import edu.gemini.pot.sp.ISPProgram;
+import edu.gemini.pot.sp.ISPRootNode;
+import edu.gemini.pot.util.POTUtil;
+import edu.gemini.spModel.core.SPProgramID;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares the size on disk and the store/load times of the program storage
+ * formats.  Run with the path to a database directory to measure real
+ * programs, or with no arguments to use a generated program:
+ *
+ * <pre>
+ *     MemSerializerBenchmark [dbDir [iterations]]
+ * </pre>
+ */
+public final class MemSerializerBenchmark {
+
+    private static List<ISPRootNode> loadPrograms(File dir) throws Exception {
+        final MemSerializer ser = new MemSerializer();
+        final List<ISPRootNode> res = new ArrayList<>();
+        final File[] files = dir.listFiles();
+        if (files == null) throw new IllegalArgumentException("Not a directory: " + dir);
+        for (File f : files) {
+            if (f.getName().endsWith(".sp") || f.getName().endsWith(".pl")) {
+                res.add((ISPRootNode) ser.load(f));
+            }
+        }
+        return res;
+    }
+
+    private static List<ISPRootNode> generatePrograms() throws Exception {
+        final ISPFactory fact = POTUtil.createFactory(UUID.randomUUID());
+        final ISPProgram prog = fact.createProgram(null, SPProgramID.toProgramID("GS-2018A-Q-1"));
+        for (int i = 0; i < 500; ++i) {
+            final ISPObservation obs = fact.createObservation(prog, null);
+            prog.addObservation(obs);
+        }
+        final List<ISPRootNode> res = new ArrayList<>();
+        res.add(prog);
+        return res;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final List<ISPRootNode> progs = (args.length > 0) ? loadPrograms(new File(args[0])) : generatePrograms();
+        final int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        System.out.println(String.format("%d program(s), %d iteration(s)", progs.size(), iterations));
+        System.out.println(String.format("%-18s %14s %12s %12s", "format", "bytes", "store ms", "load ms"));
+
+        for (MemSerializer.Format format : MemSerializer.Format.values()) {
+            final MemSerializer ser = new MemSerializer(format);
+
+            // Warm up.
+            for (ISPRootNode p : progs) ser.load(ser.store(p));
+
+            long bytes = 0;
+            long storeNanos = 0;
+            long loadNanos  = 0;
+            for (int i = 0; i < iterations; ++i) {
+                for (ISPRootNode p : progs) {
+                    final long t0 = System.nanoTime();
+                    final byte[] blob = ser.store(p);
+                    final long t1 = System.nanoTime();
+                    ser.load(blob);
+                    final long t2 = System.nanoTime();
+
+                    if (i == 0) bytes += blob.length;
+                    storeNanos += t1 - t0;
+                    loadNanos  += t2 - t1;
+                }
+            }
+
+            System.out.println(String.format("%-18s %14d %12.1f %12.1f", format, bytes,
+                    storeNanos / 1e6 / iterations, loadNanos / 1e6 / iterations));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package edu.gemini.pot.sp.test;
+
+import edu.gemini.pot.sp.SPNodeKey;
+import edu.gemini.pot.sp.SPNodeKeyLockMetrics;
+import edu.gemini.pot.sp.SPNodeKeyLocks;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the node key lock registry.
+ */
+public final class SPNodeKeyLocksTest {
+    private static final SPNodeKeyLocks LOCKS = SPNodeKeyLocks.instance;
+
+    private static void touch(int count) {
+        for (int i = 0; i < count; ++i) {
+            final SPNodeKey k = new SPNodeKey();
+            LOCKS.readLock(k);
+            LOCKS.readUnlock(k);
+        }
+    }
+
+    @Test
+    public void testReentrant() {
+        final SPNodeKey key = new SPNodeKey();
+        assertFalse(LOCKS.isWriteLockHeld(key));
+
+        LOCKS.writeLock(key);
+        LOCKS.writeLock(key);
+        LOCKS.readLock(key);
+        assertTrue(LOCKS.isWriteLockHeld(key));
+
+        LOCKS.readUnlock(key);
+        LOCKS.writeUnlock(key);
+        assertTrue(LOCKS.isWriteLockHeld(key));
+        LOCKS.writeUnlock(key);
+        assertFalse(LOCKS.isWriteLockHeld(key));
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testUnlockNotHeld() {
+        LOCKS.writeUnlock(new SPNodeKey());
+    }
+
+    @Test
+    public void testIdleLocksDiscarded() {
+        touch(5000);
+        assertTrue(LOCKS.getLiveLockCount() < 5000);
+    }
+
+    @Test
+    public void testHeldLocksKept() throws Exception {
+        final SPNodeKey key = new SPNodeKey();
+        LOCKS.writeLock(key);
+        try {
+            touch(5000);
+            assertTrue(LOCKS.isWriteLockHeld(key));
+
+            // Another thread must still see the same lock and block on it.
+            final CountDownLatch acquired = new CountDownLatch(1);
+            final Thread t = new Thread(new Runnable() {
+                @Override public void run() {
+                    LOCKS.readLock(key);
+                    acquired.countDown();
+                    LOCKS.readUnlock(key);
+                }
+            });
+            t.start();
+            Thread.sleep(100);
+            assertEquals(1, acquired.getCount());
+
+            LOCKS.writeUnlock(key);
+            t.join(5000);
+            assertEquals(0, acquired.getCount());
+        } finally {
+            if (LOCKS.isWriteLockHeld(key)) LOCKS.writeUnlock(key);
+        }
+    }
+
+    @Test
+    public void testTryReadLock() throws Exception {
+        final SPNodeKey key = new SPNodeKey();
+        assertTrue(LOCKS.tryReadLock(key));
+        LOCKS.readUnlock(key);
+
+        // Fails without waiting while another thread writes.
+        final CountDownLatch locked  = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread t = new Thread(new Runnable() {
+            @Override public void run() {
+                LOCKS.writeLock(key);
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    // exit
+                } finally {
+                    LOCKS.writeUnlock(key);
+                }
+            }
+        });
+        t.start();
+        locked.await();
+        assertFalse(LOCKS.tryReadLock(key));
+        release.countDown();
+        t.join(5000);
+
+        // The failed attempt did not leave the lock in use.
+        assertTrue(LOCKS.tryReadLock(key));
+        LOCKS.readUnlock(key);
+        touch(5000);
+        assertTrue(LOCKS.getLiveLockCount() < 5000);
+
+        // Reentrant for the writer.
+        LOCKS.writeLock(key);
+        assertTrue(LOCKS.tryReadLock(key));
+        LOCKS.readUnlock(key);
+        LOCKS.writeUnlock(key);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final boolean enabled = LOCKS.isMetricsEnabled();
+        LOCKS.setMetricsEnabled(true);
+        try {
+            final SPNodeKey key = new SPNodeKey();
+            LOCKS.writeLock(key);
+            final Thread t = new Thread(new Runnable() {
+                @Override public void run() {
+                    LOCKS.readLock(key);
+                    LOCKS.readUnlock(key);
+                }
+            });
+            t.start();
+            Thread.sleep(200);
+            LOCKS.writeUnlock(key);
+            t.join(5000);
+
+            final SPNodeKeyLockMetrics.KeyStats ks = LOCKS.getMetrics().getKeys().get(key);
+            assertNotNull(ks);
+            assertEquals(1, ks.getReadCount());
+            assertEquals(1, ks.getWriteCount());
+            assertEquals(1, ks.getContendedCount());
+            assertTrue(ks.getTotalWaitNanos() > 0);
+            assertTrue(ks.getMaxHoldNanos() > 0);
+        } finally {
+            LOCKS.setMetricsEnabled(enabled);
+        }
+    }
+
+    @Test
+    public void testMetricsOfDiscardedLocks() {
+        final boolean enabled = LOCKS.isMetricsEnabled();
+        LOCKS.setMetricsEnabled(true);
+        LOCKS.resetMetrics();
+        try {
+            touch(5000);
+
+            // Statistics are dropped along with the locks, but still counted.
+            final SPNodeKeyLockMetrics m = LOCKS.getMetrics();
+            assertTrue(m.getKeys().size() < 5000);
+            assertTrue(m.getDiscarded().getReadCount() > 0);
+            assertEquals(5000, m.getTotal().getReadCount());
+        } finally {
+            LOCKS.setMetricsEnabled(enabled);
+        }
+    }
+}
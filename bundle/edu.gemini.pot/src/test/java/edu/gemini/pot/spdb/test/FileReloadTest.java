@@ -0,0 +1,258 @@
+package edu.gemini.pot.spdb.test;
+
+import edu.gemini.pot.sp.ISPProgram;
+import edu.gemini.pot.sp.SPNodeKey;
+import edu.gemini.pot.sp.SPNodeKeyLocks;
+import edu.gemini.pot.spdb.DBLocalDatabase;
+import edu.gemini.pot.spdb.DBProgramListFunctor;
+import edu.gemini.pot.spdb.IDBDatabaseService;
+import edu.gemini.pot.spdb.StorageMetrics;
+import edu.gemini.spModel.core.SPProgramID;
+import edu.gemini.spModel.gemini.obscomp.SPProgram;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests reloading a file-based database from disk.
+ */
+public final class FileReloadTest {
+    private static final int PROGRAM_COUNT = 25;
+
+    private File _root;
+
+    @Before
+    public void setUp() throws Exception {
+        _root = File.createTempFile("FileReloadTest", "");
+        assertTrue(_root.delete());
+        assertTrue(_root.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(_root);
+    }
+
+    private static void delete(File f) {
+        final File[] children = f.listFiles();
+        if (children != null) for (File c : children) delete(c);
+        f.delete();
+    }
+
+    private List<SPNodeKey> populate() throws Exception {
+        final IDBDatabaseService db = DBLocalDatabase.create(_root);
+        final List<SPNodeKey> keys = new ArrayList<SPNodeKey>();
+        try {
+            for (int i = 0; i < PROGRAM_COUNT; ++i) {
+                final SPProgramID id = SPProgramID.toProgramID("GS-2018A-Q-" + (i + 1));
+                final ISPProgram p = db.getFactory().createProgram(EmptyNodeInitializer.INSTANCE, new SPNodeKey(), id);
+                db.put(p);
+                keys.add(p.getNodeKey());
+            }
+
+            // Each program is stored once when it is added.
+            final StorageMetrics m = db.getDBAdmin().getStorageMetrics();
+            assertEquals(PROGRAM_COUNT, m.getStoreCount());
+            assertEquals(0, m.getQueueDepth());
+            assertTrue(m.getBytesWritten() > 0);
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+        return keys;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        final InputStream is = new FileInputStream(from);
+        try {
+            final OutputStream os = new FileOutputStream(to);
+            try {
+                final byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) > 0) os.write(buf, 0, n);
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void testReloadAll() throws Exception {
+        final List<SPNodeKey> keys = populate();
+
+        final IDBDatabaseService db = DBLocalDatabase.create(_root);
+        try {
+            for (SPNodeKey key : keys) assertNotNull(db.lookupProgram(key));
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+    }
+
+    @Test
+    public void testDuplicateAndCorruptFiles() throws Exception {
+        final List<SPNodeKey> keys = populate();
+
+        final File dir  = DBLocalDatabase.getVersionedDatabaseDir(_root);
+        final File orig = new File(dir, "GS-2018A-Q-1.sp");
+        assertTrue(orig.exists());
+        copy(orig, new File(dir, "AAA-copy.sp"));
+
+        final OutputStream os = new FileOutputStream(new File(dir, "corrupt.sp"));
+        try {
+            os.write(new byte[] { 1, 2, 3, 4 });
+        } finally {
+            os.close();
+        }
+
+        final IDBDatabaseService db = DBLocalDatabase.create(_root);
+        try {
+            for (SPNodeKey key : keys) assertNotNull(db.lookupProgram(key));
+            final Set<Principal> user = Collections.emptySet();
+            final DBProgramListFunctor f = db.getQueryRunner(user).queryPrograms(new DBProgramListFunctor());
+            assertEquals(PROGRAM_COUNT, f.getKeyList().size());
+
+            // The file named after the program wins over the copy, so storing
+            // the program again doesn't delete it.
+            db.checkpoint(db.lookupProgram(keys.get(0)));
+            assertTrue(orig.exists());
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+    }
+
+    @Test
+    public void testJournalRecovery() throws Exception {
+        final List<SPNodeKey> keys = populate();
+
+        // Edit a data object, which is journaled rather than stored in full
+        // when the database shuts down.
+        IDBDatabaseService db = DBLocalDatabase.create(_root);
+        try {
+            final SPProgram dataObj = new SPProgram();
+            dataObj.setTitle("Journaled Title");
+            db.lookupProgram(keys.get(0)).setDataObject(dataObj);
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+
+        final File dir     = DBLocalDatabase.getVersionedDatabaseDir(_root);
+        final File journal = new File(dir, "GS-2018A-Q-1.sp.jnl");
+        assertTrue(journal.exists());
+
+        db = DBLocalDatabase.create(_root);
+        try {
+            final ISPProgram p = db.lookupProgram(keys.get(0));
+            assertEquals("Journaled Title", p.getDataObject().getTitle());
+
+            // Recovery stores the program in full, discarding the journal.
+            assertFalse(journal.exists());
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testReplaceWhileStoring() throws Exception {
+        final List<SPNodeKey> keys = populate();
+        final SPNodeKey key = keys.get(0);
+
+        IDBDatabaseService db = DBLocalDatabase.create(_root);
+        try {
+            final ISPProgram p = db.lookupProgram(key);
+
+            // Replace the program while holding its write lock, as the VCS
+            // does, with a store of the old program waiting for a read lock.
+            final IDBDatabaseService odb = db;
+            final Thread checkpointer = new Thread(new Runnable() {
+                @Override public void run() {
+                    odb.checkpoint(p);
+                }
+            });
+            SPNodeKeyLocks.instance.writeLock(key);
+            try {
+                checkpointer.start();
+                Thread.sleep(100);
+                while (db.getDBAdmin().getStorageMetrics().getQueueDepth() > 0) Thread.sleep(10);
+
+                final ISPProgram cp = db.getFactory().copyWithSameKeys(p);
+                final SPProgram dataObj = new SPProgram();
+                dataObj.setTitle("Replaced Title");
+                cp.setDataObject(dataObj);
+                db.put(cp);
+            } finally {
+                SPNodeKeyLocks.instance.writeUnlock(key);
+            }
+            checkpointer.join();
+            db.checkpoint();
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+
+        db = DBLocalDatabase.create(_root);
+        try {
+            assertEquals("Replaced Title", db.lookupProgram(key).getDataObject().getTitle());
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCheckpointWithWriteLock() throws Exception {
+        final IDBDatabaseService db = DBLocalDatabase.create(_root);
+        try {
+            final ISPProgram p = db.getFactory().createProgram(EmptyNodeInitializer.INSTANCE, new SPNodeKey(), SPProgramID.toProgramID("GS-2018A-Q-1"));
+            db.put(p);
+            p.getProgramWriteLock();
+            try {
+                db.checkpoint(p);
+            } finally {
+                p.returnProgramWriteLock();
+            }
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+    }
+
+    @Test
+    public void testStoredStateSurvivesReload() throws Exception {
+        final SPProgramID id = SPProgramID.toProgramID("GS-2018A-Q-1");
+        final SPNodeKey key;
+        IDBDatabaseService db = DBLocalDatabase.create(_root);
+        try {
+            final ISPProgram p = db.getFactory().createProgram(EmptyNodeInitializer.INSTANCE, new SPNodeKey(), id);
+            for (int i = 0; i < 3; ++i) p.addObservation(db.getFactory().createObservation(p, null));
+            db.put(p);
+            key = p.getNodeKey();
+
+            // Removing the last observation must not free its number.
+            p.removeObservation(p.getAllObservations().get(2));
+            db.checkpoint(p);
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+
+        db = DBLocalDatabase.create(_root);
+        try {
+            final ISPProgram p = db.lookupProgram(key);
+            assertEquals(2, p.getAllObservations().size());
+            assertEquals(4, db.getFactory().createObservation(p, null).getObservationNumber());
+        } finally {
+            db.getDBAdmin().shutdown();
+        }
+    }
+}
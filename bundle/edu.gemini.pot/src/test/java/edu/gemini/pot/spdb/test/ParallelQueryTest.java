@@ -0,0 +1,155 @@
+package edu.gemini.pot.spdb.test;
+
+import edu.gemini.pot.sp.ISPNode;
+import edu.gemini.pot.sp.ISPObservation;
+import edu.gemini.pot.sp.ISPProgram;
+import edu.gemini.pot.sp.SPNodeKey;
+import edu.gemini.pot.sp.SPObservationID;
+import edu.gemini.pot.spdb.DBAbstractQueryFunctor;
+import edu.gemini.pot.spdb.DBLocalDatabase;
+import edu.gemini.pot.spdb.DBProgramListFunctor;
+import edu.gemini.pot.spdb.IDBDatabaseService;
+import edu.gemini.pot.spdb.IDBParallelQueryFunctor;
+import edu.gemini.spModel.core.SPProgramID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests running query functors that opt in to parallel execution.
+ */
+public final class ParallelQueryTest {
+    private static final int PROGRAM_COUNT = 40;
+    private static final int OBS_PER_PROGRAM = 3;
+
+    private IDBDatabaseService _db;
+
+    // Collects observation ids, optionally stopping after a limit in each
+    // partition or failing on a particular observation.
+    private static class ObsIdFunctor extends DBAbstractQueryFunctor {
+        final int limit;
+        final int failOn;
+        final List<SPObservationID> ids = new ArrayList<SPObservationID>();
+        boolean initialized;
+        boolean finished;
+
+        ObsIdFunctor(int limit, int failOn) {
+            this.limit  = limit;
+            this.failOn = failOn;
+        }
+
+        @Override public void init() {
+            initialized = true;
+        }
+
+        @Override public boolean isDone() {
+            return ids.size() >= limit;
+        }
+
+        @Override public void finished() {
+            finished = true;
+        }
+
+        @Override public void execute(IDBDatabaseService db, ISPNode node, Set<Principal> principals) {
+            final ISPObservation obs = (ISPObservation) node;
+            if (obs.getObservationNumber() == failOn) throw new IllegalStateException("fail");
+            ids.add(obs.getObservationID());
+        }
+    }
+
+    private static final class ParallelObsIdFunctor extends ObsIdFunctor implements IDBParallelQueryFunctor {
+        int partitions;
+
+        ParallelObsIdFunctor(int limit, int failOn) {
+            super(limit, failOn);
+        }
+
+        @Override public IDBParallelQueryFunctor split() {
+            return new ParallelObsIdFunctor(limit, failOn);
+        }
+
+        @Override public void merge(IDBParallelQueryFunctor partition) {
+            final ParallelObsIdFunctor that = (ParallelObsIdFunctor) partition;
+            assertTrue(that.initialized);
+            assertFalse(that.finished);
+            ids.addAll(that.ids);
+            ++partitions;
+        }
+
+        // The merged result may exceed the per-partition limit.
+        @Override public boolean isDone() {
+            return (partitions == 0) && super.isDone();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _db = DBLocalDatabase.createTransient();
+        for (int i = 0; i < PROGRAM_COUNT; ++i) {
+            final SPProgramID id = SPProgramID.toProgramID("GS-2018A-Q-" + (i + 1));
+            final ISPProgram p = _db.getFactory().createProgram(new SPNodeKey(), id);
+            for (int j = 0; j < OBS_PER_PROGRAM; ++j) {
+                p.addObservation(_db.getFactory().createObservation(p, null));
+            }
+            _db.put(p);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _db.getDBAdmin().shutdown();
+    }
+
+    @Test
+    public void testSameResultAsSequential() throws Exception {
+        final ObsIdFunctor seq = _db.getQueryRunner().queryObservations(new ObsIdFunctor(Integer.MAX_VALUE, -1));
+        final ParallelObsIdFunctor par = _db.getQueryRunner().queryObservations(new ParallelObsIdFunctor(Integer.MAX_VALUE, -1));
+
+        assertNull(par.getException());
+        assertTrue(par.initialized);
+        assertTrue(par.finished);
+        assertEquals(PROGRAM_COUNT * OBS_PER_PROGRAM, par.ids.size());
+        assertEquals(seq.ids, par.ids);
+    }
+
+    @Test
+    public void testProgramListOrder() throws Exception {
+        final List<SPNodeKey> expected = new ArrayList<SPNodeKey>();
+        for (ISPProgram p : _db.getQueryRunner().queryPrograms(new ProgramCollector()).progs) {
+            expected.add(p.getProgramKey());
+        }
+        final DBProgramListFunctor par = _db.getQueryRunner().queryPrograms(new DBProgramListFunctor());
+        assertEquals(expected, par.getKeyList());
+    }
+
+    @Test
+    public void testPartitionEarlyTermination() throws Exception {
+        final ParallelObsIdFunctor par = _db.getQueryRunner().queryObservations(new ParallelObsIdFunctor(1, -1));
+        assertTrue(par.partitions > 0);
+        assertEquals(par.partitions, par.ids.size());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final ParallelObsIdFunctor par = _db.getQueryRunner().queryObservations(new ParallelObsIdFunctor(Integer.MAX_VALUE, 2));
+        assertTrue(par.getException() instanceof IllegalStateException);
+        assertFalse(par.finished);
+        assertEquals(Collections.<SPObservationID>emptyList(), par.ids);
+    }
+
+    private static final class ProgramCollector extends DBAbstractQueryFunctor {
+        final List<ISPProgram> progs = new ArrayList<ISPProgram>();
+
+        @Override public void execute(IDBDatabaseService db, ISPNode node, Set<Principal> principals) {
+            progs.add((ISPProgram) node);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package edu.gemini.pot.spdb.test;
+
+import edu.gemini.pot.sp.ISPObservation;
+import edu.gemini.pot.sp.ISPProgram;
+import edu.gemini.pot.sp.SPNodeKey;
+import edu.gemini.pot.sp.SPObservationID;
+import edu.gemini.pot.spdb.DBLocalDatabase;
+import edu.gemini.pot.spdb.IDBDatabaseService;
+import edu.gemini.spModel.core.SPProgramID;
+import edu.gemini.spModel.core.Semester;
+import edu.gemini.spModel.gemini.obscomp.SPProgram;
+import edu.gemini.spModel.obs.ObsPhase2Status;
+import edu.gemini.spModel.obs.ObservationStatus;
+import edu.gemini.spModel.obs.SPObservation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the lookups served by the database's program indexes.
+ */
+public final class ProgramIndexTest {
+    private IDBDatabaseService _db;
+
+    @Before
+    public void setUp() throws Exception {
+        _db = DBLocalDatabase.createTransient();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _db.getDBAdmin().shutdown();
+    }
+
+    private ISPProgram createProgram(String id, String piLastName, int obsCount) throws Exception {
+        final ISPProgram p = _db.getFactory().createProgram(new SPNodeKey(), SPProgramID.toProgramID(id));
+        final SPProgram dataObj = (SPProgram) p.getDataObject();
+        dataObj.setPIInfo(new SPProgram.PIInfo("", piLastName, "", "", null));
+        p.setDataObject(dataObj);
+        for (int i = 0; i < obsCount; ++i) {
+            p.addObservation(_db.getFactory().createObservation(p, null));
+        }
+        _db.put(p);
+        return p;
+    }
+
+    private static void setPhase2Status(ISPObservation obs, ObsPhase2Status status) {
+        final SPObservation dataObj = (SPObservation) obs.getDataObject();
+        dataObj.setPhase2Status(status);
+        obs.setDataObject(dataObj);
+    }
+
+    private static SPProgramID pid(String id) throws Exception {
+        return SPProgramID.toProgramID(id);
+    }
+
+    @Test
+    public void testObservationLookup() throws Exception {
+        final ISPProgram p = createProgram("GS-2018A-Q-1", "Smith", 3);
+        for (ISPObservation obs : p.getAllObservations()) {
+            assertSame(obs, _db.lookupObservationByID(obs.getObservationID()));
+        }
+        assertNull(_db.lookupObservationByID(new SPObservationID(pid("GS-2018A-Q-1"), 99)));
+        assertNull(_db.lookupObservationByID(new SPObservationID(pid("GS-2018A-Q-2"), 1)));
+
+        // Added and removed observations are picked up.
+        final ISPObservation added = _db.getFactory().createObservation(p, null);
+        p.addObservation(added);
+        assertSame(added, _db.lookupObservationByID(added.getObservationID()));
+
+        final SPObservationID removedId = p.getAllObservations().get(0).getObservationID();
+        p.removeObservation(p.getAllObservations().get(0));
+        assertNull(_db.lookupObservationByID(removedId));
+
+        // Removed programs are dropped.
+        _db.remove(p);
+        assertNull(_db.lookupObservationByID(added.getObservationID()));
+    }
+
+    @Test
+    public void testProgramAttributeLookup() throws Exception {
+        createProgram("GS-2018A-Q-1", "Smith", 0);
+        createProgram("GS-2018A-Q-2", "Jones", 0);
+        final ISPProgram p3 = createProgram("GN-2018B-Q-3", "smith", 0);
+
+        assertEquals(Arrays.asList(pid("GN-2018B-Q-3"), pid("GS-2018A-Q-1")), _db.lookupProgramIDsByPI("SMITH"));
+        assertEquals(Collections.singletonList(pid("GS-2018A-Q-2")), _db.lookupProgramIDsByPI("Jones"));
+        assertTrue(_db.lookupProgramIDsByPI("Nobody").isEmpty());
+
+        assertEquals(Arrays.asList(pid("GS-2018A-Q-1"), pid("GS-2018A-Q-2")), _db.lookupProgramIDsBySemester(Semester.parse("2018A")));
+        assertEquals(Collections.singletonList(pid("GN-2018B-Q-3")), _db.lookupProgramIDsBySemester(Semester.parse("2018B")));
+
+        // Editing the PI moves the program in the index.
+        final SPProgram dataObj = (SPProgram) p3.getDataObject();
+        dataObj.setPIInfo(new SPProgram.PIInfo("", "Jones", "", "", null));
+        p3.setDataObject(dataObj);
+        assertEquals(Collections.singletonList(pid("GS-2018A-Q-1")), _db.lookupProgramIDsByPI("Smith"));
+        assertEquals(Arrays.asList(pid("GN-2018B-Q-3"), pid("GS-2018A-Q-2")), _db.lookupProgramIDsByPI("jones"));
+    }
+
+    @Test
+    public void testStatusLookup() throws Exception {
+        final ISPProgram p = createProgram("GS-2018A-Q-1", "Smith", 3);
+        final ISPObservation obs = p.getAllObservations().get(1);
+
+        assertEquals(3, _db.lookupObservationIDsByStatus(ObservationStatus.PHASE2).size());
+        assertTrue(_db.lookupObservationIDsByStatus(ObservationStatus.INACTIVE).isEmpty());
+
+        setPhase2Status(obs, ObsPhase2Status.INACTIVE);
+        assertEquals(2, _db.lookupObservationIDsByStatus(ObservationStatus.PHASE2).size());
+        assertEquals(Collections.singletonList(obs.getObservationID()), _db.lookupObservationIDsByStatus(ObservationStatus.INACTIVE));
+
+        // Statuses survive reindexing the program after a structure change.
+        p.addObservation(_db.getFactory().createObservation(p, null));
+        assertEquals(3, _db.lookupObservationIDsByStatus(ObservationStatus.PHASE2).size());
+        assertEquals(Collections.singletonList(obs.getObservationID()), _db.lookupObservationIDsByStatus(ObservationStatus.INACTIVE));
+    }
+
+    @Test
+    public void testLookupDoesNotWaitForWriter() throws Exception {
+        final ISPProgram p1 = createProgram("GS-2018A-Q-1", "Smith", 2);
+        final ISPProgram p2 = createProgram("GS-2018A-Q-2", "Smith", 2);
+        assertEquals(4, _db.lookupObservationIDsByStatus(ObservationStatus.PHASE2).size());
+
+        // Another thread edits p2 and keeps it locked.
+        setPhase2Status(p2.getAllObservations().get(0), ObsPhase2Status.INACTIVE);
+        final CountDownLatch locked  = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread writer = new Thread(new Runnable() {
+            @Override public void run() {
+                p2.getProgramWriteLock();
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    // exit
+                } finally {
+                    p2.returnProgramWriteLock();
+                }
+            }
+        });
+        writer.start();
+        locked.await();
+
+        // A lookup made while holding p1's lock completes, reporting p2 as
+        // last indexed.
+        p1.getProgramWriteLock();
+        try {
+            setPhase2Status(p1.getAllObservations().get(0), ObsPhase2Status.INACTIVE);
+            assertEquals(Collections.singletonList(p1.getAllObservations().get(0).getObservationID()),
+                         _db.lookupObservationIDsByStatus(ObservationStatus.INACTIVE));
+        } finally {
+            p1.returnProgramWriteLock();
+            release.countDown();
+            writer.join(5000);
+        }
+
+        // Once the writer is done, the edit to p2 is picked up.
+        assertEquals(2, _db.lookupObservationIDsByStatus(ObservationStatus.INACTIVE).size());
+    }
+}
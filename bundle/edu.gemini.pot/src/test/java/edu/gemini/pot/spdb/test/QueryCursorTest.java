@@ -0,0 +1,138 @@
+package edu.gemini.pot.spdb.test;
+
+import edu.gemini.pot.sp.ISPNode;
+import edu.gemini.pot.sp.ISPObservation;
+import edu.gemini.pot.sp.ISPProgram;
+import edu.gemini.pot.sp.SPNodeKey;
+import edu.gemini.pot.sp.SPObservationID;
+import edu.gemini.pot.spdb.DBAbstractQueryFunctor;
+import edu.gemini.pot.spdb.DBLocalDatabase;
+import edu.gemini.pot.spdb.DBQueryBatch;
+import edu.gemini.pot.spdb.DBQueryCursor;
+import edu.gemini.pot.spdb.IDBDatabaseService;
+import edu.gemini.pot.spdb.IDBQueryRunner;
+import edu.gemini.pot.spdb.IDBStreamingQueryFunctor;
+import edu.gemini.spModel.core.SPProgramID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests fetching query results in batches through a cursor.
+ */
+public final class QueryCursorTest {
+    private static final int PROGRAM_COUNT = 40;
+    private static final int OBS_PER_PROGRAM = 3;
+
+    private IDBDatabaseService _db;
+
+    // Streams observation ids, optionally failing on a particular observation.
+    private static final class ObsIdFunctor extends DBAbstractQueryFunctor implements IDBStreamingQueryFunctor<SPObservationID> {
+        final int failOn;
+        final AtomicInteger executed = new AtomicInteger();
+        List<SPObservationID> ids = new ArrayList<SPObservationID>();
+        boolean finished;
+
+        ObsIdFunctor(int failOn) {
+            this.failOn = failOn;
+        }
+
+        @Override public void finished() {
+            finished = true;
+        }
+
+        @Override public void execute(IDBDatabaseService db, ISPNode node, Set<Principal> principals) {
+            final ISPObservation obs = (ISPObservation) node;
+            if (obs.getObservationNumber() == failOn) throw new IllegalStateException("fail");
+            executed.incrementAndGet();
+            ids.add(obs.getObservationID());
+        }
+
+        @Override public List<SPObservationID> drainResults() {
+            final List<SPObservationID> res = ids;
+            ids = new ArrayList<SPObservationID>();
+            return res;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _db = DBLocalDatabase.createTransient();
+        for (int i = 0; i < PROGRAM_COUNT; ++i) {
+            final SPProgramID id = SPProgramID.toProgramID("GS-2018A-Q-" + (i + 1));
+            final ISPProgram p = _db.getFactory().createProgram(new SPNodeKey(), id);
+            for (int j = 0; j < OBS_PER_PROGRAM; ++j) {
+                p.addObservation(_db.getFactory().createObservation(p, null));
+            }
+            _db.put(p);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _db.getDBAdmin().shutdown();
+    }
+
+    @Test
+    public void testAllResultsInOrder() throws Exception {
+        final List<SPObservationID> ids = new ArrayList<SPObservationID>();
+        final DBQueryCursor<SPObservationID> c = DBQueryCursor.observations(_db.getQueryRunner(), new ObsIdFunctor(-1), 7);
+        try {
+            while (c.hasNext()) {
+                final List<SPObservationID> batch = c.next();
+                assertTrue(batch.size() <= 7);
+                ids.addAll(batch);
+            }
+        } finally {
+            c.close();
+        }
+
+        assertEquals(PROGRAM_COUNT * OBS_PER_PROGRAM, ids.size());
+        assertEquals(_db.getQueryRunner().queryObservations(new ObsIdFunctor(-1)).ids, ids);
+        final ObsIdFunctor f = (ObsIdFunctor) c.getFunctor();
+        assertNotNull(f);
+        assertTrue(f.finished);
+        assertNull(f.getException());
+    }
+
+    @Test
+    public void testBackPressure() throws Exception {
+        final ObsIdFunctor f = new ObsIdFunctor(-1);
+        final IDBQueryRunner qr = _db.getQueryRunner();
+        final DBQueryBatch<SPObservationID> first = qr.openObservationCursor(f, 1);
+        assertFalse(first.isLast());
+
+        // With no one fetching, the query stops after a few batches.
+        Thread.sleep(500);
+        final int executed = f.executed.get();
+        assertTrue(executed < PROGRAM_COUNT * OBS_PER_PROGRAM);
+        Thread.sleep(500);
+        assertEquals(executed, f.executed.get());
+
+        qr.closeCursor(first.getCursorId());
+        try {
+            qr.nextBatch(first.getCursorId());
+            fail("cursor still open");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final DBQueryCursor<SPObservationID> c = DBQueryCursor.observations(_db.getQueryRunner(), new ObsIdFunctor(2), 0);
+        while (c.hasNext()) c.next();
+
+        final ObsIdFunctor f = (ObsIdFunctor) c.getFunctor();
+        assertTrue(f.getException() instanceof IllegalStateException);
+        assertFalse(f.finished);
+    }
+}
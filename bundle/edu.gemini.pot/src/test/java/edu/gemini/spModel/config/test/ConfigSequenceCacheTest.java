@@ -0,0 +1,85 @@
+package edu.gemini.spModel.config.test;
+
+import edu.gemini.pot.sp.ISPSeqComponent;
+import edu.gemini.spModel.config.ConfigBridge;
+import edu.gemini.spModel.config.ConfigSequenceCache;
+import edu.gemini.spModel.config.map.ConfigValMapInstances;
+import edu.gemini.spModel.config2.ConfigSequence;
+import edu.gemini.spModel.config2.DefaultConfig;
+import edu.gemini.spModel.gemini.obscomp.SPProgram;
+import edu.gemini.spModel.seqcomp.SeqRepeatObserve;
+import edu.gemini.spModel.test.SpModelTestBase;
+
+import java.util.Arrays;
+
+/**
+ * Tests caching of the sequence generated for an observation.
+ */
+public final class ConfigSequenceCacheTest extends SpModelTestBase {
+
+    private ISPSeqComponent observe;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        observe = addSeqComponent(getObs().getSeqComponent(), SeqRepeatObserve.SP_TYPE);
+        setObserveCount(2);
+    }
+
+    private void setObserveCount(int count) throws Exception {
+        final SeqRepeatObserve dobj = (SeqRepeatObserve) observe.getDataObject();
+        dobj.setStepCount(count);
+        observe.setDataObject(dobj);
+    }
+
+    private ConfigSequence extract() {
+        return ConfigBridge.extractSequence(getObs(), null, ConfigValMapInstances.IDENTITY_MAP);
+    }
+
+    // The counters are shared with any other tests running at the same
+    // time, so only check that they moved.
+    public void testHit() throws Exception {
+        final long hits   = ConfigSequenceCache.getHitCount();
+        final long misses = ConfigSequenceCache.getMissCount();
+
+        final ConfigSequence s1 = extract();
+        assertTrue(ConfigSequenceCache.getMissCount() > misses);
+
+        final ConfigSequence s2 = extract();
+        assertTrue(ConfigSequenceCache.getHitCount() > hits);
+
+        assertEquals(2, s2.size());
+        assertTrue(Arrays.equals(s1.getAllSteps(), s2.getAllSteps()));
+    }
+
+    public void testCallerCannotModifyCache() throws Exception {
+        final ConfigSequence s1 = extract();
+        s1.addStep(new DefaultConfig());
+        assertEquals(3, s1.size());
+        assertEquals(2, extract().size());
+    }
+
+    public void testEditInvalidates() throws Exception {
+        assertEquals(2, extract().size());
+        setObserveCount(5);
+        assertEquals(5, extract().size());
+    }
+
+    // The queue band is read from the program, whose edits aren't reported
+    // to the observation.
+    public void testProgramEditInvalidates() throws Exception {
+        final ConfigSequence s1 = extract();
+
+        final SPProgram prog = (SPProgram) getProgram().getDataObject();
+        prog.setQueueBand("2");
+        getProgram().setDataObject(prog);
+
+        assertFalse(Arrays.equals(s1.getAllSteps(), extract().getAllSteps()));
+    }
+
+    public void testSameTypeOnHitAndMiss() throws Exception {
+        final ConfigSequence miss = extract();
+        final ConfigSequence hit  = extract();
+        assertEquals(miss.getClass(), hit.getClass());
+    }
+}
@@ -0,0 +1,103 @@
+package edu.gemini.spModel.config2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the memory used by, and the time taken to build and read,
+ * {@link ConfigSequence} and {@link ColumnarConfigSequence}.  The generated
+ * sequences look roughly like a long spectroscopy sequence: many items, most
+ * of which never change, a few dithered offsets and occasional wavelength
+ * changes.  Run with:
+ *
+ * <pre>
+ *     ConfigSequenceBenchmark [steps [keys [sequences]]]
+ * </pre>
+ */
+public final class ConfigSequenceBenchmark {
+
+    private interface Factory {
+        ConfigSequence create();
+    }
+
+    private static Config[] generateSteps(int steps, int keys) {
+        final ItemKey[] ks = new ItemKey[keys];
+        for (int k = 0; k < keys; ++k) ks[k] = new ItemKey("instrument:item" + k);
+        final ItemKey p    = new ItemKey("telescope:p");
+        final ItemKey q    = new ItemKey("telescope:q");
+        final ItemKey wave = new ItemKey("instrument:centralWavelength");
+        final ItemKey file = new ItemKey("observe:dataLabel");
+
+        final Config[] res = new Config[steps];
+        for (int i = 0; i < steps; ++i) {
+            final Config c = new DefaultConfig();
+            for (int k = 0; k < keys; ++k) c.putItem(ks[k], "value" + k);
+            c.putItem(p, (double) ((i % 4) * 10));
+            c.putItem(q, (double) (((i / 4) % 2) * 10));
+            c.putItem(wave, 500.0 + 10 * (i / (steps / 4 + 1)));
+            c.putItem(file, "S20180101S" + i);
+            res[i] = c;
+        }
+        return res;
+    }
+
+    private static long usedMemory() {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; ++i) {
+            System.gc();
+            try { Thread.sleep(50); } catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void run(String name, Factory f, int count) {
+        // Warm up.
+        for (int i = 0; i < 5; ++i) f.create().getAllSteps();
+
+        final long m0 = usedMemory();
+        final List<ConfigSequence> seqs = new ArrayList<>();
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < count; ++i) seqs.add(f.create());
+        final long t1 = System.nanoTime();
+        final long m1 = usedMemory();
+
+        final ItemKey wave = new ItemKey("instrument:centralWavelength");
+        long items = 0;
+        final long t2 = System.nanoTime();
+        for (ConfigSequence s : seqs) {
+            items += s.getAllSteps().length;
+            items += s.getCompactView().length;
+            items += s.getItemValueAtEachStep(wave).length;
+            items += s.getIteratedKeys().length;
+        }
+        final long t3 = System.nanoTime();
+
+        System.out.println(String.format("%-10s %12d %12.1f %12.1f %10d", name,
+                (m1 - m0) / count, (t1 - t0) / 1e6 / count, (t3 - t2) / 1e6 / count, items));
+    }
+
+    public static void main(String[] args) {
+        final int steps = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        final int keys  = (args.length > 1) ? Integer.parseInt(args[1]) : 60;
+        final int count = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+
+        final Config[] configs = generateSteps(steps, keys);
+
+        System.out.println(String.format("%d step(s), %d static item(s), %d sequence(s)", steps, keys, count));
+        System.out.println(String.format("%-10s %12s %12s %12s %10s", "impl", "bytes/seq", "build ms", "read ms", ""));
+
+        run("default", new Factory() {
+            @Override public ConfigSequence create() {
+                final ConfigSequence s = new ConfigSequence();
+                for (Config c : configs) s.addStep(c);
+                return s;
+            }
+        }, count);
+
+        run("columnar", new Factory() {
+            @Override public ConfigSequence create() {
+                return new ColumnarConfigSequence(configs);
+            }
+        }, count);
+    }
+}
@@ -0,0 +1,138 @@
+package edu.gemini.spModel.config2.test;
+
+import edu.gemini.spModel.config2.ColumnarConfigSequence;
+import edu.gemini.spModel.config2.Config;
+import edu.gemini.spModel.config2.ConfigSequence;
+import edu.gemini.spModel.config2.DefaultConfig;
+import edu.gemini.spModel.config2.ItemKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+/**
+ * Runs the {@link ConfigSequenceTest} cases against the columnar
+ * implementation, along with a few of its own.
+ */
+public final class ColumnarConfigSequenceTest extends ConfigSequenceTest {
+
+    @Override
+    protected ConfigSequence createSequence(Config[] configs) {
+        return new ColumnarConfigSequence(configs);
+    }
+
+    private static ColumnarConfigSequence longSequence(int steps) {
+        final ItemKey filter   = new ItemKey("instrument:filter");
+        final ItemKey exposure = new ItemKey("observe:exposureTime");
+        final ItemKey p        = new ItemKey("telescope:p");
+
+        final ColumnarConfigSequence seq = new ColumnarConfigSequence();
+        for (int i = 0; i < steps; ++i) {
+            final Config c = new DefaultConfig();
+            c.putItem(filter, (i < steps / 2) ? "J" : "K");
+            c.putItem(exposure, 30.0);
+            c.putItem(p, (double) (i % 2));
+            seq.addStep(c);
+        }
+        return seq;
+    }
+
+    public void testRunLength() {
+        final ColumnarConfigSequence seq = longSequence(100);
+        assertEquals(100, seq.size());
+        assertEquals(3, seq.getKeyCount());
+
+        // filter: 2 runs, exposure: 1 run, p: 100 runs
+        assertEquals(103, seq.getStoredValueCount());
+
+        ConfigTestUtils.assertUnorderedValues(new ItemKey[] {
+            new ItemKey("instrument:filter"),
+            new ItemKey("telescope:p"),
+        }, seq.getIteratedKeys());
+        ConfigTestUtils.assertUnorderedValues(new ItemKey[] {
+            new ItemKey("observe:exposureTime"),
+        }, seq.getStaticKeys());
+    }
+
+    public void testSameAsConfigSequence() {
+        final ColumnarConfigSequence col = longSequence(20);
+        final ConfigSequence seq = new ConfigSequence(col);
+
+        assertTrue(Arrays.equals(seq.getAllSteps(), col.getAllSteps()));
+        assertTrue(Arrays.equals(seq.getCompactView(), col.getCompactView()));
+        assertTrue(Arrays.equals(new ColumnarConfigSequence(seq).getAllSteps(), col.getAllSteps()));
+
+        final ItemKey filter = new ItemKey("instrument:filter");
+        assertTrue(Arrays.equals(seq.getItemValueAtEachStep(filter), col.getItemValueAtEachStep(filter)));
+    }
+
+    private static Config config(ItemKey key, Object value) {
+        final Config c = new DefaultConfig();
+        c.putItem(key, value);
+        return c;
+    }
+
+    // Applies the same edits to both implementations and compares the
+    // results.
+    private static void assertSameEdits(Config[] configs, ItemKey key) {
+        final ConfigSequence seq = new ConfigSequence(configs);
+        final ColumnarConfigSequence col = new ColumnarConfigSequence(configs);
+        for (ConfigSequence s : new ConfigSequence[] { seq, col }) {
+            s.setStep(1, config(key, 1));
+            s.setStep(0, config(key, 2));
+        }
+        assertTrue(Arrays.equals(seq.getAllSteps(), col.getAllSteps()));
+
+        for (ConfigSequence s : new ConfigSequence[] { seq, col }) {
+            s.addStep(1, config(key, 3));
+            s.removeStep(0);
+        }
+        assertTrue(Arrays.equals(seq.getAllSteps(), col.getAllSteps()));
+        assertTrue(Arrays.equals(seq.getCompactView(), col.getCompactView()));
+    }
+
+    public void testEditsSameAsConfigSequence() {
+        final ItemKey a = new ItemKey("instrument:a");
+
+        // Setting a step to the value it already inherits keeps it set there,
+        // so a later change to an earlier step doesn't reach it.
+        assertSameEdits(new Config[] { config(a, 1), new DefaultConfig() }, a);
+        assertSameEdits(new Config[] { config(a, 1), config(a, 1), config(a, 1) }, a);
+
+        final ColumnarConfigSequence col = new ColumnarConfigSequence(new Config[] { config(a, 1), new DefaultConfig() });
+        col.setStep(1, config(a, 1));
+        col.setStep(0, config(a, 2));
+        assertEquals(1, col.getItemValue(1, a));
+    }
+
+    public void testCopySameAsConfigSequence() {
+        final ItemKey a = new ItemKey("instrument:a");
+        final Config[] configs = { config(a, 1), config(a, 1) };
+
+        // Copies keep the steps as given, in either direction.
+        final ConfigSequence seq = new ConfigSequence(new ColumnarConfigSequence(configs));
+        seq.setStep(0, config(a, 2));
+        assertEquals(1, seq.getItemValue(1, a));
+
+        final ColumnarConfigSequence col = new ColumnarConfigSequence(new ConfigSequence(configs));
+        col.setStep(0, config(a, 2));
+        assertEquals(1, col.getItemValue(1, a));
+    }
+
+    public void testSerialization() throws Exception {
+        final ColumnarConfigSequence seq = longSequence(10);
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(seq);
+        oos.close();
+
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        final ColumnarConfigSequence copy = (ColumnarConfigSequence) ois.readObject();
+
+        assertTrue(Arrays.equals(seq.getAllSteps(), copy.getAllSteps()));
+        assertEquals("K", copy.getItemValue(9, new ItemKey("instrument:filter")));
+    }
+}
@@ -36,8 +36,12 @@ public class ConfigSequenceTest extends TestCase {
         _config2.putItem(_changeKey, "change2");
         _config2.putItem(_newKey2, "new2");
 
-        _seq = new ConfigSequence(new Config[] { _config0, _config1, _config2 });
-        _emptySeq = new ConfigSequence();
+        _seq = createSequence(new Config[] { _config0, _config1, _config2 });
+        _emptySeq = createSequence(new Config[0]);
+    }
+
+    protected ConfigSequence createSequence(Config[] configs) {
+        return new ConfigSequence(configs);
     }
 
     public void testGetAllSteps() {
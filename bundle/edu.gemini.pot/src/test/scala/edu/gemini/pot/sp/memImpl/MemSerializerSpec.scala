@@ -0,0 +1,51 @@
+package edu.gemini.pot.sp.memImpl
+
+import edu.gemini.pot.sp.{ISPFactory, ISPProgram, ProgramGen, ProgramTestSupport}
+import edu.gemini.spModel.rich.pot.sp._
+import org.scalacheck.Gen
+
+object MemSerializerSpec extends ProgramTestSupport {
+
+  val genTestProg: Gen[ISPFactory => ISPProgram] =
+    ProgramGen.genProg
+
+  // Everything we can compare without relying upon data object equality.
+  private def summary(p: ISPProgram): (Any, List[Any], Any) =
+    (p.getProgramID,
+     p.toStream.toList.map { n => (n.key, n.getClass.getName, n.dataObject.map(_.getClass.getName)) },
+     p.getVersions)
+
+  private def roundTrip(p: ISPProgram, f: MemSerializer.Format): ISPProgram = {
+    val ser = new MemSerializer(f)
+    ser.load(ser.store(p)).asInstanceOf[ISPProgram]
+  }
+
+  "MemSerializer" should {
+    MemSerializer.Format.values.foreach { f =>
+      s"round trip programs in the $f format" ! forAllPrograms { (_, progs) =>
+        progs.forall { p => summary(roundTrip(p, f)) == summary(p) }
+      }
+    }
+
+    "load programs stored in any format regardless of its own format" ! forAllPrograms { (_, progs) =>
+      progs.forall { p =>
+        val bytes = new MemSerializer(MemSerializer.Format.SNAPSHOT_DEFLATE).store(p)
+        val copy  = new MemSerializer(MemSerializer.Format.JAVA).load(bytes).asInstanceOf[ISPProgram]
+        summary(copy) == summary(p)
+      }
+    }
+
+    "reject a corrupted snapshot" ! forAllPrograms { (_, progs) =>
+      progs.forall { p =>
+        val bytes = new MemSerializer(MemSerializer.Format.SNAPSHOT).store(p)
+        bytes(bytes.length - 1) = (bytes(bytes.length - 1) ^ 0xff).toByte
+        try {
+          new MemSerializer().load(bytes)
+          false
+        } catch {
+          case _: java.io.IOException => true
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package edu.gemini.shared.util.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of daemon threads for performing independent computations
+ * in parallel.  The threads are created as needed and removed again when
+ * idle.
+ *
+ * <p>{@link #runAll} hands the computations to the workers, but the calling
+ * thread performs any computation that no worker has started by the time its
+ * result is needed.  A call therefore completes even if all the workers are
+ * busy, for example with computations that are themselves waiting for a
+ * nested <code>runAll</code>.
+ */
+public final class WorkerPool {
+    private static final long IDLE_SECONDS = 30;
+
+    private final ThreadPoolExecutor _executor;
+
+    /**
+     * Creates a pool of up to <code>threads</code> workers, named
+     * <code>name</code> followed by a count.
+     */
+    public WorkerPool(final String name, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be > 0");
+        _executor = new ThreadPoolExecutor(threads, threads,
+                IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger _count = new AtomicInteger();
+
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + " " + _count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    public int getThreadCount() {
+        return _executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Performs the given computations concurrently, returning once all of
+     * them have finished.
+     *
+     * @return the completed futures of the computations, in order; getting
+     * the result of a computation that threw an exception throws an
+     * {@link ExecutionException}
+     *
+     * @throws InterruptedException if interrupted while waiting for a worker,
+     * in which case the computations not yet started are cancelled
+     */
+    public <T> List<Future<T>> runAll(List<? extends Callable<T>> computations) throws InterruptedException {
+        List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>(computations.size());
+        for (Callable<T> c : computations) tasks.add(new FutureTask<T>(c));
+
+        if (tasks.size() == 1) {
+            tasks.get(0).run();
+        } else {
+            for (FutureTask<T> t : tasks) _executor.execute(t);
+            try {
+                for (FutureTask<T> t : tasks) {
+                    t.run(); // does nothing if a worker has started it
+                    _await(t);
+                }
+            } catch (InterruptedException ex) {
+                for (FutureTask<T> t : tasks) t.cancel(false);
+                throw ex;
+            }
+        }
+        return new ArrayList<Future<T>>(tasks);
+    }
+
+    private static void _await(Future<?> f) throws InterruptedException {
+        try {
+            f.get();
+        } catch (ExecutionException ex) {
+            // reported by the future itself
+        }
+    }
+
+    /**
+     * Stops the workers once they have nothing left to do.
+     */
+    public void shutdown() {
+        _executor.shutdown();
+    }
+}
@@ -0,0 +1,89 @@
+package edu.gemini.shared.util.exec;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Test cases for {@link WorkerPool}.
+ */
+public class WorkerPoolTest {
+
+    private static Callable<Integer> square(final int i) {
+        return new Callable<Integer>() {
+            @Override public Integer call() {
+                return i * i;
+            }
+        };
+    }
+
+    @Test
+    public void testResultsInOrder() throws Exception {
+        WorkerPool pool = new WorkerPool("Test Worker", 3);
+        try {
+            List<Callable<Integer>> cs = new ArrayList<Callable<Integer>>();
+            for (int i = 0; i < 100; ++i) cs.add(square(i));
+
+            List<Future<Integer>> fs = pool.runAll(cs);
+            assertEquals(100, fs.size());
+            for (int i = 0; i < 100; ++i) assertEquals(i * i, fs.get(i).get().intValue());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailureReportedByFuture() throws Exception {
+        WorkerPool pool = new WorkerPool("Test Worker", 2);
+        try {
+            List<Callable<Integer>> cs = new ArrayList<Callable<Integer>>();
+            cs.add(square(2));
+            cs.add(new Callable<Integer>() {
+                @Override public Integer call() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+
+            List<Future<Integer>> fs = pool.runAll(cs);
+            assertEquals(4, fs.get(0).get().intValue());
+            try {
+                fs.get(1).get();
+                fail("expected the failure");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Every worker is busy waiting for a nested call, which can only finish
+    // because the calling threads do the work themselves.
+    @Test(timeout = 10000)
+    public void testNestedCallsComplete() throws Exception {
+        final WorkerPool pool = new WorkerPool("Test Worker", 2);
+        try {
+            List<Callable<Integer>> outer = new ArrayList<Callable<Integer>>();
+            for (int i = 0; i < 4; ++i) {
+                outer.add(new Callable<Integer>() {
+                    @Override public Integer call() throws Exception {
+                        List<Callable<Integer>> inner = new ArrayList<Callable<Integer>>();
+                        for (int j = 0; j < 4; ++j) inner.add(square(j));
+                        int sum = 0;
+                        for (Future<Integer> f : pool.runAll(inner)) sum += f.get();
+                        return sum;
+                    }
+                });
+            }
+
+            for (Future<Integer> f : pool.runAll(outer)) assertEquals(14, f.get().intValue());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -5,9 +5,51 @@ import edu.gemini.pot.sp.version.VersionMap
 
 /** Groups the information required to calculate a
   * [[edu.gemini.sp.vcs2.ProgramDiff]]. */
-case class DiffState(progKey: SPNodeKey, vm: VersionMap, removed: Set[SPNodeKey])
+case class DiffState(progKey: SPNodeKey, vm: VersionMap, removed: Set[SPNodeKey]) {
+
+  /** Extracts the part of this `DiffState` that falls in the given buckets of
+    * its [[edu.gemini.sp.vcs2.VersionDigest]]. */
+  def partial(digest: VersionDigest, buckets: Set[Int]): PartialDiffState = {
+    val inBuckets = VersionDigest.inBuckets(buckets)
+    PartialDiffState(progKey, digest, buckets, vm.filter { case (k, _) => inBuckets(k) }, removed.filter(inBuckets))
+  }
+}
 
 object DiffState {
   def apply(p: ISPProgram): DiffState =
     DiffState(p.getProgramKey, p.getVersions, removedKeys(p))
 }
+
+/** The digest of a `DiffState` along with its entries in the given buckets of
+  * the digest only.  Sent in place of the complete `DiffState` when the other
+  * side already has all the other entries. */
+case class PartialDiffState(progKey: SPNodeKey, digest: VersionDigest, buckets: Set[Int], vm: VersionMap, removed: Set[SPNodeKey]) {
+
+  /** Reconstructs the complete `DiffState` from the entries of `base` outside
+    * of the buckets this partial state carries, provided that all buckets in
+    * which `base` differs are among them. */
+  def complete(base: DiffState, baseDigest: VersionDigest): Option[DiffState] =
+    if (!(digest.differingBuckets(baseDigest) subsetOf buckets)) None
+    else {
+      val inBuckets = VersionDigest.inBuckets(buckets)
+      Some(DiffState(progKey, base.vm.filterNot { case (k, _) => inBuckets(k) } ++ vm, base.removed.filterNot(inBuckets) ++ removed))
+    }
+}
+
+/** Result of comparing a `PartialDiffState` with the other instance of the
+  * program. */
+sealed trait IncrementalDiff extends Serializable
+
+object IncrementalDiff {
+
+  /** Both instances of the program have the same `DiffState`. */
+  case object Same extends IncrementalDiff
+
+  /** More buckets differ than the `PartialDiffState` carried, so it has to be
+    * sent again with (at least) these buckets. */
+  case class Buckets(differing: Set[Int]) extends IncrementalDiff
+
+  /** The differences, as `fetchDiffs` would have returned them for the
+    * complete `DiffState`. */
+  case class Diff(diff: ProgramDiff.Transport) extends IncrementalDiff
+}
@@ -5,6 +5,7 @@ import edu.gemini.pot.sp.version._
 import edu.gemini.shared.util.VersionComparison.{Conflicting, Same, Newer}
 import edu.gemini.sp.vcs2.ProgramLocation.Remote
 import edu.gemini.sp.vcs2.ProgramLocationSet.{LocalOnly, Neither, RemoteOnly}
+import edu.gemini.sp.vcs2.VcsAction._
 import edu.gemini.sp.vcs2.VcsFailure.{Cancelled, IdClash, NeedsUpdate}
 import edu.gemini.sp.vcs.log.VcsEventSet
 import edu.gemini.spModel.core.{Peer, SPProgramID}
@@ -23,7 +24,11 @@ import scalaz.concurrent.Task
 /** Vcs provides the public API for vcs commands such as push, pull and sync. */
 class Vcs(user: VcsAction[Set[Principal]], server: VcsServer, service: Peer => VcsService) {
 
-  import Vcs.MergeEval
+  import Vcs.{MergeEval, SyncAllChunkSize}
+
+  // Peers found to lack the incremental diff methods, which are synced with
+  // `fetchDiffs` and `diffState` instead.
+  private val legacyPeers = java.util.concurrent.ConcurrentHashMap.newKeySet[Peer]()
 
   def hasPermission(p: Permission): VcsAction[Boolean] =
     user >>= { u => server.hasPermission(p, u) }
@@ -56,17 +61,18 @@ class Vcs(user: VcsAction[Set[Principal]], server: VcsServer, service: Peer => V
 
   // pull0 is shared by `pull` and `sync`, since the first half of a sync is
   // to merge in changes from the remote peer.  The local merge is only
-  // performed if the remote peer has something new to offer.
-  private def pull0(id: SPProgramID, client: Client, cancelled: AtomicBoolean): VcsAction[MergeEval] = {
+  // performed if the remote peer has something new to offer.  Differences
+  // fetched in advance for the program with the given digest are used instead
+  // of fetching them again, if the program still has that digest.
+  private def pull0(id: SPProgramID, client: Client, cancelled: AtomicBoolean, prefetched: Option[(VersionDigest, Option[ProgramDiff])] = None): VcsAction[MergeEval] = {
     def validateProgKey(local: ISPProgram, remote: MergePlan): VcsAction[Unit] = {
       val lKey = local.getProgramKey
       val rKey = remote.update.rootLabel.key
       if (lKey === rKey) VcsAction.unit else VcsAction.fail(IdClash(id, lKey, rKey))
     }
 
-    def evaluate(p: ISPProgram): VcsAction[MergeEval] =
+    def merge(p: ISPProgram, diffs: ProgramDiff): VcsAction[MergeEval] =
       for {
-        diffs  <- client.fetchDiffs(id, DiffState(p))
         _      <- checkCancel(cancelled)
         _      <- validateProgKey(p, diffs.plan)
         mc      = MergeContext(p, diffs)
@@ -74,6 +80,19 @@ class Vcs(user: VcsAction[Set[Principal]], server: VcsServer, service: Peer => V
         plan   <- MergeCorrection(mc)(prelim, hasPermission)
       } yield MergeEval(plan, p, mc.remote.vm)
 
+    // Nothing to merge if the remote program is the same as the local one.
+    def evaluate(p: ISPProgram): VcsAction[MergeEval] = {
+      val local = VersionDigest.forProgram(p)
+      val fetch = prefetched.collect {
+        case (digest, pd) if digest.sameAs(local._2) => VcsAction(pd)
+      }.getOrElse(client.fetchDiffsIncremental(id, local))
+
+      fetch >>= {
+        case None        => VcsAction(MergeEval.unchanged(p))
+        case Some(diffs) => merge(p, diffs)
+      }
+    }
+
     // Only do the merge if the merge plan has something new to offer.
     def filter(eval: MergeEval): Boolean = eval.localUpdate
 
@@ -111,9 +130,10 @@ class Vcs(user: VcsAction[Set[Principal]], server: VcsServer, service: Peer => V
 
     val client = Client(peer)
     for {
-      diffState <- client.diffState(id)
-      _         <- checkCancel(cancelled)
       u         <- user
+      local     <- server.read(id, u)(VersionDigest.forProgram)
+      diffState <- client.diffStateIncremental(id, local._1, local._2)
+      _         <- checkCancel(cancelled)
       lp        <- server.read(id, u) { p => LocalProg(p.getProgramKey, ProgramDiff.compare(p, diffState), p.getVersions) }
       _         <- validateProgKey(lp.key, diffState)
       _         <- checkCancel(cancelled)
@@ -135,18 +155,16 @@ class Vcs(user: VcsAction[Set[Principal]], server: VcsServer, service: Peer => V
   def sync(id: SPProgramID, peer: Peer, cancelled: AtomicBoolean): VcsAction[(ProgramLocationSet, VersionMap)] = {
     val client = Client(peer)
     for {
-      eval <- pull0(id, client, cancelled)
-      s0    = eval.localUpdate.fold(LocalOnly, Neither)
-      res  <- eval match {
-        case MergeEval(_,     _,   rvm, _, false) =>
-          VcsAction((s0, rvm))
-
-        case MergeEval(diffs, lvm, rvm, _, true)  =>
-          client.storeDiffs(id, diffs).map { updated =>
-            if (updated) (s0 + Remote, eval.plan.vm(rvm)) else (s0, rvm)
-          }
-      }
-    } yield res
+      eval    <- pull0(id, client, cancelled)
+      updated <- if (eval.remoteUpdate) client.storeDiffs(id, eval.plan) else VcsAction(false)
+    } yield syncResult(eval, updated)
+  }
+
+  // The result of a sync given the merge evaluation and whether the remote
+  // program was updated with the merge plan.
+  private def syncResult(eval: MergeEval, updated: Boolean): (ProgramLocationSet, VersionMap) = {
+    val s0 = eval.localUpdate.fold(LocalOnly, Neither)
+    if (updated) (s0 + Remote, eval.plan.vm(eval.remoteVm)) else (s0, eval.remoteVm)
   }
 
   /** Returns a `VcsAction` that will sync the program with the remote peer,
@@ -163,6 +181,115 @@ class Vcs(user: VcsAction[Set[Principal]], server: VcsServer, service: Peer => V
     (sync(id, peer, cancelled).swap >>= retryIfNeedsUpdate).swap
   }
 
+  /** Returns a `VcsAction` that will sync many programs with the remote peer,
+    * with the same result for each program as `retrySync`.  Rather than
+    * syncing the programs one after the other, the differences of all the
+    * programs are fetched in one request, the local merges are performed
+    * concurrently, and the merged programs are stored in one request.  The
+    * remote peer handles the programs of a request concurrently as well.  Each
+    * program is read and written with its own lock just as in `sync`, so
+    * updates of any one program remain serialized.
+    *
+    * Programs that can't be handled this way, for example because they were
+    * updated remotely in the meantime, are synced on their own with
+    * `retrySync`.  So are all the programs if the peer runs an older version
+    * without the batched methods, in which case `retrySync` uses `fetchDiffs`
+    * and `diffState` just as that version does.
+    *
+    * The programs are handled in chunks of `SyncAllChunkSize`, so that the
+    * results of the first programs don't wait for all the others.  The result
+    * for each program is handed to `report` as soon as it is known, one at a
+    * time but not necessarily from the same thread, and the results for all
+    * programs are returned at the end. */
+  def syncAll(ids: Set[SPProgramID], peer: Peer, cancelled: AtomicBoolean, retryCount: Int)
+             (report: (SPProgramID, TryVcs[(ProgramLocationSet, VersionMap)]) => Unit): VcsAction[Map[SPProgramID, TryVcs[(ProgramLocationSet, VersionMap)]]] = {
+
+    type Result = TryVcs[(ProgramLocationSet, VersionMap)]
+
+    val client = Client(peer)
+    val lock   = new Object
+
+    def done(id: SPProgramID, r: Result): List[(SPProgramID, Result)] = {
+      lock.synchronized(report(id, r))
+      List(id -> r)
+    }
+
+    def single(id: SPProgramID, retries: Int): List[(SPProgramID, Result)] =
+      done(id, if (retries < 0) -\/(NeedsUpdate) else retrySync(id, peer, cancelled, retries).unsafeRun)
+
+    // A batched request fails as a whole only if the peer can't handle it, in
+    // which case all of its programs are synced on their own.  A peer without
+    // the batched methods is older than the incremental ones as well, so it
+    // is synced with `fetchDiffs` and `diffState` from then on.
+    def batch[A, B](m: Map[SPProgramID, A])(f: Map[SPProgramID, A] => VcsAction[Map[SPProgramID, TryVcs[B]]]): Map[SPProgramID, TryVcs[B]] =
+      if (m.isEmpty || legacyPeers.contains(peer)) Map.empty
+      else f(m).unsafeRun match {
+        case \/-(r) => r
+        case -\/(e) =>
+          if (VcsFailure.isUnsupported(e)) legacyPeers.add(peer)
+          Map.empty
+      }
+
+    def run(u: Set[Principal], ids: List[SPProgramID]): List[(SPProgramID, Result)] = {
+      val locals = ids.map { id => id -> server.read(id, u)(VersionDigest.forProgram).unsafeRun }
+      val failed = locals.collect { case (id, -\/(f)) => done(id, -\/(f)) }.flatten
+      val states = locals.collect { case (id, \/-(s)) => id -> s }.toMap
+
+      // Fetch the differences, sending the buckets the peer asks for in a
+      // second request.
+      val first   = batch(states.map { case (id, (ds, d)) => id -> ds.partial(d, Set.empty) })(client.fetchDiffsAll)
+      val second  = batch(first.collect { case (id, \/-(IncrementalDiff.Buckets(bs))) =>
+                      val (ds, d) = states(id)
+                      id -> ds.partial(d, bs)
+                    })(client.fetchDiffsAll)
+      val fetched = (first ++ second).toList.collect {
+        case (id, \/-(IncrementalDiff.Same))       => id -> TryVcs(none[ProgramDiff])
+        case (id, \/-(IncrementalDiff.Diff(diff))) => id -> TryVcs(some(diff.decode))
+        case (id, -\/(f))                          => id -> (-\/(f): TryVcs[Option[ProgramDiff]])
+      }
+
+      // Merge locally, reporting the programs that need not be stored as soon
+      // as they are merged.
+      val merged = fetched.map(_._1).zip(VcsServer.parallel(fetched.map { case (id, pd) => () =>
+        val eval = pd.flatMap(d => pull0(id, client, cancelled, Some(states(id)._2 -> d)).unsafeRun)
+        eval match {
+          case -\/(f)                     => TryVcs(done(id, -\/(f)).left[MergeEval])
+          case \/-(e) if !e.remoteUpdate => TryVcs(done(id, \/-(syncResult(e, updated = false))).left[MergeEval])
+          case \/-(e)                     => TryVcs(e.right[List[(SPProgramID, Result)]])
+        }
+      }))
+      val mergeResults = merged.collect { case (_, \/-(-\/(rs))) => rs }.flatten
+      val toStore      = merged.collect { case (id, \/-(\/-(e))) => id -> e }
+
+      // The merge task itself can only fail unexpectedly.
+      val failedMerges = merged.collect { case (id, -\/(f)) => done(id, -\/(f)) }.flatten
+
+      // Store the merged programs remotely.
+      val stored = batch(toStore.map { case (id, e) => id -> e.plan.encode }.toMap)(client.storeDiffsAll)
+      val storeResults = toStore.flatMap { case (id, e) =>
+        stored.get(id) match {
+          case Some(\/-(updated))    => done(id, \/-(syncResult(e, updated)))
+          case Some(-\/(NeedsUpdate)) => single(id, retryCount - 1)
+          case Some(-\/(f))           => done(id, -\/(f))
+          case None                   => single(id, retryCount)
+        }
+      }
+
+      // Whatever couldn't be fetched in a batch.
+      val singles = (states.keySet -- fetched.map(_._1)).toList.flatMap(single(_, retryCount))
+
+      failed ++ mergeResults ++ failedMerges ++ storeResults ++ singles
+    }
+
+    def runAll(u: Set[Principal]): Map[SPProgramID, Result] =
+      ids.toList.grouped(SyncAllChunkSize).flatMap { chunk =>
+        if (cancelled.get()) chunk.flatMap(done(_, -\/(Cancelled))) else run(u, chunk)
+      }.toMap
+
+    if (cancelled.get()) VcsAction(ids.toList.flatMap(done(_, -\/(Cancelled))).toMap)
+    else user >>= { u => VcsAction(runAll(u)) }
+  }
+
   /** Provides access to (a chunk of) the VCS log. */
   def log(id: SPProgramID, peer: Peer, offset: Int, length: Int): VcsAction[(List[VcsEventSet], Boolean)] =
     Client(peer).log(id, offset, length)
@@ -178,9 +305,61 @@ class Vcs(user: VcsAction[Set[Principal]], server: VcsServer, service: Peer => V
     def fetchDiffs(id: SPProgramID, vs: DiffState): VcsAction[ProgramDiff] =
       s.fetchDiffs(id, vs).map(_.decode).liftVcs
 
+    // Performs the `incremental` action unless the peer is known not to
+    // support it, or turns out not to when it is performed, in which case the
+    // `legacy` action is performed instead.
+    private def orLegacy[A](incremental: => VcsAction[A])(legacy: => VcsAction[A]): VcsAction[A] =
+      EitherT(Task.suspend {
+        if (legacyPeers.contains(peer)) legacy.run
+        else incremental.run.flatMap {
+          case -\/(f) if VcsFailure.isUnsupported(f) =>
+            legacyPeers.add(peer)
+            legacy.run
+          case r                                     =>
+            Task.now(r)
+        }
+      })
+
+    /** Gets the remote `DiffState`, transferring only the entries that differ
+      * from the given local one.  Falls back to `diffState` for peers that
+      * don't support this. */
+    def diffStateIncremental(id: SPProgramID, local: DiffState, digest: VersionDigest): VcsAction[DiffState] =
+      orLegacy(s.diffStateIncremental(id, digest).liftVcs >>= {
+        case None     => VcsAction(local)
+        case Some(ps) => ps.complete(local, digest).fold(diffState(id))(ds => VcsAction(ds))
+      })(diffState(id))
+
+    /** Fetches remote differences, first sending just the digest of the local
+      * diff state and then the entries of the digest buckets that the remote
+      * peer reports as differing.  Returns `None` if the remote program is
+      * the same as the local one.  Falls back to `fetchDiffs` for peers that
+      * don't support this. */
+    def fetchDiffsIncremental(id: SPProgramID, local: (DiffState, VersionDigest)): VcsAction[Option[ProgramDiff]] = {
+      val (ds, digest) = local
+
+      // The remote program may change between requests, so the buckets
+      // reported may not be all that differ by the time they are sent.
+      def go(buckets: Set[Int], retries: Int): VcsAction[Option[ProgramDiff]] =
+        s.fetchDiffsIncremental(id, ds.partial(digest, buckets)).liftVcs >>= {
+          case IncrementalDiff.Same          => VcsAction(none[ProgramDiff])
+          case IncrementalDiff.Diff(diff)    => VcsAction(some(diff.decode))
+          case IncrementalDiff.Buckets(more) =>
+            if (retries > 0) go(buckets ++ more, retries - 1)
+            else fetchDiffs(id, ds).map(d => some(d))
+        }
+
+      orLegacy(go(Set.empty, 2))(fetchDiffs(id, ds).map(d => some(d)))
+    }
+
     def storeDiffs(id: SPProgramID, mp: MergePlan): VcsAction[Boolean] =
       s.storeDiffs(id, mp.encode).liftVcs
 
+    def fetchDiffsAll(states: Map[SPProgramID, PartialDiffState]): VcsAction[Map[SPProgramID, TryVcs[IncrementalDiff]]] =
+      s.fetchDiffsAll(states).liftVcs
+
+    def storeDiffsAll(plans: Map[SPProgramID, MergePlan.Transport]): VcsAction[Map[SPProgramID, TryVcs[Boolean]]] =
+      s.storeDiffsAll(plans).liftVcs
+
     def log(id: SPProgramID, offset: Int, length: Int): VcsAction[(List[VcsEventSet], Boolean)] =
       s.log(id, offset, length).liftVcs
   }
@@ -188,6 +367,9 @@ class Vcs(user: VcsAction[Set[Principal]], server: VcsServer, service: Peer => V
 
 object Vcs {
 
+  /** Number of programs that `syncAll` handles together. */
+  val SyncAllChunkSize = 25
+
   def apply(kc: KeyChain, server: VcsServer): Vcs =
     new Vcs(VcsAction(kc.subject.getPrincipals.asScala.toSet), server, VcsService.client(_, kc))
 
@@ -211,5 +393,9 @@ object Vcs {
 
       MergeEval(plan, localVm, remoteVm, local, remote)
     }
+
+    /** Evaluation for a program that is the same locally and remotely. */
+    def unchanged(p: ISPProgram): MergeEval =
+      MergeEval(MergePlan(MergeNode.unmodified(p).leaf, Set.empty), p.getVersions, p.getVersions, localUpdate = false, remoteUpdate = false)
   }
 }
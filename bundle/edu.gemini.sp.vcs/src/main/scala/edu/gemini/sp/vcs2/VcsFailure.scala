@@ -1,6 +1,6 @@
 package edu.gemini.sp.vcs2
 
-import java.io.IOException
+import java.io.{InvalidClassException, IOException}
 import java.util.logging.{Level, Logger}
 
 import edu.gemini.pot.sp.SPNodeKey
@@ -58,6 +58,26 @@ object VcsFailure {
   def idClash(ex: DBIDClashException): VcsFailure =
     IdClash(ex.id, ex.existingKey, ex.newKey)
 
+  /** True if the failure is due to the remote peer not supporting the service
+    * method that was called, as happens when the peer runs an older version.
+    * An older trpc servlet reads the arguments before it looks for the
+    * method, so a call that passes classes the peer doesn't have (or has in
+    * an incompatible version) fails with a `ClassNotFoundException` or an
+    * `InvalidClassException`.  Otherwise an unknown method fails with a
+    * `NoSuchMethodException`. */
+  def isUnsupported(f: VcsFailure): Boolean = {
+    def unsupported(t: Throwable, depth: Int): Boolean =
+      (t != null) && (depth < 10) && (t match {
+        case _: NoSuchMethodException | _: ClassNotFoundException | _: InvalidClassException => true
+        case _                                                                             => unsupported(t.getCause, depth + 1)
+      })
+
+    f match {
+      case VcsException(ex) => unsupported(ex, 0)
+      case _                => false
+    }
+  }
+
   def explain(f: VcsFailure, id: SPProgramID, op: String, peer: Option[Peer]): String = {
 
     val peerName = peer.map { p => s"${p.host}:${p.port}" } | "remote host"
@@ -15,8 +15,13 @@ import java.security.{Permission, Principal}
 
 import edu.gemini.util.security.principal.GeminiPrincipal
 
+import edu.gemini.shared.util.exec.WorkerPool
+
+import java.util.concurrent.Callable
 import java.util.logging.Logger
 
+import scala.collection.JavaConverters._
+
 import scalaz._
 import Scalaz._
 
@@ -126,6 +131,26 @@ class VcsServer(odb: IDBDatabaseService) { vs =>
         ProgramDiff.compare(p, state)
       }.map(_.encode).unsafeRun
 
+    override def diffStateIncremental(id: SPProgramID, digest: VersionDigest): TryVcs[Option[PartialDiffState]] =
+      vs.read(id, user) { p =>
+        val (ds, d) = VersionDigest.forProgram(p)
+        if (d.sameAs(digest)) none[PartialDiffState]
+        else some(ds.partial(d, d.differingBuckets(digest)))
+      }.unsafeRun
+
+    override def fetchDiffsIncremental(id: SPProgramID, ps: PartialDiffState): TryVcs[IncrementalDiff] =
+      vs.read(id, user) { p =>
+        val (ds, d) = VersionDigest.forProgram(p)
+        if (d.sameAs(ps.digest)) {
+          vcsLog.log(OpFetch, id, geminiPrincipals)
+          IncrementalDiff.Same
+        } else
+          ps.complete(ds, d).fold(IncrementalDiff.Buckets(ps.digest.differingBuckets(d)): IncrementalDiff) { state =>
+            vcsLog.log(OpFetch, id, geminiPrincipals)
+            IncrementalDiff.Diff(ProgramDiff.compare(p, state).encode)
+          }
+      }.unsafeRun
+
     override def storeDiffs(id: SPProgramID, mpt: MergePlan.Transport): TryVcs[Boolean] = {
       def versionCheck(p: ISPProgram, mp: MergePlan): VcsAction[Boolean] =
         mp.compare(p.getVersions) match {
@@ -148,6 +173,19 @@ class VcsServer(odb: IDBDatabaseService) { vs =>
       ).unsafeRun
     }
 
+    override def fetchDiffsAll(states: Map[SPProgramID, PartialDiffState]): TryVcs[Map[SPProgramID, TryVcs[IncrementalDiff]]] =
+      TryVcs(all(states)(fetchDiffsIncremental))
+
+    override def storeDiffsAll(plans: Map[SPProgramID, MergePlan.Transport]): TryVcs[Map[SPProgramID, TryVcs[Boolean]]] =
+      TryVcs(all(plans)(storeDiffs))
+
+    // Handles each program concurrently, with its own lock as if it had been
+    // the subject of a separate request.
+    private def all[A, B](m: Map[SPProgramID, A])(f: (SPProgramID, A) => TryVcs[B]): Map[SPProgramID, TryVcs[B]] = {
+      val ps = m.toList
+      ps.map(_._1).zip(VcsServer.parallel(ps.map { case (id, a) => () => f(id, a) })).toMap
+    }
+
     override def log(id: SPProgramID, offset:Int, length:Int): TryVcs[(List[VcsEventSet], Boolean)] =
       try {
         vcsLog.selectByProgram(id, offset, length).right
@@ -182,4 +220,37 @@ class VcsServer(odb: IDBDatabaseService) { vs =>
 
 object VcsServer {
   private val Log = Logger.getLogger(VcsServer.getClass.getName)
-}
\ No newline at end of file
+
+  /** Property that sets the number of worker threads shared by all
+    * operations on many programs at once (default 4). */
+  val ParallelismProp = "edu.gemini.sp.vcs.parallelism"
+
+  val DefaultParallelism = 4
+
+  lazy val Parallelism: Int =
+    Option(System.getProperty(ParallelismProp)).fold(DefaultParallelism) { s =>
+      try {
+        val n = s.trim.toInt
+        if (n > 0) n else { Log.warning(s"Value of property '$ParallelismProp' must be > 0, using $DefaultParallelism"); DefaultParallelism }
+      } catch {
+        case _: NumberFormatException =>
+          Log.warning(s"Could not parse value of property '$ParallelismProp': $s")
+          DefaultParallelism
+      }
+    }
+
+  private lazy val pool = new WorkerPool("VCS Worker", Parallelism)
+
+  /** Performs the given computations concurrently and returns their results
+    * in order.  At most `Parallelism` are performed by the shared worker
+    * threads at a time.  The calling thread performs any computation that no
+    * worker has started by the time its result is needed, so nested calls
+    * can't starve the workers. */
+  def parallel[A](fs: List[() => TryVcs[A]]): List[TryVcs[A]] =
+    pool.runAll(fs.map { f =>
+      new Callable[TryVcs[A]] {
+        override def call(): TryVcs[A] =
+          \/.fromTryCatchNonFatal(f()).fold(ex => VcsException(ex).left, identity)
+      }
+    }.asJava).asScala.toList.map(_.get)
+}
@@ -7,6 +7,7 @@ import edu.gemini.sp.vcs.log.VcsEventSet
 import edu.gemini.spModel.core.{Peer, SPProgramID}
 import edu.gemini.util.security.auth.keychain.KeyChain
 import edu.gemini.util.trpc.client.TrpcClient
+import edu.gemini.util.trpc.common.Idempotent
 
 import scalaz._
 import Scalaz._
@@ -14,30 +15,56 @@ import Scalaz._
 /** Public interface for VCS service. Defines the API for low-level inter-JVM
   * operations that are conducted over trpc.  There is a server implementation
   * in [[edu.gemini.sp.vcs2.VcsServer]] and a trpc client in
-  * [[edu.gemini.sp.vcs2.Vcs]]. */
+  * [[edu.gemini.sp.vcs2.Vcs]].  Methods that only read are marked
+  * `Idempotent`, so that they may be sent again over a fresh connection. */
 trait VcsService {
 
   /** Fetches the `VersionMap`. */
+  @Idempotent
   def version(id: SPProgramID): TryVcs[VersionMap]
 
   /** Add the given program, copying it to the remote database. */
   def add(p: ISPProgram): TryVcs[Unit]
 
   /** Checkout the corresponding program, copying it to the local database. */
+  @Idempotent
   def checkout(id: SPProgramID): TryVcs[ISPProgram]
 
   /** Gets the `VersionMap` and the set of `SPNodeKey` that correspond to
     * deleted nodes. */
+  @Idempotent
   def diffState(id: SPProgramID): TryVcs[DiffState]
 
+  /** Gets the parts of the `DiffState` that differ from the one summarized by
+    * the given digest, or `None` if there are no differences. */
+  @Idempotent
+  def diffStateIncremental(id: SPProgramID, digest: VersionDigest): TryVcs[Option[PartialDiffState]]
+
   /** Obtains remote differences based on the provided local diff state. */
+  @Idempotent
   def fetchDiffs(id: SPProgramID, ds: DiffState): TryVcs[ProgramDiff.Transport]
 
+  /** Obtains remote differences based on the provided partial local diff
+    * state, provided that it carries all the entries that differ. */
+  @Idempotent
+  def fetchDiffsIncremental(id: SPProgramID, ps: PartialDiffState): TryVcs[IncrementalDiff]
+
   /** Applies the given `MergePlan` to the remote program, returning `true`
     * if the program is actually updated; `false` otherwise. */
   def storeDiffs(id: SPProgramID, mp: MergePlan.Transport): TryVcs[Boolean]
 
+  /** Obtains remote differences for several programs at once, as
+    * `fetchDiffsIncremental` would for each of them.  The programs are
+    * handled concurrently. */
+  @Idempotent
+  def fetchDiffsAll(states: Map[SPProgramID, PartialDiffState]): TryVcs[Map[SPProgramID, TryVcs[IncrementalDiff]]]
+
+  /** Applies merge plans to several programs at once, as `storeDiffs` would
+    * for each of them.  The programs are handled concurrently. */
+  def storeDiffsAll(plans: Map[SPProgramID, MergePlan.Transport]): TryVcs[Map[SPProgramID, TryVcs[Boolean]]]
+
   /** Fetches a chunk of the vcs log. */
+  @Idempotent
   def log(p: SPProgramID, offset:Int, length:Int): TryVcs[(List[VcsEventSet], Boolean)]
 }
 
@@ -51,12 +78,24 @@ object VcsService {
     override def fetchDiffs(id: SPProgramID, ds: DiffState) =
       call(_.fetchDiffs(id, ds))
 
+    override def fetchDiffsIncremental(id: SPProgramID, ps: PartialDiffState) =
+      call(_.fetchDiffsIncremental(id, ps))
+
+    override def fetchDiffsAll(states: Map[SPProgramID, PartialDiffState]) =
+      call(_.fetchDiffsAll(states))
+
+    override def storeDiffsAll(plans: Map[SPProgramID, MergePlan.Transport]) =
+      call(_.storeDiffsAll(plans))
+
     override def log(p: SPProgramID, offset: Int, length: Int) =
       call(_.log(p, offset, length))
 
     override def diffState(id: SPProgramID) =
       call(_.diffState(id))
 
+    override def diffStateIncremental(id: SPProgramID, digest: VersionDigest) =
+      call(_.diffStateIncremental(id, digest))
+
     override def checkout(id: SPProgramID) =
       call(_.checkout(id))
 
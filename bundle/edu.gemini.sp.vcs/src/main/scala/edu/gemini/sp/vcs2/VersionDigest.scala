@@ -0,0 +1,137 @@
+package edu.gemini.sp.vcs2
+
+import edu.gemini.pot.sp.{ISPProgram, SPNodeKey}
+import edu.gemini.pot.sp.version._
+
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.UUID
+
+/** A Merkle-style summary of a [[edu.gemini.sp.vcs2.DiffState]].  The node
+  * keys of the version map are spread over a fixed number of buckets by the
+  * leading bits of their UUID.  Each bucket is summarized by a hash of the
+  * version information and removed flag of the nodes it contains, buckets are
+  * grouped and summarized by a hash of their hashes, and the groups in turn
+  * by the root hash.
+  *
+  * Two program instances with the same root hash have the same `DiffState`.
+  * Otherwise the buckets that differ are found by descending only into the
+  * groups whose hashes differ, and only the entries of those buckets need to
+  * be exchanged (see [[edu.gemini.sp.vcs2.PartialDiffState]]).
+  *
+  * The size of a digest doesn't depend on the size of the program.
+  */
+case class VersionDigest(progKey: SPNodeKey, root: VersionDigest.Hash, groups: Vector[VersionDigest.Hash], buckets: Vector[VersionDigest.Hash]) {
+  import VersionDigest._
+
+  /** True if the `DiffState`s summarized by the two digests are the same. */
+  def sameAs(that: VersionDigest): Boolean =
+    root == that.root
+
+  /** Indices of the buckets that differ between this digest and `that`. */
+  def differingBuckets(that: VersionDigest): Set[Int] =
+    if (sameAs(that)) Set.empty
+    else
+      (0 until GroupCount).filter(g => groups(g) != that.groups(g)).flatMap { g =>
+        (g * GroupSize until (g + 1) * GroupSize).filter(b => buckets(b) != that.buckets(b))
+      }.toSet
+}
+
+object VersionDigest {
+
+  /** The first 128 bits of a SHA-256 hash. */
+  case class Hash(hi: Long, lo: Long)
+
+  val BucketCount = 256
+  val GroupSize   = 16
+  val GroupCount  = BucketCount / GroupSize
+
+  /** Number of programs for which the last computed digest is kept. */
+  private val CacheSize = 128
+
+  /** The bucket holding the entry for the given node key. */
+  def bucket(k: SPNodeKey): Int =
+    (k.uuid.getMostSignificantBits >>> 56).toInt
+
+  def inBuckets(bs: Set[Int]): SPNodeKey => Boolean =
+    k => bs.contains(bucket(k))
+
+  // Feeds fixed size values to a SHA-256 digest.
+  private final class Hasher {
+    private val md  = MessageDigest.getInstance("SHA-256")
+    private val buf = ByteBuffer.allocate(8)
+
+    def long(l: Long): Hasher = {
+      buf.clear()
+      md.update(buf.putLong(l).array(), 0, 8)
+      this
+    }
+
+    def int(i: Int): Hasher = {
+      buf.clear()
+      md.update(buf.putInt(i).array(), 0, 4)
+      this
+    }
+
+    def uuid(u: UUID): Hasher =
+      long(u.getMostSignificantBits).long(u.getLeastSignificantBits)
+
+    def hash(h: Hash): Hasher =
+      long(h.hi).long(h.lo)
+
+    def result: Hash = {
+      val bb = ByteBuffer.wrap(md.digest())
+      Hash(bb.getLong, bb.getLong)
+    }
+  }
+
+  private def bucketHash(ds: DiffState, keys: List[SPNodeKey]): Hash = {
+    val h = new Hasher
+    keys.sortBy(_.uuid).foreach { k =>
+      // Zero clocks don't change the version, so leave them out.
+      val clocks = nodeVersions(ds.vm, k).clocks.toList.filter(_._2.intValue != 0).sortBy(_._1.uuid)
+      h.uuid(k.uuid).int(if (ds.removed.contains(k)) 1 else 0).int(clocks.size)
+      clocks.foreach { case (id, v) => h.uuid(id.uuid).int(v.intValue) }
+    }
+    h.result
+  }
+
+  def apply(ds: DiffState): VersionDigest = {
+    val keys = Array.fill(BucketCount)(List.empty[SPNodeKey])
+    def add(k: SPNodeKey): Unit = {
+      val b = bucket(k)
+      keys(b) = k :: keys(b)
+    }
+    ds.vm.keys.foreach(add)
+    ds.removed.filterNot(ds.vm.contains).foreach(add)
+
+    val buckets = keys.toVector.map(bucketHash(ds, _))
+    val groups  = buckets.grouped(GroupSize).map(_.foldLeft(new Hasher)(_.hash(_)).result).toVector
+    val root    = groups.foldLeft(new Hasher().uuid(ds.progKey.uuid))(_.hash(_)).result
+    VersionDigest(ds.progKey, root, groups, buckets)
+  }
+
+  private val cache = new java.util.LinkedHashMap[SPNodeKey, (VersionMap, DiffState, VersionDigest)](16, 0.75f, true) {
+    override def removeEldestEntry(e: java.util.Map.Entry[SPNodeKey, (VersionMap, DiffState, VersionDigest)]): Boolean =
+      size > CacheSize
+  }
+
+  /** The `DiffState` of the program along with its digest.  Every edit of a
+    * program replaces its `VersionMap`, so both are only recomputed when the
+    * program's `VersionMap` is not the one they were last computed for.
+    * Should be called with at least a read lock held on the program. */
+  def forProgram(p: ISPProgram): (DiffState, VersionDigest) = {
+    val key = p.getProgramKey
+    val vm  = p.getVersions
+    cache.synchronized(Option(cache.get(key))) match {
+      case Some((vm0, ds, d)) if vm0 eq vm =>
+        (ds, d)
+
+      case _                               =>
+        val ds = DiffState(key, vm, removedKeys(p))
+        val d  = VersionDigest(ds)
+        cache.synchronized(cache.put(key, (vm, ds, d)))
+        (ds, d)
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package edu.gemini.sp.vcs2
+
+import edu.gemini.pot.sp.ISPProgram
+import edu.gemini.pot.sp.version.EmptyVersionMap
+import edu.gemini.pot.spdb.DBLocalDatabase
+import edu.gemini.spModel.io.impl.PioSpXmlParser
+import edu.gemini.util.trpc.common._
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, File, FileReader}
+
+import scalaz._
+import Scalaz._
+
+/**
+ * Measures the bytes on the wire and the encoding and decoding time of trpc replies carrying program checkouts and
+ * the merge plans of a first fetch (a `fetchDiffs` against an empty `DiffState`), for each trpc codec.  The programs
+ * are read from a directory of program XML files, for example an ODB export.  This is not a test case.  Run with:
+ *
+ * <pre>
+ *     TrpcCodecBenchmark dir [rounds]
+ * </pre>
+ */
+object TrpcCodecBenchmark {
+
+  private def encode(c: Codec, a: AnyRef): Array[Byte] = {
+    val bos = new ByteArrayOutputStream()
+    c.encode(bos).writeRaw(a)
+    bos.toByteArray
+  }
+
+  private def decode(c: Codec, bs: Array[Byte]): AnyRef =
+    closing(c.decode(new ByteArrayInputStream(bs)).readRaw)(_.next[AnyRef])
+
+  // CPU time of the current thread, in ms per round
+  private def time(rounds: Int)(f: => Unit): Double = {
+    val bean = java.lang.management.ManagementFactory.getThreadMXBean
+    f // warm up
+    val t0 = bean.getCurrentThreadCpuTime
+    (1 to rounds).foreach(_ => f)
+    val t1 = bean.getCurrentThreadCpuTime
+    (t1 - t0).toDouble / rounds / 1e6
+  }
+
+  private def programs(dir: File, parser: PioSpXmlParser): List[ISPProgram] =
+    Option(dir.listFiles).getOrElse(Array.empty[File]).filter(_.getName.endsWith(".xml")).sortBy(_.getName).toList.flatMap { f =>
+      parser.parseDocument(new FileReader(f)) match {
+        case p: ISPProgram => List(p)
+        case _             => Nil
+      }
+    }
+
+  def main(args: Array[String]): Unit =
+    args match {
+      case Array(dir)         => run(new File(dir), 5)
+      case Array(dir, rounds) => run(new File(dir), rounds.toInt)
+      case _                  => println("usage: TrpcCodecBenchmark <dir> [rounds]")
+    }
+
+  private def run(dir: File, rounds: Int): Unit = {
+    val odb = DBLocalDatabase.createTransient()
+    try {
+      // The replies as TrpcServlet writes them.
+      val payloads: List[(String, AnyRef)] = programs(dir, new PioSpXmlParser(odb.getFactory)).flatMap { p =>
+        val diff = ProgramDiff.compare(p, DiffState(p.getProgramKey, EmptyVersionMap, Set.empty)).encode
+        List(
+          s"checkout   ${p.getProgramID}" -> TryVcs(p).right[Exception],
+          s"fetchDiffs ${p.getProgramID}" -> TryVcs(diff).right[Exception]
+        )
+      }
+      println(s"${payloads.size} payloads")
+      println(f"${"payload"}%-40s ${"codec"}%-10s ${"bytes"}%12s ${"ratio"}%7s ${"encode ms"}%10s ${"decode ms"}%10s")
+
+      val totals = Codec.All.map(_ -> 0L).toMap
+      val sums = payloads.foldLeft(totals) { case (sum, (name, a)) =>
+        val plain = encode(Codec.Identity, a).length
+        Codec.All.foldLeft(sum) { (s, c) =>
+          val bs = encode(c, a)
+          val e  = time(rounds)(encode(c, a))
+          val d  = time(rounds)(decode(c, bs))
+          println(f"$name%-40s ${c.name}%-10s ${bs.length}%12d ${bs.length.toDouble / plain}%7.3f $e%10.2f $d%10.2f")
+          s.updated(c, s(c) + bs.length)
+        }
+      }
+
+      Codec.All.foreach { c =>
+        println(f"${"total"}%-40s ${c.name}%-10s ${sums(c)}%12d ${sums(c).toDouble / (sums(Codec.Identity) max 1L)}%7.3f")
+      }
+    } finally {
+      odb.getDBAdmin.shutdown()
+    }
+  }
+}
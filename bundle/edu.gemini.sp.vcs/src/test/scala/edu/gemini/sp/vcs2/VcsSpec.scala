@@ -1,16 +1,21 @@
 package edu.gemini.sp.vcs2
 
+import edu.gemini.pot.sp.ISPProgram
 import edu.gemini.pot.sp.version.VersionMap
 import edu.gemini.sp.vcs2.ProgramLocationSet.{Both, LocalOnly, Neither, RemoteOnly}
 import edu.gemini.sp.vcs2.VcsAction._
-import edu.gemini.sp.vcs2.VcsFailure.NeedsUpdate
+import edu.gemini.sp.vcs2.VcsFailure.{Cancelled, NeedsUpdate, NotFound, VcsException}
 import edu.gemini.spModel.core.SPProgramID
 import edu.gemini.spModel.obscomp.SPNote
-import edu.gemini.util.security.principal.ProgramPrincipal
+import edu.gemini.util.security.principal.{ProgramPrincipal, StaffPrincipal}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, InvalidClassException, ObjectInputStream, ObjectOutputStream, ObjectStreamClass}
+import java.security.Principal
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicBoolean
 
 import org.specs2.specification.core.Fragments
 
+import scala.collection.JavaConverters._
 import scalaz._
 
 class VcsSpec extends VcsSpecification {
@@ -241,6 +246,154 @@ class VcsSpec extends VcsSpecification {
 
   syncFragments("sync", (vcs, pid) => vcs.sync(pid, DummyPeer, notCancelled))
   syncFragments("retrySync", (vcs, pid) => vcs.retrySync(pid, DummyPeer, notCancelled, 10))
+  syncFragments("syncAll", (vcs, pid) => vcs.syncAll(Set(pid), DummyPeer, notCancelled, 10)((_, _) => ()).flatMap(_(pid).liftVcs))
+
+  "syncAll" should {
+    "sync each program and report its result" in withVcs { env =>
+      env.local.addNewProgram(Q2)
+      env.local.superStaffVcs.add(Q2, DummyPeer).unsafeRun
+      env.local.progTitle = "The Myth of Sisyphus"
+
+      val reported = new ConcurrentHashMap[SPProgramID, TryVcs[(ProgramLocationSet, VersionMap)]]()
+      val act      = env.local.superStaffVcs.syncAll(Set(Q1, Q2, Q3), DummyPeer, notCancelled, 10) { (id, r) =>
+        reported.put(id, r)
+      }
+
+      expect(act) {
+        case \/-(rs) =>
+          (rs(Q1) must beLike { case \/-((RemoteOnly, _)) => ok }) and
+            (rs(Q2) must beLike { case \/-((Neither, _)) => ok }) and
+            (rs(Q3) must beLike { case -\/(NotFound(Q3)) => ok }) and
+            (reported.asScala.toMap must_== rs)
+      } and (env.remote.progTitle must_== "The Myth of Sisyphus")
+    }
+
+    "do nothing if cancelled" in withVcs { env =>
+      env.local.progTitle = "The Myth of Sisyphus"
+
+      expect(env.local.superStaffVcs.syncAll(Set(Q1), DummyPeer, cancelled, 10)((_, _) => ())) {
+        case \/-(rs) => rs(Q1) must beLike { case -\/(Cancelled) => ok }
+      } and (env.remote.progTitle must_== Title)
+    }
+
+    "report the programs of a chunk before syncing the next" in withVcs { env =>
+      val ids  = (1 to 2 * Vcs.SyncAllChunkSize).map(i => SPProgramID.toProgramID(s"GS-2015B-Q-${100 + i}")).toSet
+      val stop = new AtomicBoolean(false)
+
+      // Cancelling as soon as the first result arrives stops the second chunk.
+      expect(env.local.superStaffVcs.syncAll(ids, DummyPeer, stop, 10)((_, _) => stop.set(true))) {
+        case \/-(rs) =>
+          (rs.values.count { case -\/(NotFound(_)) => true; case _ => false } must_== Vcs.SyncAllChunkSize) and
+            (rs.values.count(_ == -\/(Cancelled)) must_== Vcs.SyncAllChunkSize)
+      }
+    }
+  }
+
+  // Classes that a peer running an older version doesn't have.
+  val NewerClasses = List(classOf[PartialDiffState], classOf[VersionDigest], classOf[IncrementalDiff]).map(_.getName)
+
+  // The arguments of a call as an older trpc servlet reads them, before it
+  // looks for the method: the exception it reports for classes that it
+  // doesn't have, if any.
+  def readByOlderPeer(args: AnyRef*): Option[Exception] =
+    try {
+      val bos = new ByteArrayOutputStream
+      val oos = new ObjectOutputStream(bos)
+      oos.writeObject(args.toArray)
+      oos.close()
+
+      val ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray)) {
+        override def resolveClass(desc: ObjectStreamClass): Class[_] =
+          if (NewerClasses.exists(desc.getName.startsWith)) throw new ClassNotFoundException(desc.getName)
+          else Class.forName(desc.getName, false, getClass.getClassLoader)
+      }
+      ois.readObject()
+      None
+    } catch {
+      case e: Exception => Some(e)
+    }
+
+  // A Vcs talking to a remote peer that runs a version without the
+  // incremental diff methods.  Calls fail as they do over trpc: with the
+  // ClassNotFoundException raised while reading the arguments if they contain
+  // newer classes, and otherwise with a NoSuchMethodException.
+  def olderPeerVcs(env: TestEnv): Vcs = {
+    val s = env.local.service(StaffPrincipal.Gemini)
+
+    def unsupported[A](m: String, args: AnyRef*): TryVcs[A] =
+      -\/(VcsException(readByOlderPeer(args: _*).getOrElse(new NoSuchMethodException(s"VcsService.$m"))))
+
+    val older = new VcsService {
+      def version(id: SPProgramID)                                    = s.version(id)
+      def add(p: ISPProgram)                                          = s.add(p)
+      def checkout(id: SPProgramID)                                   = s.checkout(id)
+      def diffState(id: SPProgramID)                                  = s.diffState(id)
+      def diffStateIncremental(id: SPProgramID, digest: VersionDigest) = unsupported[Option[PartialDiffState]]("diffStateIncremental", id, digest)
+      def fetchDiffs(id: SPProgramID, ds: DiffState)                  = s.fetchDiffs(id, ds)
+      def fetchDiffsIncremental(id: SPProgramID, ps: PartialDiffState) = unsupported[IncrementalDiff]("fetchDiffsIncremental", id, ps)
+      def storeDiffs(id: SPProgramID, mp: MergePlan.Transport)        = s.storeDiffs(id, mp)
+      def fetchDiffsAll(states: Map[SPProgramID, PartialDiffState])   = unsupported[Map[SPProgramID, TryVcs[IncrementalDiff]]]("fetchDiffsAll", states)
+      def storeDiffsAll(plans: Map[SPProgramID, MergePlan.Transport]) = unsupported[Map[SPProgramID, TryVcs[Boolean]]]("storeDiffsAll", plans)
+      def log(p: SPProgramID, offset: Int, length: Int)               = s.log(p, offset, length)
+    }
+
+    new Vcs(VcsAction(Set[Principal](StaffPrincipal.Gemini)), env.local.server, _ => older)
+  }
+
+  "an older peer" should {
+    "reject incremental calls as unsupported" in withVcs { env =>
+      val (_, d) = VersionDigest.forProgram(env.local.prog)
+      readByOlderPeer(Q1, d) must beLike {
+        case Some(ex: ClassNotFoundException) => VcsFailure.isUnsupported(VcsException(ex)) must beTrue
+      }
+    }
+
+    "report incompatible classes as unsupported" in {
+      VcsFailure.isUnsupported(VcsException(new InvalidClassException("VersionDigest"))) must beTrue
+    }
+
+    "be pulled from with fetchDiffs" in withVcs { env =>
+      env.remote.progTitle = "The Myth of Sisyphus"
+
+      expect(olderPeerVcs(env).pull(Q1, DummyPeer, notCancelled)) {
+        case \/-((LocalOnly,_)) => ok("")
+      } and (env.local.progTitle must_== "The Myth of Sisyphus")
+    }
+
+    "be pushed to with diffState" in withVcs { env =>
+      env.local.progTitle = "The Myth of Sisyphus"
+
+      expect(olderPeerVcs(env).push(Q1, DummyPeer, notCancelled)) {
+        case \/-((RemoteOnly,_)) => ok("")
+      } and (env.remote.progTitle must_== "The Myth of Sisyphus")
+    }
+
+    "be synced with fetchDiffs" in withVcs { env =>
+      val vcs = olderPeerVcs(env)
+      env.local.progTitle = "The Myth of Sisyphus"
+
+      expect(vcs.sync(Q1, DummyPeer, notCancelled)) {
+        case \/-((RemoteOnly,_)) => ok("")
+      } and (env.remote.progTitle must_== "The Myth of Sisyphus") and {
+        env.remote.contact = "camus@gemini.edu"
+        expect(vcs.sync(Q1, DummyPeer, notCancelled)) {
+          case \/-((LocalOnly,_)) => ok("")
+        } and (env.local.contact must_== "camus@gemini.edu")
+      }
+    }
+
+    "be synced in bulk with fetchDiffs" in withVcs { env =>
+      env.local.addNewProgram(Q2)
+      env.local.superStaffVcs.add(Q2, DummyPeer).unsafeRun
+      env.local.progTitle = "The Myth of Sisyphus"
+
+      expect(olderPeerVcs(env).syncAll(Set(Q1, Q2), DummyPeer, notCancelled, 10)((_, _) => ())) {
+        case \/-(rs) =>
+          (rs(Q1) must beLike { case \/-((RemoteOnly, _)) => ok }) and
+            (rs(Q2) must beLike { case \/-((Neither, _)) => ok })
+      } and (env.remote.progTitle must_== "The Myth of Sisyphus")
+    }
+  }
 
   "cancelled sync" should {
     "do nothing" in withVcs { env =>
@@ -0,0 +1,99 @@
+package edu.gemini.sp.vcs2
+
+import edu.gemini.pot.sp.SPNodeKey
+import edu.gemini.util.security.principal.StaffPrincipal
+
+import scalaz._
+
+class VersionDigestSpec extends VcsSpecification {
+
+  import TestEnv._
+
+  // Buckets of all nodes whose version or removed status differs.
+  def changedBuckets(ds0: DiffState, ds1: DiffState): Set[Int] =
+    (ds0.vm.keySet ++ ds1.vm.keySet).filter { k =>
+      ds0.vm.get(k) != ds1.vm.get(k) || ds0.removed.contains(k) != ds1.removed.contains(k)
+    }.map(VersionDigest.bucket)
+
+  def edit(env: TestEnv)(f: TestPeer => Unit): (DiffState, DiffState) = {
+    val ds0 = DiffState(env.local.prog)
+    f(env.local)
+    (ds0, DiffState(env.local.prog))
+  }
+
+  "digest" should {
+    "not depend on the order of the version map" in withVcs { env =>
+      val ds = DiffState(env.local.prog)
+      VersionDigest(ds) must_== VersionDigest(ds.copy(vm = ds.vm.toList.reverse.toMap))
+    }
+
+    "differ in the root when the program key differs" in withVcs { env =>
+      val ds = DiffState(env.local.prog)
+      val d0 = VersionDigest(ds)
+      val d1 = VersionDigest(ds.copy(progKey = new SPNodeKey()))
+      (d0 sameAs d1) must beFalse and (d0.differingBuckets(d1) must beEmpty)
+    }
+
+    "differ exactly in the buckets of edited nodes" in withVcs { env =>
+      val (ds0, ds1) = edit(env)(_.progTitle = "The Myth of Sisyphus")
+      VersionDigest(ds0).differingBuckets(VersionDigest(ds1)) must_== changedBuckets(ds0, ds1)
+    }
+
+    "differ in the buckets of deleted nodes" in withVcs { env =>
+      val (ds0, ds1) = edit(env)(_.delete(ObsKey))
+      val bs         = VersionDigest(ds0).differingBuckets(VersionDigest(ds1))
+      bs must_== changedBuckets(ds0, ds1) and (bs must contain(VersionDigest.bucket(ObsKey)))
+    }
+
+    "be reused while the program is unchanged" in withVcs { env =>
+      val (_, d0) = VersionDigest.forProgram(env.local.prog)
+      val (_, d1) = VersionDigest.forProgram(env.local.prog)
+      env.local.progTitle = "The Myth of Sisyphus"
+      val (_, d2) = VersionDigest.forProgram(env.local.prog)
+      (d0 eq d1) must beTrue and ((d0 sameAs d2) must beFalse)
+    }
+  }
+
+  "partial diff state" should {
+    "reconstruct the complete diff state from the differing buckets" in withVcs { env =>
+      val (ds0, ds1) = edit(env) { p =>
+        p.delete(ObsKey)
+        p.addNote("Note")
+        p.progTitle = "The Myth of Sisyphus"
+      }
+      val (d0, d1) = (VersionDigest(ds0), VersionDigest(ds1))
+      ds1.partial(d1, d1.differingBuckets(d0)).complete(ds0, d0) must beSome(ds1)
+    }
+
+    "not be completed if a differing bucket is missing" in withVcs { env =>
+      val (ds0, ds1) = edit(env)(_.progTitle = "The Myth of Sisyphus")
+      val (d0, d1)   = (VersionDigest(ds0), VersionDigest(ds1))
+      ds1.partial(d1, Set.empty).complete(ds0, d0) must beNone
+    }
+  }
+
+  "fetchDiffsIncremental" should {
+    "ask for the differing buckets and then return the differences" in withVcs { env =>
+      env.remote.progTitle = "The Myth of Sisyphus"
+
+      val service  = env.local.service(StaffPrincipal.Gemini)
+      val (ds, d)  = VersionDigest.forProgram(env.local.prog)
+      val expected = ProgramDiff.compare(env.remote.prog, ds).plan
+
+      service.fetchDiffsIncremental(Q1, ds.partial(d, Set.empty)) match {
+        case \/-(IncrementalDiff.Buckets(bs)) =>
+          service.fetchDiffsIncremental(Q1, ds.partial(d, bs)) match {
+            case \/-(IncrementalDiff.Diff(diff)) => diff.plan.decode.vm(ds.vm) must_== expected.vm(ds.vm)
+            case x                               => ko(x.toString)
+          }
+        case x                                => ko(x.toString)
+      }
+    }
+
+    "report no differences for the same program" in withVcs { env =>
+      // the remote peer's service is backed by the local database
+      val (ds, d) = VersionDigest.forProgram(env.local.prog)
+      env.remote.service(StaffPrincipal.Gemini).fetchDiffsIncremental(Q1, ds.partial(d, Set.empty)) must_== \/-(IncrementalDiff.Same)
+    }
+  }
+}
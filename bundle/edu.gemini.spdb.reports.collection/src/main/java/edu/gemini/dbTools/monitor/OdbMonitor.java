@@ -38,6 +38,10 @@ public class OdbMonitor {
         buf.append("Free Memory: ").append(status.getFreeMemory()).append("\n");
         buf.append("Total Memory: ").append(status.getTotalMemory()).append("\n");
         buf.append("Storage Interval: ").append(status.getStorageInterval()).append("\n");
+        buf.append("Storage: ").append(status.getStorageMetrics()).append("\n");
+        buf.append("Locks: ").append(status.getLockMetrics()).append("\n");
+        buf.append("Sequence Cache: ").append(status.getSequenceCacheHits()).append(" hits, ")
+           .append(status.getSequenceCacheMisses()).append(" misses\n");
         buf.append("Total Threads: ").append(status.getTotalThreads());
         buf.append("\n-----------------------------");
         buf.append("\nTotal Active Threads = ").append(sz);
@@ -9,13 +9,22 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Utility class for working with FITS files.
  */
 public final class FileUtil {
-    private static final int BUF_SIZE = 8 * 1024;
+    private static final int BUF_SIZE = 1024 * 1024;
 
     /**
      * Inserts the bytes contained in <code>buf</code> into the FITS file at
@@ -29,32 +38,143 @@ public final class FileUtil {
      */
     public static void insert(FileChannel channel, ByteBuffer buf, long pos)
             throws IOException {
+        insertAll(channel, new TreeMap<Long, ByteBuffer>(Collections.singletonMap(pos, buf)));
+    }
+
+    /**
+     * Inserts the bytes contained in each of the given buffers into the FITS
+     * file at the position it is keyed by.  Positions refer to the file as it
+     * is before any insertion.  Each part of the file is moved only once, by
+     * the total size of the insertions that precede it.
+     *
+     * @param channel channel associated with the file to update
+     * @param inserts buffers to insert, keyed by position
+     *
+     * @throws IOException if there is a problem writing to the channel
+     */
+    public static void insertAll(FileChannel channel, SortedMap<Long, ByteBuffer> inserts)
+            throws IOException {
+
+        long shift = 0;
+        for (ByteBuffer buf : inserts.values()) shift += buf.remaining();
 
         ByteBuffer tmp = ByteBuffer.allocate(BUF_SIZE);
+        List<Map.Entry<Long, ByteBuffer>> entries = new ArrayList<Map.Entry<Long, ByteBuffer>>(inserts.entrySet());
 
-        long end   = channel.size();
-        long start = end - BUF_SIZE;
-        int  size  = BUF_SIZE;
+        // Last part first, so nothing is overwritten before it has moved.
+        long end = channel.size();
+        for (int i = entries.size() - 1; i >= 0; --i) {
+            long pos = entries.get(i).getKey();
+            ByteBuffer buf = entries.get(i).getValue();
 
-        if (start < pos) {
-            start = pos;
-            size  = (int) (end - start);
+            _move(channel, tmp, pos, end, shift);
+
+            // Write in the new bit
+            shift -= buf.remaining();
+            writeBuf(channel, buf, pos + shift);
+            end = pos;
         }
+    }
+
+    // Moves the bytes from start to end towards the end of the file by
+    // shift bytes, last block first.
+    private static void _move(FileChannel channel, ByteBuffer tmp, long pos, long end, long shift)
+            throws IOException {
+
+        long start = Math.max(pos, end - BUF_SIZE);
+        int  size  = (int) (end - start);
 
         while (size > 0) {
             tmp.position(0);
             tmp.limit(size);
 
-            _shift(channel, tmp, start, buf.remaining());
+            _shift(channel, tmp, start, shift);
 
             end   = start;
-            start = end - BUF_SIZE;
-            if (start < pos) start = pos;
+            start = Math.max(pos, end - BUF_SIZE);
             size  = (int) (end - start);
         }
+    }
 
-        // Write in the new bit
-        writeBuf(channel, buf, pos);
+    /**
+     * Writes a copy of the file with some of its bytes overwritten and others
+     * inserted, in a single pass to a temporary file in the same directory,
+     * which is then atomically renamed over the original.  Positions refer to
+     * the original file, and no overwritten range may span an insert
+     * position.
+     *
+     * @param file file to update
+     * @param channel channel open on the file, from which the unchanged bytes
+     * are copied
+     * @param writes buffers that overwrite bytes, keyed by position
+     * @param inserts buffers to insert, keyed by position
+     *
+     * @throws java.nio.file.AtomicMoveNotSupportedException if the file
+     * system cannot rename the copy over the original, in which case the
+     * file is unchanged
+     * @throws IOException if there is a problem writing the copy
+     */
+    public static void rewrite(File file, FileChannel channel,
+                               SortedMap<Long, ByteBuffer> writes, SortedMap<Long, ByteBuffer> inserts)
+            throws IOException {
+
+        Path target = file.toPath();
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        Path tmp = tmpFile.toPath();
+
+        boolean ok = false;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+            try {
+                FileChannel out = raf.getChannel();
+
+                long pos = 0;
+                for (Map.Entry<Long, ByteBuffer> me : inserts.entrySet()) {
+                    _transfer(channel, pos, me.getKey() - pos, out);
+                    ByteBuffer buf = me.getValue().duplicate();
+                    long outPos = out.position();
+                    writeBuf(out, buf, outPos);
+                    out.position(outPos + me.getValue().remaining());
+                    pos = me.getKey();
+                }
+                _transfer(channel, pos, channel.size() - pos, out);
+
+                for (Map.Entry<Long, ByteBuffer> me : writes.entrySet()) {
+                    long shift = 0;
+                    for (ByteBuffer buf : inserts.headMap(me.getKey() + 1).values()) {
+                        shift += buf.remaining();
+                    }
+                    writeBuf(out, me.getValue().duplicate(), me.getKey() + shift);
+                }
+                out.force(true);
+            } finally {
+                raf.close();
+            }
+
+            // The temp file is created readable only by the owner.
+            try {
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+            } catch (UnsupportedOperationException ex) {
+                // not a POSIX file system
+            }
+
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            ok = true;
+        } finally {
+            if (!ok) Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Copies count bytes starting at pos from the channel to the current
+    // position of the output channel.
+    private static void _transfer(FileChannel channel, long pos, long count, FileChannel out)
+            throws IOException {
+        while (count > 0) {
+            long n = channel.transferTo(pos, count, out);
+            if (n <= 0) throw new IOException("Unexpected end of file");
+            pos   += n;
+            count -= n;
+        }
     }
 
     /**
@@ -0,0 +1,235 @@
+package edu.gemini.fits;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The location of each header and data unit (HDU) in a FITS file.  With an
+ * index, any header can be read directly instead of walking every preceding
+ * header and data section record by record.
+ *
+ * <p>Indices are built by memory mapping the headers and are cached per
+ * file.  A cached index is used for as long as the file's last modification
+ * time and length are unchanged, so that repeated access to the same
+ * multi-extension file only scans it once.  Since the index holds only
+ * offsets, editing a keyword in place does not invalidate it.
+ *
+ * <p>Instances are immutable, and the cache is mt-safe.
+ */
+public final class FitsIndex {
+
+    /**
+     * Maximum number of file indices kept in the cache.  An index is only a
+     * few numbers per HDU, so this is generous.
+     */
+    public static final int MAX_CACHED_FILES = 1000;
+
+    // Number of records mapped at a time while looking for the END card.
+    private static final int WINDOW_RECORDS = 16;
+
+    private static final Map<File, FitsIndex> CACHE =
+            new LinkedHashMap<File, FitsIndex>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<File, FitsIndex> eldest) {
+                    return size() > MAX_CACHED_FILES;
+                }
+            };
+
+    private final long _lastModified;
+    private final long _length;
+
+    private final long[] _headerOffset;
+    private final long[] _endOffset;
+    private final long[] _dataOffset;
+    private final long[] _dataSize;
+
+    private FitsIndex(long lastModified, long length, List<long[]> hdus) {
+        _lastModified = lastModified;
+        _length       = length;
+
+        int n = hdus.size();
+        _headerOffset = new long[n];
+        _endOffset    = new long[n];
+        _dataOffset   = new long[n];
+        _dataSize     = new long[n];
+        for (int i = 0; i < n; ++i) {
+            long[] hdu = hdus.get(i);
+            _headerOffset[i] = hdu[0];
+            _endOffset[i]    = hdu[1];
+            _dataOffset[i]   = hdu[2];
+            _dataSize[i]     = hdu[3];
+        }
+    }
+
+    /**
+     * Gets the index of the given file, reading it from the given channel
+     * if there is no cached index or the file has changed since it was
+     * built.  The caller is expected to hold a lock on the channel.
+     */
+    static FitsIndex get(File file, FileChannel channel) throws IOException, FitsParseException {
+        File key = file.getAbsoluteFile();
+        long lastModified = file.lastModified();
+        long length = channel.size();
+
+        FitsIndex res;
+        synchronized (CACHE) {
+            res = CACHE.get(key);
+        }
+        if ((res == null) || !res.isCurrent(lastModified, length)) {
+            res = build(channel, lastModified);
+            synchronized (CACHE) {
+                CACHE.put(key, res);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Drops any cached index of the given file.  Must be called after the
+     * structure of a file is changed, in case the change does not show up in
+     * its modification time.
+     */
+    public static void invalidate(File file) {
+        synchronized (CACHE) {
+            CACHE.remove(file.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public static void clear() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * Scans the file open on the given channel, mapping each header in turn
+     * and skipping over the data sections.
+     */
+    static FitsIndex build(FileChannel channel, long lastModified) throws IOException, FitsParseException {
+        long size = channel.size();
+        List<long[]> hdus = new ArrayList<long[]>();
+        byte[] card = new byte[FitsConstants.HEADER_ITEM_SIZE];
+
+        long pos = 0;
+        while (pos < size) {
+            Header structure = new DefaultHeader(hdus.size());
+            long end = -1;
+            long cur = pos;
+            while (end < 0) {
+                if (cur >= size) {
+                    throw new FitsParseException("Header " + hdus.size() + " has no END");
+                }
+                long len = Math.min((long) WINDOW_RECORDS * FitsConstants.RECORD_SIZE, size - cur);
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, cur, len);
+                while (buf.remaining() >= FitsConstants.HEADER_ITEM_SIZE) {
+                    int cardPos = buf.position();
+                    buf.get(card);
+                    String keyword = (new String(card, 0, 8, FitsConstants.CHARSET_NAME)).trim();
+                    if ("END".equals(keyword)) {
+                        end = cur + cardPos;
+                        break;
+                    }
+                    if (_isStructural(keyword)) {
+                        structure.add(HeaderItemFormat.parse(new String(card, FitsConstants.CHARSET_NAME)));
+                    }
+                }
+                cur += len;
+            }
+
+            long dataOffset = _roundUp(end + FitsConstants.HEADER_ITEM_SIZE);
+            long dataSize   = _roundUp(dataSize(structure));
+            hdus.add(new long[] { pos, end, dataOffset, dataSize });
+            pos = dataOffset + dataSize;
+        }
+        return new FitsIndex(lastModified, size, hdus);
+    }
+
+    private static boolean _isStructural(String keyword) {
+        return "BITPIX".equals(keyword) || keyword.startsWith("NAXIS") ||
+               "PCOUNT".equals(keyword) || "GCOUNT".equals(keyword) ||
+               "GROUPS".equals(keyword);
+    }
+
+    private static long _roundUp(long bytes) {
+        long rem = bytes % FitsConstants.RECORD_SIZE;
+        return (rem == 0) ? bytes : bytes + FitsConstants.RECORD_SIZE - rem;
+    }
+
+    /**
+     * Computes the size in bytes of the data section that follows the given
+     * header, not counting the padding to a whole number of records.
+     */
+    static long dataSize(Header h) {
+        HeaderItem bitpix = h.get("BITPIX");
+        HeaderItem naxis  = h.get("NAXIS");
+        if ((bitpix == null) || (naxis == null) || (naxis.getIntValue() == 0)) {
+            return 0;
+        }
+
+        // Random groups have NAXIS1 = 0, which is left out of the product.
+        int n = naxis.getIntValue();
+        HeaderItem groups = h.get("GROUPS");
+        int first = ((groups != null) && groups.getBooleanValue()) ? 2 : 1;
+
+        long count = 1;
+        for (int i = first; i <= n; ++i) {
+            HeaderItem axis = h.get("NAXIS" + i);
+            count *= (axis == null) ? 0 : axis.getIntValue();
+        }
+
+        HeaderItem pcount = h.get("PCOUNT");
+        HeaderItem gcount = h.get("GCOUNT");
+        count += (pcount == null) ? 0 : pcount.getIntValue();
+        count *= (gcount == null) ? 1 : gcount.getIntValue();
+        return count * Math.abs(bitpix.getIntValue()) / 8;
+    }
+
+    boolean isCurrent(long lastModified, long length) {
+        return (_lastModified == lastModified) && (_length == length);
+    }
+
+    /**
+     * Gets the number of HDUs in the file.
+     */
+    public int getHduCount() {
+        return _headerOffset.length;
+    }
+
+    /**
+     * Gets the offset of the first header card of the given HDU.
+     */
+    public long getHeaderOffset(int hdu) {
+        return _headerOffset[hdu];
+    }
+
+    /**
+     * Gets the offset of the END card of the given HDU's header.
+     */
+    public long getEndOffset(int hdu) {
+        return _endOffset[hdu];
+    }
+
+    /**
+     * Gets the offset of the given HDU's data section, which is the first
+     * record following its header.
+     */
+    public long getDataOffset(int hdu) {
+        return _dataOffset[hdu];
+    }
+
+    /**
+     * Gets the size of the given HDU's data section, including the padding to
+     * a whole number of records.
+     */
+    public long getDataSize(int hdu) {
+        return _dataSize[hdu];
+    }
+}
@@ -9,13 +9,18 @@ import edu.gemini.file.util.LockedFileChannel;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,18 +30,107 @@ import java.util.logging.Logger;
 public final class Hedit {
     private static final Logger LOG = Logger.getLogger(Hedit.class.getName());
 
+    /**
+     * How headers are located in the file.
+     */
+    public enum Access {
+        /**
+         * Headers are found by reading the file record by record from the
+         * start, skipping over each data section.
+         */
+        SEQUENTIAL,
+
+        /**
+         * Headers are found using a cached {@link FitsIndex} and read
+         * directly from a memory mapping of the file.  Best for
+         * multi-extension files that are accessed repeatedly.
+         */
+        MAPPED,
+    }
+
+    /**
+     * How the rest of the file is moved when a header has to grow.
+     */
+    public enum Growth {
+        /**
+         * Everything after the header is shifted within the file itself, in
+         * blocks of 1 MB.  Needs no extra disk space, but a failure part way
+         * through leaves the file corrupt.
+         */
+        SHIFT,
+
+        /**
+         * The file is rewritten in a single pass to a temporary file in the
+         * same directory, which is then atomically renamed over the original.
+         * A failed update leaves the original untouched, but this needs
+         * space for a second copy of the file and replaces the file rather
+         * than updating it.  This is the default.  Other Hedit instances
+         * notice the replacement, but other programs that already have the
+         * original open will continue to see the old content.  Falls back to
+         * {@link #SHIFT} where the rename isn't supported.
+         */
+        COPY,
+    }
+
+    private static final byte[] END_CARD   = _card("END");
+    private static final byte[] BLANK_CARD = _card("");
+
+    private static byte[] _card(String s) {
+        return String.format("%-" + FitsConstants.HEADER_ITEM_SIZE + "s", s).getBytes(FitsConstants.CHARSET);
+    }
+
     private File _file;
+    private Access _access;
+    /**
+     * Number of records of blank cards reserved by default whenever a header
+     * grows.
+     */
+    public static final int DEFAULT_RESERVED_RECORDS = 1;
+
+    private Growth _growth = Growth.COPY;
+    private int _reservedRecords = DEFAULT_RESERVED_RECORDS;
 
     public Hedit(File fitsFile) {
-        _file = fitsFile;
+        this(fitsFile, Access.SEQUENTIAL);
+    }
+
+    public Hedit(File fitsFile, Access access) {
+        _file   = fitsFile;
+        _access = access;
+    }
+
+    public Growth getGrowth() {
+        return _growth;
+    }
+
+    public void setGrowth(Growth growth) {
+        _growth = growth;
+    }
+
+    /**
+     * Gets the number of records of blank cards added whenever a header has
+     * to grow, so that later updates can add keywords in place.
+     * {@link #DEFAULT_RESERVED_RECORDS} by default.  Like any other blank cards, those that are still unused are
+     * read back as blank header items.
+     */
+    public int getReservedRecords() {
+        return _reservedRecords;
+    }
+
+    public void setReservedRecords(int records) {
+        if (records < 0) throw new IllegalArgumentException("records = " + records);
+        _reservedRecords = records;
     }
 
     public List<Header> readAllHeaders()
             throws IOException, FitsParseException, InterruptedException {
 
+        if (_access == Access.MAPPED) {
+            return _readAllMapped();
+        }
+
         long startTime = System.currentTimeMillis();
-        LockedFileChannel lfc = new LockedFileChannel(_file, LockedFileChannel.Mode.r);
-        lfc.lock();
+        LockedFileChannel lfc = _lock(LockedFileChannel.Mode.r);
 
         FileChannel channel = lfc.getChannel();
 
@@ -106,9 +200,12 @@ public final class Hedit {
     public Header readPrimary(Set<String> keywords)
             throws IOException, FitsParseException, InterruptedException {
 
+        if (_access == Access.MAPPED) {
+            return readHeader(0, keywords);
+        }
+
         long startTime = System.currentTimeMillis();
-        LockedFileChannel lfc = new LockedFileChannel(_file, LockedFileChannel.Mode.r);
-        lfc.lock();
+        LockedFileChannel lfc = _lock(LockedFileChannel.Mode.r);
 
         FileChannel channel = lfc.getChannel();
 
@@ -135,6 +232,185 @@ public final class Hedit {
         return res;
     }
 
+    /**
+     * Reads the header with the given index, which is 0 for the primary
+     * header.
+     *
+     * @param keywords keywords to read, or <code>null</code> for all of them
+     *
+     * @throws IllegalArgumentException in {@link Access#MAPPED} mode, if the
+     * file has no header with the given index
+     */
+    public Header readHeader(int headerIndex, Set<String> keywords)
+            throws IOException, FitsParseException, InterruptedException {
+
+        long startTime = System.currentTimeMillis();
+        LockedFileChannel lfc = _lock(LockedFileChannel.Mode.r);
+
+        FileChannel channel = lfc.getChannel();
+
+        Header res;
+        try {
+            if (_access == Access.MAPPED) {
+                FitsIndex index = FitsIndex.get(_file, channel);
+                _checkIndex(index, headerIndex);
+                res = _readMappedHeader(channel, index, keywords, headerIndex);
+            } else {
+                advanceToHeader(channel, headerIndex);
+                res = _readHeader(channel, keywords, headerIndex);
+            }
+        } finally {
+            _release(lfc);
+        }
+        long endTime = System.currentTimeMillis();
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Read Header " + headerIndex + " in " +
+                    (endTime - startTime) + "ms");
+        }
+        return res;
+    }
+
+    /**
+     * Reads the first item with the given keyword from the header with the
+     * given index.  In {@link Access#MAPPED} mode only the matching card is
+     * parsed.
+     *
+     * @return the item, or <code>null</code> if there is no such keyword
+     *
+     * @throws IllegalArgumentException in {@link Access#MAPPED} mode, if the
+     * file has no header with the given index
+     */
+    public HeaderItem readItem(int headerIndex, String keyword)
+            throws IOException, FitsParseException, InterruptedException {
+
+        if (_access != Access.MAPPED) {
+            return readHeader(headerIndex, Collections.singleton(keyword)).get(keyword);
+        }
+
+        LockedFileChannel lfc = _lock(LockedFileChannel.Mode.r);
+
+        FileChannel channel = lfc.getChannel();
+
+        try {
+            FitsIndex index = FitsIndex.get(_file, channel);
+            _checkIndex(index, headerIndex);
+            return _readMappedItem(channel, index, headerIndex, keyword);
+        } finally {
+            _release(lfc);
+        }
+    }
+
+    private List<Header> _readAllMapped()
+            throws IOException, FitsParseException, InterruptedException {
+
+        long startTime = System.currentTimeMillis();
+        LockedFileChannel lfc = _lock(LockedFileChannel.Mode.r);
+
+        FileChannel channel = lfc.getChannel();
+
+        List<Header> allHeaders;
+        try {
+            FitsIndex index = FitsIndex.get(_file, channel);
+            allHeaders = new ArrayList<Header>(index.getHduCount());
+            for (int i = 0; i < index.getHduCount(); ++i) {
+                allHeaders.add(_readMappedHeader(channel, index, null, i));
+            }
+        } finally {
+            _release(lfc);
+        }
+        long endTime = System.currentTimeMillis();
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Read All Headers in " +
+                    (endTime - startTime) + "ms");
+        }
+        return allHeaders;
+    }
+
+    private void _checkIndex(FitsIndex index, int headerIndex) {
+        if ((headerIndex < 0) || (headerIndex >= index.getHduCount())) {
+            throw new IllegalArgumentException("No header " + headerIndex + " in " + _file.getName());
+        }
+    }
+
+    /**
+     * Opens and locks the file.  If another Hedit replaced the file (see
+     * {@link Growth#COPY}) while we were waiting for the lock, the channel
+     * refers to the old content, so try again with the new file.  A
+     * replaced file is always longer than the original.
+     */
+    private LockedFileChannel _lock(LockedFileChannel.Mode mode)
+            throws IOException, InterruptedException {
+        while (true) {
+            LockedFileChannel lfc = new LockedFileChannel(_file, mode);
+            try {
+                lfc.lock();
+            } catch (InterruptedException | IOException | RuntimeException ex) {
+                lfc.close();
+                throw ex;
+            }
+            if (_file.length() <= lfc.getChannel().size()) {
+                return lfc;
+            }
+            _release(lfc);
+        }
+    }
+
+    private void _release(LockedFileChannel lfc) throws IOException {
+        try {
+            lfc.unlock();
+        } catch (IOException ex) {
+            // not sure what to do here
+            String msg = "Could not unlock cleanly: " + _file.getName();
+            LOG.log(Level.SEVERE, msg, ex);
+        } finally {
+            lfc.close();
+        }
+    }
+
+    // Maps the cards of the given header, up to but not including END.
+    private static byte[] _mapCards(FileChannel channel, FitsIndex index, int headerIndex)
+            throws IOException {
+        long start = index.getHeaderOffset(headerIndex);
+        int len = (int) (index.getEndOffset(headerIndex) - start);
+
+        byte[] bytes = new byte[len];
+        if (len > 0) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+            buf.get(bytes);
+        }
+        return bytes;
+    }
+
+    private static Header _readMappedHeader(FileChannel channel, FitsIndex index, Set<String> keywords, int headerIndex)
+            throws IOException, FitsParseException {
+        Header res = new DefaultHeader(headerIndex);
+        _parseCards(_mapCards(channel, index, headerIndex), keywords, res);
+        return res;
+    }
+
+    private static HeaderItem _readMappedItem(FileChannel channel, FitsIndex index, int headerIndex, String keyword)
+            throws IOException, FitsParseException {
+        if (keyword.isEmpty() || (keyword.length() > 8)) {
+            return null;
+        }
+        byte[] key = String.format("%-8s", keyword).getBytes(FitsConstants.CHARSET_NAME);
+        byte[] bytes = _mapCards(channel, index, headerIndex);
+
+        for (int offset = 0; offset < bytes.length; offset += FitsConstants.HEADER_ITEM_SIZE) {
+            int i = 0;
+            while ((i < key.length) && (bytes[offset + i] == key[i])) {
+                ++i;
+            }
+            if (i == key.length) {
+                return HeaderItemFormat.parse(new String(bytes, offset,
+                        FitsConstants.HEADER_ITEM_SIZE, FitsConstants.CHARSET_NAME));
+            }
+        }
+        return null;
+    }
+
     private static Header _readHeader(FileChannel channel, Set<String> keywords, int headerIndex)
             throws IOException, FitsParseException {
 
@@ -146,24 +422,34 @@ public final class Hedit {
         while (!done && fit.hasNext()) {
             Record rec = fit.next();
             rec.getBuffer().get(bytes);
-            int offset = 0;
+            done = _parseCards(bytes, keywords, res);
+        }
+        return res;
+    }
 
-            while (offset < bytes.length) {
-                String keyword = (new String(bytes, offset, 8, FitsConstants.CHARSET_NAME)).trim();
-                if ("END".equals(keyword)) {
-                    done = true;
-                    break;
-                }
+    /**
+     * Parses the given header cards into <code>res</code>, stopping at END.
+     *
+     * @return <code>true</code> if END was found
+     */
+    private static boolean _parseCards(byte[] bytes, Set<String> keywords, Header res)
+            throws IOException, FitsParseException {
+        int offset = 0;
 
-                if ((keywords == null) || keywords.contains(keyword)) {
-                    String image = new String(bytes, offset,
-                            FitsConstants.HEADER_ITEM_SIZE, FitsConstants.CHARSET_NAME);
-                    res.add(HeaderItemFormat.parse(image));
-                }
-                offset += FitsConstants.HEADER_ITEM_SIZE;
+        while (offset < bytes.length) {
+            String keyword = (new String(bytes, offset, 8, FitsConstants.CHARSET_NAME)).trim();
+            if ("END".equals(keyword)) {
+                return true;
             }
+
+            if ((keywords == null) || keywords.contains(keyword)) {
+                String image = new String(bytes, offset,
+                        FitsConstants.HEADER_ITEM_SIZE, FitsConstants.CHARSET_NAME);
+                res.add(HeaderItemFormat.parse(image));
+            }
+            offset += FitsConstants.HEADER_ITEM_SIZE;
         }
-        return res;
+        return false;
     }
 
     @SuppressWarnings({"UNUSED_THROWS", "MethodMayBeStatic"})
@@ -181,36 +467,87 @@ public final class Hedit {
     }
 
     public void updateHeader(Collection<? extends HeaderItem> updates, int headerIndex) throws IOException, InterruptedException {
+        updateHeaders(Collections.singletonMap(headerIndex, updates));
+    }
 
-        long startTime = System.currentTimeMillis();
-        LockedFileChannel lfc = new LockedFileChannel(_file, LockedFileChannel.Mode.rw);
-        lfc.lock();
+    /**
+     * Updates any number of headers while holding the file lock, keyed by
+     * header index.  The changes to all the headers are worked out before
+     * anything is written, so however many of them have to grow, the rest of
+     * the file is moved (or copied, see {@link Growth#COPY}) only once.
+     */
+    public void updateHeaders(Map<Integer, ? extends Collection<? extends HeaderItem>> updates)
+            throws IOException, InterruptedException {
 
-        FileChannel channel = lfc.getChannel();
+        List<Integer> order = new ArrayList<Integer>(updates.keySet());
+        Collections.sort(order);
+
+        long startTime = System.currentTimeMillis();
+        LockedFileChannel lfc = _lock(LockedFileChannel.Mode.rw);
 
         try {
-            _updateHeader(channel, updates, headerIndex);
-        } finally {
-            try {
-                lfc.unlock();
-            } catch (IOException ex) {
-                // not sure what to do here
-                String msg = "Could not unlock cleanly: " + _file.getName();
-                LOG.log(Level.SEVERE, msg, ex);
-            } finally {
-                lfc.close();
+            FileChannel channel = lfc.getChannel();
+
+            Changes changes = new Changes();
+            for (int headerIndex : order) {
+                _positionAt(channel, headerIndex);
+                _planUpdate(channel, updates.get(headerIndex), changes);
+            }
+
+            // Adding cards moves END, so any index of the file is stale.
+            if (_apply(channel, changes)) {
+                FitsIndex.invalidate(_file);
             }
+        } finally {
+            _release(lfc);
         }
         long endTime = System.currentTimeMillis();
 
         if (LOG.isLoggable(Level.FINE)) {
-            LOG.log(Level.FINE, "Updated Primary Header in " +
+            LOG.log(Level.FINE, "Updated Headers " + order + " in " +
                     (endTime - startTime) + "ms");
         }
     }
 
+    private void _positionAt(FileChannel channel, int headerIndex) throws IOException {
+        if (_access == Access.MAPPED) {
+            try {
+                FitsIndex index = FitsIndex.get(_file, channel);
+                _checkIndex(index, headerIndex);
+                channel.position(index.getHeaderOffset(headerIndex));
+            } catch (FitsParseException e) {
+                throw new IOException(e);
+            }
+        } else {
+            channel.position(0);
+            advanceToHeader(channel, headerIndex);
+        }
+    }
 
-    private static <H extends HeaderItem> void _updateHeader(FileChannel channel, Collection<H> updates, int headerIndex)
+    /**
+     * The bytes to write to the file, keyed by their positions in the file
+     * as it is before any of them are written.
+     */
+    private static final class Changes {
+        // Bytes that overwrite part of a header.
+        final SortedMap<Long, ByteBuffer> writes = new TreeMap<Long, ByteBuffer>();
+
+        // Bytes inserted at the end of a header that has to grow.
+        final SortedMap<Long, ByteBuffer> inserts = new TreeMap<Long, ByteBuffer>();
+
+        // Whether any END card moves.
+        boolean endMoved;
+    }
+
+    /**
+     * Works out the changes to the header that starts at the channel's
+     * current position, without writing anything.  Existing keywords are
+     * replaced in place.  New keywords go into the run of blank cards just
+     * before END, if any, and then the unused space after END.  If that
+     * isn't enough, the header is grown by enough records to hold the new
+     * keywords plus {@link #getReservedRecords()} records of blank cards.
+     */
+    private <H extends HeaderItem> void _planUpdate(FileChannel channel, Collection<H> updates, Changes changes)
             throws IOException {
         if (updates.size() == 0) {
             return; // nothing to do
@@ -219,43 +556,46 @@ public final class Hedit {
         Map<String, H> hash = HeaderItemUtil.hash(updates);
 
         boolean done = false;
-        int offset = 0;
-        long pos = 0;
+        long endPos = -1;
+        long blankPos = -1; // start of the run of blank cards before END
 
         byte[] bytes = new byte[FitsConstants.RECORD_SIZE];
 
-        advanceToHeader(channel, headerIndex);
-        
         RecordIterator fit = RecordIterator.iterateFile(channel);
         while (!done && fit.hasNext()) {
             Record rec = fit.next();
 
-            pos = rec.position();
+            long pos = rec.position();
             rec.getBuffer().get(bytes);
-            offset = 0;
-
-            while (offset < bytes.length) {
 
+            for (int offset = 0; offset < bytes.length; offset += FitsConstants.HEADER_ITEM_SIZE) {
                 String keyword = (new String(bytes, offset, 8, FitsConstants.CHARSET_NAME)).trim();
                 if ("END".equals(keyword)) {
+                    endPos = pos + offset;
                     done = true;
                     break;
                 }
 
+                if (_isBlank(bytes, offset)) {
+                    if (blankPos < 0) blankPos = pos + offset;
+                    continue;
+                }
+                blankPos = -1;
+
                 if (hash.containsKey(keyword)) {
                     HeaderItem item = hash.get(keyword);
-                    ByteBuffer writeBuf = HeaderItemFormat.toByteBuffer(item);
-                    FileUtil.writeBuf(channel, writeBuf, pos + offset);
+                    changes.writes.put(pos + offset, HeaderItemFormat.toByteBuffer(item));
                     hash.remove(keyword);
                 }
-                offset += FitsConstants.HEADER_ITEM_SIZE;
             }
         }
 
-
         if (hash.size() == 0) {
             return; // nothing to add
         }
+        if (!done) {
+            throw new IOException("No END in header of " + _file.getName());
+        }
 
         // Create a List of the remaining header items.
         List<H> remUpdates = new ArrayList<H>(updates);
@@ -266,51 +606,99 @@ public final class Hedit {
             }
         }
 
-        // Fill up any remaining space in the current record.
-        int remainingCards = done ? ((FitsConstants.RECORD_SIZE - offset) / FitsConstants.HEADER_ITEM_SIZE) : 0;
-        int limit = Math.min(remainingCards, remUpdates.size());
-        if (limit > 0) {
-            int bufsize = limit * FitsConstants.HEADER_ITEM_SIZE;
-            if (limit < remainingCards) {
-                bufsize += FitsConstants.HEADER_ITEM_SIZE; // for END
-            }
+        // New cards start at the first trailing blank card, or at END.
+        long start = (blankPos < 0) ? endPos : blankPos;
+        long headerEnd = endPos - (endPos % FitsConstants.RECORD_SIZE) + FitsConstants.RECORD_SIZE;
+        long cardsEnd = start + (long) remUpdates.size() * FitsConstants.HEADER_ITEM_SIZE;
+
+        // If they fit in the header as it is, write them in place and move
+        // END if they run over it.
+        if (cardsEnd + FitsConstants.HEADER_ITEM_SIZE <= headerEnd) {
+            boolean moveEnd = cardsEnd > endPos;
+            int bufsize = (int) (cardsEnd - start) + (moveEnd ? FitsConstants.HEADER_ITEM_SIZE : 0);
             ByteBuffer buf = ByteBuffer.allocate(bufsize);
-            for (int i = 0; i < limit; ++i) {
-                HeaderItem item = remUpdates.get(i);
+            for (HeaderItem item : remUpdates) {
                 buf.put(HeaderItemFormat.toBytes(item));
             }
-
-            if (limit < remainingCards) {
-                buf.put("END".getBytes());
+            if (moveEnd) {
+                buf.put(END_CARD);
             }
             buf.flip();
-            FileUtil.writeBuf(channel, buf, pos + offset);
-            if (limit < remainingCards) {
-                return;
-            }
+            changes.writes.put(start, buf);
+            changes.endMoved |= moveEnd;
+            return;
         }
 
-        // Now we know we'll have to insert one or more records.
-        // Figure out how many.
-        pos += FitsConstants.RECORD_SIZE; // where the insert will happen
-        int rem = remUpdates.size() - limit + 1;  // + 1 for "END"
+        // Otherwise the header has to grow.  Rewrite everything from start to
+        // the end of the header with the new cards, the reserved blank cards
+        // and END, filling out the last record with blanks.
+        int cards = remUpdates.size() + _reservedRecords * FitsConstants.ITEMS_PER_RECORD + 1;
+        long tailEnd = start + (long) cards * FitsConstants.HEADER_ITEM_SIZE;
+        long rem = tailEnd % FitsConstants.RECORD_SIZE;
+        if (rem > 0) tailEnd += FitsConstants.RECORD_SIZE - rem;
 
-        int nrecs = rem / FitsConstants.ITEMS_PER_RECORD +
-                ((rem % FitsConstants.ITEMS_PER_RECORD == 0) ? 0 : 1);
-        ByteBuffer buf = ByteBuffer.allocate(nrecs * FitsConstants.RECORD_SIZE);
-        for (int i = limit; i < remUpdates.size(); ++i) {
-            HeaderItem item = remUpdates.get(i);
+        ByteBuffer buf = ByteBuffer.allocate((int) (tailEnd - start));
+        for (HeaderItem item : remUpdates) {
             buf.put(HeaderItemFormat.toBytes(item));
         }
-        buf.put("END".getBytes());
-
-        // Fill remainder of the buffer with blank chars.
-        for (int i = buf.position(); i < buf.capacity(); ++i) {
+        for (int i = remUpdates.size() + 1; i < cards; ++i) {
+            buf.put(BLANK_CARD);
+        }
+        buf.put(END_CARD);
+        while (buf.hasRemaining()) {
             buf.put((byte) ' ');
         }
-
         buf.flip();
-        FileUtil.insert(channel, buf, pos);
+
+        // The part that fits overwrites the rest of the current header, the
+        // remainder is inserted after it.
+        ByteBuffer head = buf.duplicate();
+        head.limit((int) (headerEnd - start));
+        ByteBuffer tail = buf.duplicate();
+        tail.position(head.limit());
+
+        changes.writes.put(start, head);
+        changes.inserts.put(headerEnd, tail);
+        changes.endMoved = true;
+    }
+
+    /**
+     * Writes the changes to the file.
+     *
+     * @return <code>true</code> if any END card moved, possibly along with
+     * everything that follows it
+     */
+    private boolean _apply(FileChannel channel, Changes changes) throws IOException {
+        if (changes.inserts.isEmpty() || (_growth != Growth.COPY) || !_copy(channel, changes)) {
+            for (Map.Entry<Long, ByteBuffer> me : changes.writes.entrySet()) {
+                FileUtil.writeBuf(channel, me.getValue(), me.getKey());
+            }
+            if (!changes.inserts.isEmpty()) {
+                FileUtil.insertAll(channel, changes.inserts);
+            }
+        }
+        return changes.endMoved;
+    }
+
+    // Writes the updated headers into a copy of the file and renames it over
+    // the original.  Returns false if the rename isn't possible, leaving the
+    // file untouched.
+    private boolean _copy(FileChannel channel, Changes changes)
+            throws IOException {
+        try {
+            FileUtil.rewrite(_file, channel, changes.writes, changes.inserts);
+            return true;
+        } catch (AtomicMoveNotSupportedException ex) {
+            LOG.log(Level.INFO, "Cannot rename over " + _file.getName() + ", shifting instead", ex);
+            return false;
+        }
+    }
+
+    private static boolean _isBlank(byte[] bytes, int offset) {
+        for (int i = offset; i < offset + FitsConstants.HEADER_ITEM_SIZE; ++i) {
+            if (bytes[i] != ' ') return false;
+        }
+        return true;
     }
 
     /**
@@ -0,0 +1,349 @@
+package edu.gemini.fits;
+
+import edu.gemini.shared.util.exec.WorkerPool;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies header updates to many FITS files across a bounded pool of I/O
+ * threads, for example when the QA state of a whole night's datasets is
+ * changed at once.
+ *
+ * <p>All the edits to the same file are coalesced, with later edits of a
+ * keyword replacing earlier ones, and applied with a single
+ * {@link Hedit#updateHeaders} call while holding the file's lock.  Each file
+ * is handled by exactly one worker, so files never contend with each other
+ * inside the batch, while the {@link edu.gemini.file.util.LockedFileChannel}
+ * lock still keeps out other readers and writers.  A failure updating one
+ * file is reported in its {@link Outcome} and does not affect the others.
+ *
+ * <p>The thread count includes the calling thread, which updates files
+ * alongside the workers, so no more than that many files are written at
+ * once.
+ */
+public final class HeditBatch {
+    private static final Logger LOG = Logger.getLogger(HeditBatch.class.getName());
+
+    /**
+     * System property that can be used to set the default number of I/O
+     * threads.
+     */
+    public static final String THREADS_PROP = HeditBatch.class.getName() + ".threads";
+
+    /**
+     * Default number of I/O threads, if not set with {@link #THREADS_PROP}.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * A set of keyword updates for one header of one file.
+     */
+    public static final class Edit {
+        private final File _file;
+        private final int _headerIndex;
+        private final List<HeaderItem> _updates;
+
+        public Edit(File file, Collection<? extends HeaderItem> updates) {
+            this(file, 0, updates);
+        }
+
+        public Edit(File file, int headerIndex, Collection<? extends HeaderItem> updates) {
+            if (headerIndex < 0) throw new IllegalArgumentException("headerIndex = " + headerIndex);
+            _file        = file;
+            _headerIndex = headerIndex;
+            _updates     = Collections.unmodifiableList(new ArrayList<HeaderItem>(updates));
+        }
+
+        public File getFile() {
+            return _file;
+        }
+
+        public int getHeaderIndex() {
+            return _headerIndex;
+        }
+
+        public List<HeaderItem> getUpdates() {
+            return _updates;
+        }
+    }
+
+    /**
+     * The result of updating a single file.
+     */
+    public static final class Outcome {
+        private final File _file;
+        private final int _edits;
+        private final int _items;
+        private final Exception _failure;
+        private final long _millis;
+
+        private Outcome(File file, int edits, int items, Exception failure, long millis) {
+            _file    = file;
+            _edits   = edits;
+            _items   = items;
+            _failure = failure;
+            _millis  = millis;
+        }
+
+        public File getFile() {
+            return _file;
+        }
+
+        /**
+         * Number of {@link Edit}s that were coalesced for this file.
+         */
+        public int getEditCount() {
+            return _edits;
+        }
+
+        /**
+         * Number of distinct header items written to this file.
+         */
+        public int getItemCount() {
+            return _items;
+        }
+
+        /**
+         * The problem updating this file, or <code>null</code> if it was
+         * updated successfully.
+         */
+        public Exception getFailure() {
+            return _failure;
+        }
+
+        public boolean isSuccess() {
+            return _failure == null;
+        }
+
+        /**
+         * Time spent updating this file, including waiting for its lock.
+         */
+        public long getMillis() {
+            return _millis;
+        }
+    }
+
+    /**
+     * The outcomes of a batch, one per file in the order in which each file
+     * first appeared in the edits, and overall throughput.
+     */
+    public static final class Report {
+        private final List<Outcome> _outcomes;
+        private final long _millis;
+
+        private Report(List<Outcome> outcomes, long millis) {
+            _outcomes = Collections.unmodifiableList(outcomes);
+            _millis   = millis;
+        }
+
+        public List<Outcome> getOutcomes() {
+            return _outcomes;
+        }
+
+        public List<Outcome> getFailures() {
+            List<Outcome> res = new ArrayList<Outcome>();
+            for (Outcome o : _outcomes) {
+                if (!o.isSuccess()) res.add(o);
+            }
+            return res;
+        }
+
+        /**
+         * Elapsed time for the whole batch.
+         */
+        public long getMillis() {
+            return _millis;
+        }
+
+        /**
+         * Number of files updated successfully per second.
+         */
+        public double getFilesPerSecond() {
+            int ok = _outcomes.size() - getFailures().size();
+            return (_millis == 0) ? ok * 1000.0 : ok * 1000.0 / _millis;
+        }
+
+        @Override public String toString() {
+            return String.format("%d file(s), %d failed, in %d ms (%.1f files/s)",
+                    _outcomes.size(), getFailures().size(), _millis, getFilesPerSecond());
+        }
+    }
+
+    // Coalesced edits for one file.
+    private static final class FileEdits {
+        final File file;
+        final Map<Integer, Map<String, HeaderItem>> headers = new TreeMap<Integer, Map<String, HeaderItem>>();
+        int edits;
+
+        FileEdits(File file) {
+            this.file = file;
+        }
+
+        void add(Edit e) {
+            Map<String, HeaderItem> items = headers.get(e.getHeaderIndex());
+            if (items == null) {
+                items = new LinkedHashMap<String, HeaderItem>();
+                headers.put(e.getHeaderIndex(), items);
+            }
+            for (HeaderItem hi : e.getUpdates()) {
+                items.remove(hi.getKeyword()); // keep the order of the last edit
+                items.put(hi.getKeyword(), hi);
+            }
+            ++edits;
+        }
+
+        int itemCount() {
+            int res = 0;
+            for (Map<String, HeaderItem> items : headers.values()) res += items.size();
+            return res;
+        }
+    }
+
+    private final int _threads;
+    private final Hedit.Access _access;
+
+    public HeditBatch() {
+        this(defaultThreadCount());
+    }
+
+    public HeditBatch(int threads) {
+        this(threads, Hedit.Access.MAPPED);
+    }
+
+    public HeditBatch(int threads, Hedit.Access access) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be > 0");
+        _threads = threads;
+        _access  = access;
+    }
+
+    static int defaultThreadCount() {
+        String propStr = System.getProperty(THREADS_PROP);
+        if (propStr == null) return DEFAULT_THREADS;
+        try {
+            int n = Integer.parseInt(propStr.trim());
+            if (n > 0) return n;
+            LOG.warning("Value of property '" + THREADS_PROP + "' must be > 0, using " + DEFAULT_THREADS);
+        } catch (NumberFormatException ex) {
+            LOG.warning("Could not parse value of property '" + THREADS_PROP + "': " + propStr);
+        }
+        return DEFAULT_THREADS;
+    }
+
+    public int getThreadCount() {
+        return _threads;
+    }
+
+    /**
+     * Applies all the given edits, returning once every file has been
+     * updated or has failed.
+     *
+     * @throws InterruptedException if interrupted while waiting for the
+     * workers, in which case files not yet started are left untouched
+     */
+    public Report apply(Collection<Edit> edits) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        Map<File, FileEdits> byFile = new LinkedHashMap<File, FileEdits>();
+        for (Edit e : edits) {
+            File key = _key(e.getFile());
+            FileEdits fe = byFile.get(key);
+            if (fe == null) {
+                fe = new FileEdits(e.getFile());
+                byFile.put(key, fe);
+            }
+            fe.add(e);
+        }
+
+        List<Outcome> outcomes = new ArrayList<Outcome>(byFile.size());
+        // The calling thread takes part in runAll, so it counts as one of the
+        // I/O threads and the pool only needs the rest.
+        int threads = Math.min(_threads, byFile.size());
+        if (threads == 1) {
+            for (FileEdits fe : byFile.values()) outcomes.add(_applyOne(fe));
+        } else if (threads > 1) {
+            WorkerPool pool = new WorkerPool("Hedit Batch", threads - 1);
+            try {
+                List<Callable<Outcome>> tasks = new ArrayList<Callable<Outcome>>(byFile.size());
+                for (final FileEdits fe : byFile.values()) {
+                    tasks.add(new Callable<Outcome>() {
+                        @Override public Outcome call() {
+                            return _applyOne(fe);
+                        }
+                    });
+                }
+
+                List<Future<Outcome>> futures = pool.runAll(tasks);
+                int i = 0;
+                for (FileEdits fe : byFile.values()) {
+                    outcomes.add(_await(fe, futures.get(i++)));
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        Report res = new Report(outcomes, System.currentTimeMillis() - start);
+        LOG.log(Level.INFO, "Header edit batch: " + res);
+        return res;
+    }
+
+    // Files are grouped by canonical path so that different names for the
+    // same file are still updated by a single worker.
+    private static File _key(File f) {
+        try {
+            return f.getCanonicalFile();
+        } catch (IOException ex) {
+            return f.getAbsoluteFile();
+        }
+    }
+
+    private static Outcome _await(FileEdits fe, Future<Outcome> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            Exception failure = (cause instanceof Exception) ? (Exception) cause : ex;
+            return new Outcome(fe.file, fe.edits, 0, failure, 0);
+        }
+    }
+
+    private Outcome _applyOne(FileEdits fe) {
+        long start = System.currentTimeMillis();
+        try {
+            // Opening for update would otherwise create it.
+            if (!fe.file.isFile()) {
+                throw new FileNotFoundException(fe.file.getPath());
+            }
+
+            Map<Integer, Collection<HeaderItem>> updates = new TreeMap<Integer, Collection<HeaderItem>>();
+            for (Map.Entry<Integer, Map<String, HeaderItem>> me : fe.headers.entrySet()) {
+                updates.put(me.getKey(), me.getValue().values());
+            }
+            new Hedit(fe.file, _access).updateHeaders(updates);
+
+            long millis = System.currentTimeMillis() - start;
+            LOG.log(Level.FINE, "Updated " + fe.file.getName() + " in " + millis + " ms");
+            return new Outcome(fe.file, fe.edits, fe.itemCount(), null, millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new Outcome(fe.file, fe.edits, 0, ex, System.currentTimeMillis() - start);
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Could not update " + fe.file.getName(), ex);
+            return new Outcome(fe.file, fe.edits, 0, ex, System.currentTimeMillis() - start);
+        }
+    }
+}
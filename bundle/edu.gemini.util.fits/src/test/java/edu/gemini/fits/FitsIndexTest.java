@@ -0,0 +1,186 @@
+package edu.gemini.fits;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests {@link FitsIndex} and the {@link Hedit.Access#MAPPED} mode of
+ * {@link Hedit}.
+ */
+public class FitsIndexTest extends TestCase {
+    private static final int REC = FitsConstants.RECORD_SIZE;
+
+    private File _f;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        FitsIndex.clear();
+        _f = File.createTempFile("test", ".fits");
+
+        File src = new File(FitsIndexTest.class.getResource("FITS_WITH_EXTENSIONS.fits").toURI());
+        FileChannel in  = new FileInputStream(src).getChannel();
+        FileChannel out = new FileOutputStream(_f).getChannel();
+        try {
+            out.transferFrom(in, 0, in.size());
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    public void tearDown() throws Exception {
+        FitsIndex.clear();
+        _f.delete();
+    }
+
+    private FitsIndex _index() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(_f, "r");
+        try {
+            return FitsIndex.get(_f, raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void testOffsets() throws Exception {
+        FitsIndex index = _index();
+        assertEquals(2, index.getHduCount());
+
+        // Primary: 7 header records, 2000 x 4 32-bit floats.
+        assertEquals(0, index.getHeaderOffset(0));
+        assertEquals(6 * REC + 25 * FitsConstants.HEADER_ITEM_SIZE, index.getEndOffset(0));
+        assertEquals(7 * REC, index.getDataOffset(0));
+        assertEquals(12 * REC, index.getDataSize(0));
+
+        // Table extension: 4 header records, 4 rows of 412 bytes.
+        assertEquals(19 * REC, index.getHeaderOffset(1));
+        assertEquals(22 * REC + FitsConstants.HEADER_ITEM_SIZE, index.getEndOffset(1));
+        assertEquals(23 * REC, index.getDataOffset(1));
+        assertEquals(REC, index.getDataSize(1));
+    }
+
+    public void testIndexReused() throws Exception {
+        assertSame(_index(), _index());
+    }
+
+    public void testIndexRebuiltWhenFileChanges() throws Exception {
+        FitsIndex before = _index();
+
+        // Append an empty image extension.
+        StringBuilder buf = new StringBuilder();
+        buf.append(String.format("%-80s", "XTENSION= 'IMAGE   '"));
+        buf.append(String.format("%-80s", "BITPIX  =                    8"));
+        buf.append(String.format("%-80s", "NAXIS   =                    0"));
+        buf.append(String.format("%-80s", "END"));
+        while (buf.length() < REC) buf.append(' ');
+
+        RandomAccessFile raf = new RandomAccessFile(_f, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(buf.toString().getBytes(FitsConstants.CHARSET_NAME));
+        } finally {
+            raf.close();
+        }
+
+        FitsIndex after = _index();
+        assertNotSame(before, after);
+        assertEquals(3, after.getHduCount());
+        assertEquals(24 * REC, after.getHeaderOffset(2));
+        assertEquals(0, after.getDataSize(2));
+    }
+
+    public void testMappedMatchesSequential() throws Exception {
+        List<Header> seq = new Hedit(_f).readAllHeaders();
+        List<Header> map = new Hedit(_f, Hedit.Access.MAPPED).readAllHeaders();
+
+        assertEquals(seq.size(), map.size());
+        for (int i = 0; i < seq.size(); ++i) {
+            assertEquals(i, map.get(i).getIndex());
+            assertEquals(seq.get(i), map.get(i));
+        }
+    }
+
+    public void testReadHeader() throws Exception {
+        Set<String> keys = new HashSet<String>();
+        keys.add("XTENSION");
+        keys.add("TFORM13");
+
+        Header h = new Hedit(_f, Hedit.Access.MAPPED).readHeader(1, keys);
+        assertEquals(1, h.getIndex());
+        assertEquals(2, h.size());
+        assertEquals("TABLE", h.get("XTENSION").getValue());
+        assertEquals(new Hedit(_f).readHeader(1, keys), h);
+    }
+
+    public void testReadItem() throws Exception {
+        Hedit hedit = new Hedit(_f, Hedit.Access.MAPPED);
+        assertEquals(2000, hedit.readItem(0, "NAXIS1").getIntValue());
+        assertEquals(412, hedit.readItem(1, "NAXIS1").getIntValue());
+        assertNull(hedit.readItem(1, "NOSUCHKEY"));
+        assertNull(hedit.readItem(1, "TOOLONGKEYWORD"));
+    }
+
+    public void testMissingHeader() throws Exception {
+        try {
+            new Hedit(_f, Hedit.Access.MAPPED).readHeader(2, null);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    public void testMappedUpdate() throws Exception {
+        Hedit hedit = new Hedit(_f, Hedit.Access.MAPPED);
+        FitsIndex before = _index();
+
+        // Replacing a value in place leaves the index alone.
+        hedit.updateHeader(Collections.singleton(new DefaultHeaderItem("TFORM13", "NEWVALUE", "New Comment", true)), 1);
+        assertEquals("NEWVALUE", hedit.readItem(1, "TFORM13").getValue());
+
+        // Adding keywords moves END, and adding enough of them inserts a
+        // record plus the reserved ones, so the index must be rebuilt.
+        Set<HeaderItem> added = new HashSet<HeaderItem>();
+        for (int i = 0; i < 40; ++i) {
+            added.add(DefaultHeaderItem.create("KEY" + i, "Value " + i, "Comment " + i));
+        }
+        hedit.updateHeader(added, 1);
+
+        FitsIndex after = _index();
+        assertNotSame(before, after);
+        assertEquals(before.getDataOffset(1) + (1 + Hedit.DEFAULT_RESERVED_RECORDS) * REC, after.getDataOffset(1));
+
+        Header ext = hedit.readHeader(1, null);
+        // 109 + 40, and the blank keyword of the reserved cards.
+        assertEquals(150, ext.getKeywords().size());
+        assertEquals("Value 39", ext.get("KEY39").getValue());
+        assertEquals(new Hedit(_f).readAllHeaders(), hedit.readAllHeaders());
+    }
+
+    public void testNotFits() throws Exception {
+        FileOutputStream out = new FileOutputStream(_f);
+        try {
+            out.write(new byte[REC]);
+        } finally {
+            out.close();
+        }
+
+        try {
+            _index();
+            fail();
+        } catch (FitsParseException ex) {
+            // expected
+        } catch (IOException ex) {
+            fail(ex.getMessage());
+        }
+    }
+}
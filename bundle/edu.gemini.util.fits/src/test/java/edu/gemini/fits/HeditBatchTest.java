@@ -0,0 +1,118 @@
+package edu.gemini.fits;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests {@link HeditBatch}.
+ */
+public class HeditBatchTest extends TestCase {
+    private final List<File> _files = new ArrayList<File>();
+
+    public void tearDown() throws Exception {
+        for (File f : _files) f.delete();
+        FitsIndex.clear();
+    }
+
+    private File _copy() throws Exception {
+        File f = File.createTempFile("batch", ".fits");
+        _files.add(f);
+
+        File src = new File(HeditBatchTest.class.getResource("FITS_WITH_EXTENSIONS.fits").toURI());
+        FileChannel in  = new FileInputStream(src).getChannel();
+        FileChannel out = new FileOutputStream(f).getChannel();
+        try {
+            out.transferFrom(in, 0, in.size());
+        } finally {
+            in.close();
+            out.close();
+        }
+        return f;
+    }
+
+    private static HeaderItem _item(String keyword, String value) {
+        return DefaultHeaderItem.create(keyword, value, null);
+    }
+
+    public void testApply() throws Exception {
+        List<HeditBatch.Edit> edits = new ArrayList<HeditBatch.Edit>();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 10; ++i) {
+            File f = _copy();
+            files.add(f);
+            edits.add(new HeditBatch.Edit(f, Collections.singleton(_item("QASTATE", "Pass"))));
+            edits.add(new HeditBatch.Edit(f, 1, Collections.singleton(_item("EXTKEY", "File " + i))));
+        }
+
+        HeditBatch.Report report = new HeditBatch(3).apply(edits);
+        assertEquals(10, report.getOutcomes().size());
+        assertTrue(report.getFailures().isEmpty());
+
+        for (int i = 0; i < 10; ++i) {
+            HeditBatch.Outcome o = report.getOutcomes().get(i);
+            assertEquals(files.get(i), o.getFile());
+            assertEquals(2, o.getEditCount());
+            assertEquals(2, o.getItemCount());
+
+            List<Header> headers = new Hedit(files.get(i)).readAllHeaders();
+            assertEquals(2, headers.size());
+            assertEquals("Pass", headers.get(0).get("QASTATE").getValue());
+            assertEquals("File " + i, headers.get(1).get("EXTKEY").getValue());
+        }
+    }
+
+    public void testLaterEditsWin() throws Exception {
+        File f = _copy();
+        List<HeditBatch.Edit> edits = Arrays.asList(
+                new HeditBatch.Edit(f, Arrays.asList(_item("QASTATE", "Usable"), _item("OBSCLASS", "science"))),
+                new HeditBatch.Edit(f, Collections.singleton(_item("QASTATE", "Fail"))),
+                new HeditBatch.Edit(new File(f.getParentFile(), "./" + f.getName()),
+                        Collections.singleton(_item("RELEASE", "2020-01-01"))));
+
+        HeditBatch.Report report = new HeditBatch(2).apply(edits);
+        assertEquals(1, report.getOutcomes().size());
+
+        HeditBatch.Outcome o = report.getOutcomes().get(0);
+        assertTrue(o.isSuccess());
+        assertEquals(3, o.getEditCount());
+        assertEquals(3, o.getItemCount());
+
+        Header h = new Hedit(f).readPrimary();
+        assertEquals("Fail", h.get("QASTATE").getValue());
+        assertEquals(1, h.getAll("QASTATE").size());
+        assertEquals("science", h.get("OBSCLASS").getValue());
+        assertEquals("2020-01-01", h.get("RELEASE").getValue());
+    }
+
+    public void testFailureIsPerFile() throws Exception {
+        File good    = _copy();
+        File missing = new File(good.getParentFile(), "no-such-file-" + System.nanoTime() + ".fits");
+
+        List<HeditBatch.Edit> edits = Arrays.asList(
+                new HeditBatch.Edit(missing, Collections.singleton(_item("QASTATE", "Pass"))),
+                new HeditBatch.Edit(good, Collections.singleton(_item("QASTATE", "Pass"))));
+
+        HeditBatch.Report report = new HeditBatch(2).apply(edits);
+        assertEquals(2, report.getOutcomes().size());
+        assertEquals(1, report.getFailures().size());
+
+        assertFalse(report.getOutcomes().get(0).isSuccess());
+        assertNotNull(report.getOutcomes().get(0).getFailure());
+        assertTrue(report.getOutcomes().get(1).isSuccess());
+        assertEquals("Pass", new Hedit(good).readPrimary().get("QASTATE").getValue());
+        assertFalse(missing.exists());
+    }
+
+    public void testEmpty() throws Exception {
+        HeditBatch.Report report = new HeditBatch().apply(Collections.<HeditBatch.Edit>emptyList());
+        assertTrue(report.getOutcomes().isEmpty());
+    }
+}
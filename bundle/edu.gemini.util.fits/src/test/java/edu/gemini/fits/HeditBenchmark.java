@@ -0,0 +1,122 @@
+package edu.gemini.fits;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times header updates on a large FITS file: replacing a keyword in place,
+ * adding keywords into reserved blank cards, and growing the header with
+ * each {@link Hedit.Growth} strategy.  Run with:
+ *
+ * <pre>
+ *     HeditBenchmark [megabytes [rounds [dir]]]
+ * </pre>
+ */
+public final class HeditBenchmark {
+
+    private interface Update {
+        void apply(Hedit hedit, int round) throws Exception;
+    }
+
+    private static List<HeaderItem> items(String prefix, int count) {
+        List<HeaderItem> res = new ArrayList<HeaderItem>();
+        for (int i = 0; i < count; ++i) {
+            res.add(DefaultHeaderItem.create(prefix + i, "Value " + i, "Comment " + i));
+        }
+        return res;
+    }
+
+    // A primary header with a few keywords followed by an image of about the
+    // given size.
+    private static void create(File f, int megabytes) throws IOException {
+        long dataRecords = (megabytes * 1024L * 1024L) / FitsConstants.RECORD_SIZE;
+
+        ByteBuffer header = ByteBuffer.allocate(FitsConstants.RECORD_SIZE);
+        List<HeaderItem> keys = new ArrayList<HeaderItem>();
+        keys.add(DefaultHeaderItem.create("BITPIX", 8, null));
+        keys.add(DefaultHeaderItem.create("NAXIS", 1, null));
+        keys.add(DefaultHeaderItem.create("NAXIS1", (int) (dataRecords * FitsConstants.RECORD_SIZE), null));
+        keys.addAll(items("KEY", 20));
+        for (HeaderItem hi : keys) header.put(HeaderItemFormat.toBytes(hi));
+        header.put(String.format("%-80s", "END").getBytes(FitsConstants.CHARSET_NAME));
+        while (header.hasRemaining()) header.put((byte) ' ');
+        header.flip();
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            FileUtil.writeBuf(channel, header, 0);
+
+            byte[] data = new byte[1024 * FitsConstants.RECORD_SIZE];
+            Arrays.fill(data, (byte) 7);
+            long pos = FitsConstants.RECORD_SIZE;
+            for (long r = 0; r < dataRecords; r += 1024) {
+                int len = (int) (Math.min(1024, dataRecords - r) * FitsConstants.RECORD_SIZE);
+                FileUtil.writeBuf(channel, ByteBuffer.wrap(data, 0, len), pos);
+                pos += len;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void run(String name, File f, int megabytes, int rounds, int reserved,
+                            Hedit.Growth growth, Update u) throws Exception {
+        create(f, megabytes);
+        Hedit hedit = new Hedit(f);
+        hedit.setGrowth(growth);
+        hedit.setReservedRecords(reserved);
+        u.apply(hedit, -1); // warm up, and use up any reserved space if growing
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) u.apply(hedit, i);
+        long t1 = System.nanoTime();
+
+        double ms = (t1 - t0) / 1e6 / rounds;
+        double mbs = (f.length() / (1024.0 * 1024.0)) / (ms / 1000.0);
+        System.out.println(String.format("%-20s %12.2f %12.1f", name, ms, mbs));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        int rounds    = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        File dir      = (args.length > 2) ? new File(args[2]) : null;
+
+        File f = File.createTempFile("bench", ".fits", dir);
+        try {
+            System.out.println(String.format("%d MB file, %d round(s)", megabytes, rounds));
+            System.out.println(String.format("%-20s %12s %12s", "update", "ms/update", "MB/s"));
+
+            run("replace in place", f, megabytes, rounds, 0, Hedit.Growth.COPY, new Update() {
+                public void apply(Hedit hedit, int round) throws Exception {
+                    hedit.updatePrimary(Arrays.asList(DefaultHeaderItem.create("KEY3", "Round " + round, null)));
+                }
+            });
+
+            // The warm up grows the header, reserving a record of blank
+            // cards, so each round's 5 new cards then fit in place.
+            run("add into reserve", f, megabytes, Math.min(rounds, 6), 1, Hedit.Growth.COPY, new Update() {
+                public void apply(Hedit hedit, int round) throws Exception {
+                    hedit.updatePrimary(items("R" + (round + 1) + "K", (round < 0) ? 20 : 5));
+                }
+            });
+
+            for (final Hedit.Growth g : Hedit.Growth.values()) {
+                run("grow (" + g.name().toLowerCase() + ")", f, megabytes, rounds, 0, g, new Update() {
+                    public void apply(Hedit hedit, int round) throws Exception {
+                        hedit.updatePrimary(items("G" + (round + 1) + "K", 40));
+                    }
+                });
+            }
+        } finally {
+            f.delete();
+        }
+    }
+}
@@ -19,7 +19,9 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  *
@@ -176,8 +178,10 @@ public class HeditTest extends TestCase {
         }
         updates.addAll(expected.subList(existingKeys, existingKeys + newKeys));
 
-        // Do the updates.
+        // Do the updates, without reserved cards so that the header is grown
+        // to the minimum size.
         Hedit hedit = new Hedit(_f);
+        hedit.setReservedRecords(0);
         hedit.updatePrimary(updates);
 
         // Check that it equals what we expected.  Calculate the file size.
@@ -329,6 +333,149 @@ public class HeditTest extends TestCase {
         assertEquals("New Comment", extensionHeader.get("TFORM13").getComment());
     }
 
+    public void testReservedRecords() throws Exception {
+        _initFile(10, 1);
+
+        Hedit hedit = new Hedit(_f);
+        hedit.setReservedRecords(1);
+
+        // 10 + 30 new cards, 36 reserved blank cards and END need 3 records.
+        List<HeaderItem> items = _createHeaderItems(60);
+        hedit.updatePrimary(items.subList(10, 40));
+        assertEquals(4 * FitsConstants.RECORD_SIZE, _f.length());
+
+        // The next 20 go into the reserved cards without growing the file.
+        hedit.updatePrimary(items.subList(40, 60));
+        assertEquals(4 * FitsConstants.RECORD_SIZE, _f.length());
+
+        // The 16 blank cards that are left are read back as blank items.
+        List<HeaderItem> res = new ArrayList<HeaderItem>(hedit.readPrimary());
+        assertEquals(76, res.size());
+        assertEquals(items, res.subList(0, 60));
+        for (HeaderItem hi : res.subList(60, 76)) {
+            assertEquals("", hi.getKeyword());
+            assertEquals("", hi.getComment());
+        }
+    }
+
+    public void testDefaults() throws Exception {
+        _initFile(10, 1);
+
+        Hedit hedit = new Hedit(_f);
+        assertEquals(Hedit.Growth.COPY, hedit.getGrowth());
+        assertEquals(Hedit.DEFAULT_RESERVED_RECORDS, hedit.getReservedRecords());
+
+        // Growing the header reserves blank cards for the next update, which
+        // then fits without moving the data.
+        List<HeaderItem> items = _createHeaderItems(40 + Hedit.DEFAULT_RESERVED_RECORDS * FitsConstants.ITEMS_PER_RECORD);
+        hedit.updatePrimary(items.subList(10, 40));
+        long length = _f.length();
+        hedit.updatePrimary(items.subList(40, items.size()));
+        assertEquals(length, _f.length());
+        assertEquals(items, new ArrayList<HeaderItem>(hedit.readPrimary()).subList(0, items.size()));
+    }
+
+    public void testBlankCardsRead() throws Exception {
+        _initFile(3, 0);
+
+        // Blank out the middle card.
+        byte[] blank = new byte[FitsConstants.HEADER_ITEM_SIZE];
+        Arrays.fill(blank, (byte) ' ');
+        RandomAccessFile raf = new RandomAccessFile(_f, "rw");
+        try {
+            raf.seek(FitsConstants.HEADER_ITEM_SIZE);
+            raf.write(blank);
+        } finally {
+            raf.close();
+        }
+
+        for (Hedit.Access access : Hedit.Access.values()) {
+            List<HeaderItem> res = new Hedit(_f, access).readPrimary();
+            assertEquals(3, res.size());
+            assertEquals("KEY0", res.get(0).getKeyword());
+            assertEquals("", res.get(1).getKeyword());
+            assertEquals("KEY2", res.get(2).getKeyword());
+        }
+    }
+
+    private byte[] _updateWith(Hedit.Growth growth, int newKeys) throws Exception {
+        _f.delete();
+        _raf = new RandomAccessFile(_f, "rw");
+        _channel = _raf.getChannel();
+        _initFile(10, 3);
+
+        Hedit hedit = new Hedit(_f);
+        hedit.setGrowth(growth);
+        hedit.updatePrimary(_createHeaderItems(10 + newKeys).subList(10, 10 + newKeys));
+
+        RandomAccessFile raf = new RandomAccessFile(_f, "r");
+        try {
+            byte[] res = new byte[(int) raf.length()];
+            raf.readFully(res);
+            return res;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void testCopyMatchesShift() throws Exception {
+        for (int newKeys : new int[] { 25, 26, 100 }) {
+            byte[] copy  = _updateWith(Hedit.Growth.COPY, newKeys);
+            byte[] shift = _updateWith(Hedit.Growth.SHIFT, newKeys);
+            assertTrue(Arrays.equals(shift, copy));
+        }
+    }
+
+    private static byte[] _readFile(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] res = new byte[(int) raf.length()];
+            raf.readFully(res);
+            return res;
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Growing several headers at once must give the same file as growing
+    // them one after the other.
+    public void testGrowSeveralHeaders() throws Exception {
+        File fitsFile = new File(HeditTest.class.getResource("FITS_WITH_EXTENSIONS.fits").toURI());
+        List<HeaderItem> items = _createHeaderItems(60);
+        Map<Integer, List<HeaderItem>> updates = new TreeMap<Integer, List<HeaderItem>>();
+        updates.put(0, items);
+        updates.put(1, items);
+
+        File one = File.createTempFile("test", ".fits");
+        try {
+            for (Hedit.Growth growth : Hedit.Growth.values()) {
+                for (Hedit.Access access : Hedit.Access.values()) {
+                    copyFile(fitsFile, _f);
+                    Hedit hedit = new Hedit(_f, access);
+                    hedit.setGrowth(growth);
+                    hedit.setReservedRecords(0);
+                    hedit.updateHeaders(updates);
+
+                    copyFile(fitsFile, one);
+                    hedit = new Hedit(one, access);
+                    hedit.setGrowth(growth);
+                    hedit.setReservedRecords(0);
+                    hedit.updateHeader(items, 1);
+                    hedit.updateHeader(items, 0);
+
+                    assertTrue(Arrays.equals(_readFile(one), _readFile(_f)));
+
+                    List<Header> headers = new Hedit(_f, access).readAllHeaders();
+                    assertEquals(2, headers.size());
+                    assertEquals(212 + 60, headers.get(0).getKeywords().size());
+                    assertEquals(109 + 60, headers.get(1).getKeywords().size());
+                }
+            }
+        } finally {
+            one.delete();
+        }
+    }
+
     private static void copyFile(File sourceFile, File destFile) throws IOException {
         if (!destFile.exists()) {
             destFile.createNewFile();
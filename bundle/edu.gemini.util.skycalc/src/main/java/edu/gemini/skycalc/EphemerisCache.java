@@ -0,0 +1,200 @@
+package edu.gemini.skycalc;
+
+import edu.gemini.spModel.core.Site;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A process-wide cache of the target-independent parts of the skycalc
+ * calculations: the {@link SunMoonEphemeris} at each sampled time and the
+ * {@link TwilightBoundedNight}s.  Target calculators covering the same night
+ * at the same sampling rate ask for exactly the same times, so with the cache
+ * the sun and moon positions are worked out once per site and time no matter
+ * how many targets are computed.
+ *
+ * <p>Entries are grouped by site and observing night (the day on which the
+ * night starts, in the site's time zone).  When more than
+ * {@link #MAX_ENTRIES} ephemerides and twilight nights are held, whole nights
+ * are dropped, least recently used first.  A single night holds at most
+ * {@link #MAX_ENTRIES_PER_NIGHT} entries; anything beyond that is computed
+ * but not cached.
+ *
+ * <p>This class is mt-safe.  Values are computed without holding the cache
+ * lock, so a value requested concurrently by several threads may be computed
+ * more than once, but only one of the results is kept.
+ */
+public final class EphemerisCache {
+
+    /**
+     * Maximum number of ephemerides and twilight nights held before nights
+     * are evicted.  Enough for a semester at 5 minute sampling, or several
+     * nights at 30 seconds.
+     */
+    public static final int MAX_ENTRIES = 50000;
+
+    /**
+     * Maximum number of entries held for any one night, which is a full day
+     * at 10 second sampling.  Keeps a single night from filling the cache,
+     * so evicting the others always brings it back down to size.
+     */
+    public static final int MAX_ENTRIES_PER_NIGHT = 8640;
+
+    private static final long MS_PER_HOUR = 60 * 60 * 1000L;
+    private static final long MS_PER_DAY  = 24 * MS_PER_HOUR;
+
+    private EphemerisCache() {
+    }
+
+    private static final class NightKey {
+        final Site site;
+        final long day;
+
+        NightKey(Site site, long day) {
+            this.site = site;
+            this.day  = day;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof NightKey)) return false;
+            final NightKey that = (NightKey) o;
+            return (site == that.site) && (day == that.day);
+        }
+
+        @Override public int hashCode() {
+            return 31 * site.hashCode() + Long.hashCode(day);
+        }
+    }
+
+    private static final class NightEntry {
+        final Map<Long, SunMoonEphemeris> ephemerides = new HashMap<>();
+        final Map<TwilightBoundType, TwilightBoundedNight> twilights = new EnumMap<>(TwilightBoundType.class);
+
+        int size() {
+            return ephemerides.size() + twilights.size();
+        }
+
+        boolean isFull() {
+            return size() >= MAX_ENTRIES_PER_NIGHT;
+        }
+    }
+
+    // All guarded by "nights".  Access ordered, so iteration starts with the
+    // least recently used night.
+    private static final Map<NightKey, NightEntry> nights = new LinkedHashMap<>(16, 0.75f, true);
+    private static int size;
+
+    // Must be called holding the lock.
+    private static NightEntry night(NightKey key) {
+        NightEntry e = nights.get(key);
+        if (e == null) {
+            e = new NightEntry();
+            nights.put(key, e);
+        }
+        return e;
+    }
+
+    // Local day number (days since the epoch) of the given time at the site.
+    private static long localDay(Site site, long time) {
+        return Math.floorDiv(time + site.timezone().getOffset(time), MS_PER_DAY);
+    }
+
+    /**
+     * Gets the sun and moon ephemeris for the given site and time, computing
+     * it if necessary.
+     */
+    public static SunMoonEphemeris get(Site site, long time) {
+        Objects.requireNonNull(site);
+
+        // Observing nights end at 14:00 local time.
+        final NightKey key = new NightKey(site, localDay(site, time - ObservingNight.LOCAL_NIGHT_END_HOUR * MS_PER_HOUR));
+        synchronized (nights) {
+            final SunMoonEphemeris res = night(key).ephemerides.get(time);
+            if (res != null) return res;
+        }
+
+        final SunMoonEphemeris res = new SunMoonEphemeris(site, time);
+        synchronized (nights) {
+            // The night may have been evicted while computing, in which case
+            // it is simply added again.
+            final NightEntry e = night(key);
+            final SunMoonEphemeris prev = e.ephemerides.get(time);
+            if (prev != null) return prev;
+            if (!e.isFull()) {
+                e.ephemerides.put(time, res);
+                added(e);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Gets the {@link TwilightBoundedNight} for the given type, time and
+     * site, as created by
+     * {@link TwilightBoundedNight#TwilightBoundedNight(TwilightBoundType, long, Site)},
+     * computing it if necessary.
+     */
+    public static TwilightBoundedNight twilightNight(TwilightBoundType type, long time, Site site) {
+        Objects.requireNonNull(site);
+
+        // The night is determined by the local date alone.
+        final NightKey key = new NightKey(site, localDay(site, time));
+        synchronized (nights) {
+            final TwilightBoundedNight res = night(key).twilights.get(type);
+            if (res != null) return res;
+        }
+
+        final TwilightBoundedNight res = new TwilightBoundedNight(type, time, site);
+        synchronized (nights) {
+            final NightEntry e = night(key);
+            final TwilightBoundedNight prev = e.twilights.get(type);
+            if (prev != null) return prev;
+            if (!e.isFull()) {
+                e.twilights.put(type, res);
+                added(e);
+            }
+        }
+        return res;
+    }
+
+    // Counts an entry just added to the given night, evicting other nights if
+    // the cache has grown too big.  Must be called holding the lock.
+    private static void added(NightEntry e) {
+        if (++size > MAX_ENTRIES) evict(e);
+    }
+
+    // Drops the least recently used nights, other than the one being filled,
+    // until the cache is back down to size.  Must be called holding the lock.
+    private static void evict(NightEntry current) {
+        final Iterator<NightEntry> it = nights.values().iterator();
+        while ((size > MAX_ENTRIES) && it.hasNext()) {
+            final NightEntry e = it.next();
+            if (e == current) continue;
+            it.remove();
+            size -= e.size();
+        }
+    }
+
+    /**
+     * Number of ephemerides and twilight nights currently cached.
+     */
+    public static int size() {
+        synchronized (nights) {
+            return size;
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public static void clear() {
+        synchronized (nights) {
+            nights.clear();
+            size = 0;
+        }
+    }
+}
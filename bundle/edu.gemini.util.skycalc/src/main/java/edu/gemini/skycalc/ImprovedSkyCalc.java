@@ -3,7 +3,6 @@ package edu.gemini.skycalc;
 import edu.gemini.spModel.core.*;
 import jsky.coords.WorldCoords;
 
-import static java.lang.Math.cos;
 import java.util.Date;
 
 /**
@@ -15,9 +14,9 @@ import java.util.Date;
 public final class ImprovedSkyCalc extends ImprovedSkyCalcMethods {
 
     // Site parameters
+    private final Site site;
     private final double hoursLongitude;
     private final double degreesLatitude;
-    private final double siteAltitude;
 
     // calculated results
     private double altitude;
@@ -39,9 +38,9 @@ public final class ImprovedSkyCalc extends ImprovedSkyCalcMethods {
     private boolean cachedCalculateMoon;
 
     public ImprovedSkyCalc(final Site site) {
+        this.site = site;
         hoursLongitude = -site.longitude/15.;
         degreesLatitude = site.latitude;
-        siteAltitude = site.altitude;
     }
 
     public void calculate(final edu.gemini.spModel.core.Coordinates coords, final Date date, final boolean calculateMoon) {
@@ -60,22 +59,47 @@ public final class ImprovedSkyCalc extends ImprovedSkyCalcMethods {
     	cachedDate = date;
     	cachedCalculateMoon = calculateMoon;
 
-        final DateTime dateTime = new DateTime(date);
-        final DoubleRef jdut = new DoubleRef();
-        final DoubleRef sid = new DoubleRef();
-        final DoubleRef curepoch = new DoubleRef();
+        if (calculateMoon) {
+            final SunMoonEphemeris eph = new SunMoonEphemeris(site, date.getTime());
+            getCircumstances(obj.getRaDeg()/15, obj.getDecDeg(), 2000., eph.epoch, eph.sid, degreesLatitude, eph);
+        } else {
+            final DateTime dateTime = new DateTime(date);
+            final DoubleRef jdut = new DoubleRef();
+            final DoubleRef sid = new DoubleRef();
+            final DoubleRef curepoch = new DoubleRef();
 
-        setup_time_place(dateTime, hoursLongitude, jdut, sid, curepoch);
+            setup_time_place(dateTime, hoursLongitude, jdut, sid, curepoch);
 
-        final double objra = obj.getRaDeg()/15;
-        final double objdec = obj.getDecDeg();
-        final double objepoch = 2000.;
+            getCircumstances(obj.getRaDeg()/15, obj.getDecDeg(), 2000., curepoch.d, sid.d, degreesLatitude, null);
+        }
+    }
 
-        getCircumstances(objra, objdec, objepoch, curepoch.d, sid.d, degreesLatitude, jdut, calculateMoon);
+    public void calculate(final edu.gemini.spModel.core.Coordinates coords, final SunMoonEphemeris eph) {
+      calculate(new WorldCoords(coords.ra().toDegrees(), coords.dec().toDegrees()), eph);
+    }
+
+    /**
+     * Calculates the circumstances of the target, including the lunar
+     * quantities, at the time of the given ephemeris.  Use this with
+     * {@link EphemerisCache} to share the sun and moon positions between
+     * targets.
+     *
+     * @throws IllegalArgumentException if the ephemeris is for another site
+     */
+    public void calculate(final WorldCoords obj, final SunMoonEphemeris eph) {
+        if (eph.getSite() != site) {
+            throw new IllegalArgumentException("Ephemeris for " + eph.getSite() + " used with calculator for " + site);
+        }
+
+        cachedCoordinates = obj;
+        cachedDate = new Date(eph.getTime());
+        cachedCalculateMoon = true;
+
+        getCircumstances(obj.getRaDeg()/15, obj.getDecDeg(), 2000., eph.epoch, eph.sid, degreesLatitude, eph);
     }
 
     private void getCircumstances(double objra, double objdec, double objepoch,
-                                  double curep, double sid, double lat, DoubleRef jdut, boolean calculateMoon) {
+                                  double curep, double sid, double lat, SunMoonEphemeris eph) {
 
         final double ha, alt;
         final DoubleRef az = new DoubleRef();
@@ -94,43 +118,24 @@ public final class ImprovedSkyCalc extends ImprovedSkyCalcMethods {
         parallacticAngle = par.d;
         hourAngle = ha;
 
-		if (calculateMoon) {
-
-			final DoubleRef ramoon = new DoubleRef();
-			final DoubleRef decmoon= new DoubleRef();
-			final DoubleRef distmoon = new DoubleRef();
-			final DoubleRef georamoon = new DoubleRef();
-			final DoubleRef geodecmoon = new DoubleRef();
-			final DoubleRef geodistmoon = new DoubleRef();
-			final DoubleRef rasun = new DoubleRef();
-			final DoubleRef decsun = new DoubleRef();
-			final DoubleRef distsun = new DoubleRef();
-			final DoubleRef x = new DoubleRef();
-			final DoubleRef y = new DoubleRef();
-			final DoubleRef z = new DoubleRef();
-			final DoubleRef toporasun = new DoubleRef();
-			final DoubleRef topodecsun = new DoubleRef();
-			final double elevsea = siteAltitude;
-
-			accusun(jdut.d,sid,degreesLatitude,rasun,decsun,distsun, toporasun,topodecsun,x,y,z);
-			sunAltitude=altit(topodecsun.d,(sid-toporasun.d),degreesLatitude,az, new DoubleRef() /* [out] parang, ignored */);
-
-			accumoon(jdut.d,degreesLatitude,sid,elevsea,georamoon,geodecmoon,geodistmoon, ramoon,decmoon,distmoon);
-			lunarElevation=altit(decmoon.d,(sid-ramoon.d),degreesLatitude,az, new DoubleRef()  /* [out] parang, ignored */);
+		if (eph != null) {
+
+			sunAltitude=eph.sunAltitude;
+			lunarElevation=eph.lunarElevation;
 
 			// Sky brightness
 			lunarSkyBrightness = null;
-			lunarDistance = DEG_IN_RADIAN * subtend(ramoon.d,decmoon.d,objra,objdec);
-			lunarPhaseAngle = DEG_IN_RADIAN * subtend(ramoon.d,decmoon.d,toporasun.d,topodecsun.d);
+			lunarDistance = DEG_IN_RADIAN * subtend(eph.moonRa,eph.moonDec,objra,objdec);
+			lunarPhaseAngle = eph.lunarPhaseAngle;
 			if(lunarElevation > -2.) {
 				if((lunarElevation > 0.) && (altitude > 0.5) && (sunAltitude < -9.)) {
 				  lunarSkyBrightness =
 				     lunskybright(lunarPhaseAngle,lunarDistance,KZEN,lunarElevation,
-						altitude,distmoon.d);
+						altitude,eph.moonDistance);
 				}
 			}
 			totalSkyBrightness = sb(180. - lunarPhaseAngle, lunarDistance, 90 - lunarElevation, 90 - altitude, 90 - sunAltitude);
-			lunarIlluminatedFraction=(float) (0.5*(1.-cos(subtend(ramoon.d,decmoon.d,rasun.d,decsun.d))));
+			lunarIlluminatedFraction=eph.lunarIlluminatedFraction;
 
 		}
     }
@@ -0,0 +1,127 @@
+package edu.gemini.skycalc;
+
+import edu.gemini.spModel.core.Site;
+
+/**
+ * Computes the same target circumstances as {@link ImprovedSkyCalc}, but for
+ * many times and many targets in a single call.  Results are written into
+ * caller supplied arrays ("columns"), one value per time/target pair, at
+ * index <code>time * targetCount + target</code>.
+ *
+ * <p>Everything that depends only on the time (sidereal time, precession
+ * to the epoch of date, the {@link SunMoonEphemeris}) is computed once per
+ * time rather than once per sample, and the per-sample work allocates
+ * nothing.  Instances hold only the site and may be shared freely between
+ * threads.
+ */
+public final class ImprovedSkyCalcBatch extends ImprovedSkyCalcMethods {
+
+    private final Site site;
+    private final double hoursLongitude;
+    private final double degreesLatitude;
+
+    public ImprovedSkyCalcBatch(final Site site) {
+        this.site = site;
+        hoursLongitude = -site.longitude/15.;
+        degreesLatitude = site.latitude;
+    }
+
+    /**
+     * Calculates the circumstances of each target at each time.  Any of the
+     * output columns may be <code>null</code> if not wanted, and the sun and
+     * moon are only computed if <code>skyBrightness</code> is requested.
+     * Each non-null column must hold at least
+     * <code>times.length * ra.length</code> values.
+     *
+     * @param times UTC times in milliseconds since the epoch
+     * @param ra J2000 right ascension of each target in degrees
+     * @param dec J2000 declination of each target in degrees
+     * @param altitude [out] altitude in degrees
+     * @param azimuth [out] azimuth in degrees
+     * @param airmass [out] airmass (0 for targets below the horizon, see
+     * {@link #getAirmass(double)})
+     * @param parallacticAngle [out] parallactic angle in degrees
+     * @param skyBrightness [out] total sky brightness in V mag/arcsec^2, as
+     * returned by {@link ImprovedSkyCalc#getTotalSkyBrightness()}
+     */
+    public void calculate(final long[] times, final double[] ra, final double[] dec,
+                          final double[] altitude, final double[] azimuth, final double[] airmass,
+                          final double[] parallacticAngle, final double[] skyBrightness) {
+
+        if (ra.length != dec.length) {
+            throw new IllegalArgumentException("Got " + ra.length + " right ascension(s) but " + dec.length + " declination(s)");
+        }
+        final int targets = ra.length;
+        final int size = times.length * targets;
+        checkColumn("altitude", altitude, size);
+        checkColumn("azimuth", azimuth, size);
+        checkColumn("airmass", airmass, size);
+        checkColumn("parallacticAngle", parallacticAngle, size);
+        checkColumn("skyBrightness", skyBrightness, size);
+
+        // Per-target values that don't depend on the time: RA in hours and
+        // the J2000 unit vector.
+        final double[] raHours = new double[targets];
+        final double[] unit = new double[3 * targets];
+        for (int i = 0; i < targets; ++i) {
+            raHours[i] = ra[i]/15;
+            final double radian_ra = raHours[i] / HRS_IN_RADIAN;
+            final double radian_dec = dec[i] / DEG_IN_RADIAN;
+            unit[3*i]   = Math.cos(radian_dec) * Math.cos(radian_ra);
+            unit[3*i+1] = Math.cos(radian_dec) * Math.sin(radian_ra);
+            unit[3*i+2] = Math.sin(radian_dec);
+        }
+
+        // Scratch space, reused for every sample.
+        final double[] m = new double[9];
+        final DoubleRef jdut = new DoubleRef();
+        final DoubleRef sid = new DoubleRef();
+        final DoubleRef curepoch = new DoubleRef();
+        final DoubleRef curra = new DoubleRef();
+        final DoubleRef curdec = new DoubleRef();
+        final DoubleRef az = new DoubleRef();
+        final DoubleRef par = new DoubleRef();
+
+        for (int t = 0; t < times.length; ++t) {
+            final SunMoonEphemeris eph;
+            final double sidt, epoch;
+            if (skyBrightness == null) {
+                eph = null;
+                setup_time_place(new DateTime(times[t]), hoursLongitude, jdut, sid, curepoch);
+                sidt = sid.d;
+                epoch = curepoch.d;
+            } else {
+                eph = new SunMoonEphemeris(site, times[t]);
+                sidt = eph.sid;
+                epoch = eph.epoch;
+            }
+            precession_matrix(2000., epoch, m);
+
+            for (int i = 0; i < targets; ++i) {
+                final double ux = unit[3*i], uy = unit[3*i+1], uz = unit[3*i+2];
+                xyz_cel(m[0]*ux + m[1]*uy + m[2]*uz,
+                        m[3]*ux + m[4]*uy + m[5]*uz,
+                        m[6]*ux + m[7]*uy + m[8]*uz, curra, curdec);
+
+                final double ha = adj_time(sidt - curra.d);
+                final double alt = altit(curdec.d, ha, degreesLatitude, az, par);
+
+                final int k = t * targets + i;
+                if (altitude != null) altitude[k] = alt;
+                if (azimuth != null) azimuth[k] = az.d;
+                if (airmass != null) airmass[k] = getAirmass(alt);
+                if (parallacticAngle != null) parallacticAngle[k] = par.d;
+                if (eph != null) {
+                    final double lunarDistance = DEG_IN_RADIAN * subtend(eph.moonRa,eph.moonDec,raHours[i],dec[i]);
+                    skyBrightness[k] = sb(180. - eph.lunarPhaseAngle, lunarDistance, 90 - eph.lunarElevation, 90 - alt, 90 - eph.sunAltitude);
+                }
+            }
+        }
+    }
+
+    private static void checkColumn(final String name, final double[] column, final int size) {
+        if ((column != null) && (column.length < size)) {
+            throw new IllegalArgumentException("Column '" + name + "' holds " + column.length + " value(s), need " + size);
+        }
+    }
+}
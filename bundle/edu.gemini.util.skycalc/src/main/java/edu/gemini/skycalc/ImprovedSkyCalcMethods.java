@@ -10,6 +10,7 @@ import static java.lang.Math.pow;
 import static java.lang.Math.sin;
 import static java.lang.Math.sqrt;
 
+import java.time.LocalDate;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
@@ -36,6 +37,7 @@ public class ImprovedSkyCalcMethods {
     protected static final double SPEED_OF_LIGHT = 299792.458;  // in km per sec ... exact.
     protected static final double J2000 = 2451545.; // Julian date at standard epoch
     protected static final double SEC_IN_DAY = 86400.;
+    protected static final long MS_IN_DAY = 86400000L;
     protected static final double FLATTEN = 0.003352813; // flattening of earth, 1/298.257
     protected static final double EQUAT_RAD = 6378137.;  // equatorial radius of earth, meters
     protected static final double ASTRO_UNIT = 1.4959787066e11; // 1 AU in meters
@@ -72,18 +74,22 @@ public class ImprovedSkyCalcMethods {
         final short mn;
         final double s;
 
-        private static final Calendar cal = Calendar.getInstance(UTC);
-
         DateTime(Date date) {
-        	synchronized (cal) { // v. important! [QPT-206]
-		        cal.setTime(date);
-		        y = (short)cal.get(Calendar.YEAR);
-		        mo = (short)(cal.get(Calendar.MONTH) + 1);
-		        d = (short)cal.get(Calendar.DAY_OF_MONTH);
-		        h = (short)cal.get(Calendar.HOUR_OF_DAY);
-		        mn = (short)cal.get(Calendar.MINUTE);
-		        s = cal.get(Calendar.SECOND) + cal.get(Calendar.MILLISECOND)/1000.;
-        	}
+            this(date.getTime());
+        }
+
+        // Works out the UTC fields directly rather than through a shared
+        // Calendar, which had to be locked on every call [QPT-206].
+        DateTime(long millis) {
+            final long day = Math.floorDiv(millis, MS_IN_DAY);
+            final long ms  = Math.floorMod(millis, MS_IN_DAY);
+            final LocalDate date = LocalDate.ofEpochDay(day);
+            y = (short)date.getYear();
+            mo = (short)date.getMonthValue();
+            d = (short)date.getDayOfMonth();
+            h = (short)(ms / 3600000);
+            mn = (short)((ms / 60000) % 60);
+            s = (ms / 1000) % 60 + (ms % 1000)/1000.;
         }
     }
 
@@ -157,31 +163,16 @@ public class ImprovedSkyCalcMethods {
 	    return (0);
 	}
 
-	protected static void cooxform(double rin, double din, double std_epoch, double date_epoch, DoubleRef rout, DoubleRef dout, int just_precess, int from_std) {
-
-	    /* all the 3-d stuff is declared as [4] 'cause I'm not using the
-	      zeroth element. */
+	/**
+	 * Fills in the 3x3 precession matrix, row by row, for transforming
+	 * coordinates from the standard epoch to the date epoch (both in years).
+	 * Split out of cooxform so that callers precessing many positions to the
+	 * same epoch need only compute it once.
+	 */
+	protected static void precession_matrix(double std_epoch, double date_epoch, double[] m) {
 
 	    double ti, tf, zeta, z, theta;  /* all as per  Taff */
 	    double cosz, coszeta, costheta, sinz, sinzeta, sintheta;  /* ftns */
-	    double[][] p = new double[4][4];
-	    /* elements of the rotation matrix */
-	    double[][] n = new double[4][4];
-	    /* elements of the nutation matrix */
-	    double[][] r = new double[4][4];
-	    /* their product */
-	    double[][] t = new double[4][4];  /* temporary matrix for inversion .... */
-	    double radian_ra, radian_dec;
-
-	    /* nutation angles in radians */
-	    DoubleRef del_psi = new DoubleRef();
-	    DoubleRef del_eps = new DoubleRef();
-	    double eps;
-
-	    double[] orig = new double[4];   /* original unit vector */
-	    double[] fin = new double[4];   /* final unit vector */
-	    int i, j, k;
-
 
 	    ti = (std_epoch - 2000.) / 100.;
 	    tf = (date_epoch - 2000. - 100. * ti) / 100.;
@@ -210,17 +201,52 @@ public class ImprovedSkyCalcMethods {
 	    /* compute the elements of the precession matrix -- set up
 	       here as *from* standard epoch *to* input jd. */
 
-	    p[1][1] = coszeta * cosz * costheta - sinzeta * sinz;
-	    p[1][2] = -1. * sinzeta * cosz * costheta - coszeta * sinz;
-	    p[1][3] = -1. * cosz * sintheta;
+	    m[0] = coszeta * cosz * costheta - sinzeta * sinz;
+	    m[1] = -1. * sinzeta * cosz * costheta - coszeta * sinz;
+	    m[2] = -1. * cosz * sintheta;
+
+	    m[3] = coszeta * sinz * costheta + sinzeta * cosz;
+	    m[4] = -1. * sinzeta * sinz * costheta + coszeta * cosz;
+	    m[5] = -1. * sinz * sintheta;
+
+	    m[6] = coszeta * sintheta;
+	    m[7] = -1. * sinzeta * sintheta;
+	    m[8] = costheta;
+	}
+
+	protected static void cooxform(double rin, double din, double std_epoch, double date_epoch, DoubleRef rout, DoubleRef dout, int just_precess, int from_std) {
 
-	    p[2][1] = coszeta * sinz * costheta + sinzeta * cosz;
-	    p[2][2] = -1. * sinzeta * sinz * costheta + coszeta * cosz;
-	    p[2][3] = -1. * sinz * sintheta;
+	    /* all the 3-d stuff is declared as [4] 'cause I'm not using the
+	      zeroth element. */
 
-	    p[3][1] = coszeta * sintheta;
-	    p[3][2] = -1. * sinzeta * sintheta;
-	    p[3][3] = costheta;
+	    double[] m = new double[9];   /* precession matrix, row by row */
+	    double[][] p = new double[4][4];
+	    /* elements of the rotation matrix */
+	    double[][] n = new double[4][4];
+	    /* elements of the nutation matrix */
+	    double[][] r = new double[4][4];
+	    /* their product */
+	    double[][] t = new double[4][4];  /* temporary matrix for inversion .... */
+	    double radian_ra, radian_dec;
+
+	    /* nutation angles in radians */
+	    DoubleRef del_psi = new DoubleRef();
+	    DoubleRef del_eps = new DoubleRef();
+	    double eps;
+
+	    double[] orig = new double[4];   /* original unit vector */
+	    double[] fin = new double[4];   /* final unit vector */
+	    int i, j, k;
+
+
+	    /* copy in the precession matrix */
+
+	    precession_matrix(std_epoch, date_epoch, m);
+	    for (i = 1; i <= 3; i++) {
+	        for (j = 1; j <= 3; j++) {
+	            p[i][j] = m[3 * (i - 1) + (j - 1)];
+	        }
+	    }
 
 	    if (just_precess == XFORM_DOAPPAR) {  /* if apparent place called for */
 
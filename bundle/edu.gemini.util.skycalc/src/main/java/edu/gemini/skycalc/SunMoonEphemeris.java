@@ -0,0 +1,123 @@
+package edu.gemini.skycalc;
+
+import edu.gemini.spModel.core.Site;
+
+import static java.lang.Math.cos;
+
+/**
+ * The positions of the sun and moon as seen from a site at a particular time,
+ * along with the sidereal time and epoch.  None of this depends on the target,
+ * so it can be computed once and shared by every target observed at that
+ * time (see {@link EphemerisCache} and
+ * {@link ImprovedSkyCalc#calculate(jsky.coords.WorldCoords, SunMoonEphemeris)}).
+ * Instances are immutable.
+ */
+public final class SunMoonEphemeris extends ImprovedSkyCalcMethods {
+
+    private final Site site;
+    private final long time;
+
+    // time
+    final double jd;
+    final double sid;
+    final double epoch;
+
+    // sun
+    final double sunRa;
+    final double sunDec;
+    final double sunTopoRa;
+    final double sunTopoDec;
+    final double sunAltitude;
+
+    // moon (topocentric)
+    final double moonRa;
+    final double moonDec;
+    final double moonDistance;
+    final double lunarElevation;
+    final double lunarPhaseAngle;
+    final float  lunarIlluminatedFraction;
+
+    /**
+     * Computes the sun and moon positions for the given site and time (in
+     * milliseconds since the epoch).
+     */
+    public SunMoonEphemeris(final Site site, final long time) {
+        this.site = site;
+        this.time = time;
+
+        final double hoursLongitude = -site.longitude/15.;
+        final double degreesLatitude = site.latitude;
+
+        final DoubleRef jdut = new DoubleRef();
+        final DoubleRef sidt = new DoubleRef();
+        final DoubleRef curepoch = new DoubleRef();
+        setup_time_place(new DateTime(time), hoursLongitude, jdut, sidt, curepoch);
+        jd = jdut.d;
+        sid = sidt.d;
+        epoch = curepoch.d;
+
+        final DoubleRef ramoon = new DoubleRef();
+        final DoubleRef decmoon= new DoubleRef();
+        final DoubleRef distmoon = new DoubleRef();
+        final DoubleRef georamoon = new DoubleRef();
+        final DoubleRef geodecmoon = new DoubleRef();
+        final DoubleRef geodistmoon = new DoubleRef();
+        final DoubleRef rasun = new DoubleRef();
+        final DoubleRef decsun = new DoubleRef();
+        final DoubleRef distsun = new DoubleRef();
+        final DoubleRef x = new DoubleRef();
+        final DoubleRef y = new DoubleRef();
+        final DoubleRef z = new DoubleRef();
+        final DoubleRef toporasun = new DoubleRef();
+        final DoubleRef topodecsun = new DoubleRef();
+        final DoubleRef az = new DoubleRef();
+
+        accusun(jd,sid,degreesLatitude,rasun,decsun,distsun, toporasun,topodecsun,x,y,z);
+        sunAltitude=altit(topodecsun.d,(sid-toporasun.d),degreesLatitude,az, new DoubleRef() /* [out] parang, ignored */);
+
+        accumoon(jd,degreesLatitude,sid,site.altitude,georamoon,geodecmoon,geodistmoon, ramoon,decmoon,distmoon);
+        lunarElevation=altit(decmoon.d,(sid-ramoon.d),degreesLatitude,az, new DoubleRef()  /* [out] parang, ignored */);
+
+        lunarPhaseAngle = DEG_IN_RADIAN * subtend(ramoon.d,decmoon.d,toporasun.d,topodecsun.d);
+        lunarIlluminatedFraction=(float) (0.5*(1.-cos(subtend(ramoon.d,decmoon.d,rasun.d,decsun.d))));
+
+        sunRa = rasun.d;
+        sunDec = decsun.d;
+        sunTopoRa = toporasun.d;
+        sunTopoDec = topodecsun.d;
+        moonRa = ramoon.d;
+        moonDec = decmoon.d;
+        moonDistance = distmoon.d;
+    }
+
+    public Site getSite() {
+        return site;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Local mean sidereal time in hours.
+     */
+    public double getSiderealTime() {
+        return sid;
+    }
+
+    public double getSunAltitude() {
+        return sunAltitude;
+    }
+
+    public double getLunarElevation() {
+        return lunarElevation;
+    }
+
+    public double getLunarPhaseAngle() {
+        return lunarPhaseAngle;
+    }
+
+    public float getLunarIlluminatedFraction() {
+        return lunarIlluminatedFraction;
+    }
+}
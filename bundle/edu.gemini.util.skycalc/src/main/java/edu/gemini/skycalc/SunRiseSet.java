@@ -44,10 +44,10 @@ public class SunRiseSet {
         Calendar cal = Calendar.getInstance(site.timezone());
         cal.setTimeInMillis(timestamp);
 
-        TwilightBoundedNight official     = new TwilightBoundedNight(TwilightBoundType.OFFICIAL, timestamp, site);
-        TwilightBoundedNight civil        = new TwilightBoundedNight(TwilightBoundType.CIVIL, timestamp, site);
-        TwilightBoundedNight nautical     = new TwilightBoundedNight(TwilightBoundType.NAUTICAL, timestamp, site);
-        TwilightBoundedNight astronomical = new TwilightBoundedNight(TwilightBoundType.ASTRONOMICAL, timestamp, site);
+        TwilightBoundedNight official     = EphemerisCache.twilightNight(TwilightBoundType.OFFICIAL, timestamp, site);
+        TwilightBoundedNight civil        = EphemerisCache.twilightNight(TwilightBoundType.CIVIL, timestamp, site);
+        TwilightBoundedNight nautical     = EphemerisCache.twilightNight(TwilightBoundType.NAUTICAL, timestamp, site);
+        TwilightBoundedNight astronomical = EphemerisCache.twilightNight(TwilightBoundType.ASTRONOMICAL, timestamp, site);
 
         // calculate the times for nautical and astronomical
         this.sunset                    = official.getStartTime();
@@ -4,12 +4,21 @@ package edu.gemini.util.skycalc.calc
  * Base trait for all calculators.
  * A calculator basically holds a matrix of values which are sampled at defined points in time over a given interval.
  * For each sampling point in time a vector with an arbitrary number of values can be stored.
+ * The values are kept in primitive arrays, one column per field.
  */
 trait Calculator {
 
   val times: Vector[Long]
   def toIndex(t: Long): Int
-  val values: Vector[Vector[Double]]
+
+  /** The sampled values, one column per field with one value per sampling time. Must not be modified. */
+  val columns: Array[Array[Double]]
+
+  /** The sampled values as immutable vectors, one per field. */
+  lazy val values: Vector[Vector[Double]] = columns.map(c => Vector(c:_*)).toVector
+
+  /** The sampling times as a primitive array. */
+  protected lazy val timeColumn: Array[Long] = times.toArray
 
   lazy val start = times.head
   lazy val end = times.last
@@ -17,13 +26,33 @@ trait Calculator {
 
   /** True if the values for the given time are covered by this target. */
   def isDefinedAt(t: Long) = t >= start && t <= end
-  def value(field: Int, ix: Int) = values(field)(ix)
-  def valueAt(field: Int, t: Long) = values(field)(toIndex(t))
+  def value(field: Int, ix: Int) = columns(field)(ix)
+  def valueAt(field: Int, t: Long) = columns(field)(toIndex(t))
   def timedValues(field: Int) = times.zip(values(field))
 
-  def min(field: Int): Double = values(field).min
-  def max(field: Int): Double = values(field).max
-  def mean(field: Int): Double = values(field).sum / samples
+  def min(field: Int): Double = {
+    val c = columns(field)
+    var m = c(0)
+    var i = 1
+    while (i < c.length) { if (c(i) < m) m = c(i); i += 1 }
+    m
+  }
+
+  def max(field: Int): Double = {
+    val c = columns(field)
+    var m = c(0)
+    var i = 1
+    while (i < c.length) { if (c(i) > m) m = c(i); i += 1 }
+    m
+  }
+
+  def mean(field: Int): Double = {
+    val c = columns(field)
+    var sum = 0.0
+    var i = 0
+    while (i < c.length) { sum += c(i); i += 1 }
+    sum / samples
+  }
 
 }
 
@@ -69,8 +98,8 @@ trait FixedRateCalculator extends Calculator {
     require(t >= start)
     require(t <= end)
     val ix = Math.floor((t - start) / preciseRate).toInt   // always round down; the sample at this index gives a value <= t
-    require(times(ix) <= t)
-    require(ix == samples-1 || times(ix+1) > t)
+    require(timeColumn(ix) <= t)
+    require(ix == samples-1 || timeColumn(ix+1) > t)
     ix
   }
 
@@ -86,11 +115,18 @@ trait IrregularIntervalCalculator extends Calculator {
   /** Irregular interval calculators need to define a vector of times at which to sample the data. */
   val times: Vector[Long]
 
-  /** Gets the index to the left of the given value t. */
+  /** Gets the index to the left of the given value t, i.e. the last index with a time <= t (binary search). */
   def toIndex(t: Long) = {
     require(t >= start)
     require(t <= end)
-    val ix = times.zipWithIndex.reverse.dropWhile(_._1 > t).head._2
+    val ts = timeColumn
+    var lo = 0
+    var hi = ts.length - 1
+    while (lo < hi) {
+      val mid = (lo + hi + 1) >>> 1
+      if (ts(mid) <= t) lo = mid else hi = mid - 1
+    }
+    val ix = lo
     // postconditions: useful for debugging / documentation
     // require(ix >= 0 && ix < samples)
     // require(times(ix) <= t && (ix == samples-1 || times(ix+1) > t))
@@ -110,13 +146,15 @@ trait LinearInterpolatingCalculator extends Calculator {
    */
   override def valueAt(field: Int, t: Long): Double = {
     val ix = toIndex(t)
-    val t0 = times(ix)
-    val v0 = values(field)(ix)
+    val ts = timeColumn
+    val vs = columns(field)
+    val t0 = ts(ix)
+    val v0 = vs(ix)
     if (t0 == t || ix == samples-1) v0
     else {
-      val t1 = times(ix+1)
+      val t1 = ts(ix+1)
       // require(t0 <= t && t < t1)
-      val v1 = values(field)(ix+1)
+      val v1 = vs(ix+1)
       val v = v0 + (t - t0).toDouble/(t1 - t0) * (v1 - v0)
       // require((v0 >= v1 && v0 >= v && v >= v1) || (v0 < v1 && v0 <= v && v <= v1))
       v
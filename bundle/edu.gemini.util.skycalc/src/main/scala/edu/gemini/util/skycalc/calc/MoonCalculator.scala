@@ -1,7 +1,6 @@
 package edu.gemini.util.skycalc.calc
 
-import edu.gemini.skycalc.{MoonCalc, TimeUtils, ImprovedSkyCalc}
-import java.util.Date
+import edu.gemini.skycalc.{EphemerisCache, MoonCalc, TimeUtils, ImprovedSkyCalc}
 import edu.gemini.spModel.core.Site
 import jsky.coords.WorldCoords
 import edu.gemini.util.skycalc.calc.MoonCalculator.Fields
@@ -17,7 +16,7 @@ trait MoonCalculator extends Calculator {
 
   val site: Site
 
-  val values: Vector[Vector[Double]] = calculate()
+  val columns: Array[Array[Double]] = calculate()
 
   import Fields._
 
@@ -49,34 +48,26 @@ trait MoonCalculator extends Calculator {
     val skycalc = new ImprovedSkyCalc(site)
     val dummy = new WorldCoords(0, 0)
 
-    // prepare temporary data structure
+    // prepare data structure
+    // IMPORTANT: Make sure the order reflects the id values of the field enums!
     val values = Array (
-      new Array[Double](samples),
-      new Array[Double](samples),
-      new Array[Double](samples),
       new Array[Double](samples),
       new Array[Double](samples),
       new Array[Double](samples),
       new Array[Double](samples)
     )
-    // fill temporary data structure with calculated values
+    // fill data structure with calculated values
     for (ix <- 0 to samples-1) {
       val t = times(ix)
-      skycalc.calculate(dummy, new Date(t), true)
-      values(Elevation.id)(ix) = skycalc.getLunarElevation
-      values(PhaseAngle.id)(ix) = skycalc.getLunarPhaseAngle
-      values(IlluminatedFraction.id)(ix) = skycalc.getLunarIlluminatedFraction
+      val ephemeris = EphemerisCache.get(site, t)
+      skycalc.calculate(dummy, ephemeris)
+      values(Elevation.id)(ix) = ephemeris.getLunarElevation
+      values(PhaseAngle.id)(ix) = ephemeris.getLunarPhaseAngle
+      values(IlluminatedFraction.id)(ix) = ephemeris.getLunarIlluminatedFraction
       values(SkyBrightness.id)(ix) = if (skycalc.getLunarSkyBrightness == null) 0.0 else skycalc.getLunarSkyBrightness.toDouble
     }
 
-    // turn into immutable data structure
-    Vector(
-      // IMPORTANT: Make sure the order reflects the id values of the field enums!
-      Vector(values(Elevation.id):_*),
-      Vector(values(PhaseAngle.id):_*),
-      Vector(values(IlluminatedFraction.id):_*),
-      Vector(values(SkyBrightness.id):_*)
-    )
+    values
   }
 }
 
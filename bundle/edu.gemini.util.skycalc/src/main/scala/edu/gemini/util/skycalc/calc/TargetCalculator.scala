@@ -1,8 +1,7 @@
 package edu.gemini.util.skycalc.calc
 
 import edu.gemini.spModel.core.{Coordinates, Site}
-import edu.gemini.skycalc.{ImprovedSkyCalc, TimeUtils}
-import java.util.Date
+import edu.gemini.skycalc.{EphemerisCache, ImprovedSkyCalc, TimeUtils}
 
 import edu.gemini.util.skycalc.calc.TargetCalculator.Fields
 
@@ -23,7 +22,7 @@ trait TargetCalculator extends Calculator {
   val site: Site
   val targetLocation: Long => Coordinates
 
-  val values: Vector[Vector[Double]] = calculate()
+  val columns: Array[Array[Double]] = calculate()
 
   import Fields._
 
@@ -69,8 +68,12 @@ trait TargetCalculator extends Calculator {
   // If the target is visible during the scheduled time, return the weighted mean parallactic angle as Some(angle in degrees).
   // Otherwise, the target is not visible, so return None.
   lazy val weightedMeanParallacticAngle: Option[Double] = {
-    val (weightedAngles, weights) = values(ParallacticAngle.id).zip(times).zip(values(Airmass.id)).map {
-      case ((angle, t), airmass) =>
+    val angles = columns(ParallacticAngle.id)
+    val airmasses = columns(Airmass.id)
+    val (weightedAngles, weights) = (0 until samples).map { ix =>
+        val angle = angles(ix)
+        val t = timeColumn(ix)
+        val airmass = airmasses(ix)
         // Wrap negative angles as per Andy's comment in OCSADV-16.
         val normalizedAngle = {
           if (angle < 0) {
@@ -106,13 +109,15 @@ trait TargetCalculator extends Calculator {
   lazy val meanSkyBrightness: Double = mean(SkyBrightness.id)
 
   /**
-   * Calculates all values for the given times.
+   * Calculates all values for the given times. The sun and moon positions don't depend on the target and are
+   * shared with all other calculators for the same site and times through the {@link EphemerisCache}.
    * @return
    */
   protected def calculate() = {
     val skycalc = new ImprovedSkyCalc(site)
 
-    // prepare temporary data structure
+    // prepare data structure
+    // IMPORTANT: Make sure the order reflects the id values of the field enums!
     val values = Array (
       new Array[Double](samples),
       new Array[Double](samples),
@@ -122,10 +127,10 @@ trait TargetCalculator extends Calculator {
       new Array[Double](samples),
       new Array[Double](samples)
     )
-    // fill temporary data structure with calculated values
+    // fill data structure with calculated values
     for (ix <- 0 to samples-1) {
       val t = times(ix)
-      skycalc.calculate(targetLocation(t), new Date(t), true)
+      skycalc.calculate(targetLocation(t), EphemerisCache.get(site, t))
       values(Elevation.id)(ix) = skycalc.getAltitude
       values(Azimuth.id)(ix) = skycalc.getAzimuth
       values(Airmass.id)(ix) = skycalc.getAirmass
@@ -135,18 +140,7 @@ trait TargetCalculator extends Calculator {
       values(SkyBrightness.id)(ix) = skycalc.getTotalSkyBrightness.doubleValue
     }
 
-    // turn into immutable data structure
-    Vector(
-      // IMPORTANT: Make sure the order reflects the id values of the field enums!
-      Vector(values(Elevation.id):_*),
-      Vector(values(Azimuth.id):_*),
-      Vector(values(Airmass.id):_*),
-      Vector(values(LunarDistance.id):_*),
-      Vector(values(ParallacticAngle.id):_*),
-      Vector(values(HourAngle.id):_*),
-      Vector(values(SkyBrightness.id):_*)
-    )
-
+    values
   }
 }
 
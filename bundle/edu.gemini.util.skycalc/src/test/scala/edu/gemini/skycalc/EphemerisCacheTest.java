@@ -0,0 +1,83 @@
+package edu.gemini.skycalc;
+
+import edu.gemini.spModel.core.Site;
+import jsky.coords.WorldCoords;
+import junit.framework.TestCase;
+
+import java.util.Date;
+
+/**
+ * Test cases for the {@link EphemerisCache}.
+ */
+public final class EphemerisCacheTest extends TestCase {
+    // 2015-03-02 04:00 UTC
+    private static final long TIME = 1425268800000L;
+
+    public void testSameInstance() {
+        final SunMoonEphemeris e = EphemerisCache.get(Site.GS, TIME);
+        assertSame(e, EphemerisCache.get(Site.GS, TIME));
+        assertNotSame(e, EphemerisCache.get(Site.GN, TIME));
+        assertEquals(Site.GS, e.getSite());
+        assertEquals(TIME, e.getTime());
+    }
+
+    public void testSameResults() {
+        final WorldCoords wc = new WorldCoords(150.0, -20.0);
+
+        final ImprovedSkyCalc c0 = new ImprovedSkyCalc(Site.GS);
+        c0.calculate(wc, new Date(TIME), true);
+
+        final ImprovedSkyCalc c1 = new ImprovedSkyCalc(Site.GS);
+        c1.calculate(wc, EphemerisCache.get(Site.GS, TIME));
+
+        assertEquals(c0.getAltitude(), c1.getAltitude());
+        assertEquals(c0.getAzimuth(), c1.getAzimuth());
+        assertEquals(c0.getLunarDistance(), c1.getLunarDistance());
+        assertEquals(c0.getLunarElevation(), c1.getLunarElevation());
+        assertEquals(c0.getLunarPhaseAngle(), c1.getLunarPhaseAngle());
+        assertEquals(c0.getSunAltitude(), c1.getSunAltitude());
+        assertEquals(c0.getTotalSkyBrightness(), c1.getTotalSkyBrightness());
+        assertEquals(c0.getLunarIlluminatedFraction(), c1.getLunarIlluminatedFraction());
+    }
+
+    public void testWrongSite() {
+        try {
+            new ImprovedSkyCalc(Site.GN).calculate(new WorldCoords(0, 0), EphemerisCache.get(Site.GS, TIME));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // okay
+        }
+    }
+
+    public void testTwilightNight() {
+        final TwilightBoundedNight n0 = new TwilightBoundedNight(TwilightBoundType.NAUTICAL, TIME, Site.GN);
+        final TwilightBoundedNight n1 = EphemerisCache.twilightNight(TwilightBoundType.NAUTICAL, TIME, Site.GN);
+        assertSame(n1, EphemerisCache.twilightNight(TwilightBoundType.NAUTICAL, TIME + 60000, Site.GN));
+        assertEquals(n0.getStartTime(), n1.getStartTime());
+        assertEquals(n0.getEndTime(), n1.getEndTime());
+    }
+
+    public void testTwilightNightsCounted() {
+        EphemerisCache.clear();
+        EphemerisCache.twilightNight(TwilightBoundType.NAUTICAL, TIME, Site.GN);
+        EphemerisCache.twilightNight(TwilightBoundType.NAUTICAL, TIME, Site.GN);
+        EphemerisCache.twilightNight(TwilightBoundType.CIVIL, TIME, Site.GN);
+        assertEquals(2, EphemerisCache.size());
+
+        EphemerisCache.get(Site.GN, TIME);
+        assertEquals(3, EphemerisCache.size());
+    }
+
+    public void testNightBounded() {
+        EphemerisCache.clear();
+        for (int i = 0; i < EphemerisCache.MAX_ENTRIES_PER_NIGHT + 10; ++i) {
+            EphemerisCache.get(Site.GS, TIME + i * 1000L);
+        }
+        assertEquals(EphemerisCache.MAX_ENTRIES_PER_NIGHT, EphemerisCache.size());
+
+        // Times beyond the bound are still computed, just not cached.
+        final long t = TIME + (EphemerisCache.MAX_ENTRIES_PER_NIGHT + 20) * 1000L;
+        assertEquals(t, EphemerisCache.get(Site.GS, t).getTime());
+        assertEquals(EphemerisCache.MAX_ENTRIES_PER_NIGHT, EphemerisCache.size());
+    }
+}
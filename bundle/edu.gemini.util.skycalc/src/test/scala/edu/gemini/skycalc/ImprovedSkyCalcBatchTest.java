@@ -0,0 +1,86 @@
+package edu.gemini.skycalc;
+
+import edu.gemini.spModel.core.Site;
+import jsky.coords.WorldCoords;
+import junit.framework.TestCase;
+
+import java.util.Date;
+
+/**
+ * Checks that {@link ImprovedSkyCalcBatch} agrees with {@link ImprovedSkyCalc}.
+ */
+public final class ImprovedSkyCalcBatchTest extends TestCase {
+    private static final double DELTA = 1e-9;
+
+    private static final double[] RA  = { 0.0, 45.5, 123.25, 201.0, 310.75, 359.9 };
+    private static final double[] DEC = { -89.0, -30.24, 0.0, 19.8, 45.0, 89.5 };
+
+    private static long[] times() {
+        // Every 20 minutes over a day and a half, starting 2015-03-02 00:00 UTC.
+        final long start = 1425254400000L;
+        final long[] res = new long[108];
+        for (int i = 0; i < res.length; ++i) res[i] = start + i * 20 * 60 * 1000L + 123;
+        return res;
+    }
+
+    private void checkSite(Site site) {
+        final long[] times = times();
+        final int n = times.length * RA.length;
+        final double[] alt = new double[n];
+        final double[] az  = new double[n];
+        final double[] am  = new double[n];
+        final double[] par = new double[n];
+        final double[] sb  = new double[n];
+
+        new ImprovedSkyCalcBatch(site).calculate(times, RA, DEC, alt, az, am, par, sb);
+
+        final ImprovedSkyCalc calc = new ImprovedSkyCalc(site);
+        for (int t = 0; t < times.length; ++t) {
+            for (int i = 0; i < RA.length; ++i) {
+                calc.calculate(new WorldCoords(RA[i], DEC[i]), new Date(times[t]), true);
+                final int k = t * RA.length + i;
+                assertEquals(calc.getAltitude(), alt[k], DELTA);
+                assertEquals(calc.getAzimuth(), az[k], DELTA);
+                assertEquals(calc.getAirmass(), am[k], DELTA);
+                assertEquals(calc.getParallacticAngle(), par[k], DELTA);
+                assertEquals(calc.getTotalSkyBrightness(), sb[k], DELTA);
+            }
+        }
+    }
+
+    public void testMatchesGS() {
+        checkSite(Site.GS);
+    }
+
+    public void testMatchesGN() {
+        checkSite(Site.GN);
+    }
+
+    public void testOptionalColumns() {
+        final long[] times = times();
+        final double[] alt = new double[times.length * RA.length];
+        new ImprovedSkyCalcBatch(Site.GN).calculate(times, RA, DEC, alt, null, null, null, null);
+
+        final ImprovedSkyCalc calc = new ImprovedSkyCalc(Site.GN);
+        calc.calculate(new WorldCoords(RA[2], DEC[2]), new Date(times[5]), false);
+        assertEquals(calc.getAltitude(), alt[5 * RA.length + 2], DELTA);
+    }
+
+    public void testColumnTooShort() {
+        try {
+            new ImprovedSkyCalcBatch(Site.GN).calculate(times(), RA, DEC, new double[RA.length], null, null, null, null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // okay
+        }
+    }
+
+    public void testMismatchedTargets() {
+        try {
+            new ImprovedSkyCalcBatch(Site.GN).calculate(times(), RA, new double[1], null, null, null, null, null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // okay
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package edu.gemini.skycalc;
+
+import edu.gemini.spModel.core.Site;
+import jsky.coords.WorldCoords;
+
+import java.util.Date;
+
+/**
+ * Compares computing target circumstances one sample at a time with
+ * {@link ImprovedSkyCalc} against doing them all at once with
+ * {@link ImprovedSkyCalcBatch}, with and without the sky brightness.  Run
+ * with:
+ *
+ * <pre>
+ *     ImprovedSkyCalcBenchmark [times [targets [rounds]]]
+ * </pre>
+ */
+public final class ImprovedSkyCalcBenchmark {
+
+    private interface Task {
+        double run();
+    }
+
+    private static void time(String name, int samples, int rounds, Task task) {
+        // Warm up.
+        double check = 0;
+        for (int i = 0; i < 5; ++i) check += task.run();
+
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) check += task.run();
+        final long t1 = System.nanoTime();
+
+        final double ns = (double) (t1 - t0) / rounds / samples;
+        System.out.println(String.format("%-20s %12.1f %12.0f    (%g)", name, ns, 1e9 / ns, check));
+    }
+
+    public static void main(String[] args) {
+        final int timeCount   = (args.length > 0) ? Integer.parseInt(args[0]) : 288;
+        final int targetCount = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        final int rounds      = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+
+        final long start  = 1425254400000L;
+        final long[] times = new long[timeCount];
+        for (int i = 0; i < timeCount; ++i) times[i] = start + i * 5 * 60 * 1000L;
+
+        final double[] ra  = new double[targetCount];
+        final double[] dec = new double[targetCount];
+        for (int i = 0; i < targetCount; ++i) {
+            ra[i]  = (i * 137.508) % 360.0;
+            dec[i] = -89.0 + (i * 61.8) % 178.0;
+        }
+
+        final Site site = Site.GS;
+        final int samples = timeCount * targetCount;
+        final double[] alt = new double[samples];
+        final double[] az  = new double[samples];
+        final double[] am  = new double[samples];
+        final double[] par = new double[samples];
+        final double[] sb  = new double[samples];
+
+        System.out.println(String.format("%d time(s), %d target(s), %d round(s)", timeCount, targetCount, rounds));
+        System.out.println(String.format("%-20s %12s %12s", "", "ns/sample", "samples/s"));
+
+        for (final boolean moon : new boolean[] { false, true }) {
+            final String suffix = moon ? " +moon" : "";
+
+            time("per-sample" + suffix, samples, rounds, () -> {
+                final ImprovedSkyCalc calc = new ImprovedSkyCalc(site);
+                double sum = 0;
+                for (int i = 0; i < targetCount; ++i) {
+                    final WorldCoords wc = new WorldCoords(ra[i], dec[i]);
+                    for (long t : times) {
+                        calc.calculate(wc, new Date(t), moon);
+                        sum += calc.getAltitude();
+                    }
+                }
+                return sum;
+            });
+
+            time("batch" + suffix, samples, rounds, () -> {
+                new ImprovedSkyCalcBatch(site).calculate(times, ra, dec, alt, az, am, par, moon ? sb : null);
+                double sum = 0;
+                for (double a : alt) sum += a;
+                return sum;
+            });
+        }
+    }
+}
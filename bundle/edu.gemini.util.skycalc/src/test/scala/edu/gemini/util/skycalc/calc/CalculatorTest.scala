@@ -0,0 +1,51 @@
+package edu.gemini.util.skycalc.calc
+
+import org.junit.Test
+import org.junit.Assert._
+
+class CalculatorTest {
+
+  case class SampleCalculator(times: Vector[Long], columns: Array[Array[Double]]) extends IrregularIntervalCalculator with LinearInterpolatingCalculator
+
+  case class RateCalculator(defined: Interval, rate: Long) extends FixedRateCalculator with LinearInterpolatingCalculator {
+    val columns: Array[Array[Double]] = Array(times.map(_.toDouble).toArray)
+  }
+
+  private val calc = SampleCalculator(
+    Vector(100L, 110L, 110L, 150L, 200L),
+    Array(Array(1.0, 2.0, 3.0, 5.0, 0.0))
+  )
+
+  @Test
+  def toIndexFindsLastSampleAtOrBefore(): Unit = {
+    // same result as the original linear search
+    def linear(t: Long) = calc.times.zipWithIndex.reverse.dropWhile(_._1 > t).head._2
+    (100L to 200L).foreach { t => assertEquals(linear(t), calc.toIndex(t)) }
+  }
+
+  @Test
+  def interpolates(): Unit = {
+    assertEquals(1.0, calc.valueAt(0, 100), 0.0)
+    assertEquals(1.5, calc.valueAt(0, 105), 0.0)
+    assertEquals(3.0, calc.valueAt(0, 110), 0.0)
+    assertEquals(4.0, calc.valueAt(0, 130), 0.0)
+    assertEquals(0.0, calc.valueAt(0, 200), 0.0)
+  }
+
+  @Test
+  def statistics(): Unit = {
+    assertEquals(0.0, calc.min(0), 0.0)
+    assertEquals(5.0, calc.max(0), 0.0)
+    assertEquals(2.2, calc.mean(0), 1e-12)
+    assertEquals(Vector(1.0, 2.0, 3.0, 5.0, 0.0), calc.values(0))
+  }
+
+  @Test
+  def fixedRate(): Unit = {
+    val rc = RateCalculator(Interval(1000, 2000), 30)
+    (1000L to 2000L by 7).foreach { t =>
+      assertEquals(t.toDouble, rc.valueAt(0, t), 1e-9)
+    }
+  }
+
+}
@@ -0,0 +1,21 @@
+package edu.gemini.util.trpc.common;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a remote service interface whose effect doesn't change if
+ * it is called more than once, typically because it only reads.  A client
+ * using pooled keep-alive connections sends such a call again if the
+ * connection fails before the reply arrives, for example because the server
+ * closed it while it was idle.  Other calls are never sent twice, since the
+ * server may have performed them already.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent {
+}
@@ -0,0 +1,67 @@
+package edu.gemini.util.trpc.client
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+/**
+ * A thread-safe histogram of call latencies with power of two millisecond
+ * buckets: bucket 0 counts calls that took less than 1 ms and bucket i > 0
+ * those that took [2^(i-1), 2^i) ms.
+ */
+final class LatencyHistogram {
+  import LatencyHistogram._
+
+  private val buckets  = new AtomicLongArray(BucketCount)
+  private val totalMs  = new AtomicLong()
+  private val failures = new AtomicLong()
+  private val maxMs    = new AtomicLong()
+
+  def record(ms: Long, success: Boolean): Unit = {
+    buckets.incrementAndGet(bucket(ms))
+    totalMs.addAndGet(ms)
+    if (!success) failures.incrementAndGet()
+
+    var m = maxMs.get
+    while (ms > m && !maxMs.compareAndSet(m, ms)) m = maxMs.get
+  }
+
+  def stats: LatencyStats =
+    LatencyStats((0 until BucketCount).map(buckets.get).toList, totalMs.get, failures.get, maxMs.get)
+
+}
+
+object LatencyHistogram {
+  val BucketCount = 32
+
+  def bucket(ms: Long): Int =
+    if (ms <= 0) 0 else math.min(BucketCount - 1, 64 - java.lang.Long.numberOfLeadingZeros(ms))
+
+  /** Exclusive upper bound in ms of the given bucket. */
+  def upperBound(bucket: Int): Long =
+    1L << bucket
+}
+
+/**
+ * A snapshot of a [[LatencyHistogram]].  `failures` counts the calls that
+ * ended with an exception, whether thrown by the server or the transport.
+ */
+final case class LatencyStats(buckets: List[Long], totalMs: Long, failures: Long, maxMs: Long) {
+
+  val count: Long = buckets.sum
+
+  def meanMs: Double =
+    if (count == 0) 0.0 else totalMs.toDouble / count
+
+  /**
+   * An upper bound in ms for the latency of the given percentile (0 < p <=
+   * 100) of the calls, accurate to the bucket size.
+   */
+  def percentileMs(p: Double): Long = {
+    val target = math.ceil(count * p / 100.0).toLong max 1L
+    val bucket = buckets.scanLeft(0L)(_ + _).tail.indexWhere(_ >= target)
+    if (bucket < 0) 0L else math.min(LatencyHistogram.upperBound(bucket), maxMs)
+  }
+
+  override def toString: String =
+    f"n=$count%d failed=$failures%d mean=$meanMs%.1fms p50<=${percentileMs(50)}%dms p90<=${percentileMs(90)}%dms p99<=${percentileMs(99)}%dms max=$maxMs%dms"
+
+}
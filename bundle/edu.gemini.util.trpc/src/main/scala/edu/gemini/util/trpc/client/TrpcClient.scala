@@ -6,14 +6,17 @@ import edu.gemini.util.security.auth.keychain.Action._
 import edu.gemini.util.ssl.GemSslSocketFactory
 import edu.gemini.util.trpc.common._
 
-import java.io.IOException
+import java.io.{ByteArrayOutputStream, InputStream, IOException, OutputStream}
 import java.lang.reflect.{UndeclaredThrowableException, Proxy, Method, InvocationHandler}
+import java.lang.{reflect => jlr}
 import java.net.URL
+import java.util.concurrent.{ConcurrentHashMap, Semaphore}
 import java.util.logging.{Level, Logger=>JLogger}
 import javax.net.ssl.{SSLSession, HostnameVerifier, HttpsURLConnection}
 import javax.servlet.http.HttpServletResponse
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
 import scala.concurrent.{ExecutionContext, Future}
 import scalaz._
 import Scalaz._
@@ -30,10 +33,137 @@ object TrpcClient {
      def verify(s: String, sslSession: SSLSession) = true
   }
 
-  class ClientBuilder(host: String, port: Int, connectTimeout: Int, readTimeout: Int) {
+  /** How remote calls are sent to the server. */
+  sealed trait Transport
+
+  object Transport {
+
+    /**
+     * Streams each request as it is serialized, which suits very large
+     * arguments.  This is the default unless [[MaxInFlightProp]] is set.
+     */
+    case object Streaming extends Transport
+
+    /**
+     * Sends each request in one piece on a keep-alive connection that is
+     * returned to the JVM's connection cache once the reply has been read,
+     * so that subsequent calls to the same peer skip the TCP and TLS
+     * handshakes.  At most `maxInFlight` calls to a peer are in progress at
+     * the same time; further calls wait for one of them to complete.  The JVM
+     * keeps at most `http.maxConnections` (default 5) idle connections per
+     * peer, so larger values only help with long running calls.  If a
+     * connection fails before the reply arrives, only calls to methods marked
+     * [[edu.gemini.util.trpc.common.Idempotent]] are sent again.
+     */
+    final case class Pooled(maxInFlight: Int) extends Transport {
+      require(maxInFlight > 0, "maxInFlight must be > 0")
+    }
+
+    /**
+     * System property that selects the default transport: if set to a number
+     * n > 0, clients use `Pooled(n)` unless told otherwise.
+     */
+    val MaxInFlightProp = "edu.gemini.util.trpc.maxInFlight"
+
+    lazy val default: Transport =
+      Option(System.getProperty(MaxInFlightProp)).fold(Streaming: Transport) { s =>
+        try {
+          val n = s.trim.toInt
+          if (n > 0) Pooled(n) else { Log.warning(s"Value of property '$MaxInFlightProp' must be > 0, not pooling"); Streaming }
+        } catch {
+          case _: NumberFormatException =>
+            Log.warning(s"Could not parse value of property '$MaxInFlightProp': $s")
+            Streaming
+        }
+      }
+  }
+
+  // Limits the number of concurrent pooled calls per peer.  The limit is set
+  // by the first pooled client for a peer.
+  private val inFlight = new ConcurrentHashMap[(String, Int), (Int, Semaphore)]()
+
+  // Peers and limits that have already been warned about.
+  private val ignoredLimits = ConcurrentHashMap.newKeySet[(String, Int, Int)]()
+
+  private def permits(host: String, port: Int, max: Int): Semaphore = {
+    val p          = (max, new Semaphore(max, true))
+    val (limit, s) = Option(inFlight.putIfAbsent((host, port), p)).getOrElse(p)
+    if (limit != max && ignoredLimits.add((host, port, max)))
+      Log.warning(s"Ignoring maxInFlight $max for $host:$port, which is already limited to $limit concurrent calls.")
+    s
+  }
+
+  // A reply with an error status, as opposed to a failed connection.
+  private final class StatusException(msg: String) extends IOException(msg)
+
+  /**
+   * System property naming the codec that clients ask servers to use for
+   * replies, and use for requests once a server has shown that it supports
+   * it.  Deflate by default; "identity" turns compression off.
+   */
+  val CodecProp = "edu.gemini.util.trpc.codec"
+
+  lazy val defaultCodec: Codec =
+    Option(System.getProperty(CodecProp)).fold(Codec.Deflate: Codec) { s =>
+      Codec.forName(s).getOrElse {
+        Log.warning(s"Unknown codec in property '$CodecProp': $s")
+        Codec.Deflate
+      }
+    }
+
+  // The codec that each peer is known to accept for requests, learned from
+  // the replies it sends.
+  private val peerCodecs = new ConcurrentHashMap[(String, Int), Codec]()
+
+  // Latencies by remote method, for all clients.
+  private val latencies = new ConcurrentHashMap[String, LatencyHistogram]()
+
+  private def record(method: String, ms: Long, success: Boolean): Unit = {
+    val h = new LatencyHistogram
+    Option(latencies.putIfAbsent(method, h)).getOrElse(h).record(ms, success)
+  }
+
+  /**
+   * Latency statistics of the remote calls made by all clients in this JVM,
+   * keyed by `interface.method`.
+   */
+  def stats: Map[String, LatencyStats] =
+    latencies.asScala.map { case (k, h) => k -> h.stats }.toMap
+
+  def resetStats(): Unit =
+    latencies.clear()
+
+  /** The result of a call in a [[TrpcClient#Batch]], available once the batch has been sent. */
+  final class Deferred[A] private[client] {
+    @volatile private var r: Option[Try[A]] = None
+
+    private[client] def complete(result: Try[AnyRef]): Unit =
+      r = Some(result.asInstanceOf[Try[A]])
+
+    def result: Try[A] =
+      r.getOrElse(throw new IllegalStateException("The batch has not been sent yet."))
+
+    /** The value returned by the remote method, or else the exception it threw. */
+    def get: A =
+      result.get
+  }
+
+  class ClientBuilder(host: String, port: Int, connectTimeout: Int, readTimeout: Int, transport: Transport, codec: Codec) {
+
+    def this(host: String, port: Int, connectTimeout: Int, readTimeout: Int) =
+      this(host, port, connectTimeout, readTimeout, Transport.default, defaultCodec)
+
+    def withTransport(t: Transport): ClientBuilder =
+      new ClientBuilder(host, port, connectTimeout, readTimeout, t, codec)
+
+    def pooled(maxInFlight: Int): ClientBuilder =
+      withTransport(Transport.Pooled(maxInFlight))
+
+    def withCodec(c: Codec): ClientBuilder =
+      new ClientBuilder(host, port, connectTimeout, readTimeout, transport, c)
 
     def withKeys(keys: Set[Key]): TrpcClient = 
-      new TrpcClient(host, port, connectTimeout, readTimeout, keys)
+      new TrpcClient(host, port, connectTimeout, readTimeout, keys, transport, codec)
 
     def withoutKeys: TrpcClient = 
       withKeys(Set())
@@ -63,7 +193,7 @@ object TrpcClient {
 
 }
 
-class TrpcClient private (host: String, port: Int, connectTimeout: Int, readTimeout: Int, keys: Set[Key]) {
+class TrpcClient private (host: String, port: Int, connectTimeout: Int, readTimeout: Int, keys: Set[Key], transport: TrpcClient.Transport, codec: Codec) {
   import TrpcClient._
 
   /**
@@ -72,6 +202,31 @@ class TrpcClient private (host: String, port: Int, connectTimeout: Int, readTime
    */
   trait Remote {
     def apply[A: Manifest]: A
+
+    /**
+     * Sends all the remote calls recorded through the given [[Batch]] in a
+     * single request, once `f` returns.  The server runs them in parallel and
+     * replies with all the results together, which become available from the
+     * [[TrpcClient.Deferred]] handles returned by the batch.  Invoke as
+     * <code>
+     * val (v, d) = remote.batch { b => (b((s: IFoo) => s.foo(x)), b((s: IBar) => s.bar(y))) }
+     * v.get ...
+     * </code>
+     * The calls in a batch must not depend on each other's results.  If the
+     * server doesn't support batches the calls are sent one by one.
+     */
+    def batch[B](f: Batch => B): B
+  }
+
+  /** Records remote calls for [[Remote.batch]]. */
+  trait Batch {
+
+    /**
+     * Records the remote call made by `f` on its argument, which is a stand-in
+     * for the service: `f` must call exactly one of its methods, and must not
+     * use the value it returns.
+     */
+    def apply[S, A](f: S => A)(implicit m: Manifest[S]): Deferred[A]
   }
 
   /**
@@ -91,6 +246,7 @@ class TrpcClient private (host: String, port: Int, connectTimeout: Int, readTime
   def apply[A](f: Remote => A): Try[A] = try {
     f(new Remote {
       def apply[A: Manifest]: A = proxy[A]
+      def batch[B](f: Batch => B): B = sendBatch(f)
     }).right
   } catch {
     case ute: UndeclaredThrowableException => try {
@@ -120,45 +276,183 @@ class TrpcClient private (host: String, port: Int, connectTimeout: Int, readTime
   private def proxy[A](implicit m: Manifest[A]): A = {
     val handler = new InvocationHandler {
 
+      def invoke(proxy: Any, method: Method, args: Array[AnyRef]): AnyRef =
+        send(m.erasure.getName, method.getName, args, isIdempotent(method)) match {
+          case \/-(a) => a
+          case -\/(e) =>
+            val localFrames = new Exception().getStackTrace.drop(2) // throw away the proxy frames (?)
+            val markerFrame = new StackTraceElement("***** EXCEPTION THROW FROM SERVER", "", "<none>", 0)
+            e.setStackTrace(localFrames ++ Array(markerFrame) ++ e.getStackTrace)
+            throw e
+        }
+
+    }
+
+    Proxy.newProxyInstance(getClass.getClassLoader, Array(m.erasure), handler).asInstanceOf[A]
+  }
+
+  private def sendBatch[B](f: Batch => B): B = {
+    val calls = ListBuffer.empty[((Invocation, Boolean), Deferred[_])]
+
+    val b = f(new Batch {
+      def apply[S, A](g: S => A)(implicit m: Manifest[S]): Deferred[A] = {
+        val d = new Deferred[A]
+        calls += ((recordCall(g), d))
+        d
+      }
+    })
+
+    def sendOne(c: (Invocation, Boolean)): Try[AnyRef] =
+      send(c._1.service, c._1.method, c._1.args, c._2)
+
+    val results = calls.toList.map(_._1) match {
+      case Nil      => Nil
+      case List(c)  => List(sendOne(c))
+      case cs       =>
+        send(BatchPath, "", cs.map(_._1), cs.forall(_._2)) match {
+          case \/-(rs) => rs.asInstanceOf[List[Try[AnyRef]]]
+
+          // An older server, which doesn't know the batch path.
+          case -\/(_: IllegalArgumentException) => cs.map(sendOne)
+
+          case -\/(e) => throw e
+        }
+    }
+
+    calls.zip(results).foreach { case ((_, d), r) => d.complete(r) }
+    b
+  }
+
+  // Returns the single call that f makes on a stand-in for service S, and
+  // whether it may be sent again.
+  private def recordCall[S, A](f: S => A)(implicit m: Manifest[S]): (Invocation, Boolean) = {
+    var calls = List.empty[(Invocation, Boolean)]
+
+    val handler = new InvocationHandler {
       def invoke(proxy: Any, method: Method, args: Array[AnyRef]): AnyRef = {
-        val start = currentTimeMillis
-        try {
-          val url = "https://%s:%d/trpc/%s/%s".format(host, port, m.erasure.getName, method.getName)
-          val conn = new URL(url).openConnection.asInstanceOf[HttpsURLConnection]
-          conn.setSSLSocketFactory(GemSslSocketFactory.get)
-          conn.setHostnameVerifier(hostnameVerifier)
-          conn.setConnectTimeout(connectTimeout)
-          conn.setChunkedStreamingMode(1024 * 16) // 16k blocks (?)
-          conn.setDoOutput(true)
-          conn.setDoInput(true)
-          conn.setReadTimeout(readTimeout)
-
-          if (Log.isLoggable(Level.FINE))
-            Log.fine("Sending %d principals:".format(keys.size) + keys.map(p => "\n\t" + p))
-
-          closing(conn.getOutputStream)(_.writeRaw(Version.current, (args, keys))) // note that args may be null
-          conn.getResponseCode match {
-            case HttpServletResponse.SC_OK => closing(conn.getInputStream)(_.readRaw.next[Try[AnyRef]]) match {
-              case \/-(a) => a
-              case -\/(e) =>
-                val localFrames = new Exception().getStackTrace.drop(2) // throw away the proxy frames (?)
-                val markerFrame = new StackTraceElement("***** EXCEPTION THROW FROM SERVER", "", "<none>", 0)
-                e.setStackTrace(localFrames ++ Array(markerFrame) ++ e.getStackTrace)
-                throw e
+        calls = (Invocation(m.erasure.getName, method.getName, args), isIdempotent(method)) :: calls
+        defaultValue(method.getReturnType)
+      }
+    }
+    f(Proxy.newProxyInstance(getClass.getClassLoader, Array(m.erasure), handler).asInstanceOf[S])
+
+    calls match {
+      case List(i) => i
+      case _       => throw new IllegalArgumentException("A batched call must make exactly one remote call, not %d.".format(calls.size))
+    }
+  }
+
+  private def isIdempotent(method: Method): Boolean =
+    method.isAnnotationPresent(classOf[Idempotent])
+
+  // null, or the boxed zero value of a primitive type
+  private def defaultValue(c: Class[_]): AnyRef =
+    if (!c.isPrimitive || c == java.lang.Void.TYPE) null
+    else jlr.Array.get(jlr.Array.newInstance(c, 1), 0)
+
+  // Sends a request for the given service and method, or a batch, with the
+  // permits, retries, timing and logging common to all calls.
+  private def send(service: String, method: String, payload: AnyRef, idempotent: Boolean): Try[AnyRef] = {
+    val name    = if (method.isEmpty) service else service + "." + method
+    val start   = currentTimeMillis
+    var success = false
+    try {
+      val url = if (method.isEmpty) "https://%s:%d/trpc/%s".format(host, port, service)
+                else "https://%s:%d/trpc/%s/%s".format(host, port, service, method)
+
+      val result = transport match {
+        case Transport.Streaming   => exchange(url, payload)
+        case Transport.Pooled(max) =>
+          val s = permits(host, port, max)
+          s.acquire()
+          try {
+            try exchange(url, payload) catch {
+              // Likely a kept-alive connection that the server has closed.
+              case e: IOException if idempotent && !e.isInstanceOf[StatusException] =>
+                Log.log(Level.FINE, s"Sending $name to $host:$port again", e)
+                exchange(url, payload)
             }
-            case code => throw new IOException("%d %s: %s".format(code, conn.getResponseMessage, url)) // can we do better?
-          }
-        } finally {
-          val elapsed = currentTimeMillis - start
-          val level = if (elapsed > Warn) Level.WARNING else Level.FINE
-          if (Log.isLoggable(level))
-            Log.log(level, "%s on %s:%d took %d ms.".format(method, host, port, elapsed))
-        }
+          } finally s.release()
       }
+      success = result.isRight
+      result
+    } finally {
+      val elapsed = currentTimeMillis - start
+      record(name, elapsed, success)
+      val level = if (elapsed > Warn) Level.WARNING else Level.FINE
+      if (Log.isLoggable(level))
+        Log.log(level, "%s on %s:%d took %d ms.".format(name, host, port, elapsed))
+    }
+  }
+
+  // Sends a request and reads the reply.
+  private def exchange(url: String, payload: AnyRef): Try[AnyRef] = {
+    val pooled = transport != Transport.Streaming
 
+    val conn = new URL(url).openConnection.asInstanceOf[HttpsURLConnection]
+    conn.setSSLSocketFactory(GemSslSocketFactory.get)
+    conn.setHostnameVerifier(hostnameVerifier)
+    conn.setConnectTimeout(connectTimeout)
+    conn.setDoOutput(true)
+    conn.setDoInput(true)
+    conn.setReadTimeout(readTimeout)
+
+    // Ask for an encoded reply, and encode the request if the server is
+    // known to accept it.
+    val requestCodec = if (codec != Codec.Identity && peerCodecs.get((host, port)) == codec) codec else Codec.Identity
+    if (codec != Codec.Identity)        conn.setRequestProperty(Codec.AcceptHeader, Codec.formatAccept(List(codec)))
+    if (requestCodec != Codec.Identity) conn.setRequestProperty(Codec.Header, requestCodec.name)
+
+    if (Log.isLoggable(Level.FINE))
+      Log.fine("Sending %d principals:".format(keys.size) + keys.map(p => "\n\t" + p))
+
+    def write(os: OutputStream): Unit =
+      requestCodec.encode(os).writeRaw(Version.current, (payload, keys)) // note that args may be null
+
+    // A pooled request goes out in one piece with its length.  Since it is
+    // streamed rather than buffered by the JVM, the JVM doesn't silently send
+    // it again if the server has meanwhile closed the kept-alive connection;
+    // `send` decides whether that is safe.
+    if (pooled) {
+      val bytes = new ByteArrayOutputStream(BufSize)
+      write(bytes)
+      conn.setRequestProperty(TransportHeader, PooledTransport)
+      conn.setFixedLengthStreamingMode(bytes.size)
+      closing(conn.getOutputStream)(bytes.writeTo)
+    } else {
+      conn.setChunkedStreamingMode(BufSize)
+      closing(conn.getOutputStream)(write)
     }
+    conn.getResponseCode match {
+      case HttpServletResponse.SC_OK =>
+        val replyCodec = Option(conn.getHeaderField(Codec.Header)).fold(Codec.Identity: Codec) { n =>
+          Codec.forName(n).getOrElse(throw new IOException("Unsupported codec %s: %s".format(n, url)))
+        }
 
-    Proxy.newProxyInstance(getClass.getClassLoader, Array(m.erasure), handler).asInstanceOf[A]
+        // A reply in our codec shows that the server can also decode requests
+        // in it, a plain one that it can't (anymore).
+        if (replyCodec == codec) peerCodecs.put((host, port), codec)
+        else peerCodecs.remove((host, port))
+
+        closing(conn.getInputStream) { is =>
+          val ois = replyCodec.decode(is).readRaw
+          try {
+            val r = ois.next[Try[AnyRef]]
+            if (pooled) drain(is)
+            r
+          } finally ois.close()
+        }
+      case code =>
+        // the connection is only reused if the error page is read as well
+        if (pooled) Option(conn.getErrorStream).foreach(es => closing(es)(drain))
+        throw new StatusException("%d %s: %s".format(code, conn.getResponseMessage, url)) // can we do better?
+    }
+  }
+
+  // Reads what's left of a reply so that the connection can be reused.
+  private def drain(is: InputStream): Unit = {
+    val buf = new Array[Byte](BufSize)
+    while (is.read(buf) >= 0) {}
   }
 
 }
@@ -0,0 +1,69 @@
+package edu.gemini.util.trpc.common
+
+import java.io.{InputStream, OutputStream}
+import java.util.zip.{Deflater, DeflaterOutputStream, Inflater, InflaterInputStream}
+
+/**
+ * Encoding of trpc request and reply bodies on the wire.  The serialized
+ * payload is written through `encode` and read back through `decode`.
+ *
+ * Codecs are negotiated with headers so that peers that don't know about
+ * them keep working: a client lists the codecs it can decode in
+ * [[Codec.AcceptHeader]]; a server that understands the header encodes its
+ * reply with one of them and names it in [[Codec.Header]].  Once a client
+ * has seen a reply encoded with a codec it encodes its own requests to that
+ * server with it as well, again naming it in [[Codec.Header]].  Bodies
+ * without the header are plain serialized objects, as they have always been.
+ */
+sealed abstract class Codec(val name: String) {
+  def encode(os: OutputStream): OutputStream
+  def decode(is: InputStream): InputStream
+}
+
+object Codec {
+
+  /** Header naming the codec of a request or reply body. */
+  val Header = "Trpc-Codec"
+
+  /** Header listing the codecs a client accepts for the reply body. */
+  val AcceptHeader = "Trpc-Accept-Codec"
+
+  /** Plain serialized objects. */
+  case object Identity extends Codec("identity") {
+    def encode(os: OutputStream): OutputStream = os
+    def decode(is: InputStream): InputStream   = is
+  }
+
+  /**
+   * Deflate compressed serialized objects.  Serialized programs and merge
+   * plans repeat the same class descriptions, keys and parameter names over
+   * and over again and shrink considerably, while the fastest compression
+   * level keeps the CPU cost well below the transfer time on slow links.
+   */
+  case object Deflate extends Codec("deflate") {
+    def encode(os: OutputStream): OutputStream =
+      new DeflaterOutputStream(os, new Deflater(Deflater.BEST_SPEED), BufSize) {
+        // The deflater isn't ours to end unless we end it.
+        override def close(): Unit = try super.close() finally `def`.end()
+      }
+
+    def decode(is: InputStream): InputStream =
+      new InflaterInputStream(is, new Inflater(), BufSize) {
+        override def close(): Unit = try super.close() finally inf.end()
+      }
+  }
+
+  /** All codecs, in order of preference. */
+  val All: List[Codec] = List(Deflate, Identity)
+
+  def forName(name: String): Option[Codec] =
+    All.find(_.name.equalsIgnoreCase(name.trim))
+
+  /** The codecs named in an [[AcceptHeader]] value, in the order given. */
+  def parseAccept(value: String): List[Codec] =
+    Option(value).toList.flatMap(_.split(",").toList).flatMap(forName)
+
+  def formatAccept(cs: List[Codec]): String =
+    cs.map(_.name).mkString(",")
+
+}
@@ -0,0 +1,8 @@
+package edu.gemini.util.trpc.common
+
+/**
+ * A remote call sent as part of a batch: the name of the service interface,
+ * the method name and the arguments (which may be null for methods without
+ * arguments).
+ */
+final case class Invocation(service: String, method: String, args: Array[AnyRef])
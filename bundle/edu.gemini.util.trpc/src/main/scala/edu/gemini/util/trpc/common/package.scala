@@ -8,6 +8,20 @@ package object common {
 
   val BufSize = 1024 * 16 // ok?
 
+  /**
+   * Request header with which clients using pooled keep-alive connections
+   * identify themselves, so that the server can tell them how long idle
+   * connections are kept open.  Older clients don't send it.
+   */
+  val TransportHeader = "Trpc-Transport"
+  val PooledTransport = "pooled"
+
+  /**
+   * Path of batch requests.  It is not a valid class name, so it can't clash
+   * with the path of a service.
+   */
+  val BatchPath = "-batch"
+
   type Try[A] = Exception \/ A
 
   def lift[A](a: => A):Try[A] = catching(a.right[Exception])
@@ -3,6 +3,8 @@ package edu.gemini.util.trpc.server
 import javax.servlet.http.{HttpServletResponse, HttpServletRequest, HttpServlet}
 import edu.gemini.util.trpc.common._
 import java.lang.reflect.InvocationTargetException
+import java.util.concurrent.Callable
+import edu.gemini.shared.util.exec.WorkerPool
 import edu.gemini.util.security.auth.keychain._
 import edu.gemini.util.security.auth.keychain.Action._
 import java.security.{PrivilegedActionException, PrivilegedAction, Principal}
@@ -11,8 +13,52 @@ import scalaz._
 import Scalaz._
 import edu.gemini.spModel.core.{VersionException, Version}
 import java.util.logging.{Level, Logger}
+import scala.collection.JavaConverters._
 import scala.util.DynamicVariable
 
+object TrpcServlet {
+  private val Log = Logger.getLogger(classOf[TrpcServlet].getName)
+
+  /**
+   * System property with the number of seconds that clients using pooled
+   * connections are told they may keep an idle connection.  This must be less
+   * than the idle timeout of the servlet container, so that clients don't send
+   * requests on connections the server is closing.
+   */
+  val KeepAliveSecondsProp    = "edu.gemini.util.trpc.keepAliveSeconds"
+  val DefaultKeepAliveSeconds = 15
+
+  val KeepAliveSeconds: Int =
+    Option(System.getProperty(KeepAliveSecondsProp)).fold(DefaultKeepAliveSeconds) { s =>
+      try {
+        val n = s.trim.toInt
+        if (n > 0) n else { Log.warning(s"Value of property '$KeepAliveSecondsProp' must be > 0, using $DefaultKeepAliveSeconds"); DefaultKeepAliveSeconds }
+      } catch {
+        case _: NumberFormatException =>
+          Log.warning(s"Could not parse value of property '$KeepAliveSecondsProp': $s")
+          DefaultKeepAliveSeconds
+      }
+    }
+
+  // The calls of a batch are independent, so they are run in parallel.
+  private val BatchThreadCount = 8
+
+  private val batchPool = new WorkerPool("TRPC Batch Worker", BatchThreadCount)
+
+  /**
+   * Runs the given calls, in parallel if there is more than one, and returns
+   * their results in order.  The calling thread runs any call that hasn't been
+   * started by a worker yet, so a batch completes even if all the workers are
+   * busy (for example with calls that are themselves waiting for a batch).
+   */
+  def runAll(calls: List[() => Try[AnyRef]]): List[Try[AnyRef]] =
+    batchPool.runAll(calls.map { c =>
+      new Callable[Try[AnyRef]] {
+        override def call(): Try[AnyRef] = catching(c())
+      }
+    }.asJava).asScala.toList.map(_.get)
+}
+
 abstract class TrpcServlet(auth: KeyService) extends HttpServlet {
   val Log = Logger.getLogger(this.getClass.getName)
 
@@ -26,28 +72,28 @@ abstract class TrpcServlet(auth: KeyService) extends HttpServlet {
     try {
 
       // Our result object is either an exception or a valid result
-      val result:Try[AnyRef] = for {
-        c <- req.path(0) // name of our service class
-        r <- catching {  // capture any exceptions thrown within, and turn to Failure
-          for {
-            n  <- req.path(1) // the name of our method
-            a  <- req.payload // our argument array
-            ps <- subject(a._2)
-            a <- withService(c, ps) { t => t.getClass.getCompatibleMethod(n, a._1).map { m =>
-                try {
-                  m.setAccessible(true) // public stuff isn't visible if the class isn't public
-                  m.invoke(t, a._1: _*)
-                } catch {
-                  case ite:InvocationTargetException => throw ite.getCause // unwrap the exception
-                }
-              }
-            }
-          } yield a
-        }
-      } yield r
+      val result:Try[AnyRef] =
+        if (req.pathElems.toList == List(BatchPath)) batch(req)
+        else for {
+          c <- req.path(0) // name of our service class
+          r <- catching {  // capture any exceptions thrown within, and turn to Failure
+            for {
+              n  <- req.path(1) // the name of our method
+              a  <- req.payload // our argument array
+              ps <- subject(a._2)
+              a  <- call(c, n, a._1, ps)
+            } yield a
+          }
+        } yield r
 
-      // Either way, send it back.
-      closing(res.getOutputStream)(_.writeRaw(result))
+      // Let pooling clients know how long they may keep the connection for another call.
+      if (req.getHeader(TransportHeader) == PooledTransport)
+        res.setHeader("Keep-Alive", s"timeout=${TrpcServlet.KeepAliveSeconds}")
+
+      // Either way, send it back, encoded as the client asked.
+      val codec = req.replyCodec
+      if (codec != Codec.Identity) res.setHeader(Codec.Header, codec.name)
+      closing(res.getOutputStream)(os => codec.encode(os).writeRaw(result))
 
     } catch {
       case t: Exception =>
@@ -57,6 +103,27 @@ abstract class TrpcServlet(auth: KeyService) extends HttpServlet {
 
   }
 
+  // A batch of calls, whose results are returned as a list of Try[AnyRef].
+  // Each call succeeds or fails on its own.
+  private def batch(req: HttpServletRequest): Try[AnyRef] =
+    catching {
+      for {
+        a  <- req.batchPayload
+        ps <- subject(a._2)
+      } yield TrpcServlet.runAll(a._1.map(i => () => call(i.service, i.method, i.args, ps)))
+    }
+
+  private def call(c: String, n: String, args: Array[AnyRef], ps: Set[Principal]): Try[AnyRef] =
+    withService(c, ps) { t => t.getClass.getCompatibleMethod(n, args).map { m =>
+        try {
+          m.setAccessible(true) // public stuff isn't visible if the class isn't public
+          m.invoke(t, args: _*)
+        } catch {
+          case ite:InvocationTargetException => throw ite.getCause // unwrap the exception
+        }
+      }
+    }
+
   def subject(ps:Set[Key]): Try[Set[Principal]] = try {
     ps.collect { case a if auth.validateKey(a).isRight => a.get._1 : Principal } .toSet.right
   } catch {
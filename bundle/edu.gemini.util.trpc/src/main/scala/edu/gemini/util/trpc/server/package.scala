@@ -6,7 +6,7 @@ import Scalaz._
 import javax.servlet.http.{HttpServletResponse, HttpServletRequest}
 import java.{lang => jl}
 import java.lang.reflect.Method
-import java.io.{InvalidClassException, ByteArrayOutputStream, ByteArrayInputStream, ObjectInputStream}
+import java.io.{IOException, InvalidClassException, ByteArrayOutputStream, ByteArrayInputStream, ObjectInputStream}
 import edu.gemini.spModel.core.{VersionException, Version}
 import edu.gemini.util.security.auth.keychain._
 
@@ -19,26 +19,48 @@ package object server {
     def param(s: String): Try[String] =
       Option(req.getParameter(s)) \/> new IllegalArgumentException("Required request parameter %s was not found.".format(s))
 
+    /** The codec of the request body. */
+    def codec: Try[Codec] =
+      Option(req.getHeader(Codec.Header)).fold((Codec.Identity: Codec).right[Exception]) { n =>
+        Codec.forName(n) \/> (new IOException("Unsupported codec: " + n): Exception)
+      }
+
+    /** The codec to use for the reply: the first one the client accepts, if any. */
+    def replyCodec: Codec =
+      Codec.parseAccept(req.getHeader(Codec.AcceptHeader)).headOption.getOrElse(Codec.Identity)
+
     def payload: Try[(Array[AnyRef], Set[Key])] =
-      lift {
-
-        // Get our object stream
-        val ios = req.getInputStream.readRaw
-
-        // Check serial compatibility
-        try {
-          val actualVersion = ios.next[Version]
-          if (!Version.current.isCompatible(actualVersion, Version.Compatibility.serial))
-            throw new VersionException(Version.current, actualVersion, Version.Compatibility.serial);
-        } catch {
-          case ice: InvalidClassException =>
-            // the version itself is incompatible!
-            throw new VersionException(Version.current, Version.Compatibility.serial);
-        }
+      read(_.next[(Array[AnyRef], Set[Key])])
+
+    def batchPayload: Try[(List[Invocation], Set[Key])] =
+      read(_.next[(List[Invocation], Set[Key])])
+
+    private def read[A](f: ObjectInputStream => A): Try[A] =
+      codec.flatMap { c =>
+        lift {
 
-        // Next hunk is our payload
-        ios.next[(Array[AnyRef], Set[Key])]
+          // Get our object stream
+          closing(c.decode(req.getInputStream).readRaw) { ios =>
+
+            // Check serial compatibility
+            checkVersion(ios)
+
+            // Next hunk is our payload
+            f(ios)
+
+          }
+        }
+      }
 
+    private def checkVersion(ios: ObjectInputStream): Unit =
+      try {
+        val actualVersion = ios.next[Version]
+        if (!Version.current.isCompatible(actualVersion, Version.Compatibility.serial))
+          throw new VersionException(Version.current, actualVersion, Version.Compatibility.serial);
+      } catch {
+        case ice: InvalidClassException =>
+          // the version itself is incompatible!
+          throw new VersionException(Version.current, Version.Compatibility.serial);
       }
 
     def path(n: Int): Try[String] =
@@ -130,18 +130,10 @@ class SyncAllDialog private(mode: SyncMode, selectedPeer: Peer, programs: Vector
   updateStatus()
 
   val SyncAction = Action("Sync All") {
-    def doSync(p: ISPProgram): Unit = {
-      val pid = p.getProgramID
-
-      val handleResult: TryVcs[(ProgramLocationSet, VersionMap)] => Unit = {
-        case \/-(a)           => updateModel(_.markSuccess(pid))
-        case -\/(HasConflict) => updateModel(_.markSyncConflict(pid))
-        case -\/(failure)     => updateModel(_.markSyncFailed(pid, some(failure)))
-      }
-
-      VcsOtClient.ref.foreach { c =>
-        c.sync(pid, cancelled).forkAsync(r => Swing.onEDT(handleResult(r)))
-      }
+    def handleResult(pid: SPProgramID): TryVcs[(ProgramLocationSet, VersionMap)] => Unit = {
+      case \/-(a)           => updateModel(_.markSuccess(pid))
+      case -\/(HasConflict) => updateModel(_.markSyncConflict(pid))
+      case -\/(failure)     => updateModel(_.markSyncFailed(pid, some(failure)))
     }
 
     updateModelOnCurrentThread(_.markSyncInProgress)
@@ -150,8 +142,17 @@ class SyncAllDialog private(mode: SyncMode, selectedPeer: Peer, programs: Vector
         case SyncAllModel.State.SyncInProgress(_) => true
         case _                                    => false
       }
-    }.map(_.program)
-    syncList.foreach(doSync)
+    }.map(_.pid).toSet
+
+    // All the programs are synced with the selected peer in one go.  Results
+    // for the individual programs arrive as they are known, a failure of the
+    // whole applies to all of them.
+    VcsOtClient.ref.foreach { c =>
+      c.syncAll(syncList, selectedPeer, cancelled) { (pid, r) => handleResult(pid)(r) }.forkAsync {
+        case -\/(failure) => syncList.foreach(pid => handleResult(pid)(-\/(failure)))
+        case _            => // already reported
+      }
+    }
   }
 
   private def quit(closeProgram: Boolean): Unit = {
@@ -63,6 +63,14 @@ case class VcsOtClient(vcs: Vcs, reg: VcsRegistrar) {
   def sync(id: SPProgramID, cancelled: AtomicBoolean): VcsAction[(ProgramLocationSet, VersionMap)] =
     recording(id)(_.retrySync(id, _, cancelled, 10))(_._2)
 
+  /** Syncs the given programs with `peer` in bulk, handing the result for
+    * each program to `report` as soon as it is known. */
+  def syncAll(ids: Set[SPProgramID], peer: Peer, cancelled: AtomicBoolean)(report: (SPProgramID, TryVcs[(ProgramLocationSet, VersionMap)]) => Unit): VcsAction[Map[SPProgramID, TryVcs[(ProgramLocationSet, VersionMap)]]] =
+    vcs.syncAll(ids, peer, cancelled, 10) { (id, r) =>
+      r.foreach(a => vmStore(id, a)(_._2))
+      report(id, r)
+    }
+
   def log(id: SPProgramID, offset: Int, length: Int): VcsAction[(List[VcsEventSet], Boolean)] =
     lookupAndThen(id)(_.log(id, _, offset, length))
 
@@ -0,0 +1,63 @@
+import sbt._
+
+import java.io.{BufferedOutputStream, DataOutputStream, FileOutputStream}
+import java.util.regex.Pattern
+
+/**
+ * Build time conversion of the ITC's numeric data files (filters, gratings, transmission curves, SEDs etc.) into
+ * binary resources.  Each `.dat` or `.nm` file that only contains numbers gets a sibling `.bin` file holding all
+ * its values as big-endian doubles, which `edu.gemini.itc.base.DatFile` reads instead of parsing the text.  Files
+ * with non-numeric tokens (instrument and grating descriptions) are left alone.
+ *
+ * Binary layout: magic `ITCD`, version (int), number of values (int), values (doubles).
+ */
+object ItcDatFiles {
+
+  val Magic   = 0x49544344
+  val Version = 1
+  val Suffix  = ".bin"
+
+  // Same delimiters as DatFile: whitespaces, commas or semicolons and comments (everything from "#" up to next \n).
+  private val Delimiters = Pattern.compile("(\\s|,|;|(#[^\\n]*))+")
+
+  def sources(resourceDir: File): Set[File] =
+    (resourceDir ** ("*.dat" || "*.nm")).get.toSet
+
+  /** Converts the given data files below `resourceDir` and returns the binary files written to `outDir`. */
+  def compile(resourceDir: File, files: Set[File], outDir: File, log: Logger): Set[File] = {
+    val written = for {
+      f   <- files.toList.sorted
+      rel <- IO.relativize(resourceDir, f).toList
+      vs  <- values(f).toList
+    } yield {
+      val out = new File(outDir, rel + Suffix)
+      write(vs, out)
+      out
+    }
+    log.info(s"Compiled ${written.size} of ${files.size} ITC data files to $outDir")
+    written.toSet
+  }
+
+  private def values(f: File): Option[Array[Double]] = {
+    val tokens = Delimiters.split(IO.read(f, IO.utf8)).filter(_.nonEmpty)
+    try {
+      Some(tokens.map(_.toDouble))
+    } catch {
+      case _: NumberFormatException => None
+    }
+  }
+
+  private def write(vs: Array[Double], out: File): Unit = {
+    IO.createDirectory(out.getParentFile)
+    val os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 64 * 1024))
+    try {
+      os.writeInt(Magic)
+      os.writeInt(Version)
+      os.writeInt(vs.length)
+      vs.foreach(os.writeDouble)
+    } finally {
+      os.close()
+    }
+  }
+
+}
@@ -324,6 +324,7 @@ trait OcsBundle {
       bundle_edu_gemini_sp_vcs_log,
       bundle_edu_gemini_sp_vcs_reg,
       bundle_edu_gemini_spModel_core % "test->test;compile->compile",
+      bundle_edu_gemini_spModel_io % "test->compile",
       bundle_edu_gemini_spModel_pio,
       bundle_edu_gemini_util_security,
       bundle_edu_gemini_util_trpc
@@ -445,6 +446,7 @@ trait OcsBundle {
 
   lazy val bundle_edu_gemini_util_fits =
     project.in(file("bundle/edu.gemini.util.fits")).dependsOn(
+      bundle_edu_gemini_shared_util,
       bundle_edu_gemini_util_file_filter
     )
 